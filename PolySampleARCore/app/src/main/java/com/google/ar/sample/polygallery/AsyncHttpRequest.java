@@ -18,34 +18,92 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Asynchronous HTTP request.
  * <p>
  * This object sends an HTTP request asynchronously and calls the supplied callback when
  * the result of the request is available.
+ * <p>
+ * Requests run on the app's shared {@link HttpDispatcher}, which bounds the number of threads
+ * and connections however many requests are sent at once. If an {@link HttpDiskCache} is
+ * installed, responses are served from it when they are fresh, revalidated when they are stale,
+ * and stored in it.
+ * <p>
+ * The response is either delivered whole, to a {@link CompletionListener}, or streamed in chunks
+ * as it arrives, to a {@link StreamingListener}, so that a large body never has to be held in
+ * memory at once. Streamed requests don't go through the cache.
+ * <p>
+ * Responses are requested compressed (gzip or deflate), which shrinks text such as JSON, OBJ and
+ * MTL files several times, and decoded as they are read. Each request reports how many bytes it
+ * received on the wire and how many they decoded to.
+ * <p>
+ * Requests for a URL that is already being fetched (e.g. the thumbnail of an item that shows up
+ * in two searches in a row) don't fetch it again: they wait for the request in flight and get
+ * the same response, each on its own handler. Several listeners may thus get the same array:
+ * they must not modify it. Streamed requests are never coalesced.
  */
 public class AsyncHttpRequest {
   private static final String TAG = "PolySample";
 
+  // Largest Content-Length we trust enough to allocate the body up front. Beyond that, the body
+  // is accumulated as it arrives (and the request fails when memory runs out, if it must).
+  private static final int MAX_PRESIZED_BODY_BYTES = 64 * 1024 * 1024;
+
+  // The encodings we accept, and the size of the decoders' input buffers.
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+  private static final int DECODER_BUFFER_SIZE = 8192;
+
+  // Bytes received on the wire, and decoded, by all requests.
+  private static final AtomicLong totalWireBytes = new AtomicLong();
+  private static final AtomicLong totalDecodedBytes = new AtomicLong();
+
+  // The requests in flight that others can join, by URL. Guarded by itself, like the followers
+  // of all requests.
+  private static final HashMap<String, AsyncHttpRequest> coalescableRequests = new HashMap<>();
+
+  // Number of requests that joined another one instead of fetching the URL themselves.
+  private static final AtomicLong coalescedCount = new AtomicLong();
+
   // The URL of the request.
   private URL url;
 
-  // The listener to call when the request is complete.
+  // The listener to call when the request is complete, or null if streaming.
   private CompletionListener listener;
 
-  // The handler on which to post a call to the listener.
+  // The listener to stream the response to, or null if not streaming.
+  private StreamingListener streamingListener;
+
+  // The handler on which to post a call to the listener (null if streaming).
   private Handler handler;
 
   // If true, the request was started.
   private boolean requestStarted;
 
+  // The body stream as received on the wire (before decoding), while reading it.
+  private CountingInputStream wireStream;
+
+  // The requests that joined this one, and get the same response.
+  private final ArrayList<AsyncHttpRequest> followers = new ArrayList<>();
+
+  // Bytes of the body received on the wire, and decoded (-1 until the body was read).
+  private volatile long wireBytes = -1;
+  private volatile long decodedBytes = -1;
+
   /**
    * Creates a new AsyncHttpRequest for the given URL.
    *
@@ -64,13 +122,113 @@ public class AsyncHttpRequest {
     }
   }
 
+  /**
+   * Creates a new AsyncHttpRequest for the given URL, whose response is streamed.
+   *
+   * @param url               The URL of the request.
+   * @param streamingListener The listener to stream the response to. It is called on the HTTP
+   *                          thread.
+   */
+  public AsyncHttpRequest(String url, StreamingListener streamingListener) {
+    this.streamingListener = streamingListener;
+    try {
+      this.url = new URL(url);
+    } catch (MalformedURLException ex) {
+      Log.e(TAG, "Invalid URL: " + url);
+      streamingListener.onHttpRequestFailure(0, "Invalid URL: " + url, ex);
+    }
+  }
+
+  // Reads the given stream (if not null) to the end, and closes it.
+  private static void discardStream(InputStream inputStream) throws IOException {
+    if (inputStream == null) {
+      return;
+    }
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = bufferPool.acquire();
+    try (InputStream stream = inputStream) {
+      while (stream.read(buffer, 0, buffer.length) > 0) {
+        // Ignore the data.
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+  }
+
+  // Stream that counts the bytes read through it.
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) {
+        ++count;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int bytesRead = super.read(buffer, offset, length);
+      if (bytesRead > 0) {
+        count += bytesRead;
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  // Reads the whole body. If its length is known, reads it straight into an array of that
+  // length, so the body is copied once and never reallocated. Otherwise, accumulates it.
+  private static byte[] readBody(InputStream inputStream, int contentLength) throws IOException {
+    if (contentLength >= 0 && contentLength <= MAX_PRESIZED_BODY_BYTES) {
+      byte[] body = new byte[contentLength];
+      int offset = 0;
+      while (offset < contentLength) {
+        int bytesReadThisTime = inputStream.read(body, offset, contentLength - offset);
+        if (bytesReadThisTime < 0) {
+          throw new EOFException("Response body ended after " + offset + " of " +
+                  contentLength + " bytes.");
+        }
+        offset += bytesReadThisTime;
+      }
+      if (inputStream.read() >= 0) {
+        throw new IOException("Response body longer than its Content-Length.");
+      }
+      return body;
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    copyStream(inputStream, outputStream);
+    return outputStream.toByteArray();
+  }
+
   // Copies the entire contents of the given input stream to the given output stream.
   private static void copyStream(InputStream inputStream, OutputStream outputStream)
           throws IOException {
-    byte[] buffer = new byte[16384];
-    int bytesReadThisTime;
-    while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
-      outputStream.write(buffer, 0, bytesReadThisTime);
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = bufferPool.acquire();
+    try {
+      int bytesReadThisTime;
+      while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
+        outputStream.write(buffer, 0, bytesReadThisTime);
+      }
+    } finally {
+      bufferPool.release(buffer);
     }
   }
 
@@ -79,45 +237,273 @@ public class AsyncHttpRequest {
    * <p>
    * After the request completes, the listener specified in the constructor will be called
    * to report the result of the request. This method does not block, it returns immediately.
+   * The request may wait in the dispatcher's queue before it is actually sent.
    */
   public void send() {
     if (requestStarted) {
       throw new IllegalStateException("AsyncHttpRequest can only be sent once.");
     }
     requestStarted = true;
-    new Thread(this::backgroundMain).start();
+    // If the URL was invalid, the listener was already told.
+    if (url == null) {
+      return;
+    }
+    if (listener != null) {
+      synchronized (coalescableRequests) {
+        AsyncHttpRequest inFlight = coalescableRequests.get(url.toString());
+        if (inFlight != null) {
+          // The URL is already being fetched: wait for that response.
+          inFlight.followers.add(this);
+          coalescedCount.incrementAndGet();
+          return;
+        }
+        coalescableRequests.put(url.toString(), this);
+      }
+    }
+    HttpDispatcher.getDefault().dispatch(url.getHost(), this::backgroundMain);
+  }
+
+  /**
+   * Returns the number of bytes of the response body received on the wire (0 if it came from the
+   * cache), or -1 if the body wasn't read yet. Compare with {@link #getDecodedBytes}.
+   */
+  public long getWireBytes() {
+    return wireBytes;
+  }
+
+  /**
+   * Returns the size of the decoded response body, in bytes, or -1 if it wasn't read yet.
+   */
+  public long getDecodedBytes() {
+    return decodedBytes;
+  }
+
+  /**
+   * Returns the number of response body bytes all requests received on the wire.
+   */
+  public static long getTotalWireBytes() {
+    return totalWireBytes.get();
+  }
+
+  /**
+   * Returns the size of the response bodies all requests received, once decoded.
+   */
+  public static long getTotalDecodedBytes() {
+    return totalDecodedBytes.get();
+  }
+
+  /**
+   * Returns the number of requests that shared the response of another request in flight.
+   */
+  public static long getCoalescedCount() {
+    return coalescedCount.get();
   }
 
   // Main method for background thread.
   private void backgroundMain() {
+    if (streamingListener != null) {
+      streamMain();
+      return;
+    }
+    HttpDiskCache cache = HttpDiskCache.getInstalled();
+    HttpDiskCache.Entry cached = cache != null ? cache.get(url.toString()) : null;
+    if (cached != null && cached.isFresh()) {
+      wireBytes = 0;
+      decodedBytes = cached.body.length;
+      postSuccess(cached.body);
+      return;
+    }
+    if (cached != null && cache.isStaleWhileRevalidate()) {
+      // Serve the stale response right away, and refresh the cache for next time.
+      postSuccess(cached.body);
+      fetch(cache, cached, false);
+      return;
+    }
+    fetch(cache, cached, true);
+  }
+
+  // Gets the response from the server, with a conditional request if there is a cached response
+  // to revalidate, and stores it in the cache (if any). Reports the result to the listener if
+  // report is true.
+  private void fetch(HttpDiskCache cache, HttpDiskCache.Entry cached, boolean report) {
+    HttpURLConnection connection = null;
+    try {
+      connection = openConnection();
+      if (cached != null && cached.hasValidators()) {
+        cache.addConditionalHeaders(cached, connection);
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+        discardStream(connection.getInputStream());
+        HttpDiskCache.Entry refreshed = cache.putNotModified(cached, connection);
+        if (report) {
+          postSuccess(refreshed.body);
+        }
+        return;
+      }
+      if (responseCode != 200) {
+        // Read the error body anyway, so the connection can be reused.
+        discardStream(connection.getErrorStream());
+        String message = "Request to " + url + " failed with HTTP status code " + responseCode;
+        if (report) {
+          postFailure(responseCode, message, null);
+        } else {
+          Log.w(TAG, message);
+        }
+        return;
+      }
+      byte[] responseBody;
+      // Closing the fully read stream (rather than disconnecting) returns the connection to the
+      // keep-alive pool, for the next request to the same host.
+      try (InputStream inputStream = openBodyStream(connection)) {
+        // The Content-Length of an encoded body is its length on the wire, not decoded.
+        responseBody = readBody(inputStream,
+                inputStream == wireStream ? connection.getContentLength() : -1);
+      }
+      recordBodySize(connection, responseBody.length);
+      if (cache != null) {
+        cache.put(url.toString(), connection, responseBody);
+      }
+      if (report) {
+        postSuccess(responseBody);
+      }
+    } catch (Exception ex) {
+      if (report) {
+        postFailure(0, "Exception while processing request to " + url, ex);
+      } else {
+        Log.w(TAG, "Failed to revalidate " + url + ": " + ex);
+      }
+      // The connection may be in a bad state: don't reuse it.
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  // Main method for background thread, for streamed requests.
+  private void streamMain() {
     HttpURLConnection connection = null;
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = null;
     try {
-      connection = (HttpURLConnection) url.openConnection();
+      connection = openConnection();
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
-        postFailure(responseCode,
+        discardStream(connection.getErrorStream());
+        streamingListener.onHttpRequestFailure(responseCode,
                 "Request to " + url + " failed with HTTP status code " + responseCode, null);
         return;
       }
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      copyStream(connection.getInputStream(), outputStream);
-      postSuccess(outputStream.toByteArray());
+      long bodyBytes = 0;
+      try (InputStream inputStream = openBodyStream(connection)) {
+        long contentLength = inputStream == wireStream ? connection.getContentLength() : -1;
+        streamingListener.onHttpResponseStarted(contentLength);
+        buffer = bufferPool.acquire();
+        int bytesReadThisTime;
+        while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
+          streamingListener.onHttpResponseChunk(buffer, 0, bytesReadThisTime);
+          bodyBytes += bytesReadThisTime;
+        }
+        // A connection that drops may look like the end of the body.
+        if (bodyBytes < contentLength) {
+          throw new EOFException("Response body ended after " + bodyBytes + " of " +
+                  contentLength + " bytes.");
+        }
+      }
+      recordBodySize(connection, bodyBytes);
+      streamingListener.onHttpResponseComplete();
     } catch (Exception ex) {
-      postFailure(0, "Exception while processing request to " + url, ex);
-    } finally {
+      streamingListener.onHttpRequestFailure(0,
+              "Exception while processing request to " + url, ex);
       if (connection != null) {
         connection.disconnect();
       }
+    } finally {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+      }
     }
   }
 
-  // Posts a failure callback to the listener.
+  // Opens a connection to the URL, asking for a compressed response.
+  private HttpURLConnection openConnection() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    // Asking for an encoding ourselves also stops HttpURLConnection from decoding gzip
+    // transparently, which would hide the size of the body on the wire.
+    connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    return connection;
+  }
+
+  // Returns the stream of the response body, decoded according to its Content-Encoding. The
+  // bytes received on the wire are counted by wireStream.
+  private InputStream openBodyStream(HttpURLConnection connection) throws IOException {
+    wireStream = new CountingInputStream(connection.getInputStream());
+    String encoding = connection.getContentEncoding();
+    if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+      return wireStream;
+    }
+    if (encoding.equalsIgnoreCase("gzip")) {
+      return new GZIPInputStream(wireStream, DECODER_BUFFER_SIZE);
+    }
+    if (encoding.equalsIgnoreCase("deflate")) {
+      // "deflate" is the zlib format (RFC 1950), which is what Inflater expects by default.
+      // InflaterInputStream only releases an Inflater it created itself, so end ours on close.
+      return new InflaterInputStream(wireStream, new Inflater(), DECODER_BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+    }
+    wireStream.close();
+    throw new IOException("Unsupported Content-Encoding: " + encoding);
+  }
+
+  // Records the size of the body, on the wire and decoded, once it was read.
+  private void recordBodySize(HttpURLConnection connection, long bodyBytes) {
+    wireBytes = wireStream.getCount();
+    decodedBytes = bodyBytes;
+    totalWireBytes.addAndGet(wireBytes);
+    totalDecodedBytes.addAndGet(decodedBytes);
+    String encoding = connection.getContentEncoding();
+    Log.d(TAG, "Received " + url.getPath() + ": " + wireBytes + " bytes on the wire, " +
+            decodedBytes + " decoded" + (encoding != null ? " (" + encoding + ")." : "."));
+  }
+
+  // Ends the flight of this request, if others could join it: returns the requests that joined
+  // it, which get the same response.
+  private ArrayList<AsyncHttpRequest> endFlight() {
+    synchronized (coalescableRequests) {
+      if (coalescableRequests.get(url.toString()) == this) {
+        coalescableRequests.remove(url.toString());
+      }
+      ArrayList<AsyncHttpRequest> joined = new ArrayList<>(followers);
+      followers.clear();
+      return joined;
+    }
+  }
+
+  // Posts a failure callback to the listener, and to the listeners of the requests that joined
+  // this one.
   private void postFailure(final int statusCode, final String message, final Exception exception) {
+    for (AsyncHttpRequest follower : endFlight()) {
+      follower.postFailure(statusCode, message, exception);
+    }
     handler.post(() -> listener.onHttpRequestFailure(statusCode, message, exception));
   }
 
-  // Posts a success callback to the listener.
+  // Posts a success callback to the listener, and to the listeners of the requests that joined
+  // this one (which didn't download anything).
   private void postSuccess(final byte[] responseBody) {
+    for (AsyncHttpRequest follower : endFlight()) {
+      follower.wireBytes = 0;
+      follower.decodedBytes = responseBody.length;
+      follower.postSuccess(responseBody);
+    }
     handler.post(() -> listener.onHttpRequestSuccess(responseBody));
   }
 
@@ -141,4 +527,44 @@ public class AsyncHttpRequest {
      */
     void onHttpRequestFailure(int statusCode, String message, Exception exception);
   }
+
+  /**
+   * Listener that receives the response body in chunks, as it arrives.
+   * <p>
+   * All methods are called on the HTTP thread, in order: {@link #onHttpResponseStarted}, then
+   * {@link #onHttpResponseChunk} for each chunk, then {@link #onHttpResponseComplete}; or
+   * {@link #onHttpRequestFailure} at any point, after which nothing else is called.
+   */
+  public interface StreamingListener {
+    /**
+     * Called when the response starts arriving.
+     *
+     * @param contentLength The length of the body, in bytes, or -1 if unknown.
+     */
+    void onHttpResponseStarted(long contentLength);
+
+    /**
+     * Called for each chunk of the body. The buffer belongs to a pool and is reused as soon as
+     * this returns: copy what you need to keep.
+     *
+     * @param buffer The buffer holding the chunk.
+     * @param offset The offset of the chunk in the buffer.
+     * @param length The length of the chunk, in bytes.
+     */
+    void onHttpResponseChunk(byte[] buffer, int offset, int length);
+
+    /**
+     * Called when the whole body was received.
+     */
+    void onHttpResponseComplete();
+
+    /**
+     * Called to indicate that there was a failure in the asynchronous HTTP request.
+     *
+     * @param statusCode The status code, if a response was received. Otherwise, 0.
+     * @param message    The error message.
+     * @param exception  The exception that caused the failure, if any. Otherwise, null.
+     */
+    void onHttpRequestFailure(int statusCode, String message, Exception exception);
+  }
 }
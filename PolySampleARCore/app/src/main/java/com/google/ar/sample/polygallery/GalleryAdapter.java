@@ -20,17 +20,16 @@ import android.app.ActionBar;
 import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
+import android.util.JsonReader;
 import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,6 +39,9 @@ import java.util.List;
 class GalleryAdapter extends RecyclerView.Adapter {
   private static final String TAG = "GalleryAdapter";
 
+  // Whether to log the whole body of the API responses (verbose).
+  private static final boolean LOG_RESPONSE_BODIES = false;
+
   private final List<GalleryItem> items;
   private int selected;
 
@@ -50,6 +52,11 @@ class GalleryAdapter extends RecyclerView.Adapter {
 
   /**
    * Parses the response from the Poly API and creates GalleryItems for  the results.
+   * <p>
+   * The response is read with a pull parser, which only extracts the fields we need. The whole
+   * body was already received (it comes through the HTTP cache and retries), so loading each
+   * thumbnail as its asset is parsed only saves waiting for the rest of the parse, not for the
+   * network.
    *
    * @param responseBody            - the response data.
    * @param backgroundThreadHandler - a background handler thread used to load thumbnails.
@@ -59,55 +66,162 @@ class GalleryAdapter extends RecyclerView.Adapter {
   public static List<GalleryItem> parseListResults(
           byte[] responseBody, Handler backgroundThreadHandler) throws IOException {
     Log.d(TAG, "Got asset response (" + responseBody.length + " bytes). Parsing.");
-    String assetBody = new String(responseBody, Charset.forName("UTF-8"));
-    Log.d(TAG, assetBody);
-
-    try {
-      JSONObject response = new JSONObject(assetBody);
-
-      List<GalleryItem> items = new ArrayList<>();
+    if (LOG_RESPONSE_BODIES) {
+      Log.d(TAG, new String(responseBody, StandardCharsets.UTF_8));
+    }
 
+    List<GalleryItem> items = new ArrayList<>();
+    boolean foundAssets = false;
+    try (JsonReader reader = new JsonReader(new InputStreamReader(
+            new ByteArrayInputStream(responseBody), StandardCharsets.UTF_8))) {
       // See https://developers.google.com/poly/reference/api/rest/v1/assets/list
       // for available fields.
-      if (!response.has("assets")) {
-        throw new IOException("No assets found");
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("assets")) {
+          foundAssets = true;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            items.add(parseAsset(reader, backgroundThreadHandler));
+          }
+          reader.endArray();
+        } else {
+          reader.skipValue();
+        }
       }
-      JSONArray assets = response.getJSONArray("assets");
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      // IllegalStateException means a value doesn't have the expected type.
+      Log.e(TAG, "JSON parsing error while processing response: " + e);
+      throw new IOException("JSON parsing error", e);
+    }
 
-      for (int i = 0; i < assets.length(); i++) {
-        JSONObject obj = assets.getJSONObject(i);
-        // Use the name as the key.
-        GalleryItem item = new GalleryItem(
-                obj.getString("name"));
-        item.setDisplayName(obj.getString("displayName"));
-        item.setAuthorInfo(obj.getString("authorName"), obj.getString("license"));
+    if (!foundAssets) {
+      throw new IOException("No assets found");
+    }
+    return items;
+  }
 
-        if (obj.has("description")) {
-          item.setDescription(obj.getString("description"));
-        }
+  /**
+   * Parses an asset of the list results. Its thumbnail starts loading once both its name (the
+   * key of the item) and its thumbnail URL are parsed.
+   */
+  private static GalleryItem parseAsset(JsonReader reader, Handler backgroundThreadHandler)
+          throws IOException {
+    String name = null;
+    String displayName = null;
+    String authorName = null;
+    String license = null;
+    String description = null;
+    String thumbnailUrl = null;
+    String modelUrl = null;
+    GalleryItem item = null;
 
-        String url = obj.getJSONObject("thumbnail").getString("url");
-        item.setThumbnail(url);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "name":
+          name = reader.nextString();
+          break;
+        case "displayName":
+          displayName = reader.nextString();
+          break;
+        case "authorName":
+          authorName = reader.nextString();
+          break;
+        case "license":
+          license = reader.nextString();
+          break;
+        case "description":
+          description = reader.nextString();
+          break;
+        case "thumbnail":
+          thumbnailUrl = parseFileUrl(reader);
+          break;
+        case "formats":
+          modelUrl = parseRootUrl(reader, "GLTF2");
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+      if (item == null && name != null && thumbnailUrl != null) {
+        // Use the name as the key.
+        item = new GalleryItem(name);
+        item.setThumbnail(thumbnailUrl);
         item.loadThumbnail(backgroundThreadHandler);
+      }
+    }
+    reader.endObject();
 
-        // Find the glTF URL.
-        JSONArray formats = obj.getJSONArray("formats");
-        for (int j = 0; j < formats.length(); j++) {
-          JSONObject format = formats.getJSONObject(j);
-          if (format.getString("formatType").equals("GLTF2")) {
-            item.setModelUrl(format.getJSONObject("root").getString("url"));
+    if (item == null || displayName == null || authorName == null || license == null) {
+      throw new IOException("Asset " + name + " is missing required fields");
+    }
+    item.setDisplayName(displayName);
+    item.setAuthorInfo(authorName, license);
+    if (description != null) {
+      item.setDescription(description);
+    }
+    if (modelUrl != null) {
+      item.setModelUrl(modelUrl);
+    }
+    return item;
+  }
+
+  /**
+   * Parses the formats of an asset, and returns the URL of the root file of the first one of the
+   * given type, or null if there is none.
+   */
+  private static String parseRootUrl(JsonReader reader, String formatType) throws IOException {
+    String rootUrl = null;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (rootUrl != null) {
+        reader.skipValue();
+        continue;
+      }
+      // The type may come before or after the root file.
+      String type = null;
+      String url = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "formatType":
+            type = reader.nextString();
+            break;
+          case "root":
+            url = parseFileUrl(reader);
+            break;
+          default:
+            reader.skipValue();
             break;
-          }
         }
-        items.add(item);
       }
+      reader.endObject();
+      if (formatType.equals(type)) {
+        rootUrl = url;
+      }
+    }
+    reader.endArray();
+    return rootUrl;
+  }
 
-      return items;
-
-    } catch (JSONException e) {
-      Log.e(TAG, "JSON parsing error while processing response: " + e);
-      throw new IOException("JSON parsing error", e);
+  /**
+   * Parses a file object (such as the thumbnail or the root file of a format), and returns its
+   * URL, or null if it has none.
+   */
+  private static String parseFileUrl(JsonReader reader) throws IOException {
+    String url = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("url")) {
+        url = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
     }
+    reader.endObject();
+    return url;
   }
 
   @NonNull
@@ -0,0 +1,650 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sample.polygallery;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Disk cache for HTTP responses, so that search results and thumbnails aren't downloaded again
+ * on every launch. (Models are loaded by Sceneform, which doesn't go through this cache.)
+ * <p>
+ * Freshness follows the response's Cache-Control header (max-age, no-cache, no-store), then
+ * Expires, then the usual heuristic for responses that only have a Last-Modified date (10% of
+ * their age). A stale entry is revalidated with If-None-Match / If-Modified-Since, so an
+ * unchanged response costs a "304 Not Modified" instead of a download. Optionally (see
+ * {@link #setStaleWhileRevalidate}) a stale entry is served right away and revalidated after.
+ * <p>
+ * The cache is bounded: when it gets bigger than its maximum size, the least recently used
+ * entries are evicted. Each entry is a file in the cache directory, written to a temporary file
+ * first and renamed, and a journal records which entries exist and the order they were used
+ * in. On startup the journal is replayed, so the index survives restarts, and a crash at any
+ * point leaves at worst a partial line (ignored) or a temporary file (deleted).
+ * <p>
+ * {@link AsyncHttpRequest} uses the cache installed with {@link #install}, if any.
+ * All methods can be called on any thread. Disk I/O only starts with the first lookup, which
+ * happens on an HTTP thread.
+ */
+public class HttpDiskCache {
+  private static final String TAG = "HttpDiskCache";
+
+  // The cache used by AsyncHttpRequest, or null.
+  private static HttpDiskCache installedCache;
+
+  // Name of the journal, and its first line (which identifies its format).
+  private static final String JOURNAL_NAME = "journal";
+  private static final String JOURNAL_HEADER = "PolyGallery.HttpDiskCache 1";
+
+  // Journal operations.
+  private static final String OP_CLEAN = "CLEAN";
+  private static final String OP_READ = "READ";
+  private static final String OP_REMOVE = "REMOVE";
+
+  // Extensions of the entry files and of the temporary files.
+  private static final String ENTRY_EXTENSION = ".entry";
+  private static final String TMP_EXTENSION = ".tmp";
+
+  // Identifies our entry files (and their format version).
+  private static final int ENTRY_MAGIC = 0x50474843;  // "PGHC"
+
+  // Fraction of a response's age (since its Last-Modified date) for which it's considered fresh
+  // when there are no explicit freshness headers.
+  private static final int HEURISTIC_FRESHNESS_DIVISOR = 10;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * A cached response.
+   */
+  public static class Entry {
+    /**
+     * The URL of the request.
+     */
+    public final String url;
+    /**
+     * The body of the response.
+     */
+    public final byte[] body;
+    /**
+     * The ETag and Last-Modified headers of the response (null if absent).
+     */
+    public final String etag;
+    public final String lastModified;
+    /**
+     * When the response was received or last revalidated, in milliseconds since the epoch.
+     */
+    public final long storedAtMillis;
+    /**
+     * For how long after storedAtMillis the response is fresh, in milliseconds.
+     */
+    public final long freshnessMillis;
+
+    Entry(String url, byte[] body, String etag, String lastModified, long storedAtMillis,
+            long freshnessMillis) {
+      this.url = url;
+      this.body = body;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.storedAtMillis = storedAtMillis;
+      this.freshnessMillis = freshnessMillis;
+    }
+
+    /**
+     * Returns whether the response can be used without asking the server.
+     */
+    public boolean isFresh() {
+      long age = System.currentTimeMillis() - storedAtMillis;
+      return age >= 0 && age < freshnessMillis;
+    }
+
+    /**
+     * Returns whether the response can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+      return etag != null || lastModified != null;
+    }
+  }
+
+  // Where the entries and the journal are.
+  private final File directory;
+
+  // Maximum total size of the entries, in bytes.
+  private final long maxBytes;
+
+  // Whether stale entries are served while they are revalidated.
+  private volatile boolean staleWhileRevalidate;
+
+  // Size of each entry, by key, least recently used first.
+  private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+  // Total size of the entries, in bytes.
+  private long totalBytes;
+
+  // The journal, open for appending, and the number of lines in it. Null until opened.
+  private Writer journalWriter;
+  private int journalLineCount;
+
+  // Whether opening the cache failed (in which case it caches nothing).
+  private boolean openFailed;
+
+  // Statistics.
+  private int hitCount;
+  private int staleHitCount;
+  private int missCount;
+  private int revalidationCount;
+  private int notModifiedCount;
+  private int evictionCount;
+
+  /**
+   * Installs the cache that {@link AsyncHttpRequest} uses. If a cache is already installed in
+   * the same directory (e.g. the activity was recreated), that cache is kept.
+   *
+   * @param directory The directory of the cache (e.g. in the app's cache directory). Nothing else
+   *     should be stored in it.
+   * @param maxBytes The maximum size of the cache, in bytes.
+   * @return The cache.
+   */
+  public static synchronized HttpDiskCache install(File directory, long maxBytes) {
+    if (installedCache != null && installedCache.directory.equals(directory)) {
+      return installedCache;
+    }
+    installedCache = new HttpDiskCache(directory, maxBytes);
+    return installedCache;
+  }
+
+  /**
+   * Uninstalls the installed cache, if any: requests stop using it.
+   */
+  public static synchronized void uninstall() {
+    installedCache = null;
+  }
+
+  /**
+   * Returns the installed cache, or null if none.
+   */
+  public static synchronized HttpDiskCache getInstalled() {
+    return installedCache;
+  }
+
+  /**
+   * Creates a cache. The directory is only read when the cache is first used.
+   *
+   * @param directory The directory of the cache. Nothing else should be stored in it.
+   * @param maxBytes The maximum size of the cache, in bytes.
+   */
+  public HttpDiskCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sets whether a stale entry is returned right away (and revalidated in the background),
+   * rather than after revalidating it. Off by default.
+   */
+  public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+    this.staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  /**
+   * Returns whether a stale entry is returned right away, and revalidated in the background.
+   */
+  public boolean isStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  /**
+   * Looks up the response to the given URL.
+   *
+   * @return The cached response, fresh or stale, or null if there is none.
+   */
+  public Entry get(String url) {
+    String key = getKey(url);
+    synchronized (this) {
+      if (!ensureOpen() || !sizes.containsKey(key)) {
+        ++missCount;
+        return null;
+      }
+      // Marks the entry as the most recently used one.
+      sizes.get(key);
+      appendToJournal(OP_READ + " " + key);
+    }
+    // Read outside the lock. The entry may be evicted meanwhile; then it's a miss.
+    Entry entry = readEntry(getEntryFile(key), url);
+    synchronized (this) {
+      if (entry == null) {
+        ++missCount;
+      } else if (entry.isFresh()) {
+        ++hitCount;
+      } else if (staleWhileRevalidate) {
+        ++staleHitCount;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Adds the validators of the given entry to the given request, to only get the response if
+   * it changed. Call before sending the request.
+   */
+  public void addConditionalHeaders(Entry entry, HttpURLConnection connection) {
+    if (entry.etag != null) connection.setRequestProperty("If-None-Match", entry.etag);
+    if (entry.lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+    }
+    synchronized (this) {
+      ++revalidationCount;
+    }
+  }
+
+  /**
+   * Stores the given successful response, unless it forbids it (Cache-Control: no-store) or it
+   * doesn't fit.
+   *
+   * @param url The URL of the request.
+   * @param connection The connection, with the response's headers.
+   * @param body The body of the response.
+   */
+  public void put(String url, HttpURLConnection connection, byte[] body) {
+    String cacheControl = connection.getHeaderField("Cache-Control");
+    if (hasDirective(cacheControl, "no-store")) return;
+    write(new Entry(url, body, connection.getHeaderField("ETag"),
+            connection.getHeaderField("Last-Modified"), System.currentTimeMillis(),
+            computeFreshnessMillis(connection, cacheControl)));
+  }
+
+  /**
+   * Refreshes the given entry after the server answered a conditional request with "304 Not
+   * Modified", with the freshness headers of that answer.
+   *
+   * @return The refreshed entry.
+   */
+  public Entry putNotModified(Entry entry, HttpURLConnection connection) {
+    synchronized (this) {
+      ++notModifiedCount;
+    }
+    String cacheControl = connection.getHeaderField("Cache-Control");
+    String etag = connection.getHeaderField("ETag");
+    String lastModified = connection.getHeaderField("Last-Modified");
+    Entry refreshed = new Entry(entry.url, entry.body, etag != null ? etag : entry.etag,
+            lastModified != null ? lastModified : entry.lastModified, System.currentTimeMillis(),
+            computeFreshnessMillis(connection, cacheControl));
+    if (!hasDirective(cacheControl, "no-store")) write(refreshed);
+    return refreshed;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void clear() {
+    if (!ensureOpen()) return;
+    for (String key : sizes.keySet()) {
+      getEntryFile(key).delete();
+    }
+    sizes.clear();
+    totalBytes = 0;
+    rewriteJournal();
+  }
+
+  /**
+   * Returns the total size of the entries, in bytes.
+   */
+  public synchronized long getSizeBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the number of lookups that found a fresh entry.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of lookups that found a stale entry, served while revalidating it.
+   */
+  public synchronized int getStaleHitCount() {
+    return staleHitCount;
+  }
+
+  /**
+   * Returns the number of lookups that found nothing.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of conditional requests sent to revalidate entries.
+   */
+  public synchronized int getRevalidationCount() {
+    return revalidationCount;
+  }
+
+  /**
+   * Returns the number of revalidations that found the entry unchanged.
+   */
+  public synchronized int getNotModifiedCount() {
+    return notModifiedCount;
+  }
+
+  /**
+   * Returns a one-line summary of the statistics.
+   */
+  public synchronized String getSummary() {
+    return "hits " + hitCount + ", stale hits " + staleHitCount + ", misses " + missCount +
+            ", revalidations " + revalidationCount + " (" + notModifiedCount +
+            " not modified), evictions " + evictionCount + ", " + sizes.size() + " entries, " +
+            totalBytes + " bytes";
+  }
+
+  // Writes the given entry, replacing the previous one (if any), then evicts entries if the
+  // cache got too big.
+  private void write(Entry entry) {
+    long size = getEntrySize(entry);
+    if (size > maxBytes) return;
+    String key = getKey(entry.url);
+    synchronized (this) {
+      if (!ensureOpen()) return;
+    }
+    // Write outside the lock, to a temporary file with a name of its own.
+    File tmpFile = new File(directory, key + "." + Thread.currentThread().getId() + TMP_EXTENSION);
+    if (!writeEntryFile(tmpFile, entry)) return;
+    synchronized (this) {
+      if (!tmpFile.renameTo(getEntryFile(key))) {
+        Log.w(TAG, "Failed to rename " + tmpFile);
+        tmpFile.delete();
+        return;
+      }
+      Long previousSize = sizes.put(key, size);
+      totalBytes += size - (previousSize != null ? previousSize : 0);
+      appendToJournal(OP_CLEAN + " " + key + " " + size);
+      trimToSize();
+    }
+  }
+
+  // Evicts the least recently used entries until the cache fits in its maximum size.
+  private void trimToSize() {
+    Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> lruEntry = iterator.next();
+      getEntryFile(lruEntry.getKey()).delete();
+      totalBytes -= lruEntry.getValue();
+      iterator.remove();
+      appendToJournal(OP_REMOVE + " " + lruEntry.getKey());
+      ++evictionCount;
+    }
+  }
+
+  // Opens the cache, if not done yet: replays the journal and removes the files it doesn't
+  // know about. Returns whether the cache is usable. Must be called with the lock held.
+  private boolean ensureOpen() {
+    if (journalWriter != null) return true;
+    if (openFailed) return false;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Failed to create " + directory + ". Not caching HTTP responses.");
+      openFailed = true;
+      return false;
+    }
+    readJournal();
+    // Forget the entries whose files are gone, and delete the files that have no entry
+    // (temporary files from a crash, or entries whose CLEAN line didn't make it).
+    Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      if (!getEntryFile(entry.getKey()).isFile()) iterator.remove();
+    }
+    totalBytes = 0;
+    for (long size : sizes.values()) {
+      totalBytes += size;
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.equals(JOURNAL_NAME)) continue;
+        if (!name.endsWith(ENTRY_EXTENSION) || !sizes.containsKey(
+                name.substring(0, name.length() - ENTRY_EXTENSION.length()))) {
+          file.delete();
+        }
+      }
+    }
+    // Start from a compact journal.
+    rewriteJournal();
+    if (journalWriter == null) {
+      openFailed = true;
+      return false;
+    }
+    trimToSize();
+    Log.d(TAG, "HTTP cache opened: " + sizes.size() + " entries, " + totalBytes + " bytes.");
+    return true;
+  }
+
+  // Replays the journal (if any) into the index.
+  private void readJournal() {
+    File journal = new File(directory, JOURNAL_NAME);
+    if (!journal.isFile()) return;
+    try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+      if (!JOURNAL_HEADER.equals(reader.readLine())) {
+        Log.w(TAG, "Unknown HTTP cache journal format. Starting over.");
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" ");
+        // A malformed line is most likely the last one, cut short by a crash: skip it.
+        if (parts.length == 3 && parts[0].equals(OP_CLEAN)) {
+          try {
+            sizes.put(parts[1], Long.parseLong(parts[2]));
+          } catch (NumberFormatException e) {
+            // Skip.
+          }
+        } else if (parts.length == 2 && parts[0].equals(OP_READ)) {
+          sizes.get(parts[1]);
+        } else if (parts.length == 2 && parts[0].equals(OP_REMOVE)) {
+          sizes.remove(parts[1]);
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read HTTP cache journal: " + e);
+    }
+  }
+
+  // Replaces the journal with one that just lists the current entries, least recently used
+  // first, and opens it for appending. Leaves journalWriter null on failure.
+  private void rewriteJournal() {
+    closeQuietly(journalWriter);
+    journalWriter = null;
+    File journal = new File(directory, JOURNAL_NAME);
+    File tmpJournal = new File(directory, JOURNAL_NAME + TMP_EXTENSION);
+    try {
+      try (Writer writer = new FileWriter(tmpJournal)) {
+        writer.write(JOURNAL_HEADER + "\n");
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+          writer.write(OP_CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+        }
+      }
+      if (!tmpJournal.renameTo(journal)) throw new IOException("Failed to rename " + tmpJournal);
+      journalWriter = new FileWriter(journal, true);
+      journalLineCount = sizes.size();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write HTTP cache journal: " + e);
+    }
+  }
+
+  // Appends a line to the journal, and compacts the journal when it has grown much bigger
+  // than the index.
+  private void appendToJournal(String line) {
+    if (journalWriter == null) return;
+    try {
+      journalWriter.write(line + "\n");
+      journalWriter.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to append to HTTP cache journal: " + e);
+    }
+    if (++journalLineCount > 2 * sizes.size() + 100) rewriteJournal();
+  }
+
+  // Returns the file of the entry with the given key.
+  private File getEntryFile(String key) {
+    return new File(directory, key + ENTRY_EXTENSION);
+  }
+
+  // Reads the entry file. Returns null if it's missing, invalid, or for another URL (in the
+  // unlikely event of a hash collision).
+  private static Entry readEntry(File file, String url) {
+    try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+      if (input.readInt() != ENTRY_MAGIC || !url.equals(input.readUTF())) return null;
+      long storedAtMillis = input.readLong();
+      long freshnessMillis = input.readLong();
+      String etag = readOptionalString(input);
+      String lastModified = readOptionalString(input);
+      byte[] body = new byte[input.readInt()];
+      input.readFully(body);
+      return new Entry(url, body, etag, lastModified, storedAtMillis, freshnessMillis);
+    } catch (IOException e) {
+      // Missing (e.g. just evicted) or corrupt.
+      return null;
+    }
+  }
+
+  // Writes an entry file. Returns whether it succeeded.
+  private static boolean writeEntryFile(File file, Entry entry) {
+    try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+      output.writeInt(ENTRY_MAGIC);
+      output.writeUTF(entry.url);
+      output.writeLong(entry.storedAtMillis);
+      output.writeLong(entry.freshnessMillis);
+      writeOptionalString(output, entry.etag);
+      writeOptionalString(output, entry.lastModified);
+      output.writeInt(entry.body.length);
+      output.write(entry.body);
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write HTTP cache entry for " + entry.url + ": " + e);
+      file.delete();
+      return false;
+    }
+  }
+
+  // Reads a string written by writeOptionalString.
+  private static String readOptionalString(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  // Writes a string that may be null.
+  private static void writeOptionalString(DataOutputStream output, String value)
+          throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) output.writeUTF(value);
+  }
+
+  // Returns the size an entry takes on disk, approximately (the body plus the headers).
+  private static long getEntrySize(Entry entry) {
+    return entry.body.length + 2 * entry.url.length() + 64;
+  }
+
+  // Returns for how long the response on the given connection is fresh, in milliseconds.
+  private static long computeFreshnessMillis(HttpURLConnection connection, String cacheControl) {
+    if (hasDirective(cacheControl, "no-cache")) return 0;
+    long maxAgeSeconds = getDirectiveValue(cacheControl, "max-age");
+    if (maxAgeSeconds >= 0) {
+      // The response may have spent some time in other caches already.
+      long ageSeconds = Math.max(0, connection.getHeaderFieldInt("Age", 0));
+      return Math.max(0, maxAgeSeconds - ageSeconds) * 1000;
+    }
+    long date = connection.getDate();
+    long now = System.currentTimeMillis();
+    long expiration = connection.getExpiration();
+    if (expiration > 0) return Math.max(0, expiration - (date > 0 ? date : now));
+    long lastModified = connection.getLastModified();
+    if (lastModified > 0) {
+      return Math.max(0, (date > 0 ? date : now) - lastModified) / HEURISTIC_FRESHNESS_DIVISOR;
+    }
+    return 0;
+  }
+
+  // Returns whether the given Cache-Control header (may be null) has the given directive.
+  private static boolean hasDirective(String cacheControl, String directive) {
+    if (cacheControl == null) return false;
+    for (String part : cacheControl.split(",")) {
+      String name = part.trim().toLowerCase(Locale.US);
+      if (name.equals(directive) || name.startsWith(directive + "=")) return true;
+    }
+    return false;
+  }
+
+  // Returns the value of the given directive of the given Cache-Control header (may be null), in
+  // seconds, or -1 if it's absent or invalid.
+  private static long getDirectiveValue(String cacheControl, String directive) {
+    if (cacheControl == null) return -1;
+    for (String part : cacheControl.split(",")) {
+      String trimmed = part.trim().toLowerCase(Locale.US);
+      if (!trimmed.startsWith(directive + "=")) continue;
+      String value = trimmed.substring(directive.length() + 1).replace("\"", "");
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  // Returns the key of the given URL: its SHA-1 hash, in hex, which is safe as a file name.
+  private static String getKey(String url) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b & 0xFF));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has SHA-1.
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Closes the given stream (if not null), ignoring errors.
+  private static void closeQuietly(Closeable stream) {
+    if (stream == null) return;
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // Nothing we can do.
+    }
+  }
+}
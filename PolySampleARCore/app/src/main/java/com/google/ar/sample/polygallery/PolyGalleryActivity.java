@@ -46,6 +46,7 @@ import com.google.ar.sceneform.math.Vector3;
 import com.google.ar.sceneform.ux.ArFragment;
 import com.google.ar.sceneform.ux.TransformableNode;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -57,6 +58,11 @@ import java.util.List;
 public class PolyGalleryActivity extends AppCompatActivity {
   private static final String TAG = PolyGalleryActivity.class.getSimpleName();
 
+  // Directory (in the app's cache directory) and size of the HTTP cache, which keeps search
+  // results and thumbnails across launches.
+  private static final String HTTP_CACHE_DIRECTORY_NAME = "http";
+  private static final long HTTP_CACHE_SIZE_BYTES = 32 * 1024 * 1024;
+
   private RecyclerView gallery;
   private TextView model_info;
   private SceneContext sceneContext;
@@ -92,6 +98,11 @@ public class PolyGalleryActivity extends AppCompatActivity {
     // This is a text overlay.
     model_info = findViewById(R.id.model_info);
 
+    // Cache the HTTP responses (the cache is only read when the first request is made, on a
+    // background thread).
+    HttpDiskCache.install(new File(getCacheDir(), HTTP_CACHE_DIRECTORY_NAME),
+            HTTP_CACHE_SIZE_BYTES);
+
     // Create a background thread, where we will do the heavy lifting.
     // Our background thread, which does all of the heavy lifting so we don't block the main thread.
     HandlerThread mBackgroundThread = new HandlerThread("Worker");
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sample.polygallery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+/**
+ * Checks that {@link AsyncHttpRequest} decodes each Content-Encoding it asks for, and counts the
+ * bytes of the body on the wire and decoded.
+ * <p>
+ * Runs under Robolectric, against a local MockWebServer. The listener is called on the main
+ * looper, which the test runs until the request completes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class AsyncHttpRequestTest {
+  // How long to wait for a request to complete.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  // A body that compresses well, like the JSON responses and glTF files the app downloads.
+  private static final byte[] BODY =
+          repeat("{\"name\": \"asset\", \"displayName\": \"Asset\"},\n", 200)
+                  .getBytes(StandardCharsets.UTF_8);
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  @Test
+  public void noEncoding_deliversBodyAsIs() throws Exception {
+    server.enqueue(new MockResponse().setBody(new Buffer().write(BODY)));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/none", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(BODY.length, request.getWireBytes());
+    assertEquals(BODY.length, request.getDecodedBytes());
+    assertEquals("gzip, deflate", server.takeRequest().getHeader("Accept-Encoding"));
+  }
+
+  @Test
+  public void identityEncoding_deliversBodyAsIs() throws Exception {
+    server.enqueue(new MockResponse()
+            .setHeader("Content-Encoding", "identity")
+            .setBody(new Buffer().write(BODY)));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/identity", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(BODY.length, request.getWireBytes());
+    assertEquals(BODY.length, request.getDecodedBytes());
+  }
+
+  @Test
+  public void gzipEncoding_decodesBody() throws Exception {
+    byte[] encoded = gzip(BODY);
+    server.enqueue(new MockResponse()
+            .setHeader("Content-Encoding", "gzip")
+            .setBody(new Buffer().write(encoded)));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/gzip", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(encoded.length, request.getWireBytes());
+    assertEquals(BODY.length, request.getDecodedBytes());
+    assertTrue(request.getWireBytes() < request.getDecodedBytes());
+  }
+
+  @Test
+  public void deflateEncoding_decodesBody() throws Exception {
+    byte[] encoded = deflate(BODY);
+    // Header values are case-insensitive.
+    server.enqueue(new MockResponse()
+            .setHeader("Content-Encoding", "DEFLATE")
+            .setBody(new Buffer().write(encoded)));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/deflate", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(encoded.length, request.getWireBytes());
+    assertEquals(BODY.length, request.getDecodedBytes());
+    assertTrue(request.getWireBytes() < request.getDecodedBytes());
+  }
+
+  @Test
+  public void unsupportedEncoding_fails() throws Exception {
+    server.enqueue(new MockResponse()
+            .setHeader("Content-Encoding", "br")
+            .setBody(new Buffer().write(BODY)));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/br", listener);
+
+    assertNull(listener.responseBody);
+    assertEquals(0, listener.statusCode);
+    assertNotNull(listener.exception);
+    assertTrue(listener.exception.getMessage(),
+            listener.exception.getMessage().contains("Unsupported Content-Encoding: br"));
+    // The body was never read.
+    assertEquals(-1, request.getWireBytes());
+    assertEquals(-1, request.getDecodedBytes());
+  }
+
+  // Sends a request for the given path to the server, and runs the main looper until the
+  // listener was called.
+  private AsyncHttpRequest send(String path, RecordingListener listener) throws Exception {
+    AsyncHttpRequest request = new AsyncHttpRequest(server.url(path).toString(),
+            new Handler(Looper.getMainLooper()), listener);
+    request.send();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!listener.done) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for " + path);
+      }
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+    return request;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (OutputStream outputStream = new GZIPOutputStream(encoded)) {
+      outputStream.write(data);
+    }
+    return encoded.toByteArray();
+  }
+
+  // Compresses to the zlib format, which is what HTTP calls "deflate".
+  private static byte[] deflate(byte[] data) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (OutputStream outputStream = new DeflaterOutputStream(encoded)) {
+      outputStream.write(data);
+    }
+    return encoded.toByteArray();
+  }
+
+  private static String repeat(String string, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(string);
+    }
+    return sb.toString();
+  }
+
+  // Listener that records the result of the request.
+  private static class RecordingListener implements AsyncHttpRequest.CompletionListener {
+    volatile boolean done;
+    byte[] responseBody;
+    int statusCode;
+    Exception exception;
+
+    @Override
+    public void onHttpRequestSuccess(byte[] responseBody) {
+      this.responseBody = responseBody;
+      done = true;
+    }
+
+    @Override
+    public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
+      this.statusCode = statusCode;
+      this.exception = exception;
+      done = true;
+    }
+  }
+}
@@ -18,21 +18,62 @@ import android.os.Handler;
 import android.support.annotation.IntDef;
 import android.util.Log;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
-/** Convenience class that asynchronously downloads a set of files. */
+/**
+ * Convenience class that asynchronously downloads a set of files.
+ *
+ * Files are downloaded in order of priority (e.g. the OBJ file before the MTL files and
+ * textures), and among files of the same priority, largest first: with a limited number of
+ * parallel downloads, starting the longest ones first makes the whole set finish sooner. At most
+ * {@link #setMaxParallelDownloads} files are downloaded at a time; the others wait their turn.
+ *
+ * Each file is retried according to the app's {@link RetryPolicy}. As soon as one file fails
+ * (after its retries), the downloads still in flight are canceled (their connections are
+ * closed) and the ones not yet started are dropped, since the set is useless without it. The
+ * same happens when the caller abandons the set with {@link #cancel}.
+ *
+ * When the files are discovered one by one (e.g. while parsing a response), {@link #startOpen}
+ * starts downloading before the set is complete: each file added after that starts downloading
+ * right away (in its turn), and the set is complete, and the downloader can finish, once
+ * {@link #finishAdding} is called.
+ */
 public class AsyncFileDownloader {
   private static final String TAG = "PolySample";
 
+  /** Priority of the files needed first (e.g. the OBJ file). */
+  public static final int PRIORITY_HIGH = 2;
+  /** Default priority. */
+  public static final int PRIORITY_NORMAL = 1;
+  /** Priority of the files that can wait (e.g. textures). */
+  public static final int PRIORITY_LOW = 0;
+
+  /** Default maximum number of files downloaded at the same time. */
+  public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 4;
+
   // Possible states we can be in.
-  @IntDef({STATE_NOT_STARTED, STATE_DOWNLOADING, STATE_SUCCESS, STATE_ERROR})
+  @IntDef({STATE_NOT_STARTED, STATE_DOWNLOADING, STATE_SUCCESS, STATE_ERROR, STATE_CANCELED})
   public @interface State {}
   private static final int STATE_NOT_STARTED = 0;
   private static final int STATE_DOWNLOADING = 1;
   private static final int STATE_SUCCESS = 2;
   private static final int STATE_ERROR = 3;
+  private static final int STATE_CANCELED = 4;
 
-  // Current state.
+  // Orders entries by decreasing priority, then decreasing expected size (unknown sizes last).
+  private static final Comparator<Entry> DOWNLOAD_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      if (a.priority != b.priority) return a.priority > b.priority ? -1 : 1;
+      if (a.expectedSize != b.expectedSize) return a.expectedSize > b.expectedSize ? -1 : 1;
+      return 0;
+    }
+  };
+
+  // Current state. Guarded by this object, like the other fields changed after start().
   private @State int state = STATE_NOT_STARTED;
 
   // The completion listener we call when we finish downloading all the files (or when there is
@@ -42,13 +83,24 @@ public class AsyncFileDownloader {
   // The handler on which we call the completion listener.
   private Handler handler;
 
-  // The files to download.
+  // The files to download, in the order they were added.
   private final ArrayList<Entry> entries = new ArrayList<>();
 
+  // The files not started yet, in download order.
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+  // Maximum number of files downloaded at the same time, and number being downloaded.
+  private int maxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
+  private int runningCount;
+
+  // If false, files may still be added while downloading (see startOpen()).
+  private boolean addingFinished = true;
+
   /** Callback called when download is complete. */
   public interface CompletionListener {
     /**
-     * Callback invoked when all downloads complete, or when there's a failure.
+     * Callback invoked when all downloads complete, or when there's a failure. It isn't invoked
+     * if the downloader was canceled.
      * @param downloader The downloader. Use {@link #isError()} to determine if there was
      *                   an error or not. If there was no error, you can access the files with
      *                   {@link #getEntry(int)}.
@@ -60,17 +112,62 @@ public class AsyncFileDownloader {
   public AsyncFileDownloader() {}
 
   /**
-   * Adds a file to download.
+   * Adds a file to download, with normal priority and unknown size.
    *
-   * Can only be called before {@link #start} is called.
+   * Can only be called before {@link #start} is called (or, after {@link #startOpen}, before
+   * {@link #finishAdding} is).
    * @param fileName The name of the file.
    * @param url The URL to download the file from.
    */
   public void add(String fileName, String url) {
-    if (state != STATE_NOT_STARTED) {
+    add(fileName, url, PRIORITY_NORMAL, -1);
+  }
+
+  /**
+   * Adds a file to download.
+   *
+   * Can only be called before {@link #start} is called (or, after {@link #startOpen}, before
+   * {@link #finishAdding} is). A file added while downloading is ignored if the downloads
+   * already failed or were canceled.
+   * @param fileName The name of the file.
+   * @param url The URL to download the file from.
+   * @param priority The priority of the file, e.g. {@link #PRIORITY_HIGH}. Files of higher
+   *     priority are started first.
+   * @param expectedSize The expected size of the file, in bytes, or -1 if unknown. Among files of
+   *     the same priority, the largest are started first.
+   */
+  public synchronized void add(String fileName, String url, int priority, long expectedSize) {
+    if (state != STATE_NOT_STARTED && addingFinished) {
       throw new IllegalStateException("Can't add files to AsyncFileDownloader after starting.");
     }
-    entries.add(new Entry(fileName, url));
+    if (state == STATE_ERROR || state == STATE_CANCELED) return;
+    Entry entry = new Entry(fileName, url, priority, expectedSize);
+    entries.add(entry);
+    if (state == STATE_DOWNLOADING) {
+      // The pending files are sorted, and the sort is stable: the new file goes after those of
+      // equal priority and size.
+      ArrayList<Entry> sorted = new ArrayList<>(pending);
+      sorted.add(entry);
+      Collections.sort(sorted, DOWNLOAD_ORDER);
+      pending.clear();
+      pending.addAll(sorted);
+      startPendingDownloads();
+    }
+  }
+
+  /**
+   * Sets the maximum number of files downloaded at the same time.
+   *
+   * Can only be called before {@link #start} is called.
+   */
+  public synchronized void setMaxParallelDownloads(int maxParallelDownloads) {
+    if (state != STATE_NOT_STARTED) {
+      throw new IllegalStateException("AsyncFileDownloader had already been started.");
+    }
+    if (maxParallelDownloads < 1) {
+      throw new IllegalArgumentException("Need at least one parallel download.");
+    }
+    this.maxParallelDownloads = maxParallelDownloads;
   }
 
   /**
@@ -80,60 +177,169 @@ public class AsyncFileDownloader {
    *                           an error.
    */
   public void start(Handler handler, CompletionListener completionListener) {
+    start(handler, completionListener, true);
+  }
+
+  /**
+   * Starts asynchronously downloading the files added so far, and those added later, until
+   * {@link #finishAdding} is called. The callback isn't called before that.
+   * @param handler The handler on which to call the callback.
+   * @param completionListener The callback to call when download completes, or when there is
+   *                           an error.
+   */
+  public void startOpen(Handler handler, CompletionListener completionListener) {
+    start(handler, completionListener, false);
+  }
+
+  /**
+   * Tells the downloader, started with {@link #startOpen}, that all the files were added: it
+   * finishes once they are downloaded.
+   */
+  public synchronized void finishAdding() {
+    if (addingFinished) return;
+    addingFinished = true;
+    if (state == STATE_DOWNLOADING && runningCount == 0 && pending.isEmpty()) {
+      state = STATE_SUCCESS;
+      invokeCompletionCallback();
+    }
+  }
+
+  // Starts downloading the files added so far. If addingFinished is false, more may be added
+  // until finishAdding() is called.
+  private synchronized void start(Handler handler, CompletionListener completionListener,
+      boolean addingFinished) {
     if (state != STATE_NOT_STARTED) {
       throw new IllegalStateException("AsyncFileDownloader had already been started.");
     }
     this.handler = handler;
     this.listener = completionListener;
+    this.addingFinished = addingFinished;
     state = STATE_DOWNLOADING;
-    // For each requested file, create an AsyncHttpRequest object to request it.
-    for (final Entry entry : entries) {
-      AsyncHttpRequest request = new AsyncHttpRequest(entry.url, handler,
+    if (entries.isEmpty()) {
+      if (!addingFinished) return;
+      state = STATE_SUCCESS;
+      invokeCompletionCallback();
+      return;
+    }
+    // The sort is stable, so files of equal priority and size keep the order they were added in.
+    ArrayList<Entry> sorted = new ArrayList<>(entries);
+    Collections.sort(sorted, DOWNLOAD_ORDER);
+    pending.addAll(sorted);
+    startPendingDownloads();
+  }
+
+  /**
+   * Abandons the downloads: cancels the ones in flight and drops the others. The completion
+   * callback won't be invoked. Can be called on any thread; does nothing if the downloads
+   * already finished.
+   */
+  public void cancel() {
+    ArrayList<RetryingHttpRequest> requests;
+    synchronized (this) {
+      if (state == STATE_NOT_STARTED) {
+        state = STATE_CANCELED;
+        return;
+      }
+      if (state != STATE_DOWNLOADING) return;
+      state = STATE_CANCELED;
+      requests = stopDownloads();
+    }
+    cancelRequests(requests);
+  }
+
+  /** Returns whether or not there was an error downloading the files. */
+  public synchronized boolean isError() {
+    return state == STATE_ERROR;
+  }
+
+  /** Returns whether the downloads were canceled with {@link #cancel}. */
+  public synchronized boolean isCanceled() {
+    return state == STATE_CANCELED;
+  }
+
+  /** Returns the number of files in this object. */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /** Returns the given file. */
+  public synchronized Entry getEntry(int index) {
+    return entries.get(index);
+  }
+
+  // Starts downloading pending files, in order, as long as the parallel download limit allows.
+  private void startPendingDownloads() {
+    while (runningCount < maxParallelDownloads && !pending.isEmpty()) {
+      final Entry entry = pending.poll();
+      ++runningCount;
+      entry.request = new RetryingHttpRequest(entry.url, handler,
           new AsyncHttpRequest.CompletionListener() {
         @Override
         public void onHttpRequestSuccess(byte[] responseBody) {
-          if (state != STATE_DOWNLOADING) return;
-          Log.d(TAG, "Finished downloading " + entry.fileName + " from " + entry.url);
-          entry.contents = responseBody;
-          if (areAllEntriesDone()) {
-            state = STATE_SUCCESS;
-            invokeCompletionCallback();
-          }
+          onDownloadSuccess(entry, responseBody);
         }
         @Override
         public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
-          if (state != STATE_DOWNLOADING) return;
-          Log.e(TAG, "Error downloading " + entry.fileName + " from " + entry.url + ". Status " +
-              statusCode + ", message: " + message + (exception != null ? exception : ""));
-          state = STATE_ERROR;
-          invokeCompletionCallback();
+          onDownloadFailure(entry, statusCode, message, exception);
         }
       });
-      request.send();
+      entry.request.send();
     }
   }
 
-  /** Returns whether or not there was an error downloading the files. */
-  public boolean isError() {
-    return state == STATE_ERROR;
+  // Called (on the handler) when a file was downloaded.
+  private synchronized void onDownloadSuccess(Entry entry, byte[] responseBody) {
+    if (state != STATE_DOWNLOADING) return;
+    Log.d(TAG, "Finished downloading " + entry.fileName + " from " + entry.url);
+    entry.contents = responseBody;
+    entry.request = null;
+    --runningCount;
+    if (runningCount == 0 && pending.isEmpty() && addingFinished) {
+      state = STATE_SUCCESS;
+      invokeCompletionCallback();
+      return;
+    }
+    startPendingDownloads();
   }
 
-  /** Returns the number of files in this object. */
-  public int getEntryCount() {
-    return entries.size();
+  // Called (on the handler) when a file failed to download. Fails the whole set.
+  private void onDownloadFailure(Entry entry, int statusCode, String message,
+      Exception exception) {
+    ArrayList<RetryingHttpRequest> requests;
+    synchronized (this) {
+      if (state != STATE_DOWNLOADING) return;
+      Log.e(TAG, "Error downloading " + entry.fileName + " from " + entry.url + ". Status " +
+          statusCode + ", message: " + message + (exception != null ? exception : ""));
+      entry.request = null;
+      --runningCount;
+      state = STATE_ERROR;
+      requests = stopDownloads();
+      invokeCompletionCallback();
+    }
+    cancelRequests(requests);
   }
 
-  /** Returns the given file. */
-  public Entry getEntry(int index) {
-    return entries.get(index);
+  // Drops the pending downloads, and returns the requests in flight, for cancelRequests() to
+  // cancel once the lock is released (closing a connection may block for a little while).
+  private ArrayList<RetryingHttpRequest> stopDownloads() {
+    Log.d(TAG, "Dropping " + pending.size() + " pending and " + runningCount +
+        " running downloads.");
+    pending.clear();
+    ArrayList<RetryingHttpRequest> requests = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.request == null) continue;
+      requests.add(entry.request);
+      entry.request = null;
+    }
+    runningCount = 0;
+    return requests;
   }
 
-  // Returns true if all entries have been downloaded (all entries have contents).
-  private boolean areAllEntriesDone() {
-    for (Entry entry : entries) {
-      if (entry.contents == null) return false;
+  // Cancels the given requests.
+  private static void cancelRequests(ArrayList<RetryingHttpRequest> requests) {
+    for (RetryingHttpRequest request : requests) {
+      request.cancel();
     }
-    return true;
   }
 
   // Invokes the completion callback.
@@ -152,11 +358,22 @@ public class AsyncFileDownloader {
     public final String fileName;
     /** The URL where the file is to be fetched from. */
     public final String url;
+    /** The priority of the file. Files of higher priority are downloaded first. */
+    public final int priority;
+    /** The expected size of the file, in bytes, or -1 if unknown. */
+    public final long expectedSize;
     /** The contents of the file, if it has already been fetched. Otherwise, null. */
     public byte[] contents;
+    // The request downloading the file, while it is in flight.
+    private RetryingHttpRequest request;
     public Entry(String fileName, String url) {
+      this(fileName, url, PRIORITY_NORMAL, -1);
+    }
+    public Entry(String fileName, String url, int priority, long expectedSize) {
       this.fileName = fileName;
       this.url = url;
+      this.priority = priority;
+      this.expectedSize = expectedSize;
     }
   }
 }
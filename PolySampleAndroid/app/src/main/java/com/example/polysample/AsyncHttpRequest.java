@@ -18,34 +18,134 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Asynchronous HTTP request.
  *
  * This object sends an HTTP request asynchronously and calls the supplied callback when
  * the result of the request is available.
+ *
+ * Requests run on the app's shared {@link HttpDispatcher}, which bounds the number of threads
+ * and connections however many requests are sent at once. If an {@link HttpDiskCache} is
+ * installed, responses are served from it when they are fresh, revalidated when they are stale,
+ * and stored in it.
+ *
+ * The response is either delivered whole, to a {@link CompletionListener}, or streamed in chunks
+ * as it arrives, to a {@link StreamingListener}, so that a large body never has to be held in
+ * memory at once. Streamed requests don't go through the cache.
+ *
+ * Responses are requested compressed (gzip or deflate), which shrinks text such as JSON, OBJ and
+ * MTL files several times, and decoded as they are read. Each request reports how many bytes it
+ * received on the wire and how many they decoded to.
+ *
+ * Large bodies are kept in the cache as they download, so that a download that is interrupted
+ * (network switch, canceled request, app killed) resumes where it stopped the next time, with a
+ * Range request validated by If-Range. They are kept as received, compressed or not, and only
+ * decoded once the rest arrives.
+ *
+ * A request can be canceled at any time with {@link #cancel}: it is dropped if it hasn't started
+ * yet, and its connection is closed if it has. Its listener isn't called after that.
+ *
+ * Requests for a URL that is already being fetched don't fetch it again: they wait for the
+ * request in flight (the "leader") and get the same response, each on its own handler. Several
+ * listeners may thus get the same array: they must not modify it. Streamed requests are never
+ * coalesced, and {@link #setCoalescingEnabled} turns coalescing off for a request.
  */
 public class AsyncHttpRequest {
   private static final String TAG = "PolySample";
 
+  // Largest Content-Length we trust enough to allocate the body up front. Beyond that, the body
+  // is accumulated as it arrives (and the request fails when memory runs out, if it must).
+  private static final int MAX_PRESIZED_BODY_BYTES = 64 * 1024 * 1024;
+
+  // The encodings we accept, and the size of the decoders' input buffers.
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+  private static final int DECODER_BUFFER_SIZE = 8192;
+
+  // HTTP status code for a Range request the server can't satisfy.
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  // Bytes received on the wire, and decoded, by all requests.
+  private static final AtomicLong totalWireBytes = new AtomicLong();
+  private static final AtomicLong totalDecodedBytes = new AtomicLong();
+
+  // Bytes that resumed downloads didn't have to download again.
+  private static final AtomicLong totalResumedBytes = new AtomicLong();
+
+  // The requests in flight that others can join, by URL. Guarded by itself, like the leader and
+  // followers fields of all requests.
+  private static final HashMap<String, AsyncHttpRequest> coalescableRequests = new HashMap<>();
+
+  // Number of requests that joined another one instead of fetching the URL themselves.
+  private static final AtomicLong coalescedCount = new AtomicLong();
+
+  // Time spent by all requests setting up their connection (nearly nothing when a pooled one is
+  // reused), and then waiting for the response headers.
+  private static final LatencyHistogram connectHistogram = new LatencyHistogram();
+  private static final LatencyHistogram responseHistogram = new LatencyHistogram();
+
   // The URL of the request.
   private URL url;
 
-  // The listener to call when the request is complete.
+  // The listener to call when the request is complete, or null if streaming.
   private CompletionListener listener;
 
-  // The handler on which to post a call to the listener.
+  // The listener to stream the response to, or null if not streaming.
+  private StreamingListener streamingListener;
+
+  // The handler on which to post a call to the listener (null if streaming).
   private Handler handler;
 
   // If true, the request was started.
   private boolean requestStarted;
 
+  // If true, the request was canceled: its listener won't be called.
+  private volatile boolean canceled;
+
+  // If true, nobody wants the response anymore: the fetch is stopped. A canceled request keeps
+  // fetching for the requests that joined it, if any.
+  private volatile boolean abandoned;
+
+  // Whether the request can join, or be joined by, other requests for the same URL.
+  private boolean coalescingEnabled = true;
+
+  // The request this one joined, if any; and the requests that joined this one.
+  private AsyncHttpRequest leader;
+  private final ArrayList<AsyncHttpRequest> followers = new ArrayList<>();
+
+  // The connection in use, if any, so that cancel() can close it from another thread.
+  private volatile HttpURLConnection activeConnection;
+
+  // The body stream as received on the wire (before decoding), while reading it.
+  private CountingInputStream wireStream;
+
+  // Bytes of the body received on the wire, and decoded (-1 until the body was read).
+  private volatile long wireBytes = -1;
+  private volatile long decodedBytes = -1;
+
+  // Time spent setting up the connection, and then waiting for the response headers, in
+  // nanoseconds (-1 until known).
+  private volatile long connectNanos = -1;
+  private volatile long responseNanos = -1;
+
+  // When the request was sent to the network (System.nanoTime()), or -1 if it wasn't (yet).
+  private volatile long sentNanos = -1;
+
   /**
    * Listener for HTTP request completion.
    */
@@ -65,6 +165,41 @@ public class AsyncHttpRequest {
     void onHttpRequestFailure(int statusCode, String message, Exception exception);
   }
 
+  /**
+   * Listener that receives the response body in chunks, as it arrives.
+   *
+   * All methods are called on the HTTP thread, in order: {@link #onHttpResponseStarted}, then
+   * {@link #onHttpResponseChunk} for each chunk, then {@link #onHttpResponseComplete}; or
+   * {@link #onHttpRequestFailure} at any point, after which nothing else is called.
+   */
+  public interface StreamingListener {
+    /**
+     * Called when the response starts arriving.
+     * @param contentLength The length of the body, in bytes, or -1 if unknown.
+     */
+    void onHttpResponseStarted(long contentLength);
+
+    /**
+     * Called for each chunk of the body. The buffer belongs to a pool and is reused as soon as
+     * this returns: copy what you need to keep.
+     * @param buffer The buffer holding the chunk.
+     * @param offset The offset of the chunk in the buffer.
+     * @param length The length of the chunk, in bytes.
+     */
+    void onHttpResponseChunk(byte[] buffer, int offset, int length);
+
+    /** Called when the whole body was received. */
+    void onHttpResponseComplete();
+
+    /**
+     * Called to indicate that there was a failure in the asynchronous HTTP request.
+     * @param statusCode The status code, if a response was received. Otherwise, 0.
+     * @param message The error message.
+     * @param exception The exception that caused the failure, if any. Otherwise, null.
+     */
+    void onHttpRequestFailure(int statusCode, String message, Exception exception);
+  }
+
   /**
    * Creates a new AsyncHttpRequest for the given URL.
    * @param url The URL of the request.
@@ -82,78 +217,654 @@ public class AsyncHttpRequest {
     }
   }
 
+  /**
+   * Creates a new AsyncHttpRequest for the given URL, whose response is streamed.
+   * @param url The URL of the request.
+   * @param streamingListener The listener to stream the response to. It is called on the HTTP
+   *     thread.
+   */
+  public AsyncHttpRequest(String url, StreamingListener streamingListener) {
+    this.streamingListener = streamingListener;
+    try {
+      this.url = new URL(url);
+    } catch (MalformedURLException ex) {
+      Log.e(TAG, "Invalid URL: " + url);
+      streamingListener.onHttpRequestFailure(0, "Invalid URL: " + url, ex);
+    }
+  }
+
   /**
    * Sends the request.
    *
    * After the request completes, the listener specified in the constructor will be called
    * to report the result of the request. This method does not block, it returns immediately.
+   * The request may wait in the dispatcher's queue before it is actually sent.
    */
   public void send() {
     if (requestStarted) {
       throw new IllegalStateException("AsyncHttpRequest can only be sent once.");
     }
     requestStarted = true;
-    new Thread(new Runnable() {
+    // If the URL was invalid, the listener was already told.
+    if (url == null) return;
+    if (listener != null && coalescingEnabled) {
+      synchronized (coalescableRequests) {
+        AsyncHttpRequest inFlight = coalescableRequests.get(url.toString());
+        if (inFlight != null && !inFlight.abandoned) {
+          // The URL is already being fetched: wait for that response.
+          leader = inFlight;
+          inFlight.followers.add(this);
+          coalescedCount.incrementAndGet();
+          return;
+        }
+        coalescableRequests.put(url.toString(), this);
+      }
+    }
+    HttpDispatcher.getDefault().dispatch(url.getHost(), new Runnable() {
       @Override
       public void run() {
         backgroundMain();
       }
-    }).start();
+    });
+  }
+
+  /**
+   * Sets whether this request can share the response of another request for the same URL that
+   * is in flight, and other requests the response of this one. On by default; turn it off for
+   * requests that must go to the network, like hedges. Must be called before {@link #send}.
+   */
+  public void setCoalescingEnabled(boolean coalescingEnabled) {
+    this.coalescingEnabled = coalescingEnabled;
+  }
+
+  /**
+   * Cancels the request. If it is waiting in the dispatcher's queue, it won't be sent; if it is
+   * in flight, its connection is closed, which aborts the transfer (unless other requests are
+   * waiting for the same response). Either way, the listener won't be called (except by
+   * callbacks already running). Can be called on any thread, any number of times.
+   */
+  public void cancel() {
+    AsyncHttpRequest toAbandon = null;
+    synchronized (coalescableRequests) {
+      canceled = true;
+      if (leader != null) {
+        // Stop waiting for the leader, and stop the leader if it was only fetching for us.
+        if (leader.followers.remove(this) && leader.canceled && leader.followers.isEmpty()) {
+          toAbandon = leader;
+        }
+      } else if (followers.isEmpty()) {
+        toAbandon = this;
+      }
+      if (toAbandon != null) {
+        toAbandon.abandoned = true;
+        if (toAbandon.url != null &&
+            coalescableRequests.get(toAbandon.url.toString()) == toAbandon) {
+          coalescableRequests.remove(toAbandon.url.toString());
+        }
+      }
+    }
+    if (toAbandon == null) return;
+    HttpURLConnection connection = toAbandon.activeConnection;
+    if (connection != null) connection.disconnect();
+  }
+
+  /** Returns whether the request was canceled. */
+  public boolean isCanceled() {
+    return canceled;
+  }
+
+  /**
+   * Returns the number of bytes of the response body received on the wire (0 if it came from the
+   * cache), or -1 if the body wasn't read yet. Compare with {@link #getDecodedBytes}.
+   */
+  public long getWireBytes() {
+    return wireBytes;
+  }
+
+  /** Returns the size of the decoded response body, in bytes, or -1 if it wasn't read yet. */
+  public long getDecodedBytes() {
+    return decodedBytes;
+  }
+
+  /** Returns the number of response body bytes all requests received on the wire. */
+  public static long getTotalWireBytes() {
+    return totalWireBytes.get();
+  }
+
+  /** Returns the size of the response bodies all requests received, once decoded. */
+  public static long getTotalDecodedBytes() {
+    return totalDecodedBytes.get();
+  }
+
+  /** Returns the number of bytes that resumed downloads didn't have to download again. */
+  public static long getTotalResumedBytes() {
+    return totalResumedBytes.get();
+  }
+
+  /** Returns the number of requests that shared the response of another request in flight. */
+  public static long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Returns the time spent setting up the connection (DNS lookup, TCP and TLS handshakes), in
+   * nanoseconds, or -1 if the request didn't connect (yet). Close to 0 for a reused connection.
+   */
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+  /**
+   * Returns the time between the connection being set up and the response headers arriving, in
+   * nanoseconds, or -1 if they didn't arrive (yet).
+   */
+  public long getResponseNanos() {
+    return responseNanos;
+  }
+
+  /**
+   * Returns when the request was sent to the network (it started connecting), as a
+   * System.nanoTime() value, or -1 if it wasn't (yet): it is waiting in the dispatcher's queue,
+   * was answered by the cache, or joined another request for the same URL.
+   */
+  public long getSentNanos() {
+    return sentNanos;
+  }
+
+  /** Returns the histogram of the time all requests spent setting up their connection. */
+  public static LatencyHistogram getConnectHistogram() {
+    return connectHistogram;
+  }
+
+  /** Returns the histogram of the time all requests spent waiting for the response headers. */
+  public static LatencyHistogram getResponseHistogram() {
+    return responseHistogram;
   }
 
   // Main method for background thread.
   private void backgroundMain() {
+    // Canceled while waiting in the queue.
+    if (abandoned) return;
+    if (streamingListener != null) {
+      streamMain();
+      return;
+    }
+    HttpDiskCache cache = HttpDiskCache.getInstalled();
+    HttpDiskCache.Entry cached = cache != null ? cache.get(url.toString()) : null;
+    if (cached != null && cached.isFresh()) {
+      wireBytes = 0;
+      decodedBytes = cached.body.length;
+      postSuccess(cached.body);
+      return;
+    }
+    if (cached != null && cache.isStaleWhileRevalidate()) {
+      // Serve the stale response right away, and refresh the cache for next time.
+      postSuccess(cached.body);
+      fetch(cache, cached, false);
+      return;
+    }
+    fetch(cache, cached, true);
+  }
+
+  // Gets the response from the server, with a conditional request if there is a cached response
+  // to revalidate, or a Range request if there is a partial download to resume, and stores it in
+  // the cache (if any). Reports the result to the listener if report is true.
+  private void fetch(HttpDiskCache cache, HttpDiskCache.Entry cached, boolean report) {
     HttpURLConnection connection = null;
+    HttpDiskCache.Partial partial = null;
+    try {
+      connection = openConnection();
+      if (cached != null && cached.hasValidators()) {
+        cache.addConditionalHeaders(cached, connection);
+      } else if (cache != null && cached == null) {
+        partial = cache.getPartial(url.toString());
+        if (partial != null) cache.addRangeHeaders(partial, connection);
+      }
+      int responseCode = sendRequest(connection);
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+        discardStream(connection.getInputStream());
+        HttpDiskCache.Entry refreshed = cache.putNotModified(cached, connection);
+        if (report) postSuccess(refreshed.body);
+        return;
+      }
+      boolean resuming = responseCode == HttpURLConnection.HTTP_PARTIAL && partial != null;
+      if (responseCode != 200 && !resuming) {
+        // Read the error body anyway, so the connection can be reused.
+        discardStream(connection.getErrorStream());
+        // The server can't serve the range we asked for: start over next time.
+        if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && partial != null) {
+          cache.removePartial(partial);
+        }
+        String message = "Request to " + url + " failed with HTTP status code " + responseCode;
+        if (report) {
+          postFailure(responseCode, message, null);
+        } else {
+          Log.w(TAG, message);
+        }
+        return;
+      }
+      byte[] responseBody;
+      if (resuming) {
+        responseBody = readRemainingBody(connection, cache, partial);
+      } else {
+        // A whole body: the partial download (if any) is outdated.
+        if (partial != null) cache.removePartial(partial);
+        responseBody = readWholeBody(connection, cache);
+      }
+      if (cache != null) cache.put(url.toString(), connection, responseBody);
+      if (report) postSuccess(responseBody);
+    } catch (Exception ex) {
+      if (abandoned) {
+        Log.d(TAG, "Canceled request to " + url);
+      } else if (report) {
+        postFailure(0, "Exception while processing request to " + url, ex);
+      } else {
+        Log.w(TAG, "Failed to revalidate " + url + ": " + ex);
+      }
+      // The connection may be in a bad state: don't reuse it.
+      if (connection != null) {
+        connection.disconnect();
+      }
+    } finally {
+      activeConnection = null;
+      // Keep what was downloaded (if anything) for the next request.
+      if (partial != null) cache.releasePartial(partial);
+    }
+  }
+
+  // Reads the whole body of a 200 response. If the response is worth resuming, keeps the body on
+  // disk as it arrives, until it is complete.
+  private byte[] readWholeBody(HttpURLConnection connection, HttpDiskCache cache)
+      throws IOException {
+    HttpDiskCache.Partial partial =
+        cache != null && isSupportedEncoding(connection.getContentEncoding()) ?
+            cache.startPartial(url.toString(), connection) : null;
+    byte[] responseBody;
+    try {
+      responseBody = readBody(connection, cache, partial, false);
+      if (partial != null) cache.removePartial(partial);
+    } finally {
+      // Keep what was downloaded (if anything) for the next request.
+      if (partial != null) cache.releasePartial(partial);
+    }
+    recordBodySize(connection, responseBody.length);
+    return responseBody;
+  }
+
+  // Reads the rest of the body of a partial download, from a 206 response, after the part
+  // downloaded before, and decodes the whole body.
+  private byte[] readRemainingBody(HttpURLConnection connection, HttpDiskCache cache,
+      HttpDiskCache.Partial partial) throws IOException {
+    String contentRange = connection.getHeaderField("Content-Range");
+    String encoding = connection.getContentEncoding();
+    if (encoding == null) encoding = "identity";
+    if (!isRestOfBody(contentRange, partial) || !encoding.equalsIgnoreCase(partial.encoding)) {
+      // Not the rest of the body we have: start over next time.
+      cache.removePartial(partial);
+      throw new IOException("Unexpected range in response: " + contentRange + ", encoding " +
+          encoding);
+    }
+    byte[] responseBody = readBody(connection, cache, partial, true);
+    Log.d(TAG, "Resumed " + url.getPath() + " at byte " + partial.length + " of " +
+        (partial.totalLength >= 0 ? partial.totalLength : "?") + " (" + partial.encoding + ").");
+    // Only the rest was on the wire, but all of it was decoded.
+    recordBodySize(connection, responseBody.length);
+    totalResumedBytes.addAndGet(partial.length);
+    cache.removePartial(partial);
+    return responseBody;
+  }
+
+  // Returns whether the Content-Range of a 206 response is the rest of the partial download's
+  // body: "bytes <length>-<total - 1>/<total>", with the total we know, if we do.
+  private static boolean isRestOfBody(String contentRange, HttpDiskCache.Partial partial) {
+    String prefix = "bytes " + partial.length + "-";
+    if (contentRange == null || !contentRange.startsWith(prefix)) return false;
+    int slash = contentRange.indexOf('/', prefix.length());
+    if (slash < 0) return false;
     try {
-      connection = (HttpURLConnection) url.openConnection();
-      int responseCode = connection.getResponseCode();
+      long last = Long.parseLong(contentRange.substring(prefix.length(), slash));
+      long total = Long.parseLong(contentRange.substring(slash + 1));
+      return last == total - 1 && total > partial.length &&
+          (partial.totalLength < 0 || total == partial.totalLength);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  // Reads and decodes the body of the response. If partial isn't null, the bytes received are
+  // appended to its file as they arrive, and if resuming is true, they are the rest of the body
+  // in the file, which is decoded first.
+  private byte[] readBody(HttpURLConnection connection, HttpDiskCache cache,
+      HttpDiskCache.Partial partial, boolean resuming) throws IOException {
+    wireStream = new CountingInputStream(connection.getInputStream());
+    InputStream received = wireStream;
+    OutputStream partialOutput = null;
+    InputStream inputStream = null;
+    try {
+      String encoding = connection.getContentEncoding();
+      long bodyLength = connection.getContentLength();
+      if (partial != null) {
+        partialOutput = cache.openPartialOutput(partial);
+        received = new TeeInputStream(received, partialOutput);
+        if (resuming) {
+          // The file is read to the end before the tee appends to it.
+          received = new SequenceInputStream(cache.openPartialInput(partial), received);
+          encoding = partial.encoding;
+          bodyLength = partial.totalLength;
+        }
+      }
+      inputStream = decode(received, encoding);
+      // The Content-Length of an encoded body is its length on the wire, not decoded.
+      return readBody(inputStream, inputStream == received ? (int) bodyLength : -1);
+    } finally {
+      // Closing the fully read stream (rather than disconnecting) returns the connection to
+      // the keep-alive pool, for the next request to the same host.
+      if (inputStream != null) {
+        inputStream.close();
+      } else {
+        received.close();
+      }
+      if (partialOutput != null) partialOutput.close();
+    }
+  }
+
+  // Main method for background thread, for streamed requests.
+  private void streamMain() {
+    HttpURLConnection connection = null;
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = null;
+    try {
+      connection = openConnection();
+      int responseCode = sendRequest(connection);
       if (responseCode != 200) {
-        postFailure(responseCode,
+        discardStream(connection.getErrorStream());
+        streamingListener.onHttpRequestFailure(responseCode,
             "Request to " + url + " failed with HTTP status code " + responseCode, null);
         return;
       }
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      copyStream(connection.getInputStream(), outputStream);
-      postSuccess(outputStream.toByteArray());
+      InputStream inputStream = openBodyStream(connection);
+      long bodyBytes = 0;
+      try {
+        long contentLength = inputStream == wireStream ? connection.getContentLength() : -1;
+        streamingListener.onHttpResponseStarted(contentLength);
+        buffer = bufferPool.acquire();
+        int bytesReadThisTime;
+        while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
+          if (abandoned) throw new IOException("Request canceled.");
+          streamingListener.onHttpResponseChunk(buffer, 0, bytesReadThisTime);
+          bodyBytes += bytesReadThisTime;
+        }
+        // A connection that drops may look like the end of the body.
+        if (bodyBytes < contentLength) {
+          throw new EOFException("Response body ended after " + bodyBytes + " of " +
+              contentLength + " bytes.");
+        }
+      } finally {
+        inputStream.close();
+      }
+      recordBodySize(connection, bodyBytes);
+      if (!abandoned) streamingListener.onHttpResponseComplete();
     } catch (Exception ex) {
-      postFailure(0, "Exception while processing request to " + url, ex);
-    } finally {
+      if (abandoned) {
+        Log.d(TAG, "Canceled request to " + url);
+      } else {
+        streamingListener.onHttpRequestFailure(0,
+            "Exception while processing request to " + url, ex);
+      }
       if (connection != null) {
         connection.disconnect();
       }
+    } finally {
+      activeConnection = null;
+      if (buffer != null) bufferPool.release(buffer);
+    }
+  }
+
+  // Opens a connection to the URL, asking for a compressed response. Fails if the request was
+  // canceled.
+  private HttpURLConnection openConnection() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    // Asking for an encoding ourselves also stops HttpURLConnection from decoding gzip
+    // transparently, which would hide the size of the body on the wire.
+    connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    activeConnection = connection;
+    // cancel() may have run before it could see the connection.
+    if (abandoned) throw new IOException("Request canceled.");
+    return connection;
+  }
+
+  // Connects, sends the request and waits for the response headers, timing connection setup and
+  // the wait for the response separately. Returns the status code.
+  private int sendRequest(HttpURLConnection connection) throws IOException {
+    long startNanos = System.nanoTime();
+    sentNanos = startNanos;
+    connection.connect();
+    long connectedNanos = System.nanoTime();
+    connectNanos = connectedNanos - startNanos;
+    connectHistogram.record(connectNanos);
+    int responseCode = connection.getResponseCode();
+    responseNanos = System.nanoTime() - connectedNanos;
+    responseHistogram.record(responseNanos);
+    return responseCode;
+  }
+
+  // Returns the stream of the response body, decoded according to its Content-Encoding. The
+  // bytes received on the wire are counted by wireStream.
+  private InputStream openBodyStream(HttpURLConnection connection) throws IOException {
+    wireStream = new CountingInputStream(connection.getInputStream());
+    return decode(wireStream, connection.getContentEncoding());
+  }
+
+  // Returns whether we can decode the given Content-Encoding (null if none).
+  private static boolean isSupportedEncoding(String encoding) {
+    return encoding == null || encoding.equalsIgnoreCase("identity") ||
+        encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("deflate");
+  }
+
+  // Returns the given stream, decoded according to the given Content-Encoding (null if none).
+  // Closes the stream and fails if the encoding isn't supported.
+  private static InputStream decode(InputStream inputStream, String encoding)
+      throws IOException {
+    if (encoding == null || encoding.equalsIgnoreCase("identity")) return inputStream;
+    if (encoding.equalsIgnoreCase("gzip")) {
+      return new GZIPInputStream(inputStream, DECODER_BUFFER_SIZE);
+    }
+    if (encoding.equalsIgnoreCase("deflate")) {
+      // "deflate" is the zlib format (RFC 1950), which is what Inflater expects by default.
+      // InflaterInputStream only releases an Inflater it created itself, so end ours on close.
+      return new InflaterInputStream(inputStream, new Inflater(), DECODER_BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+    }
+    inputStream.close();
+    throw new IOException("Unsupported Content-Encoding: " + encoding);
+  }
+
+  // Records the size of the body, on the wire and decoded, once it was read.
+  private void recordBodySize(HttpURLConnection connection, long bodyBytes) {
+    wireBytes = wireStream.getCount();
+    decodedBytes = bodyBytes;
+    totalWireBytes.addAndGet(wireBytes);
+    totalDecodedBytes.addAndGet(decodedBytes);
+    String encoding = connection.getContentEncoding();
+    Log.d(TAG, "Received " + url.getPath() + ": " + wireBytes + " bytes on the wire, " +
+        decodedBytes + " decoded" + (encoding != null ? " (" + encoding + ")." : "."));
+  }
+
+  // Ends the flight of this request, if others could join it: returns the requests that joined
+  // it, which get the same response.
+  private ArrayList<AsyncHttpRequest> endFlight() {
+    synchronized (coalescableRequests) {
+      if (coalescableRequests.get(url.toString()) == this) {
+        coalescableRequests.remove(url.toString());
+      }
+      ArrayList<AsyncHttpRequest> joined = new ArrayList<>(followers);
+      followers.clear();
+      return joined;
     }
   }
 
-  // Posts a failure callback to the listener.
+  // Posts a failure callback to the listener, and to the listeners of the requests that joined
+  // this one.
   private void postFailure(final int statusCode, final String message, final Exception exception) {
+    for (AsyncHttpRequest follower : endFlight()) {
+      follower.postFailure(statusCode, message, exception);
+    }
     handler.post(new Runnable() {
       @Override
       public void run() {
-        listener.onHttpRequestFailure(statusCode, message, exception);
+        if (!canceled) listener.onHttpRequestFailure(statusCode, message, exception);
       }
     });
   }
 
-  // Posts a success callback to the listener.
+  // Posts a success callback to the listener, and to the listeners of the requests that joined
+  // this one (which didn't download anything).
   private void postSuccess(final byte[] responseBody) {
+    for (AsyncHttpRequest follower : endFlight()) {
+      follower.wireBytes = 0;
+      follower.decodedBytes = responseBody.length;
+      follower.postSuccess(responseBody);
+    }
     handler.post(new Runnable() {
       @Override
       public void run() {
-        listener.onHttpRequestSuccess(responseBody);
+        if (!canceled) listener.onHttpRequestSuccess(responseBody);
       }
     });
   }
 
+  // Reads the given stream (if not null) to the end, and closes it.
+  private static void discardStream(InputStream inputStream) throws IOException {
+    if (inputStream == null) return;
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = bufferPool.acquire();
+    try {
+      while (inputStream.read(buffer, 0, buffer.length) > 0) {
+        // Ignore the data.
+      }
+    } finally {
+      bufferPool.release(buffer);
+      inputStream.close();
+    }
+  }
+
+  // Stream that counts the bytes read through it.
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) ++count;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int bytesRead = super.read(buffer, offset, length);
+      if (bytesRead > 0) count += bytesRead;
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  // Stream that copies the bytes read through it to an output stream, as they are read.
+  private static class TeeInputStream extends FilterInputStream {
+    private final OutputStream copy;
+
+    TeeInputStream(InputStream in, OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) copy.write(result);
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int bytesRead = super.read(buffer, offset, length);
+      if (bytesRead > 0) copy.write(buffer, offset, bytesRead);
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes must be copied too, so read them.
+      if (n <= 0) return 0;
+      return Math.max(read(new byte[(int) Math.min(n, 4096)]), 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  // Reads the whole body. If its length is known, reads it straight into an array of that
+  // length, so the body is copied once and never reallocated. Otherwise, accumulates it.
+  private static byte[] readBody(InputStream inputStream, int contentLength) throws IOException {
+    if (contentLength >= 0 && contentLength <= MAX_PRESIZED_BODY_BYTES) {
+      byte[] body = new byte[contentLength];
+      int offset = 0;
+      while (offset < contentLength) {
+        int bytesReadThisTime = inputStream.read(body, offset, contentLength - offset);
+        if (bytesReadThisTime < 0) {
+          throw new EOFException("Response body ended after " + offset + " of " +
+              contentLength + " bytes.");
+        }
+        offset += bytesReadThisTime;
+      }
+      if (inputStream.read() >= 0) {
+        throw new IOException("Response body longer than its Content-Length.");
+      }
+      return body;
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    copyStream(inputStream, outputStream);
+    return outputStream.toByteArray();
+  }
+
   // Copies the entire contents of the given input stream to the given output stream.
   private static int copyStream(InputStream inputStream, OutputStream outputStream)
       throws IOException {
-    byte[] buffer = new byte[16384];
-    int totalBytes = 0;
-    int bytesReadThisTime;
-    while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
-      outputStream.write(buffer, 0, bytesReadThisTime);
-      totalBytes += bytesReadThisTime;
-    }
-    return totalBytes;
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = bufferPool.acquire();
+    try {
+      int totalBytes = 0;
+      int bytesReadThisTime;
+      while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
+        outputStream.write(buffer, 0, bytesReadThisTime);
+        totalBytes += bytesReadThisTime;
+      }
+      return totalBytes;
+    } finally {
+      bufferPool.release(buffer);
+    }
   }
 }
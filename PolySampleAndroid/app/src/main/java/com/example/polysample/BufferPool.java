@@ -0,0 +1,110 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte arrays of a fixed size, used as I/O buffers.
+ *
+ * Reading an HTTP response needs a buffer for the duration of the read. Rather than allocating
+ * one per request (and leaving it to the garbage collector right after), requests borrow one from
+ * the pool and give it back when they are done. The pool keeps a bounded number of idle buffers;
+ * about as many as there are HTTP threads is enough.
+ *
+ * All methods can be called on any thread.
+ */
+public class BufferPool {
+  /** Size of the buffers of the default pool, in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+  // Maximum number of idle buffers the default pool keeps.
+  private static final int DEFAULT_MAX_IDLE_BUFFERS = HttpDispatcher.DEFAULT_MAX_REQUESTS + 2;
+
+  // The pool shared by the whole app. Created when first needed.
+  private static BufferPool defaultPool;
+
+  // Size of the buffers, and maximum number of idle buffers kept.
+  private final int bufferSize;
+  private final int maxIdleBuffers;
+
+  // Idle buffers.
+  private final ArrayDeque<byte[]> idleBuffers = new ArrayDeque<>();
+
+  // Statistics.
+  private long acquireCount;
+  private long allocationCount;
+  private long releaseCount;
+
+  /** Returns the pool shared by the whole app. */
+  public static synchronized BufferPool getDefault() {
+    if (defaultPool == null) {
+      defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE_BUFFERS);
+    }
+    return defaultPool;
+  }
+
+  /**
+   * Creates a pool.
+   * @param bufferSize Size of the buffers, in bytes.
+   * @param maxIdleBuffers Maximum number of idle buffers to keep. Buffers released beyond that
+   *     are left to the garbage collector.
+   */
+  public BufferPool(int bufferSize, int maxIdleBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxIdleBuffers = maxIdleBuffers;
+  }
+
+  /** Returns the size of the buffers, in bytes. */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns a buffer, idle or new. Its contents are undefined. It should be given back with
+   * {@link #release} when no longer used.
+   */
+  public synchronized byte[] acquire() {
+    ++acquireCount;
+    byte[] buffer = idleBuffers.poll();
+    if (buffer == null) {
+      buffer = new byte[bufferSize];
+      ++allocationCount;
+    }
+    return buffer;
+  }
+
+  /** Gives back a buffer obtained with {@link #acquire}. It must not be used after this. */
+  public synchronized void release(byte[] buffer) {
+    ++releaseCount;
+    if (buffer.length != bufferSize || idleBuffers.size() >= maxIdleBuffers) return;
+    idleBuffers.add(buffer);
+  }
+
+  /** Returns the number of buffers handed out. */
+  public synchronized long getAcquireCount() {
+    return acquireCount;
+  }
+
+  /** Returns the number of buffers allocated (the rest were reused). */
+  public synchronized long getAllocationCount() {
+    return allocationCount;
+  }
+
+  /** Returns the number of buffers given back. */
+  public synchronized long getReleaseCount() {
+    return releaseCount;
+  }
+}
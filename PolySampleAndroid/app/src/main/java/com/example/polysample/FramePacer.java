@@ -0,0 +1,257 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Paces frames on the display's vsync, at a target frame rate.
+ *
+ * Frame requests (from the {@link FrameScheduler}) don't go straight to the GLSurfaceView:
+ * the pacer waits for the next vsync (using {@link Choreographer}), and only lets the frame
+ * through if it's due according to the target frame rate. For example, at 30 Hz on a 60 Hz
+ * display, every other vsync is skipped. Frames are due on a regular timeline (one every
+ * 1 / target rate seconds), so uneven rates like 90 Hz on a 120 Hz display still average out.
+ *
+ * Choreographer was added in API level 16. On older versions, a timer on the main thread ticks
+ * at the estimated vsync period instead: frames are paced at the same rate, just not aligned with
+ * the display's actual vsync.
+ *
+ * Each frame that goes through gets the vsync timestamp it was paced on. Animations should be
+ * driven by these timestamps ({@link #getFrameTimeNanos}) rather than by the time at which the
+ * GL thread happens to run: they are evenly spaced, so motion is smooth, and if frames are
+ * skipped (because a frame took too long) the next timestamp accounts for the lost time. The
+ * pacer counts the skipped frames.
+ *
+ * All times are in the System.nanoTime time base, like Choreographer's. Must be created on the
+ * main thread; the other methods can be called on any thread.
+ */
+public class FramePacer implements FrameScheduler.RenderRequester {
+  /** Common target frame rates. */
+  public static final int FRAME_RATE_30_HZ = 30;
+  public static final int FRAME_RATE_60_HZ = 60;
+  public static final int FRAME_RATE_90_HZ = 90;
+
+  // Initial estimate of the display's vsync period, refined as we see vsyncs.
+  private static final long DEFAULT_VSYNC_PERIOD_NANOS = 1000000000L / 60;
+
+  // A frame requested longer than this after the previous frame starts a new run of frames
+  // (after an idle period) rather than continuing the previous one, so the gap isn't counted as
+  // skipped frames.
+  private static final long MAX_FRAME_GAP_NANOS = 250000000L;
+
+  // What we ask to render frames (the GLSurfaceView).
+  private final FrameScheduler.RenderRequester requester;
+
+  // Source of the vsyncs on API level 16 and later (null before), and a handler to post to the
+  // main thread (the Choreographer must be used on the thread it belongs to, and the timer that
+  // replaces it runs there too).
+  private final ChoreographerVsync choreographerVsync;
+  private final Handler mainHandler;
+
+  // Waits for the next vsync. Runs on the main thread.
+  private final Runnable waitForVsync = new Runnable() {
+    @Override
+    public void run() {
+      if (choreographerVsync != null) {
+        choreographerVsync.post();
+        return;
+      }
+      // No Choreographer: wait for the next multiple of the vsync period, and use that as the
+      // vsync timestamp.
+      long now = System.nanoTime();
+      long period = getVsyncPeriodNanos();
+      timerVsyncNanos = now + period - now % period;
+      mainHandler.postDelayed(timerTick, (timerVsyncNanos - now + 999999) / 1000000);
+    }
+  };
+
+  // Timer tick that stands for a vsync when there is no Choreographer. Runs on the main thread.
+  private final Runnable timerTick = new Runnable() {
+    @Override
+    public void run() {
+      onVsync(timerVsyncNanos);
+    }
+  };
+
+  // Timestamp of the vsync the timer is waiting for. Only accessed on the main thread.
+  private long timerVsyncNanos;
+
+  // Target time between frames.
+  private long targetIntervalNanos;
+
+  // Estimate of the display's vsync period.
+  private long vsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+
+  // Whether a frame was requested and is waiting for its vsync.
+  private boolean requestPending;
+
+  // Time when the pending frame was requested.
+  private long requestTimeNanos;
+
+  // Timestamp of the last vsync we got a callback for (0 if none).
+  private long lastVsyncNanos;
+
+  // Vsync timestamp of the last frame we let through (0 if none), and when the next one is due.
+  private long lastFrameTimeNanos;
+  private long nextFrameDueNanos;
+
+  // Vsync timestamp for the renderer's next frame, or 0 if there is none (frames the system
+  // renders on its own, e.g. when the surface changes, don't go through the pacer).
+  private long pacedFrameTimeNanos;
+
+  // Number of frames let through, and number of frames skipped because a frame was late.
+  private long pacedFrameCount;
+  private long skippedFrameCount;
+
+  /**
+   * Creates a pacer. Must be called on the main thread.
+   * @param requester What to ask to render frames when they are due (the GLSurfaceView).
+   * @param targetFrameRate The target frame rate, in Hz.
+   */
+  public FramePacer(FrameScheduler.RenderRequester requester, int targetFrameRate) {
+    this.requester = requester;
+    choreographerVsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ?
+        new ChoreographerVsync() : null;
+    mainHandler = new Handler(Looper.getMainLooper());
+    setTargetFrameRate(targetFrameRate);
+  }
+
+  /**
+   * Sets the target frame rate, in Hz. The actual frame rate can't exceed the display's
+   * refresh rate.
+   */
+  public synchronized void setTargetFrameRate(int frameRate) {
+    if (frameRate <= 0) throw new IllegalArgumentException("Invalid frame rate: " + frameRate);
+    targetIntervalNanos = 1000000000L / frameRate;
+  }
+
+  /** Returns the target frame rate, in Hz. */
+  public synchronized int getTargetFrameRate() {
+    return (int) Math.round(1e9 / targetIntervalNanos);
+  }
+
+  /** Requests a frame. It will be rendered on the first vsync at which a frame is due. */
+  @Override
+  public synchronized void requestRender() {
+    if (requestPending) return;
+    requestPending = true;
+    requestTimeNanos = System.nanoTime();
+    mainHandler.post(waitForVsync);
+  }
+
+  // Called on each vsync we asked for, on the main thread. Lets the pending frame through if
+  // it's due.
+  private void onVsync(long frameTimeNanos) {
+    boolean render;
+    synchronized (this) {
+      updateVsyncPeriod(frameTimeNanos);
+      render = isFrameDue(frameTimeNanos);
+      if (render) {
+        requestPending = false;
+        pacedFrameTimeNanos = frameTimeNanos;
+        ++pacedFrameCount;
+      }
+    }
+    if (render) {
+      requester.requestRender();
+    } else {
+      // Not due yet: try again on the next vsync.
+      waitForVsync.run();
+    }
+  }
+
+  /**
+   * Returns the vsync timestamp the current frame was paced on. Must be called by the renderer
+   * once at the start of each frame. Frames that didn't go through the pacer get the current
+   * time instead.
+   */
+  public synchronized long getFrameTimeNanos() {
+    long frameTime = pacedFrameTimeNanos;
+    pacedFrameTimeNanos = 0;
+    return frameTime != 0 ? frameTime : System.nanoTime();
+  }
+
+  /** Returns the number of frames let through. */
+  public synchronized long getPacedFrameCount() {
+    return pacedFrameCount;
+  }
+
+  /** Returns the number of frames that were skipped because a frame took too long. */
+  public synchronized long getSkippedFrameCount() {
+    return skippedFrameCount;
+  }
+
+  // Returns whether a frame is due at the vsync with the given timestamp. If so, advances the
+  // timeline and counts the frames that were skipped since the last one.
+  private boolean isFrameDue(long frameTimeNanos) {
+    boolean continuingRun = lastFrameTimeNanos != 0 &&
+        requestTimeNanos - lastFrameTimeNanos < MAX_FRAME_GAP_NANOS;
+    if (!continuingRun) {
+      // First frame of a run: render right away and start the timeline here.
+      nextFrameDueNanos = frameTimeNanos;
+    }
+    // Vsyncs are never exactly where the timeline says, so accept the closest one.
+    if (frameTimeNanos < nextFrameDueNanos - vsyncPeriodNanos / 2) return false;
+    if (continuingRun) {
+      // If we are more than a frame past the due time, the frames in between were skipped.
+      long missed = (frameTimeNanos - nextFrameDueNanos + vsyncPeriodNanos / 2) /
+          targetIntervalNanos;
+      if (missed > 0) {
+        skippedFrameCount += missed;
+        // Don't try to catch up: continue the timeline from here.
+        nextFrameDueNanos = frameTimeNanos;
+      }
+    }
+    nextFrameDueNanos += targetIntervalNanos;
+    lastFrameTimeNanos = frameTimeNanos;
+    return true;
+  }
+
+  // Returns the estimate of the vsync period.
+  private synchronized long getVsyncPeriodNanos() {
+    return vsyncPeriodNanos;
+  }
+
+  // Refines the estimate of the vsync period with the time since the last vsync.
+  private void updateVsyncPeriod(long frameTimeNanos) {
+    long delta = frameTimeNanos - lastVsyncNanos;
+    lastVsyncNanos = frameTimeNanos;
+    // Only consecutive vsyncs tell us the period (we don't get callbacks while idle).
+    if (delta > 0 && delta < vsyncPeriodNanos * 3 / 2) {
+      vsyncPeriodNanos = (vsyncPeriodNanos * 7 + delta) / 8;
+    }
+  }
+
+  // Delivers the Choreographer's vsyncs to the pacer. A separate class, so that the pacer itself
+  // still loads on API levels that don't have Choreographer.
+  private class ChoreographerVsync implements Choreographer.FrameCallback {
+    // The main thread's Choreographer.
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    // Asks for a callback on the next vsync.
+    void post() {
+      choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      onVsync(frameTimeNanos);
+    }
+  }
+}
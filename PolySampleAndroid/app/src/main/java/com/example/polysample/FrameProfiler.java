@@ -0,0 +1,242 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Measures where the time of each frame goes, to tell whether rendering is CPU-bound,
+ * GPU-bound or idle.
+ *
+ * The CPU time of each frame on the GL thread is split in phases: setup (animation, matrices,
+ * culling), uploads (sending meshes and other data to the GPU) and draw (issuing draw calls).
+ * The renderer switches phases with {@link #beginPhase}; each phase's time is recorded in a
+ * {@link LatencyHistogram}, along with the whole frame's CPU time, the time between frames, and
+ * the GPU time (see {@link MyGpuTimer}) when the device can measure it.
+ *
+ * The profiler also counts draw calls and triangles per frame.
+ *
+ * Summaries (p50 / p95 / p99 / max) can be shown on screen ({@link #getSummary}) or written to
+ * a file ({@link #dumpToFile}).
+ *
+ * The frame methods must be called on the GL thread; the others can be called on any thread.
+ */
+public class FrameProfiler {
+  /** Frame phases. */
+  public static final int PHASE_SETUP = 0;
+  public static final int PHASE_UPLOAD = 1;
+  public static final int PHASE_DRAW = 2;
+
+  // Names of the phases, for the summaries.
+  private static final String[] PHASE_NAMES = { "setup", "upload", "draw" };
+
+  // An interval between frames longer than this is a pause in rendering, not a slow frame.
+  private static final long MAX_FRAME_INTERVAL_NANOS = 250000000L;
+
+  // Histograms of the phases' CPU times, the frame's CPU time, the time between frames and the
+  // GPU time.
+  private final LatencyHistogram[] phaseHistograms = new LatencyHistogram[PHASE_NAMES.length];
+  private final LatencyHistogram frameCpuHistogram = new LatencyHistogram();
+  private final LatencyHistogram frameIntervalHistogram = new LatencyHistogram();
+  private final LatencyHistogram gpuHistogram = new LatencyHistogram();
+
+  // Time spent in each phase in the current frame.
+  private final long[] phaseNanos = new long[PHASE_NAMES.length];
+
+  // Current phase, and when it started.
+  private int currentPhase = PHASE_SETUP;
+  private long phaseStartNanos;
+
+  // When the current frame started, and when the previous one did (0 if none).
+  private long frameStartNanos;
+  private long lastFrameStartNanos;
+
+  // Draw calls and triangles in the current frame.
+  private int drawCallCount;
+  private long triangleCount;
+
+  // Draw calls and triangles in the last complete frame, and in total.
+  private volatile int lastFrameDrawCallCount;
+  private volatile long lastFrameTriangleCount;
+  private long totalDrawCallCount;
+  private long totalTriangleCount;
+
+  // Whether GPU times are being measured.
+  private volatile boolean gpuTimingSupported;
+
+  public FrameProfiler() {
+    for (int i = 0; i < phaseHistograms.length; i++) {
+      phaseHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /** Must be called at the start of each frame, on the GL thread. Starts the setup phase. */
+  public void beginFrame() {
+    frameStartNanos = System.nanoTime();
+    if (lastFrameStartNanos != 0 &&
+        frameStartNanos - lastFrameStartNanos <= MAX_FRAME_INTERVAL_NANOS) {
+      frameIntervalHistogram.record(frameStartNanos - lastFrameStartNanos);
+    }
+    lastFrameStartNanos = frameStartNanos;
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseNanos[i] = 0;
+    }
+    drawCallCount = 0;
+    triangleCount = 0;
+    currentPhase = PHASE_SETUP;
+    phaseStartNanos = frameStartNanos;
+  }
+
+  /**
+   * Switches to the given phase. Time from now on counts towards it.
+   * @return The previous phase, so that a nested phase can switch back to it.
+   */
+  public int beginPhase(int phase) {
+    long now = System.nanoTime();
+    phaseNanos[currentPhase] += now - phaseStartNanos;
+    int previousPhase = currentPhase;
+    currentPhase = phase;
+    phaseStartNanos = now;
+    return previousPhase;
+  }
+
+  /** Counts draw calls that drew the given number of triangles (in total). */
+  public void countDraws(int drawCalls, long triangles) {
+    drawCallCount += drawCalls;
+    triangleCount += triangles;
+  }
+
+  /** Must be called at the end of each frame, on the GL thread. */
+  public void endFrame() {
+    long now = System.nanoTime();
+    phaseNanos[currentPhase] += now - phaseStartNanos;
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseHistograms[i].record(phaseNanos[i]);
+    }
+    frameCpuHistogram.record(now - frameStartNanos);
+    lastFrameDrawCallCount = drawCallCount;
+    lastFrameTriangleCount = triangleCount;
+    synchronized (this) {
+      totalDrawCallCount += drawCallCount;
+      totalTriangleCount += triangleCount;
+    }
+  }
+
+  /** Records the GPU time of a frame, in nanoseconds. */
+  public void recordGpuTime(long nanos) {
+    gpuHistogram.record(nanos);
+  }
+
+  /** Sets whether GPU times are being measured (for the summaries). */
+  public void setGpuTimingSupported(boolean supported) {
+    gpuTimingSupported = supported;
+  }
+
+  /** Returns the number of draw calls in the last frame. */
+  public int getLastFrameDrawCallCount() {
+    return lastFrameDrawCallCount;
+  }
+
+  /** Returns the number of triangles drawn in the last frame. */
+  public long getLastFrameTriangleCount() {
+    return lastFrameTriangleCount;
+  }
+
+  /** Returns the histogram of the CPU time of the given phase. */
+  public LatencyHistogram getPhaseHistogram(int phase) {
+    return phaseHistograms[phase];
+  }
+
+  /** Returns the histogram of the CPU time of whole frames. */
+  public LatencyHistogram getFrameCpuHistogram() {
+    return frameCpuHistogram;
+  }
+
+  /** Returns the histogram of the time between frames. */
+  public LatencyHistogram getFrameIntervalHistogram() {
+    return frameIntervalHistogram;
+  }
+
+  /** Returns the histogram of the GPU time of frames (empty if not supported). */
+  public LatencyHistogram getGpuHistogram() {
+    return gpuHistogram;
+  }
+
+  /** Removes all samples and totals. */
+  public synchronized void reset() {
+    for (LatencyHistogram histogram : phaseHistograms) {
+      histogram.reset();
+    }
+    frameCpuHistogram.reset();
+    frameIntervalHistogram.reset();
+    gpuHistogram.reset();
+    totalDrawCallCount = 0;
+    totalTriangleCount = 0;
+  }
+
+  /** Returns a multi-line summary of the measurements, short enough to show on screen. */
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append("p50 / p95 / p99 / max\n");
+    summary.append("interval ").append(frameIntervalHistogram.toSummaryString()).append('\n');
+    summary.append("cpu ").append(frameCpuHistogram.toSummaryString()).append('\n');
+    for (int i = 0; i < phaseHistograms.length; i++) {
+      summary.append("  ").append(PHASE_NAMES[i]).append(' ')
+          .append(phaseHistograms[i].toSummaryString()).append('\n');
+    }
+    summary.append("gpu ").append(gpuTimingSupported ? gpuHistogram.toSummaryString() :
+        "not supported").append('\n');
+    summary.append("draws ").append(lastFrameDrawCallCount).append(", triangles ")
+        .append(lastFrameTriangleCount);
+    return summary.toString();
+  }
+
+  /**
+   * Writes the measurements to the given file, as "name,count,mean,p50,p95,p99,max" lines
+   * (times in microseconds), followed by the draw call and triangle totals.
+   * @throws IOException if the file can't be written.
+   */
+  public void dumpToFile(File file) throws IOException {
+    PrintWriter writer = new PrintWriter(new FileWriter(file));
+    try {
+      writer.println("name,count,mean_us,p50_us,p95_us,p99_us,max_us");
+      writeHistogram(writer, "frame_interval", frameIntervalHistogram);
+      writeHistogram(writer, "frame_cpu", frameCpuHistogram);
+      for (int i = 0; i < phaseHistograms.length; i++) {
+        writeHistogram(writer, "phase_" + PHASE_NAMES[i], phaseHistograms[i]);
+      }
+      if (gpuTimingSupported) writeHistogram(writer, "frame_gpu", gpuHistogram);
+      synchronized (this) {
+        writer.println("total_draw_calls," + totalDrawCallCount);
+        writer.println("total_triangles," + totalTriangleCount);
+      }
+    } finally {
+      writer.close();
+    }
+    if (writer.checkError()) throw new IOException("Failed to write " + file);
+  }
+
+  // Writes a line with the given histogram's statistics.
+  private static void writeHistogram(PrintWriter writer, String name,
+      LatencyHistogram histogram) {
+    writer.println(name + "," + histogram.getCount() + "," + histogram.getMeanNanos() / 1000 +
+        "," + histogram.getPercentileNanos(0.5) / 1000 + "," +
+        histogram.getPercentileNanos(0.95) / 1000 + "," +
+        histogram.getPercentileNanos(0.99) / 1000 + "," + histogram.getMaxNanos() / 1000);
+  }
+}
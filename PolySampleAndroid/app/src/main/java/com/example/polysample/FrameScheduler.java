@@ -0,0 +1,141 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.HashSet;
+
+/**
+ * Decides when a frame needs to be rendered, so that the GLSurfaceView can render on demand
+ * (RENDERMODE_WHEN_DIRTY) instead of redrawing the same image on every vsync.
+ *
+ * There are two kinds of things that need frames:
+ *
+ * - Animations, like the object spinning, need a frame on every vsync while they run. They are
+ *   started and stopped by name with {@link #startAnimation} and {@link #stopAnimation}.
+ *
+ * - One-off changes, like a new object to upload or a camera change, need a single frame to show
+ *   the new state. They call {@link #requestFrame}.
+ *
+ * The renderer calls {@link #onFrameStarted} and {@link #onFrameFinished} around each frame; when
+ * a frame finishes and there is nothing left to do, no more frames are requested until something
+ * changes. The scheduler keeps track of the fraction of time spent like that (the idle ratio).
+ *
+ * All methods can be called on any thread.
+ */
+public class FrameScheduler {
+  /** Something that can render a frame when asked to (the GLSurfaceView). */
+  public interface RenderRequester {
+    /** Requests a frame to be rendered. Can be called on any thread. */
+    void requestRender();
+  }
+
+  // What we ask for frames.
+  private final RenderRequester requester;
+
+  // Names of the animations that are running.
+  private final HashSet<String> activeAnimations = new HashSet<>();
+
+  // Whether a frame was requested since the current frame (if any) started.
+  private boolean framePending;
+
+  // Time (as given by System.nanoTime) when the scheduler was created.
+  private final long startTimeNanos;
+
+  // Time when the scheduler last became idle, or -1 if it's not idle.
+  private long idleSinceNanos;
+
+  // Total time spent idle, not counting the current idle period.
+  private long idleNanos;
+
+  // Number of frames rendered.
+  private long frameCount;
+
+  /** Creates a scheduler. It's idle until something needs a frame. */
+  public FrameScheduler(RenderRequester requester) {
+    this.requester = requester;
+    startTimeNanos = System.nanoTime();
+    idleSinceNanos = startTimeNanos;
+  }
+
+  /** Starts the animation with the given name, if it's not running already. */
+  public synchronized void startAnimation(String name) {
+    if (activeAnimations.add(name)) wakeUp();
+  }
+
+  /** Stops the animation with the given name. Frames stop when nothing else needs them. */
+  public synchronized void stopAnimation(String name) {
+    activeAnimations.remove(name);
+  }
+
+  /** Returns whether the animation with the given name is running. */
+  public synchronized boolean isAnimating(String name) {
+    return activeAnimations.contains(name);
+  }
+
+  /** Requests a single frame, to show something that changed. */
+  public synchronized void requestFrame() {
+    framePending = true;
+    wakeUp();
+  }
+
+  /** Must be called by the renderer at the start of each frame. */
+  public synchronized void onFrameStarted() {
+    // This frame shows everything that was requested so far. Requests made during the frame
+    // need another one.
+    framePending = false;
+    // If we were idle, this is a frame we didn't ask for (e.g. because the surface changed).
+    leaveIdle();
+  }
+
+  /** Must be called by the renderer at the end of each frame. Requests the next frame, if any. */
+  public synchronized void onFrameFinished() {
+    ++frameCount;
+    if (framePending || !activeAnimations.isEmpty()) {
+      requester.requestRender();
+    } else {
+      idleSinceNanos = System.nanoTime();
+    }
+  }
+
+  /** Returns the number of frames rendered. */
+  public synchronized long getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Returns the fraction of time (between 0 and 1) since the scheduler was created during which
+   * no frames were needed.
+   */
+  public synchronized float getIdleRatio() {
+    long now = System.nanoTime();
+    long idle = idleNanos + (idleSinceNanos >= 0 ? now - idleSinceNanos : 0);
+    long total = now - startTimeNanos;
+    return total > 0 ? (float) idle / total : 0;
+  }
+
+  // Leaves the idle state (if idle) and requests a frame.
+  private void wakeUp() {
+    leaveIdle();
+    requester.requestRender();
+  }
+
+  // Leaves the idle state, if idle.
+  private void leaveIdle() {
+    if (idleSinceNanos >= 0) {
+      idleNanos += System.nanoTime() - idleSinceNanos;
+      idleSinceNanos = -1;
+    }
+  }
+}
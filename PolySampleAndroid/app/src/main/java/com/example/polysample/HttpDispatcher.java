@@ -0,0 +1,194 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs HTTP requests on a fixed pool of threads, with a limit on the number of requests running
+ * at the same time, overall and per host.
+ *
+ * Requests beyond the limits wait in a queue, in order, so a burst of requests (e.g. a hundred
+ * thumbnails) doesn't create a hundred threads and a hundred connections: the number of threads
+ * never exceeds the overall limit, and the number of connections to a host never exceeds the
+ * per-host limit. Since few connections are open at a time, HttpURLConnection's keep-alive pool
+ * can reuse them from one request to the next.
+ *
+ * The dispatcher measures how long requests wait in the queue, and how deep the queue gets.
+ *
+ * All methods can be called on any thread.
+ */
+public class HttpDispatcher {
+  /** Default maximum number of requests running at the same time. */
+  public static final int DEFAULT_MAX_REQUESTS = 6;
+
+  /** Default maximum number of requests to the same host running at the same time. */
+  public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+  // The dispatcher shared by all requests that don't specify one. Created when first needed.
+  private static HttpDispatcher defaultDispatcher;
+
+  // A request waiting to run, or running.
+  private static class Call {
+    final String host;
+    final Runnable task;
+    final long enqueueNanos;
+
+    Call(String host, Runnable task) {
+      this.host = host;
+      this.task = task;
+      enqueueNanos = System.nanoTime();
+    }
+  }
+
+  // Limits.
+  private final int maxRequests;
+  private final int maxRequestsPerHost;
+
+  // The threads. There are as many as the maximum number of running requests, and we never give
+  // them more work than that, so the executor's own queue stays empty.
+  private final ExecutorService executor;
+
+  // Requests waiting to run, in the order they were dispatched.
+  private final ArrayDeque<Call> queue = new ArrayDeque<>();
+
+  // Number of running requests, overall and per host.
+  private int runningCount;
+  private final HashMap<String, Integer> runningCountPerHost = new HashMap<>();
+
+  // Time requests spent in the queue.
+  private final LatencyHistogram waitHistogram = new LatencyHistogram();
+
+  // Statistics.
+  private int maxQueuedCount;
+  private long completedCount;
+
+  /** Returns the dispatcher shared by the whole app. */
+  public static synchronized HttpDispatcher getDefault() {
+    if (defaultDispatcher == null) {
+      defaultDispatcher = new HttpDispatcher(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+    return defaultDispatcher;
+  }
+
+  /**
+   * Creates a dispatcher.
+   * @param maxRequests Maximum number of requests running at the same time (and number of
+   *     threads).
+   * @param maxRequestsPerHost Maximum number of requests to the same host running at the same
+   *     time.
+   */
+  public HttpDispatcher(int maxRequests, int maxRequestsPerHost) {
+    this.maxRequests = maxRequests;
+    this.maxRequestsPerHost = maxRequestsPerHost;
+    executor = Executors.newFixedThreadPool(maxRequests, new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Http-" + threadCount.incrementAndGet());
+        // Don't keep the process alive just for idle HTTP threads.
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Runs the given request on one of the dispatcher's threads, as soon as the limits allow.
+   * @param host The host the request connects to.
+   * @param task The request. It should do all of its network I/O before returning.
+   */
+  public synchronized void dispatch(String host, Runnable task) {
+    queue.add(new Call(host, task));
+    maxQueuedCount = Math.max(maxQueuedCount, queue.size());
+    promoteCalls();
+  }
+
+  /** Returns the number of requests waiting to run. */
+  public synchronized int getQueuedCount() {
+    return queue.size();
+  }
+
+  /** Returns the number of running requests. */
+  public synchronized int getRunningCount() {
+    return runningCount;
+  }
+
+  /** Returns the largest number of requests that were waiting at the same time. */
+  public synchronized int getMaxQueuedCount() {
+    return maxQueuedCount;
+  }
+
+  /** Returns the number of requests that finished running. */
+  public synchronized long getCompletedCount() {
+    return completedCount;
+  }
+
+  /** Returns the histogram of the time requests spent waiting to run. */
+  public LatencyHistogram getWaitHistogram() {
+    return waitHistogram;
+  }
+
+  /** Returns a one-line summary of the statistics. */
+  public synchronized String getSummary() {
+    return "running " + runningCount + ", queued " + queue.size() + " (max " + maxQueuedCount +
+        "), completed " + completedCount + ", wait " + waitHistogram.toSummaryString();
+  }
+
+  // Starts the queued requests that the limits allow, oldest first. A request whose host is at
+  // its limit doesn't hold back the requests to other hosts behind it.
+  private void promoteCalls() {
+    Iterator<Call> iterator = queue.iterator();
+    while (runningCount < maxRequests && iterator.hasNext()) {
+      final Call call = iterator.next();
+      Integer hostCount = runningCountPerHost.get(call.host);
+      if (hostCount != null && hostCount >= maxRequestsPerHost) continue;
+      iterator.remove();
+      runningCountPerHost.put(call.host, hostCount == null ? 1 : hostCount + 1);
+      ++runningCount;
+      waitHistogram.record(System.nanoTime() - call.enqueueNanos);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            call.task.run();
+          } finally {
+            finished(call);
+          }
+        }
+      });
+    }
+  }
+
+  // Called when a request finished running. Starts the next ones.
+  private synchronized void finished(Call call) {
+    int hostCount = runningCountPerHost.get(call.host) - 1;
+    if (hostCount == 0) {
+      runningCountPerHost.remove(call.host);
+    } else {
+      runningCountPerHost.put(call.host, hostCount);
+    }
+    --runningCount;
+    ++completedCount;
+    promoteCalls();
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+
+/**
+ * Opens connections to hosts before they are needed, so that the first real request to each of
+ * them doesn't pay for the DNS lookup and the TCP and TLS handshakes.
+ *
+ * Each host gets a HEAD request for its root, on an HTTP thread: the lookup result is then in the
+ * system's DNS cache, and the connection, once the response headers are read, in
+ * HttpURLConnection's keep-alive pool, where the next request to the host picks it up. This costs
+ * one round trip and a few hundred bytes of headers each way on top of the handshakes, and the
+ * server's work to answer for its root (usually a redirect or a 404); no body is sent. Start
+ * pre-connecting as early as possible, so the handshakes overlap with other start-up work
+ * (inflating the layout, setting up GL, waiting for other requests).
+ *
+ * Only pre-connect to hosts whose first request comes later than that: a request sent while the
+ * pre-connect to its host is still running opens a connection of its own, so the pre-connect
+ * gains nothing.
+ *
+ * The time spent on each step is logged, and recorded in histograms. All methods can be called
+ * on any thread.
+ */
+public class HttpPreconnector {
+  private static final String TAG = "PolySample";
+
+  // Time spent resolving host names, and opening connections (TCP and TLS handshakes).
+  private static final LatencyHistogram dnsHistogram = new LatencyHistogram();
+  private static final LatencyHistogram connectHistogram = new LatencyHistogram();
+
+  private HttpPreconnector() {}
+
+  /**
+   * Starts opening a connection to the host of each given URL. Returns immediately.
+   * @param urls URLs on the hosts, e.g. "https://poly.googleapis.com/". Only the scheme, host
+   *     and port matter.
+   */
+  public static void preconnect(String... urls) {
+    for (final String url : urls) {
+      final URL rootUrl;
+      try {
+        URL parsed = new URL(url);
+        rootUrl = new URL(parsed.getProtocol(), parsed.getHost(), parsed.getPort(), "/");
+      } catch (IOException e) {
+        Log.w(TAG, "Can't pre-connect to invalid URL " + url);
+        continue;
+      }
+      HttpDispatcher.getDefault().dispatch(rootUrl.getHost(), new Runnable() {
+        @Override
+        public void run() {
+          preconnectNow(rootUrl);
+        }
+      });
+    }
+  }
+
+  /** Returns the histogram of the time spent resolving host names. */
+  public static LatencyHistogram getDnsHistogram() {
+    return dnsHistogram;
+  }
+
+  /** Returns the histogram of the time spent opening connections (TCP and TLS handshakes). */
+  public static LatencyHistogram getConnectHistogram() {
+    return connectHistogram;
+  }
+
+  /** Returns a one-line summary of the statistics. */
+  public static String getSummary() {
+    return "DNS " + dnsHistogram.toSummaryString() + ", connect " +
+        connectHistogram.toSummaryString();
+  }
+
+  // Resolves the host of the URL, then connects to it and sends a HEAD request for the URL. Runs
+  // on an HTTP thread.
+  private static void preconnectNow(URL rootUrl) {
+    HttpURLConnection connection = null;
+    try {
+      long startNanos = System.nanoTime();
+      InetAddress.getAllByName(rootUrl.getHost());
+      long resolvedNanos = System.nanoTime();
+      connection = (HttpURLConnection) rootUrl.openConnection();
+      connection.setRequestMethod("HEAD");
+      connection.setInstanceFollowRedirects(false);
+      connection.connect();
+      long connectedNanos = System.nanoTime();
+      // Whatever the status (the root may well be a 404), reading the response to the end (there
+      // is no body, but the stream must still be closed) hands the connection over to the
+      // keep-alive pool.
+      int responseCode = connection.getResponseCode();
+      InputStream body = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ?
+          connection.getInputStream() : connection.getErrorStream();
+      if (body != null) discardStream(body);
+      dnsHistogram.record(resolvedNanos - startNanos);
+      connectHistogram.record(connectedNanos - resolvedNanos);
+      Log.d(TAG, String.format("Pre-connected to %s: DNS %.1f ms, connect %.1f ms, HEAD %.1f ms.",
+          rootUrl.getHost(), (resolvedNanos - startNanos) * 1e-6,
+          (connectedNanos - resolvedNanos) * 1e-6, (System.nanoTime() - connectedNanos) * 1e-6));
+    } catch (IOException e) {
+      // Not a problem: the real request will connect by itself (and likely fail the same way).
+      Log.w(TAG, "Failed to pre-connect to " + rootUrl.getHost() + ": " + e);
+      if (connection != null) connection.disconnect();
+    }
+  }
+
+  // Reads the given stream to the end, and closes it.
+  private static void discardStream(InputStream inputStream) throws IOException {
+    BufferPool bufferPool = BufferPool.getDefault();
+    byte[] buffer = bufferPool.acquire();
+    try {
+      while (inputStream.read(buffer, 0, buffer.length) > 0) {
+        // Ignore the data.
+      }
+    } finally {
+      bufferPool.release(buffer);
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+/**
+ * A list of ranges of an index buffer to draw, each drawn with its own glDrawElements call.
+ *
+ * Ranges that are added in order and touch each other are merged into a single range, so drawing
+ * a run of adjacent ranges costs a single draw call.
+ */
+public class IndexRanges {
+  // First index of each range.
+  private int[] firsts;
+  // Number of indices in each range.
+  private int[] counts;
+  // Number of ranges.
+  private int rangeCount;
+
+  /** Creates an empty list of index ranges. */
+  public IndexRanges() {
+    this(16);
+  }
+
+  /** Creates an empty list of index ranges with room for the given number of ranges. */
+  public IndexRanges(int initialCapacity) {
+    firsts = new int[Math.max(1, initialCapacity)];
+    counts = new int[firsts.length];
+  }
+
+  /** Removes all ranges. */
+  public void clear() {
+    rangeCount = 0;
+  }
+
+  /**
+   * Adds a range of indices. If it starts right where the last range ends, the last range is
+   * extended instead.
+   * @param first The first index of the range.
+   * @param count The number of indices in the range.
+   */
+  public void add(int first, int count) {
+    if (count <= 0) return;
+    if (rangeCount > 0 && firsts[rangeCount - 1] + counts[rangeCount - 1] == first) {
+      counts[rangeCount - 1] += count;
+      return;
+    }
+    if (rangeCount == firsts.length) {
+      int[] newFirsts = new int[firsts.length * 2];
+      int[] newCounts = new int[counts.length * 2];
+      System.arraycopy(firsts, 0, newFirsts, 0, rangeCount);
+      System.arraycopy(counts, 0, newCounts, 0, rangeCount);
+      firsts = newFirsts;
+      counts = newCounts;
+    }
+    firsts[rangeCount] = first;
+    counts[rangeCount] = count;
+    ++rangeCount;
+  }
+
+  /** Returns the number of ranges. */
+  public int getRangeCount() {
+    return rangeCount;
+  }
+
+  /** Returns the first index of the given range. */
+  public int getFirst(int range) {
+    return firsts[range];
+  }
+
+  /** Returns the number of indices in the given range. */
+  public int getCount(int range) {
+    return counts[range];
+  }
+
+  /** Returns the total number of indices in all ranges. */
+  public int getTotalCount() {
+    int total = 0;
+    for (int i = 0; i < rangeCount; i++) {
+      total += counts[i];
+    }
+    return total;
+  }
+}
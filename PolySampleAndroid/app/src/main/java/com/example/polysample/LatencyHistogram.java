@@ -0,0 +1,132 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.Locale;
+
+/**
+ * Histogram of durations, to compute percentiles (p50, p95, p99...) without keeping every
+ * sample.
+ *
+ * Durations are counted in buckets whose width grows with the duration: below 32 us each bucket
+ * is 1 us wide, and above that each power of two is split into 16 buckets, so a percentile is
+ * accurate to about 6%. Recording a duration doesn't allocate.
+ *
+ * All methods can be called on any thread.
+ */
+public class LatencyHistogram {
+  // Durations below this (in microseconds) get a bucket each.
+  private static final int LINEAR_BUCKETS = 32;
+
+  // Number of buckets per power of two above LINEAR_BUCKETS.
+  private static final int SUB_BUCKETS = 16;
+
+  // log2(SUB_BUCKETS).
+  private static final int SUB_BUCKET_BITS = 4;
+
+  // Highest power of two we have buckets for (2^40 us is about 12 days).
+  private static final int MAX_EXPONENT = 40;
+
+  // Exponent of LINEAR_BUCKETS.
+  private static final int MIN_EXPONENT = 5;
+
+  // Number of samples in each bucket.
+  private final long[] counts =
+      new long[LINEAR_BUCKETS + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS];
+
+  // Number of samples, their sum and their maximum, in nanoseconds.
+  private long count;
+  private long sumNanos;
+  private long maxNanos;
+
+  /** Records a duration, in nanoseconds. */
+  public synchronized void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    ++counts[bucketOf(nanos / 1000)];
+    ++count;
+    sumNanos += nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  /** Removes all samples. */
+  public synchronized void reset() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = 0;
+    }
+    count = 0;
+    sumNanos = 0;
+    maxNanos = 0;
+  }
+
+  /** Returns the number of samples. */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /** Returns the average duration, in nanoseconds (0 if there are no samples). */
+  public synchronized long getMeanNanos() {
+    return count > 0 ? sumNanos / count : 0;
+  }
+
+  /** Returns the longest duration, in nanoseconds. */
+  public synchronized long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * Returns the duration below which the given fraction of the samples are, in nanoseconds
+   * (0 if there are no samples).
+   * @param fraction The fraction, e.g. 0.95 for the 95th percentile.
+   */
+  public synchronized long getPercentileNanos(double fraction) {
+    if (count == 0) return 0;
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= Math.max(1, rank)) {
+        // Report the top of the bucket, but never more than the actual maximum.
+        return Math.min(bucketUpperBoundNanos(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  /** Returns a one-line summary, in milliseconds: "p50 / p95 / p99 / max (count)". */
+  public synchronized String toSummaryString() {
+    return String.format(Locale.US, "%.1f / %.1f / %.1f / %.1f ms (%d)",
+        getPercentileNanos(0.5) * 1e-6, getPercentileNanos(0.95) * 1e-6,
+        getPercentileNanos(0.99) * 1e-6, maxNanos * 1e-6, count);
+  }
+
+  // Returns the bucket of the given duration, in microseconds.
+  private static int bucketOf(long micros) {
+    if (micros < LINEAR_BUCKETS) return (int) micros;
+    int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) Math.min(micros >> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+    return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  // Returns the largest duration (in nanoseconds) that goes in the given bucket: just below the
+  // next bucket's first microsecond.
+  private static long bucketUpperBoundNanos(int bucket) {
+    if (bucket < LINEAR_BUCKETS) return (bucket + 1) * 1000L - 1;
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + MIN_EXPONENT;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((long) (subBucket + 1) << shift) * 1000 - 1;
+  }
+}
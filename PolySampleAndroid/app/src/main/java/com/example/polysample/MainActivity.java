@@ -17,15 +17,17 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.util.JsonReader;
 import android.util.Log;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 
 /**
  * Main Activity.
@@ -47,6 +49,24 @@ public class MainActivity extends Activity {
   // how big or small the asset is, we will scale it to a reasonable size for viewing.
   private static final float ASSET_DISPLAY_SIZE = 5;
 
+  // Whether to log the whole body of the API responses (verbose).
+  private static final boolean LOG_RESPONSE_BODIES = false;
+
+  // Whether to show the frame profiler's statistics on screen, below the status.
+  private static final boolean SHOW_PROFILER_OVERLAY = false;
+
+  // How often the profiler overlay is refreshed, in milliseconds.
+  private static final long PROFILER_OVERLAY_INTERVAL_MS = 500;
+
+  // File (in the app's files directory) the profiler's statistics are written to on pause, for
+  // collecting them from test devices.
+  private static final String PROFILER_DUMP_FILE_NAME = "frame_profile.csv";
+
+  // Directory (in the app's cache directory) and size of the HTTP cache. Poly assets don't
+  // change, so the asset and its files only need to be downloaded once.
+  private static final String HTTP_CACHE_DIRECTORY_NAME = "http";
+  private static final long HTTP_CACHE_SIZE_BYTES = 32 * 1024 * 1024;
+
   // The GLSurfaceView that renders the object.
   private MyGLSurfaceView glView;
 
@@ -56,16 +76,36 @@ public class MainActivity extends Activity {
   // Handler for the background thread, to which we post background thread tasks.
   private Handler backgroundThreadHandler;
 
-  // The AsyncFileDownloader responsible for downloading a set of data files from Poly.
-  private AsyncFileDownloader fileDownloader;
+  // The AsyncFileDownloader responsible for downloading a set of data files from Poly. Set on the
+  // background thread, canceled on the main thread.
+  private volatile AsyncFileDownloader fileDownloader;
 
   // TextView that displays the status.
   private TextView statusText;
 
+  // The last status message. Only accessed on the main thread.
+  private String statusMessage = "";
+
+  // Handler for the main thread, used to refresh the profiler overlay.
+  private final Handler mainHandler = new Handler();
+
+  // Refreshes the profiler overlay, and schedules the next refresh. Runs on the main thread.
+  private final Runnable refreshProfilerOverlay = new Runnable() {
+    @Override
+    public void run() {
+      updateStatusText();
+      mainHandler.postDelayed(this, PROFILER_OVERLAY_INTERVAL_MS);
+    }
+  };
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
 
+    // Connect to the host of the asset's data files while the asset is requested, rather than
+    // when the first file is requested.
+    PolyApi.Preconnect();
+
     // Set the Activity's layout and get the references to our views.
     setContentView(R.layout.activity_main);
     glView = (MyGLSurfaceView)findViewById(R.id.my_gl_surface_view);
@@ -76,9 +116,18 @@ public class MainActivity extends Activity {
     backgroundThread.start();
     backgroundThreadHandler = new Handler(backgroundThread.getLooper());
 
+    // Cache the HTTP responses (the cache is only read when the first request is made, on a
+    // background thread).
+    HttpDiskCache.install(new File(getCacheDir(), HTTP_CACHE_DIRECTORY_NAME),
+        HTTP_CACHE_SIZE_BYTES);
+
+    // Duplicate the requests that take unusually long, so that one slow server or connection
+    // doesn't hold up the whole asset.
+    RetryPolicy.getDefault().setHedgingEnabled(true);
+
     // Request the asset from the Poly API.
     Log.d(TAG, "Requesting asset "+ ASSET_ID);
-    statusText.setText("Requesting...");
+    setStatusMessage("Requesting...");
     PolyApi.GetAsset(ASSET_ID, backgroundThreadHandler, new AsyncHttpRequest.CompletionListener() {
       @Override
       public void onHttpRequestSuccess(byte[] responseBody) {
@@ -96,7 +145,16 @@ public class MainActivity extends Activity {
 
   @Override
   protected void onDestroy() {
-    backgroundThread.quit();
+    // Nobody will use the data files anymore: stop downloading them.
+    AsyncFileDownloader downloader = fileDownloader;
+    if (downloader != null) downloader.cancel();
+    // Quit once the tasks already posted (such as writing the frame profile) have run.
+    backgroundThreadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        backgroundThread.quit();
+      }
+    });
     super.onDestroy();
   }
 
@@ -104,93 +162,226 @@ public class MainActivity extends Activity {
   protected void onPause() {
     super.onPause();
     glView.onPause();
+    FrameScheduler frameScheduler = glView.getFrameScheduler();
+    Log.d(TAG, "Rendered " + frameScheduler.getFrameCount() + " frames, idle " +
+        Math.round(frameScheduler.getIdleRatio() * 100) + "% of the time.");
+    FramePacer framePacer = glView.getFramePacer();
+    Log.d(TAG, "Paced " + framePacer.getPacedFrameCount() + " frames at " +
+        framePacer.getTargetFrameRate() + " Hz, skipped " + framePacer.getSkippedFrameCount() +
+        ".");
+    QualityGovernor qualityGovernor = glView.getQualityGovernor();
+    Log.d(TAG, "Quality level " + qualityGovernor.getQualityLevel() + " (render scale " +
+        qualityGovernor.getRenderScale() + ", LOD bias " + qualityGovernor.getLodBias() +
+        "), lowered " + qualityGovernor.getDowngradeCount() + " times, raised " +
+        qualityGovernor.getUpgradeCount() + " times. Last decision: " +
+        qualityGovernor.getLastDecision());
+    Log.d(TAG, "HTTP requests: " + HttpDispatcher.getDefault().getSummary());
+    Log.d(TAG, "HTTP retries: " + RetryPolicy.getDefault().getSummary());
+    Log.d(TAG, "HTTP cache: " + HttpDiskCache.getInstalled().getSummary());
+    Log.d(TAG, "HTTP bodies: " + AsyncHttpRequest.getTotalWireBytes() + " bytes on the wire, " +
+        AsyncHttpRequest.getTotalDecodedBytes() + " decoded, " +
+        AsyncHttpRequest.getTotalResumedBytes() + " resumed, " +
+        AsyncHttpRequest.getCoalescedCount() + " requests coalesced");
+    Log.d(TAG, "HTTP timing: connection setup " +
+        AsyncHttpRequest.getConnectHistogram().toSummaryString() + ", response " +
+        AsyncHttpRequest.getResponseHistogram().toSummaryString() + ". Pre-connect: " +
+        HttpPreconnector.getSummary());
+
+    mainHandler.removeCallbacks(refreshProfilerOverlay);
+    final FrameProfiler frameProfiler = glView.getRenderer().getFrameProfiler();
+    Log.d(TAG, "Frame profile:\n" + frameProfiler.getSummary());
+    // Write the file on the background thread, to keep disk I/O off the main thread.
+    backgroundThreadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        File dumpFile = new File(getFilesDir(), PROFILER_DUMP_FILE_NAME);
+        try {
+          frameProfiler.dumpToFile(dumpFile);
+          Log.d(TAG, "Wrote frame profile to " + dumpFile);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to write frame profile: " + e);
+        }
+      }
+    });
   }
 
   @Override
   protected void onResume() {
     super.onResume();
     glView.onResume();
+    if (SHOW_PROFILER_OVERLAY) mainHandler.post(refreshProfilerOverlay);
   }
 
   // NOTE: this runs on the background thread.
   private void parseAsset(byte[] assetData) {
     Log.d(TAG, "Got asset response (" + assetData.length + " bytes). Parsing.");
-    String assetBody = new String(assetData, Charset.forName("UTF-8"));
-    Log.d(TAG, assetBody);
-    try {
-      JSONObject response = new JSONObject(assetBody);
-
-      // Display attribution in a toast, for simplicity. In your app, you don't have to use a
-      // toast to do this. You can display it where it's most appropriate for your app.
-      setStatusMessageOnUiThread(response.getString("displayName") + " by " +
-          response.getString("authorName"));
-
-      // The asset may have several formats (OBJ, GLTF, FBX, etc). We will look for the OBJ format.
-      JSONArray formats = response.getJSONArray("formats");
-      boolean foundObjFormat = false;
-      for (int i = 0; i < formats.length(); i++) {
-        JSONObject format = formats.getJSONObject(i);
-        if (format.getString("formatType").equals("OBJ")) {
-          // Found the OBJ format. The format gives us the URL of the data files that we should
-          // download (which include the OBJ file, the MTL file and the textures). We will now
-          // request those files.
-          requestDataFiles(format);
-          foundObjFormat = true;
-          break;
+    if (LOG_RESPONSE_BODIES) Log.d(TAG, new String(assetData, Charset.forName("UTF-8")));
+
+    // The asset has the list of data files for each format (OBJ file, MTL file, textures). We
+    // will use a AsyncFileDownloader to download the files we need, adding them while the
+    // response is parsed. The response itself was received whole (it comes through the HTTP
+    // cache and retries), so this only saves waiting for the end of the parse, not for the
+    // network. When the files are all downloaded, the callback will call processDataFiles().
+    final AsyncFileDownloader downloader = new AsyncFileDownloader();
+    fileDownloader = downloader;
+    downloader.startOpen(backgroundThreadHandler, new AsyncFileDownloader.CompletionListener() {
+      @Override
+      public void onPolyDownloadFinished(AsyncFileDownloader downloader) {
+        if (downloader.isError()) {
+          Log.e(TAG, "Failed to download data files for asset.");
+          setStatusMessageOnUiThread("Failed to download data files.");
+          return;
         }
+        processDataFiles();
       }
-      if (!foundObjFormat) {
-        // If this happens, it's because the asset doesn't have a representation in the OBJ
-        // format. Since this simple sample code can only parse OBJ, we can't proceed.
-        // But other formats might be available, so if your client supports multiple formats,
-        // you could still try a different format instead.
-        Log.e(TAG, "Could not find OBJ format in asset.");
-        return;
+    });
+
+    // Pull only the fields we need out of the response, rather than building the whole tree.
+    JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(assetData),
+        Charset.forName("UTF-8")));
+    String displayName = null;
+    String authorName = null;
+    boolean foundObjFormat = false;
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals("displayName")) {
+          displayName = reader.nextString();
+        } else if (name.equals("authorName")) {
+          authorName = reader.nextString();
+        } else if (name.equals("formats")) {
+          foundObjFormat = readFormats(reader, downloader);
+        } else {
+          reader.skipValue();
+        }
       }
-    } catch (JSONException jsonException) {
-      Log.e(TAG, "JSON parsing error while processing response: " + jsonException);
-      jsonException.printStackTrace();
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      Log.e(TAG, "JSON parsing error while processing response: " + e);
+      downloader.cancel();
       setStatusMessageOnUiThread("Failed to parse response.");
+      return;
+    } finally {
+      closeQuietly(reader);
     }
+
+    // Display attribution in a toast, for simplicity. In your app, you don't have to use a
+    // toast to do this. You can display it where it's most appropriate for your app.
+    if (displayName != null && authorName != null) {
+      setStatusMessageOnUiThread(displayName + " by " + authorName);
+    }
+
+    if (!foundObjFormat) {
+      // If this happens, it's because the asset doesn't have a representation in the OBJ
+      // format. Since this simple sample code can only parse OBJ, we can't proceed.
+      // But other formats might be available, so if your client supports multiple formats,
+      // you could still try a different format instead.
+      Log.e(TAG, "Could not find OBJ format in asset.");
+      downloader.cancel();
+      return;
+    }
+    Log.d(TAG, "Downloading data files, # files: " + downloader.getEntryCount());
+    downloader.finishAdding();
   }
 
-  // Requests the data files for the OBJ format.
+  // Reads the "formats" array of the asset. The asset may have several formats (OBJ, GLTF, FBX,
+  // etc). We will look for the OBJ format, and request its data files. Returns whether it was
+  // found.
   // NOTE: this runs on the background thread.
-  private void requestDataFiles(JSONObject objFormat) throws JSONException {
-    // objFormat has the list of data files for the OBJ format (OBJ file, MTL file, textures).
-    // We will use a AsyncFileDownloader to download all those files.
-    fileDownloader = new AsyncFileDownloader();
-
-    // The "root file" is the OBJ.
-    JSONObject rootFile = objFormat.getJSONObject("root");
-    fileDownloader.add(rootFile.getString("relativePath"), rootFile.getString("url"));
-
-    // The "resource files" are the MTL file and textures.
-    JSONArray resources = objFormat.getJSONArray("resources");
-    for (int i = 0; i < resources.length(); i++) {
-      JSONObject resourceFile = resources.getJSONObject(i);
-      String path = resourceFile.getString("relativePath");
-      String url = resourceFile.getString("url");
-      // For this example, we only care about OBJ and MTL files (not textures).
-      if (path.toLowerCase().endsWith(".obj") || path.toLowerCase().endsWith(".mtl")) {
-        fileDownloader.add(path, url);
+  private static boolean readFormats(JsonReader reader, AsyncFileDownloader downloader)
+      throws IOException {
+    boolean foundObjFormat = false;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (foundObjFormat) {
+        reader.skipValue();
+      } else {
+        foundObjFormat = readFormat(reader, downloader);
       }
     }
+    reader.endArray();
+    return foundObjFormat;
+  }
 
-    // Now start downloading the data files. When this is done, the callback will call
-    // processDataFiles().
-    Log.d(TAG, "Starting to download data files, # files: " + fileDownloader.getEntryCount());
-    fileDownloader.start(backgroundThreadHandler, new AsyncFileDownloader.CompletionListener() {
-      @Override
-      public void onPolyDownloadFinished(AsyncFileDownloader downloader) {
-        if (downloader.isError()) {
-          Log.e(TAG, "Failed to download data files for asset.");
-          setStatusMessageOnUiThread("Failed to download data files.");
-          return;
+  // Reads a format. If it's the OBJ format, requests its data files (which include the OBJ file,
+  // the MTL file and the textures), and returns true. The files parsed before the format type
+  // are requested once it's known.
+  // NOTE: this runs on the background thread.
+  private static boolean readFormat(JsonReader reader, AsyncFileDownloader downloader)
+      throws IOException {
+    String formatType = null;
+    // The data files parsed before we know the format type.
+    ArrayList<AsyncFileDownloader.Entry> files = new ArrayList<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("formatType")) {
+        formatType = reader.nextString();
+      } else if (name.equals("root")) {
+        // The "root file" is the OBJ. It's the biggest file and is parsed first, so we download
+        // it first.
+        files.add(readDataFile(reader, AsyncFileDownloader.PRIORITY_HIGH));
+      } else if (name.equals("resources")) {
+        // The "resource files" are the MTL file and textures.
+        reader.beginArray();
+        while (reader.hasNext()) {
+          AsyncFileDownloader.Entry file =
+              readDataFile(reader, AsyncFileDownloader.PRIORITY_NORMAL);
+          // For this example, we only care about OBJ and MTL files (not textures).
+          String path = file.fileName.toLowerCase();
+          if (path.endsWith(".obj") || path.endsWith(".mtl")) files.add(file);
         }
-        processDataFiles();
+        reader.endArray();
+      } else {
+        reader.skipValue();
       }
-    });
+      // Once we know it's the OBJ format, request the files parsed so far.
+      if ("OBJ".equals(formatType)) requestDataFiles(files, downloader);
+    }
+    reader.endObject();
+    return "OBJ".equals(formatType);
+  }
+
+  // Reads a data file of a format: its path and URL.
+  private static AsyncFileDownloader.Entry readDataFile(JsonReader reader, int priority)
+      throws IOException {
+    String path = null;
+    String url = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("relativePath")) {
+        path = reader.nextString();
+      } else if (name.equals("url")) {
+        url = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (path == null || url == null) throw new IOException("Data file without a path or URL.");
+    return new AsyncFileDownloader.Entry(path, url, priority, -1);
+  }
+
+  // Starts downloading the given data files, and clears the list.
+  private static void requestDataFiles(ArrayList<AsyncFileDownloader.Entry> files,
+      AsyncFileDownloader downloader) {
+    if (!files.isEmpty()) PolyApi.SetDataFileUrl(files.get(0).url);
+    for (AsyncFileDownloader.Entry file : files) {
+      Log.d(TAG, "Requesting " + file.fileName);
+      downloader.add(file.fileName, file.url, file.priority, file.expectedSize);
+    }
+    files.clear();
+  }
+
+  // Closes the reader, ignoring errors: it only reads from memory.
+  private static void closeQuietly(JsonReader reader) {
+    try {
+      reader.close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
   }
 
   // NOTE: this runs on the background thread.
@@ -236,6 +427,17 @@ public class MainActivity extends Activity {
       // Now let's generate the raw buffers that the GL thread will use for rendering.
       RawObject rawObject = RawObject.convertObjAndMtl(objGeometry, mtlLibrary, translation, scale);
 
+      // Split the object into clusters, so the renderer can skip the parts that are off-screen
+      // or facing away. This reorders the triangles, so it must be done before uploading.
+      rawObject.clusters =
+          MeshClusters.build(rawObject, MeshClusters.DEFAULT_TRIANGLES_PER_CLUSTER);
+      Log.d(TAG, "Partitioned object into " + rawObject.clusters.getClusterCount() + " clusters.");
+
+      // Generate simplified versions of the object, for the renderer to draw when the object is
+      // small on screen. The clusters only cover the full detail version.
+      rawObject.lods = MeshLods.build(rawObject, MeshLods.DEFAULT_MAX_LEVELS);
+      Log.d(TAG, "Generated " + rawObject.lods.getLevelCount() + " levels of detail.");
+
       // Hand it over to the GL thread for rendering.
       glView.getRenderer().setRawObjectToRender(rawObject);
 
@@ -257,7 +459,7 @@ public class MainActivity extends Activity {
     // NOTE: because this is a simple sample, we don't have any real error handling logic
     // other than just printing the error. In an actual app, this is where you would take
     // appropriate action according to your app's use case. You could, for example, surface
-    // the error to the user or retry the request later.
+    // the error to the user. (Transient errors were already retried, see RetryPolicy.)
     Log.e(TAG, "Request failed. Status code " + statusCode + ", message: " + message +
         ((exception != null) ? ", exception: " + exception : ""));
     if (exception != null) exception.printStackTrace();
@@ -269,8 +471,24 @@ public class MainActivity extends Activity {
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        statusText.setText(statusMessage);
+        setStatusMessage(statusMessage);
       }
     });
   }
+
+  // Sets the status message. Must be called on the main thread.
+  private void setStatusMessage(String message) {
+    statusMessage = message;
+    updateStatusText();
+  }
+
+  // Shows the status message, followed by the profiler's statistics if the overlay is enabled.
+  private void updateStatusText() {
+    if (SHOW_PROFILER_OVERLAY) {
+      FrameProfiler frameProfiler = glView.getRenderer().getFrameProfiler();
+      statusText.setText(statusMessage + "\n" + frameProfiler.getSummary());
+    } else {
+      statusText.setText(statusMessage);
+    }
+  }
 }
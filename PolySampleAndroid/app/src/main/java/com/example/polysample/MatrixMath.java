@@ -0,0 +1,409 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+/**
+ * 4x4 matrix and vector math for the render loop, in plain Java.
+ *
+ * Matrices and vectors are stored in float arrays at a given offset, in the same layout as
+ * android.opengl.Matrix (column-major: element (row, col) is at offset + 4 * col + row), and the
+ * methods compute the same results as their android.opengl.Matrix counterparts. Unlike those,
+ * these don't depend on Android (so they run on any JVM, e.g. in tests and benchmarks) and never
+ * allocate.
+ *
+ * The code is written out element by element, with operands loaded into locals first: there are
+ * no inner loops or temporary arrays for the JIT to see through, and the result may usually be
+ * the same array region as an operand.
+ *
+ * All methods are thread-safe, as long as the arrays aren't modified concurrently.
+ */
+public final class MatrixMath {
+  /** Number of floats in a 4x4 matrix. */
+  public static final int MATRIX_SIZE = 16;
+
+  private MatrixMath() {}
+
+  /** Sets m to the identity matrix. */
+  public static void setIdentity(float[] m, int offset) {
+    m[offset] = 1;
+    m[offset + 1] = 0;
+    m[offset + 2] = 0;
+    m[offset + 3] = 0;
+    m[offset + 4] = 0;
+    m[offset + 5] = 1;
+    m[offset + 6] = 0;
+    m[offset + 7] = 0;
+    m[offset + 8] = 0;
+    m[offset + 9] = 0;
+    m[offset + 10] = 1;
+    m[offset + 11] = 0;
+    m[offset + 12] = 0;
+    m[offset + 13] = 0;
+    m[offset + 14] = 0;
+    m[offset + 15] = 1;
+  }
+
+  /**
+   * Sets m to a rotation of the given angle (in degrees) about the given axis, which doesn't
+   * need to be normalized. Same as Matrix.setRotateM.
+   */
+  public static void setRotate(float[] m, int offset, float angleDegrees, float x, float y,
+      float z) {
+    float angle = (float) Math.toRadians(angleDegrees);
+    float s = (float) Math.sin(angle);
+    float c = (float) Math.cos(angle);
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    if (length != 1) {
+      float scale = 1 / length;
+      x *= scale;
+      y *= scale;
+      z *= scale;
+    }
+    float nc = 1 - c;
+    float xy = x * y;
+    float yz = y * z;
+    float zx = z * x;
+    float xs = x * s;
+    float ys = y * s;
+    float zs = z * s;
+    m[offset] = x * x * nc + c;
+    m[offset + 1] = xy * nc + zs;
+    m[offset + 2] = zx * nc - ys;
+    m[offset + 3] = 0;
+    m[offset + 4] = xy * nc - zs;
+    m[offset + 5] = y * y * nc + c;
+    m[offset + 6] = yz * nc + xs;
+    m[offset + 7] = 0;
+    m[offset + 8] = zx * nc + ys;
+    m[offset + 9] = yz * nc - xs;
+    m[offset + 10] = z * z * nc + c;
+    m[offset + 11] = 0;
+    m[offset + 12] = 0;
+    m[offset + 13] = 0;
+    m[offset + 14] = 0;
+    m[offset + 15] = 1;
+  }
+
+  /**
+   * Sets m to a view matrix for a camera at eye, looking at center, with the given up
+   * direction. Same as Matrix.setLookAtM.
+   */
+  public static void setLookAt(float[] m, int offset, float eyeX, float eyeY, float eyeZ,
+      float centerX, float centerY, float centerZ, float upX, float upY, float upZ) {
+    // Forward direction.
+    float fx = centerX - eyeX;
+    float fy = centerY - eyeY;
+    float fz = centerZ - eyeZ;
+    float scale = 1 / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+    fx *= scale;
+    fy *= scale;
+    fz *= scale;
+
+    // Side direction: forward x up.
+    float sx = fy * upZ - fz * upY;
+    float sy = fz * upX - fx * upZ;
+    float sz = fx * upY - fy * upX;
+    scale = 1 / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+    sx *= scale;
+    sy *= scale;
+    sz *= scale;
+
+    // Actual up direction: side x forward.
+    float ux = sy * fz - sz * fy;
+    float uy = sz * fx - sx * fz;
+    float uz = sx * fy - sy * fx;
+
+    m[offset] = sx;
+    m[offset + 1] = ux;
+    m[offset + 2] = -fx;
+    m[offset + 3] = 0;
+    m[offset + 4] = sy;
+    m[offset + 5] = uy;
+    m[offset + 6] = -fy;
+    m[offset + 7] = 0;
+    m[offset + 8] = sz;
+    m[offset + 9] = uz;
+    m[offset + 10] = -fz;
+    m[offset + 11] = 0;
+    // Translation by -eye, in the rotated frame.
+    m[offset + 12] = -(sx * eyeX + sy * eyeY + sz * eyeZ);
+    m[offset + 13] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+    m[offset + 14] = fx * eyeX + fy * eyeY + fz * eyeZ;
+    m[offset + 15] = 1;
+  }
+
+  /**
+   * Sets m to a perspective projection matrix. Same as Matrix.perspectiveM.
+   * @param fovY Vertical field of view, in degrees.
+   * @param aspect Aspect ratio (width / height) of the viewport.
+   * @param zNear Distance to the near clipping plane.
+   * @param zFar Distance to the far clipping plane.
+   */
+  public static void perspective(float[] m, int offset, float fovY, float aspect, float zNear,
+      float zFar) {
+    float f = 1.0f / (float) Math.tan(fovY * (Math.PI / 360.0));
+    float rangeReciprocal = 1.0f / (zNear - zFar);
+    m[offset] = f / aspect;
+    m[offset + 1] = 0;
+    m[offset + 2] = 0;
+    m[offset + 3] = 0;
+    m[offset + 4] = 0;
+    m[offset + 5] = f;
+    m[offset + 6] = 0;
+    m[offset + 7] = 0;
+    m[offset + 8] = 0;
+    m[offset + 9] = 0;
+    m[offset + 10] = (zFar + zNear) * rangeReciprocal;
+    m[offset + 11] = -1;
+    m[offset + 12] = 0;
+    m[offset + 13] = 0;
+    m[offset + 14] = 2.0f * zFar * zNear * rangeReciprocal;
+    m[offset + 15] = 0;
+  }
+
+  /**
+   * Multiplies m in place by a translation (m = m * T). Same as the in-place form of
+   * Matrix.translateM.
+   */
+  public static void translate(float[] m, int offset, float x, float y, float z) {
+    m[offset + 12] += m[offset] * x + m[offset + 4] * y + m[offset + 8] * z;
+    m[offset + 13] += m[offset + 1] * x + m[offset + 5] * y + m[offset + 9] * z;
+    m[offset + 14] += m[offset + 2] * x + m[offset + 6] * y + m[offset + 10] * z;
+    m[offset + 15] += m[offset + 3] * x + m[offset + 7] * y + m[offset + 11] * z;
+  }
+
+  /** Multiplies m in place by a scale (m = m * S). Same as the in-place form of Matrix.scaleM. */
+  public static void scale(float[] m, int offset, float x, float y, float z) {
+    m[offset] *= x;
+    m[offset + 1] *= x;
+    m[offset + 2] *= x;
+    m[offset + 3] *= x;
+    m[offset + 4] *= y;
+    m[offset + 5] *= y;
+    m[offset + 6] *= y;
+    m[offset + 7] *= y;
+    m[offset + 8] *= z;
+    m[offset + 9] *= z;
+    m[offset + 10] *= z;
+    m[offset + 11] *= z;
+  }
+
+  /**
+   * Computes result = lhs * rhs. Same as Matrix.multiplyMM, except that result may be the same
+   * as lhs or rhs.
+   */
+  public static void multiplyMM(float[] result, int resultOffset, float[] lhs, int lhsOffset,
+      float[] rhs, int rhsOffset) {
+    float l00 = lhs[lhsOffset];
+    float l10 = lhs[lhsOffset + 1];
+    float l20 = lhs[lhsOffset + 2];
+    float l30 = lhs[lhsOffset + 3];
+    float l01 = lhs[lhsOffset + 4];
+    float l11 = lhs[lhsOffset + 5];
+    float l21 = lhs[lhsOffset + 6];
+    float l31 = lhs[lhsOffset + 7];
+    float l02 = lhs[lhsOffset + 8];
+    float l12 = lhs[lhsOffset + 9];
+    float l22 = lhs[lhsOffset + 10];
+    float l32 = lhs[lhsOffset + 11];
+    float l03 = lhs[lhsOffset + 12];
+    float l13 = lhs[lhsOffset + 13];
+    float l23 = lhs[lhsOffset + 14];
+    float l33 = lhs[lhsOffset + 15];
+    // Each column of the result only depends on the same column of rhs, so writing it after
+    // reading that column is safe even if result is rhs.
+    float r0 = rhs[rhsOffset];
+    float r1 = rhs[rhsOffset + 1];
+    float r2 = rhs[rhsOffset + 2];
+    float r3 = rhs[rhsOffset + 3];
+    result[resultOffset] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+    result[resultOffset + 1] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+    result[resultOffset + 2] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+    result[resultOffset + 3] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+
+    r0 = rhs[rhsOffset + 4];
+    r1 = rhs[rhsOffset + 5];
+    r2 = rhs[rhsOffset + 6];
+    r3 = rhs[rhsOffset + 7];
+    result[resultOffset + 4] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+    result[resultOffset + 5] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+    result[resultOffset + 6] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+    result[resultOffset + 7] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+
+    r0 = rhs[rhsOffset + 8];
+    r1 = rhs[rhsOffset + 9];
+    r2 = rhs[rhsOffset + 10];
+    r3 = rhs[rhsOffset + 11];
+    result[resultOffset + 8] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+    result[resultOffset + 9] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+    result[resultOffset + 10] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+    result[resultOffset + 11] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+
+    r0 = rhs[rhsOffset + 12];
+    r1 = rhs[rhsOffset + 13];
+    r2 = rhs[rhsOffset + 14];
+    r3 = rhs[rhsOffset + 15];
+    result[resultOffset + 12] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+    result[resultOffset + 13] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+    result[resultOffset + 14] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+    result[resultOffset + 15] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+  }
+
+  /**
+   * Multiplies many matrices by the same matrix: result[i] = lhs[i] * rhs, for count matrices
+   * stored one after the other in lhs and result (e.g. the transforms of many instances, by a
+   * common model matrix). Faster than calling {@link #multiplyMM} count times, since rhs is
+   * only loaded once. result may be the same as lhs, but not overlap rhs.
+   */
+  public static void multiplyMMBatch(float[] result, int resultOffset, float[] lhs,
+      int lhsOffset, float[] rhs, int rhsOffset, int count) {
+    float r00 = rhs[rhsOffset];
+    float r10 = rhs[rhsOffset + 1];
+    float r20 = rhs[rhsOffset + 2];
+    float r30 = rhs[rhsOffset + 3];
+    float r01 = rhs[rhsOffset + 4];
+    float r11 = rhs[rhsOffset + 5];
+    float r21 = rhs[rhsOffset + 6];
+    float r31 = rhs[rhsOffset + 7];
+    float r02 = rhs[rhsOffset + 8];
+    float r12 = rhs[rhsOffset + 9];
+    float r22 = rhs[rhsOffset + 10];
+    float r32 = rhs[rhsOffset + 11];
+    float r03 = rhs[rhsOffset + 12];
+    float r13 = rhs[rhsOffset + 13];
+    float r23 = rhs[rhsOffset + 14];
+    float r33 = rhs[rhsOffset + 15];
+    int end = lhsOffset + count * MATRIX_SIZE;
+    int out = resultOffset;
+    for (int in = lhsOffset; in < end; in += MATRIX_SIZE, out += MATRIX_SIZE) {
+      // Each row of the result only depends on the same row of lhs, so writing it after reading
+      // that row is safe even if result is lhs.
+      float l0 = lhs[in];
+      float l1 = lhs[in + 4];
+      float l2 = lhs[in + 8];
+      float l3 = lhs[in + 12];
+      result[out] = l0 * r00 + l1 * r10 + l2 * r20 + l3 * r30;
+      result[out + 4] = l0 * r01 + l1 * r11 + l2 * r21 + l3 * r31;
+      result[out + 8] = l0 * r02 + l1 * r12 + l2 * r22 + l3 * r32;
+      result[out + 12] = l0 * r03 + l1 * r13 + l2 * r23 + l3 * r33;
+
+      l0 = lhs[in + 1];
+      l1 = lhs[in + 5];
+      l2 = lhs[in + 9];
+      l3 = lhs[in + 13];
+      result[out + 1] = l0 * r00 + l1 * r10 + l2 * r20 + l3 * r30;
+      result[out + 5] = l0 * r01 + l1 * r11 + l2 * r21 + l3 * r31;
+      result[out + 9] = l0 * r02 + l1 * r12 + l2 * r22 + l3 * r32;
+      result[out + 13] = l0 * r03 + l1 * r13 + l2 * r23 + l3 * r33;
+
+      l0 = lhs[in + 2];
+      l1 = lhs[in + 6];
+      l2 = lhs[in + 10];
+      l3 = lhs[in + 14];
+      result[out + 2] = l0 * r00 + l1 * r10 + l2 * r20 + l3 * r30;
+      result[out + 6] = l0 * r01 + l1 * r11 + l2 * r21 + l3 * r31;
+      result[out + 10] = l0 * r02 + l1 * r12 + l2 * r22 + l3 * r32;
+      result[out + 14] = l0 * r03 + l1 * r13 + l2 * r23 + l3 * r33;
+
+      l0 = lhs[in + 3];
+      l1 = lhs[in + 7];
+      l2 = lhs[in + 11];
+      l3 = lhs[in + 15];
+      result[out + 3] = l0 * r00 + l1 * r10 + l2 * r20 + l3 * r30;
+      result[out + 7] = l0 * r01 + l1 * r11 + l2 * r21 + l3 * r31;
+      result[out + 11] = l0 * r02 + l1 * r12 + l2 * r22 + l3 * r32;
+      result[out + 15] = l0 * r03 + l1 * r13 + l2 * r23 + l3 * r33;
+    }
+  }
+
+  /**
+   * Computes result = lhs * rhs, where lhs is a matrix and rhs a 4 component vector. Same as
+   * Matrix.multiplyMV, except that result may be the same as rhs.
+   */
+  public static void multiplyMV(float[] result, int resultOffset, float[] lhs, int lhsOffset,
+      float[] rhs, int rhsOffset) {
+    float x = rhs[rhsOffset];
+    float y = rhs[rhsOffset + 1];
+    float z = rhs[rhsOffset + 2];
+    float w = rhs[rhsOffset + 3];
+    result[resultOffset] = lhs[lhsOffset] * x + lhs[lhsOffset + 4] * y +
+        lhs[lhsOffset + 8] * z + lhs[lhsOffset + 12] * w;
+    result[resultOffset + 1] = lhs[lhsOffset + 1] * x + lhs[lhsOffset + 5] * y +
+        lhs[lhsOffset + 9] * z + lhs[lhsOffset + 13] * w;
+    result[resultOffset + 2] = lhs[lhsOffset + 2] * x + lhs[lhsOffset + 6] * y +
+        lhs[lhsOffset + 10] * z + lhs[lhsOffset + 14] * w;
+    result[resultOffset + 3] = lhs[lhsOffset + 3] * x + lhs[lhsOffset + 7] * y +
+        lhs[lhsOffset + 11] * z + lhs[lhsOffset + 15] * w;
+  }
+
+  /**
+   * Computes the inverse of m. Same as Matrix.invertM, except that inv may be the same as m.
+   * @return false if m is not invertible (inv is then left unchanged).
+   */
+  public static boolean invert(float[] inv, int invOffset, float[] m, int mOffset) {
+    float m00 = m[mOffset];
+    float m10 = m[mOffset + 1];
+    float m20 = m[mOffset + 2];
+    float m30 = m[mOffset + 3];
+    float m01 = m[mOffset + 4];
+    float m11 = m[mOffset + 5];
+    float m21 = m[mOffset + 6];
+    float m31 = m[mOffset + 7];
+    float m02 = m[mOffset + 8];
+    float m12 = m[mOffset + 9];
+    float m22 = m[mOffset + 10];
+    float m32 = m[mOffset + 11];
+    float m03 = m[mOffset + 12];
+    float m13 = m[mOffset + 13];
+    float m23 = m[mOffset + 14];
+    float m33 = m[mOffset + 15];
+
+    // 2x2 determinants of the top two rows and of the bottom two rows.
+    float a0 = m00 * m11 - m01 * m10;
+    float a1 = m00 * m12 - m02 * m10;
+    float a2 = m00 * m13 - m03 * m10;
+    float a3 = m01 * m12 - m02 * m11;
+    float a4 = m01 * m13 - m03 * m11;
+    float a5 = m02 * m13 - m03 * m12;
+    float b0 = m20 * m31 - m21 * m30;
+    float b1 = m20 * m32 - m22 * m30;
+    float b2 = m20 * m33 - m23 * m30;
+    float b3 = m21 * m32 - m22 * m31;
+    float b4 = m21 * m33 - m23 * m31;
+    float b5 = m22 * m33 - m23 * m32;
+
+    float det = a0 * b5 - a1 * b4 + a2 * b3 + a3 * b2 - a4 * b1 + a5 * b0;
+    if (det == 0.0f) return false;
+    float invDet = 1.0f / det;
+
+    inv[invOffset] = (m11 * b5 - m12 * b4 + m13 * b3) * invDet;
+    inv[invOffset + 1] = (-m10 * b5 + m12 * b2 - m13 * b1) * invDet;
+    inv[invOffset + 2] = (m10 * b4 - m11 * b2 + m13 * b0) * invDet;
+    inv[invOffset + 3] = (-m10 * b3 + m11 * b1 - m12 * b0) * invDet;
+    inv[invOffset + 4] = (-m01 * b5 + m02 * b4 - m03 * b3) * invDet;
+    inv[invOffset + 5] = (m00 * b5 - m02 * b2 + m03 * b1) * invDet;
+    inv[invOffset + 6] = (-m00 * b4 + m01 * b2 - m03 * b0) * invDet;
+    inv[invOffset + 7] = (m00 * b3 - m01 * b1 + m02 * b0) * invDet;
+    inv[invOffset + 8] = (m31 * a5 - m32 * a4 + m33 * a3) * invDet;
+    inv[invOffset + 9] = (-m30 * a5 + m32 * a2 - m33 * a1) * invDet;
+    inv[invOffset + 10] = (m30 * a4 - m31 * a2 + m33 * a0) * invDet;
+    inv[invOffset + 11] = (-m30 * a3 + m31 * a1 - m32 * a0) * invDet;
+    inv[invOffset + 12] = (-m21 * a5 + m22 * a4 - m23 * a3) * invDet;
+    inv[invOffset + 13] = (m20 * a5 - m22 * a2 + m23 * a1) * invDet;
+    inv[invOffset + 14] = (-m20 * a4 + m21 * a2 - m23 * a0) * invDet;
+    inv[invOffset + 15] = (m20 * a3 - m21 * a1 + m22 * a0) * invDet;
+    return true;
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.Arrays;
+
+/**
+ * Splits a mesh into clusters: small groups of nearby triangles that can be culled separately.
+ *
+ * A big mesh is normally drawn with a single glDrawElements call, even if only a small part of
+ * it is on screen. Instead, we reorder its triangles so that each cluster of (about) 128 nearby
+ * triangles is a contiguous range of the index buffer, and keep the bounds of each cluster. At
+ * render time, only the ranges of the clusters that pass the culling tests are drawn (adjacent
+ * ranges are merged, see {@link IndexRanges}).
+ *
+ * Each cluster also has a normal cone: an axis and a spread that contain the normals of all of
+ * its triangles. If the camera sees all of those normals from behind, the whole cluster is
+ * back-facing, and can be skipped when back faces are culled.
+ *
+ * Triangles are grouped by sorting them along a Morton (Z-order) curve through their centroids,
+ * which keeps triangles that are close in the curve close in space.
+ */
+public class MeshClusters {
+  /** Default number of triangles per cluster. */
+  public static final int DEFAULT_TRIANGLES_PER_CLUSTER = 128;
+
+  // Number of bits per axis of the Morton codes (3 axes must fit in an int).
+  private static final int MORTON_BITS = 10;
+
+  // Number of clusters.
+  private final int clusterCount;
+
+  // First index (in the mesh's index buffer) and number of indices of each cluster.
+  private final int[] firstIndices;
+  private final int[] indexCounts;
+
+  // Axis-aligned bounding box of each cluster, 6 floats each (min x, y, z, max x, y, z).
+  private final float[] boxes;
+
+  // Bounding sphere of each cluster, 4 floats each (center x, y, z, radius).
+  private final float[] spheres;
+
+  // Normal cone of each cluster: axis (3 floats each, normalized) and cutoff (sine of the
+  // cone's half-angle). Clusters whose normals point in all directions have no cone.
+  private final float[] coneAxes;
+  private final float[] coneCutoffs;
+  private final boolean[] hasCone;
+
+  // Temporary bounding box, for culling.
+  private final float[] tmpMin = new float[3];
+  private final float[] tmpMax = new float[3];
+
+  private MeshClusters(int clusterCount) {
+    this.clusterCount = clusterCount;
+    firstIndices = new int[clusterCount];
+    indexCounts = new int[clusterCount];
+    boxes = new float[clusterCount * 6];
+    spheres = new float[clusterCount * 4];
+    coneAxes = new float[clusterCount * 3];
+    coneCutoffs = new float[clusterCount];
+    hasCone = new boolean[clusterCount];
+  }
+
+  /**
+   * Partitions the given object into clusters. This reorders the triangles in the object's
+   * index buffer (so it must be done before the object is uploaded), and must not be done on the
+   * GL thread for big objects, since it takes a while.
+   * @param rawObject The object to partition. Its bounds must have been computed.
+   * @param trianglesPerCluster The number of triangles per cluster (the last cluster may have
+   *     fewer).
+   * @return The clusters.
+   */
+  public static MeshClusters build(RawObject rawObject, int trianglesPerCluster) {
+    int triangleCount = rawObject.indexCount / 3;
+    int[] indices = new int[triangleCount * 3];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = rawObject.indices.get(i) & 0xffff;
+    }
+    float[] positions = new float[rawObject.vertexCount * MyGLUtils.COORDS_PER_VERTEX];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = rawObject.positions.get(i);
+    }
+
+    // Sort the triangles by the Morton code of their centroids. Each key has the code in the
+    // high 32 bits and the triangle number in the low 32 bits, so we can sort primitives.
+    long[] keys = new long[triangleCount];
+    float[] min = rawObject.boundsMin;
+    float[] max = rawObject.boundsMax;
+    int cells = 1 << MORTON_BITS;
+    for (int t = 0; t < triangleCount; t++) {
+      int code = 0;
+      for (int axis = 0; axis < 3; axis++) {
+        float centroid = (positions[3 * indices[3 * t] + axis] +
+            positions[3 * indices[3 * t + 1] + axis] +
+            positions[3 * indices[3 * t + 2] + axis]) / 3;
+        float extent = max[axis] - min[axis];
+        int cell = extent > 0 ? (int) ((centroid - min[axis]) / extent * (cells - 1)) : 0;
+        code |= spreadBits(Math.max(0, Math.min(cells - 1, cell))) << axis;
+      }
+      keys[t] = ((long) code << 32) | t;
+    }
+    Arrays.sort(keys);
+
+    // Write the triangles back in sorted order.
+    int[] sorted = new int[indices.length];
+    for (int t = 0; t < triangleCount; t++) {
+      int source = (int) keys[t];
+      sorted[3 * t] = indices[3 * source];
+      sorted[3 * t + 1] = indices[3 * source + 1];
+      sorted[3 * t + 2] = indices[3 * source + 2];
+    }
+    for (int i = 0; i < sorted.length; i++) {
+      rawObject.indices.put(i, (short) sorted[i]);
+    }
+
+    int clusterCount = (triangleCount + trianglesPerCluster - 1) / trianglesPerCluster;
+    MeshClusters clusters = new MeshClusters(clusterCount);
+    for (int c = 0; c < clusterCount; c++) {
+      int firstTriangle = c * trianglesPerCluster;
+      int clusterTriangles = Math.min(trianglesPerCluster, triangleCount - firstTriangle);
+      clusters.firstIndices[c] = 3 * firstTriangle;
+      clusters.indexCounts[c] = 3 * clusterTriangles;
+      clusters.computeBounds(c, positions, sorted);
+      clusters.computeCone(c, positions, sorted);
+    }
+    return clusters;
+  }
+
+  /** Returns the number of clusters. */
+  public int getClusterCount() {
+    return clusterCount;
+  }
+
+  /**
+   * Adds the index ranges of the clusters that may be visible to the given list. The ranges are
+   * relative to the start of the mesh.
+   * @param frustum The view frustum, in the object space of the mesh.
+   * @param eye The camera position in the object space of the mesh (x, y, z), to skip the
+   *     back-facing clusters, or null if back faces are drawn.
+   * @param out The list to add the ranges to.
+   * @return The number of clusters that were added.
+   */
+  public int cull(MyFrustum frustum, float[] eye, IndexRanges out) {
+    int visibleCount = 0;
+    for (int c = 0; c < clusterCount; c++) {
+      if (eye != null && isBackFacing(c, eye)) continue;
+      System.arraycopy(boxes, 6 * c, tmpMin, 0, 3);
+      System.arraycopy(boxes, 6 * c + 3, tmpMax, 0, 3);
+      if (!frustum.intersectsAabb(tmpMin, tmpMax)) continue;
+      out.add(firstIndices[c], indexCounts[c]);
+      ++visibleCount;
+    }
+    return visibleCount;
+  }
+
+  // Returns whether every triangle of the cluster faces away from the given eye position.
+  private boolean isBackFacing(int c, float[] eye) {
+    if (!hasCone[c]) return false;
+    // Vector from the eye to the center of the cluster's bounding sphere.
+    float vx = spheres[4 * c] - eye[0];
+    float vy = spheres[4 * c + 1] - eye[1];
+    float vz = spheres[4 * c + 2] - eye[2];
+    float distance = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+    float dot = vx * coneAxes[3 * c] + vy * coneAxes[3 * c + 1] + vz * coneAxes[3 * c + 2];
+    // The cluster is back-facing if the direction from the eye to any point of the sphere is
+    // within 90 degrees of every normal in the cone (conservative test).
+    return dot >= coneCutoffs[c] * distance + spheres[4 * c + 3];
+  }
+
+  // Computes the bounding box and bounding sphere of the given cluster.
+  private void computeBounds(int c, float[] positions, int[] indices) {
+    int first = firstIndices[c];
+    int end = first + indexCounts[c];
+    float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+    float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+    for (int i = first; i < end; i++) {
+      for (int axis = 0; axis < 3; axis++) {
+        float value = positions[3 * indices[i] + axis];
+        min[axis] = Math.min(min[axis], value);
+        max[axis] = Math.max(max[axis], value);
+      }
+    }
+    float radiusSquared = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      boxes[6 * c + axis] = min[axis];
+      boxes[6 * c + 3 + axis] = max[axis];
+      spheres[4 * c + axis] = (min[axis] + max[axis]) / 2;
+    }
+    // The sphere is centered on the box, but only needs to reach the furthest vertex, which is
+    // usually less than the box's corners.
+    for (int i = first; i < end; i++) {
+      float dx = positions[3 * indices[i]] - spheres[4 * c];
+      float dy = positions[3 * indices[i] + 1] - spheres[4 * c + 1];
+      float dz = positions[3 * indices[i] + 2] - spheres[4 * c + 2];
+      radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+    }
+    spheres[4 * c + 3] = (float) Math.sqrt(radiusSquared);
+  }
+
+  // Computes the normal cone of the given cluster, from the triangles' geometric normals (which
+  // follow the winding order, like GL's face culling does, rather than the vertex normals).
+  private void computeCone(int c, float[] positions, int[] indices) {
+    int first = firstIndices[c];
+    int end = first + indexCounts[c];
+    float[] normals = new float[indexCounts[c]];
+    int normalCount = 0;
+    float ax = 0, ay = 0, az = 0;
+    for (int i = first; i < end; i += 3) {
+      int a = 3 * indices[i];
+      int b = 3 * indices[i + 1];
+      int d = 3 * indices[i + 2];
+      float e1x = positions[b] - positions[a];
+      float e1y = positions[b + 1] - positions[a + 1];
+      float e1z = positions[b + 2] - positions[a + 2];
+      float e2x = positions[d] - positions[a];
+      float e2y = positions[d + 1] - positions[a + 1];
+      float e2z = positions[d + 2] - positions[a + 2];
+      float nx = e1y * e2z - e1z * e2y;
+      float ny = e1z * e2x - e1x * e2z;
+      float nz = e1x * e2y - e1y * e2x;
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      // Degenerate triangles are never drawn, so they don't constrain the cone.
+      if (length == 0) continue;
+      normals[3 * normalCount] = nx / length;
+      normals[3 * normalCount + 1] = ny / length;
+      normals[3 * normalCount + 2] = nz / length;
+      ax += normals[3 * normalCount];
+      ay += normals[3 * normalCount + 1];
+      az += normals[3 * normalCount + 2];
+      ++normalCount;
+    }
+    float axisLength = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+    if (axisLength == 0) return;
+    ax /= axisLength;
+    ay /= axisLength;
+    az /= axisLength;
+    // The cone's half-angle is the largest angle between the axis and a normal.
+    float minDot = 1;
+    for (int n = 0; n < normalCount; n++) {
+      minDot = Math.min(minDot, ax * normals[3 * n] + ay * normals[3 * n + 1] +
+          az * normals[3 * n + 2]);
+    }
+    // If the normals spread over more than a hemisphere, the cluster is never fully back-facing.
+    if (minDot <= 0) return;
+    coneAxes[3 * c] = ax;
+    coneAxes[3 * c + 1] = ay;
+    coneAxes[3 * c + 2] = az;
+    coneCutoffs[c] = (float) Math.sqrt(1 - minDot * minDot);
+    hasCone[c] = true;
+  }
+
+  // Spreads the low 10 bits of the given value so there are 2 zero bits between each of them.
+  private static int spreadBits(int value) {
+    value &= 0x3ff;
+    value = (value | (value << 16)) & 0x030000ff;
+    value = (value | (value << 8)) & 0x0300f00f;
+    value = (value | (value << 4)) & 0x030c30c3;
+    value = (value | (value << 2)) & 0x09249249;
+    return value;
+  }
+}
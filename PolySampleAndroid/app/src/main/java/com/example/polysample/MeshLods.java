@@ -0,0 +1,245 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Levels of detail (LODs) of a mesh: simplified versions to draw when the mesh is small on
+ * screen.
+ *
+ * All levels share the mesh's vertices. Each level is a range of the mesh's index buffer: level 0
+ * is the original triangles, and the simplified levels are appended after them. Each level has a
+ * geometric error: how far (in object space) its surface may be from the original one.
+ *
+ * The simplified levels are made by vertex clustering: the bounding box is divided into a grid,
+ * every vertex is snapped to a representative vertex of its grid cell, and the triangles that
+ * collapse are dropped. Each level uses a grid with half the resolution of the previous one.
+ *
+ * At render time, {@link #selectLevel} picks the coarsest level whose error, projected on
+ * screen, stays under a threshold in pixels.
+ */
+public class MeshLods {
+  /** Default maximum number of levels (including the original). */
+  public static final int DEFAULT_MAX_LEVELS = 4;
+
+  // Number of grid cells along the largest side of the bounding box, for level 1.
+  private static final int FIRST_LEVEL_GRID_RESOLUTION = 64;
+
+  // A level must have at most this fraction of the triangles of the previous level, otherwise
+  // it's not worth having, and we stop.
+  private static final float MIN_REDUCTION = 0.8f;
+
+  // When switching to a coarser level, its projected error must be under this fraction of the
+  // threshold. This keeps the level from flipping back and forth when the error is right at the
+  // threshold (popping).
+  private static final float HYSTERESIS = 0.75f;
+
+  // Number of levels.
+  private final int levelCount;
+
+  // First index (in the mesh's index buffer) and number of indices of each level.
+  private final int[] firstIndices;
+  private final int[] indexCounts;
+
+  // Geometric error of each level, in object space units.
+  private final float[] errors;
+
+  // Bounding sphere of the mesh (center x, y, z and radius), in object space.
+  private final float[] boundingSphere = new float[4];
+
+  private MeshLods(int levelCount) {
+    this.levelCount = levelCount;
+    firstIndices = new int[levelCount];
+    indexCounts = new int[levelCount];
+    errors = new float[levelCount];
+  }
+
+  /**
+   * Generates the simplified levels of the given object and appends their indices to the
+   * object's index buffer (which is replaced by a bigger one). Must be done before the object is
+   * uploaded, and not on the GL thread for big objects, since it takes a while.
+   * @param rawObject The object. Its bounds must have been computed.
+   * @param maxLevels The maximum number of levels, including the original. Fewer levels are
+   *     generated if simplifying further doesn't reduce the triangle count much.
+   * @return The levels.
+   */
+  public static MeshLods build(RawObject rawObject, int maxLevels) {
+    float[] min = rawObject.boundsMin;
+    float[] max = rawObject.boundsMax;
+    float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+    int originalIndexCount = rawObject.indexCount;
+
+    // Generate the levels into temporary arrays, since we don't know their size yet.
+    int[][] levels = new int[maxLevels][];
+    int[] levelIndexCounts = new int[maxLevels];
+    float[] levelErrors = new float[maxLevels];
+    int[] original = new int[originalIndexCount];
+    for (int i = 0; i < originalIndexCount; i++) {
+      original[i] = rawObject.indices.get(i) & 0xffff;
+    }
+    levels[0] = original;
+    levelIndexCounts[0] = originalIndexCount;
+    int levelCount = 1;
+    int resolution = FIRST_LEVEL_GRID_RESOLUTION;
+    while (levelCount < maxLevels && resolution >= 1 && size > 0) {
+      float cellSize = size / resolution;
+      int[] level = new int[originalIndexCount];
+      int count = simplify(rawObject, original, originalIndexCount, cellSize, level);
+      if (count == 0 || count > levelIndexCounts[levelCount - 1] * MIN_REDUCTION) break;
+      levels[levelCount] = level;
+      levelIndexCounts[levelCount] = count;
+      // A vertex moves at most to the other side of its cell.
+      levelErrors[levelCount] = cellSize * (float) Math.sqrt(3);
+      ++levelCount;
+      resolution /= 2;
+    }
+
+    MeshLods lods = new MeshLods(levelCount);
+    int totalIndexCount = 0;
+    for (int l = 0; l < levelCount; l++) {
+      lods.firstIndices[l] = totalIndexCount;
+      lods.indexCounts[l] = levelIndexCounts[l];
+      lods.errors[l] = levelErrors[l];
+      totalIndexCount += levelIndexCounts[l];
+    }
+    for (int axis = 0; axis < 3; axis++) {
+      lods.boundingSphere[axis] = (min[axis] + max[axis]) / 2;
+    }
+    float dx = max[0] - min[0];
+    float dy = max[1] - min[1];
+    float dz = max[2] - min[2];
+    lods.boundingSphere[3] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
+
+    if (levelCount > 1) {
+      // Replace the index buffer with one that has room for all levels. Level 0 stays where it
+      // was, so anything that refers to ranges of the original indices (like clusters) still
+      // works.
+      ShortBuffer indices = ByteBuffer
+          .allocateDirect(MyGLUtils.SHORT_SIZE * totalIndexCount)
+          .order(ByteOrder.nativeOrder())
+          .asShortBuffer();
+      for (int l = 0; l < levelCount; l++) {
+        for (int i = 0; i < levelIndexCounts[l]; i++) {
+          indices.put((short) levels[l][i]);
+        }
+      }
+      indices.position(0);
+      rawObject.indices = indices;
+      rawObject.indexCount = totalIndexCount;
+    }
+    return lods;
+  }
+
+  /** Returns the number of levels (at least 1: the original). */
+  public int getLevelCount() {
+    return levelCount;
+  }
+
+  /** Returns the first index of the given level in the mesh's index buffer. */
+  public int getFirstIndex(int level) {
+    return firstIndices[level];
+  }
+
+  /** Returns the number of indices of the given level. */
+  public int getIndexCount(int level) {
+    return indexCounts[level];
+  }
+
+  /** Returns the geometric error of the given level, in object space units (0 for level 0). */
+  public float getError(int level) {
+    return errors[level];
+  }
+
+  /**
+   * Selects the level to draw.
+   * @param eye The camera position, in the object space of the mesh (x, y, z).
+   * @param pixelsPerUnit Size in pixels of one object space unit seen at a distance of 1 (this
+   *     depends on the projection and the viewport: viewport height / (2 * tan(fovY / 2))).
+   * @param maxErrorPixels How far (in pixels) the drawn surface may be from the original one.
+   * @param currentLevel The level drawn in the previous frame, for hysteresis (0 if none).
+   * @return The level to draw.
+   */
+  public int selectLevel(float[] eye, float pixelsPerUnit, float maxErrorPixels,
+      int currentLevel) {
+    float dx = boundingSphere[0] - eye[0];
+    float dy = boundingSphere[1] - eye[1];
+    float dz = boundingSphere[2] - eye[2];
+    // Distance to the closest point of the bounding sphere: no part of the mesh is closer, so
+    // the error is never bigger on screen than what we compute.
+    float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - boundingSphere[3];
+    // The camera is inside the bounding sphere.
+    if (distance <= 0) return 0;
+    float pixelsPerError = pixelsPerUnit / distance;
+    // Coarsest level that's within the threshold (the levels' errors only increase).
+    int level = 0;
+    while (level + 1 < levelCount && errors[level + 1] * pixelsPerError <= maxErrorPixels) {
+      ++level;
+    }
+    // Only go coarser than the current level if we are well within the threshold.
+    while (level > currentLevel &&
+        errors[level] * pixelsPerError > maxErrorPixels * HYSTERESIS) {
+      --level;
+    }
+    return level;
+  }
+
+  // Makes a simplified version of the given triangles, snapping each vertex to the first vertex
+  // found in its grid cell. Writes the indices to 'out' and returns how many there are.
+  private static int simplify(RawObject rawObject, int[] indices, int indexCount, float cellSize,
+      int[] out) {
+    float[] min = rawObject.boundsMin;
+    // Representative vertex of each grid cell, by cell.
+    HashMap<Long, Integer> representatives = new HashMap<>();
+    // Representative vertex of each vertex (-1 if not computed yet).
+    int[] remap = new int[rawObject.vertexCount];
+    Arrays.fill(remap, -1);
+    int count = 0;
+    for (int i = 0; i < indexCount; i += 3) {
+      int a = remap(rawObject, indices[i], min, cellSize, representatives, remap);
+      int b = remap(rawObject, indices[i + 1], min, cellSize, representatives, remap);
+      int c = remap(rawObject, indices[i + 2], min, cellSize, representatives, remap);
+      // Triangles with two corners in the same cell collapse into a line or point.
+      if (a == b || b == c || a == c) continue;
+      out[count++] = a;
+      out[count++] = b;
+      out[count++] = c;
+    }
+    return count;
+  }
+
+  // Returns the representative vertex of the given vertex.
+  private static int remap(RawObject rawObject, int vertex, float[] min, float cellSize,
+      HashMap<Long, Integer> representatives, int[] remap) {
+    if (remap[vertex] >= 0) return remap[vertex];
+    int base = vertex * MyGLUtils.COORDS_PER_VERTEX;
+    // Cell coordinates are below 2^20 for all the resolutions we use.
+    long x = (long) ((rawObject.positions.get(base) - min[0]) / cellSize);
+    long y = (long) ((rawObject.positions.get(base + 1) - min[1]) / cellSize);
+    long z = (long) ((rawObject.positions.get(base + 2) - min[2]) / cellSize);
+    Long cell = (x << 40) | (y << 20) | z;
+    Integer representative = representatives.get(cell);
+    if (representative == null) {
+      representative = vertex;
+      representatives.put(cell, representative);
+    }
+    remap[vertex] = representative;
+    return representative;
+  }
+}
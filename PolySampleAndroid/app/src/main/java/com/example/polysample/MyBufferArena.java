@@ -0,0 +1,318 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Allocates meshes inside a few big GPU buffers ("pages") instead of giving each mesh its own.
+ *
+ * Each page is a {@link MyVertexBuffers} with room for many meshes. A mesh gets a range of
+ * vertices and a range of indices in a page. OpenGL ES has no glDrawElements variant that adds a
+ * base vertex to the indices (before ES 3.2), so the mesh's indices are rebased when uploaded:
+ * the offset of its vertices in the page is added to each of them. Since indices are unsigned
+ * shorts, a page holds at most 65536 vertices.
+ *
+ * Freed ranges go back to a free list and are reused by later allocations. Freeing many meshes
+ * leaves holes; {@link #defragment()} packs the meshes of each page together again.
+ *
+ * Meshes that don't fit in a page get their own buffers, as usual.
+ *
+ * Must be used on the GL thread.
+ */
+public class MyBufferArena {
+  private static final String TAG = "PolySample";
+
+  /** Maximum number of vertices a page can hold (the indices are unsigned shorts). */
+  public static final int MAX_VERTICES_PER_PAGE = 65536;
+
+  // The GL state cache, and the GL backend.
+  private final MyGLStateCache stateCache;
+  private final MyGL gl;
+
+  // Number of vertices and indices each page can hold.
+  private final int verticesPerPage;
+  private final int indicesPerPage;
+
+  // The pages.
+  private final ArrayList<Page> pages = new ArrayList<>();
+
+  // Where each mesh allocated in a page lives.
+  private final HashMap<MyMesh, Allocation> allocations = new HashMap<>();
+
+  // The meshes that got their own buffers, and the memory those take, in bytes.
+  private final HashMap<MyMesh, Long> dedicatedMeshes = new HashMap<>();
+  private long dedicatedBytes;
+
+  /**
+   * Creates an arena. Pages are created as needed.
+   * @param stateCache The GL state cache.
+   * @param verticesPerPage Number of vertices each page can hold (at most
+   *     {@link #MAX_VERTICES_PER_PAGE}).
+   * @param indicesPerPage Number of indices each page can hold.
+   */
+  public MyBufferArena(MyGLStateCache stateCache, int verticesPerPage, int indicesPerPage) {
+    if (verticesPerPage > MAX_VERTICES_PER_PAGE) {
+      throw new IllegalArgumentException("Pages can have at most " + MAX_VERTICES_PER_PAGE +
+          " vertices.");
+    }
+    this.stateCache = stateCache;
+    gl = stateCache.getGl();
+    this.verticesPerPage = verticesPerPage;
+    this.indicesPerPage = indicesPerPage;
+  }
+
+  /**
+   * Uploads the given raw object and returns the mesh. The mesh lives in one of the arena's
+   * pages if it fits, otherwise it gets its own buffers.
+   */
+  public MyMesh allocate(RawObject rawObject) {
+    if (rawObject.vertexCount > verticesPerPage || rawObject.indexCount > indicesPerPage) {
+      // Too big for a page.
+      MyMesh mesh = new MyMesh(rawObject, stateCache);
+      long sizeBytes = MyVertexBuffers.computeSizeBytes(rawObject.vertexCount,
+          rawObject.indexCount);
+      dedicatedMeshes.put(mesh, sizeBytes);
+      dedicatedBytes += sizeBytes;
+      return mesh;
+    }
+    for (Page page : pages) {
+      MyMesh mesh = tryAllocateInPage(page, rawObject);
+      if (mesh != null) return mesh;
+    }
+    Page page = new Page(new MyVertexBuffers(verticesPerPage, indicesPerPage, stateCache),
+        verticesPerPage, indicesPerPage);
+    pages.add(page);
+    Log.d(TAG, "Buffer arena: created page #" + pages.size());
+    return tryAllocateInPage(page, rawObject);
+  }
+
+  /** Frees the given mesh (which must have been returned by {@link #allocate}). */
+  public void free(MyMesh mesh) {
+    if (mesh.ownsBuffers()) {
+      Long sizeBytes = dedicatedMeshes.remove(mesh);
+      if (sizeBytes != null) dedicatedBytes -= sizeBytes;
+      mesh.release(stateCache);
+      return;
+    }
+    Allocation allocation = allocations.remove(mesh);
+    if (allocation == null) {
+      throw new IllegalArgumentException("Mesh was not allocated in this arena.");
+    }
+    Page page = allocation.page;
+    page.allocations.remove(allocation);
+    page.vertexFreeList.free(allocation.firstVertex, allocation.rawObject.vertexCount);
+    page.indexFreeList.free(allocation.mesh.getFirstIndex(), allocation.rawObject.indexCount);
+    if (page.allocations.isEmpty()) {
+      // Give the memory of empty pages back to the driver.
+      page.buffers.release(stateCache);
+      pages.remove(page);
+      Log.d(TAG, "Buffer arena: released empty page, " + pages.size() + " left.");
+    }
+  }
+
+  /**
+   * Packs the meshes of each fragmented page together at the start of the page, so that the free
+   * space becomes a single block again. Meshes keep working (they are relocated in place).
+   */
+  public void defragment() {
+    for (Page page : pages) {
+      if (page.vertexFreeList.getBlockCount() <= 1 && page.indexFreeList.getBlockCount() <= 1) {
+        // Already contiguous.
+        continue;
+      }
+      page.vertexFreeList.reset(page.vertexCapacity);
+      page.indexFreeList.reset(page.indexCapacity);
+      for (Allocation allocation : page.allocations) {
+        // The free lists are now a single block, so allocating in order packs the meshes.
+        int firstVertex = page.vertexFreeList.allocate(allocation.rawObject.vertexCount);
+        int firstIndex = page.indexFreeList.allocate(allocation.rawObject.indexCount);
+        // The rebased indices depend on where the vertices are, so we upload again from the
+        // CPU copy rather than copying on the GPU.
+        upload(page, allocation.rawObject, firstVertex, firstIndex);
+        allocation.firstVertex = firstVertex;
+        allocation.mesh.relocate(firstIndex);
+      }
+      Log.d(TAG, "Buffer arena: defragmented page with " + page.allocations.size() + " meshes.");
+    }
+  }
+
+  /** Deletes all pages. All meshes allocated in pages become invalid. */
+  public void release() {
+    for (Page page : pages) {
+      page.buffers.release(stateCache);
+    }
+    pages.clear();
+    allocations.clear();
+  }
+
+  /** Returns the number of pages. */
+  public int getPageCount() {
+    return pages.size();
+  }
+
+  /**
+   * Returns the GPU memory taken by the pages (used or not) and by the meshes that got their own
+   * buffers, in bytes.
+   */
+  public long getTotalBytes() {
+    return (long) pages.size() *
+        MyVertexBuffers.computeSizeBytes(verticesPerPage, indicesPerPage) + dedicatedBytes;
+  }
+
+  /** Returns the number of meshes that live in pages. */
+  public int getMeshCount() {
+    return allocations.size();
+  }
+
+  // Tries to allocate the raw object in the given page. Returns null if it doesn't fit.
+  private MyMesh tryAllocateInPage(Page page, RawObject rawObject) {
+    int firstVertex = page.vertexFreeList.allocate(rawObject.vertexCount);
+    if (firstVertex < 0) return null;
+    int firstIndex = page.indexFreeList.allocate(rawObject.indexCount);
+    if (firstIndex < 0) {
+      page.vertexFreeList.free(firstVertex, rawObject.vertexCount);
+      return null;
+    }
+    upload(page, rawObject, firstVertex, firstIndex);
+    MyMesh mesh = new MyMesh(page.buffers, firstIndex, rawObject.indexCount);
+    Allocation allocation = new Allocation(page, mesh, rawObject, firstVertex);
+    page.allocations.add(allocation);
+    allocations.put(mesh, allocation);
+    return mesh;
+  }
+
+  // Uploads the raw object's data to the given place in the page.
+  private void upload(Page page, RawObject rawObject, int firstVertex, int firstIndex) {
+    rawObject.positions.position(0);
+    rawObject.colors.position(0);
+    stateCache.bindArrayBuffer(page.buffers.getPositionsVbo());
+    gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+        firstVertex * MyGLUtils.COORDS_PER_VERTEX * MyGLUtils.FLOAT_SIZE,
+        rawObject.vertexCount * MyGLUtils.COORDS_PER_VERTEX * MyGLUtils.FLOAT_SIZE,
+        rawObject.positions);
+    stateCache.bindArrayBuffer(page.buffers.getColorsVbo());
+    gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+        firstVertex * MyGLUtils.NUM_COLOR_COMPONENTS * MyGLUtils.FLOAT_SIZE,
+        rawObject.vertexCount * MyGLUtils.NUM_COLOR_COMPONENTS * MyGLUtils.FLOAT_SIZE,
+        rawObject.colors);
+
+    // Rebase the indices to where the vertices are in the page.
+    ShortBuffer rebased = ByteBuffer
+        .allocateDirect(MyGLUtils.SHORT_SIZE * rawObject.indexCount)
+        .order(ByteOrder.nativeOrder())
+        .asShortBuffer();
+    for (int i = 0; i < rawObject.indexCount; i++) {
+      rebased.put((short) ((rawObject.indices.get(i) & 0xffff) + firstVertex));
+    }
+    rebased.position(0);
+    // The IBO binding is part of the VAO state, so make sure we don't modify some other VAO.
+    if (stateCache.isVaoSupported()) stateCache.bindVertexArray(0);
+    stateCache.bindElementArrayBuffer(page.buffers.getIbo());
+    gl.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER, firstIndex * MyGLUtils.SHORT_SIZE,
+        rawObject.indexCount * MyGLUtils.SHORT_SIZE, rebased);
+    MyGLUtils.checkGlError(gl, "arena upload");
+  }
+
+  // A page: a set of big buffers that hold many meshes.
+  private static class Page {
+    final MyVertexBuffers buffers;
+    final int vertexCapacity;
+    final int indexCapacity;
+    final FreeList vertexFreeList = new FreeList();
+    final FreeList indexFreeList = new FreeList();
+    // The meshes in the page, in allocation order.
+    final ArrayList<Allocation> allocations = new ArrayList<>();
+
+    Page(MyVertexBuffers buffers, int vertexCapacity, int indexCapacity) {
+      this.buffers = buffers;
+      this.vertexCapacity = vertexCapacity;
+      this.indexCapacity = indexCapacity;
+      vertexFreeList.reset(vertexCapacity);
+      indexFreeList.reset(indexCapacity);
+    }
+  }
+
+  // Where a mesh lives in a page. We keep the raw object so the mesh can be moved.
+  private static class Allocation {
+    final Page page;
+    final MyMesh mesh;
+    final RawObject rawObject;
+    int firstVertex;
+
+    Allocation(Page page, MyMesh mesh, RawObject rawObject, int firstVertex) {
+      this.page = page;
+      this.mesh = mesh;
+      this.rawObject = rawObject;
+      this.firstVertex = firstVertex;
+    }
+  }
+
+  // List of free blocks in a buffer, sorted by position. Allocation is first-fit; freeing merges
+  // the block with its free neighbors.
+  private static class FreeList {
+    // Start and size of each free block.
+    private final ArrayList<int[]> blocks = new ArrayList<>();
+
+    // Makes the whole buffer a single free block.
+    void reset(int capacity) {
+      blocks.clear();
+      blocks.add(new int[] { 0, capacity });
+    }
+
+    // Allocates a block of the given size. Returns its start, or -1 if there is no room.
+    int allocate(int size) {
+      for (int i = 0; i < blocks.size(); i++) {
+        int[] block = blocks.get(i);
+        if (block[1] >= size) {
+          int start = block[0];
+          block[0] += size;
+          block[1] -= size;
+          if (block[1] == 0) blocks.remove(i);
+          return start;
+        }
+      }
+      return -1;
+    }
+
+    // Returns a block to the free list.
+    void free(int start, int size) {
+      if (size == 0) return;
+      int i = 0;
+      while (i < blocks.size() && blocks.get(i)[0] < start) ++i;
+      blocks.add(i, new int[] { start, size });
+      // Merge with the next block, then with the previous one.
+      if (i + 1 < blocks.size() && start + size == blocks.get(i + 1)[0]) {
+        blocks.get(i)[1] += blocks.get(i + 1)[1];
+        blocks.remove(i + 1);
+      }
+      if (i > 0 && blocks.get(i - 1)[0] + blocks.get(i - 1)[1] == start) {
+        blocks.get(i - 1)[1] += blocks.get(i)[1];
+        blocks.remove(i);
+      }
+    }
+
+    int getBlockCount() {
+      return blocks.size();
+    }
+  }
+}
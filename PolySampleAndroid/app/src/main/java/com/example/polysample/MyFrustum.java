@@ -0,0 +1,121 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+/**
+ * The view frustum (the region of space that ends up on screen), as 6 planes.
+ *
+ * The planes are extracted from a combined projection matrix: if the matrix is an MVP matrix,
+ * the planes are in the model's object space, so object-space bounds can be tested directly;
+ * if it's a view-projection matrix, they're in world space.
+ */
+public class MyFrustum {
+  // Number of planes (left, right, bottom, top, near, far).
+  private static final int PLANE_COUNT = 6;
+
+  // The planes, 4 floats each (a, b, c, d), such that a*x + b*y + c*z + d >= 0 for points inside.
+  // The normal (a, b, c) is normalized, so the value is the distance to the plane.
+  private final float[] planes = new float[PLANE_COUNT * 4];
+
+  /**
+   * Extracts the planes from the given matrix (4x4, column-major, as used by OpenGL).
+   * @param m The matrix: an MVP matrix gives object-space planes, a view-projection matrix gives
+   *     world-space planes.
+   */
+  public void setFromMatrix(float[] m) {
+    // A point p is inside the frustum if -w <= x, y, z <= w, where (x, y, z, w) = M * p. Each of
+    // these 6 inequalities is a plane: row3 + rowN >= 0 or row3 - rowN >= 0. Row i of the
+    // column-major matrix is (m[i], m[4 + i], m[8 + i], m[12 + i]).
+    for (int row = 0; row < 3; row++) {
+      setPlane(2 * row, m[3] + m[row], m[7] + m[4 + row], m[11] + m[8 + row],
+          m[15] + m[12 + row]);
+      setPlane(2 * row + 1, m[3] - m[row], m[7] - m[4 + row], m[11] - m[8 + row],
+          m[15] - m[12 + row]);
+    }
+  }
+
+  /**
+   * Returns whether the given axis-aligned bounding box is (at least partially) inside the
+   * frustum. May return true for some boxes that are just outside, near the frustum's corners.
+   */
+  public boolean intersectsAabb(float[] min, float[] max) {
+    for (int i = 0; i < PLANE_COUNT; i++) {
+      float a = planes[4 * i];
+      float b = planes[4 * i + 1];
+      float c = planes[4 * i + 2];
+      float d = planes[4 * i + 3];
+      // Test the corner of the box that is furthest along the plane's normal. If even that one
+      // is outside, the whole box is.
+      float x = a >= 0 ? max[0] : min[0];
+      float y = b >= 0 ? max[1] : min[1];
+      float z = c >= 0 ? max[2] : min[2];
+      if (a * x + b * y + c * z + d < 0) return false;
+    }
+    return true;
+  }
+
+  /** Returns whether the given sphere is (at least partially) inside the frustum. */
+  public boolean intersectsSphere(float x, float y, float z, float radius) {
+    for (int i = 0; i < PLANE_COUNT; i++) {
+      float distance = planes[4 * i] * x + planes[4 * i + 1] * y + planes[4 * i + 2] * z +
+          planes[4 * i + 3];
+      if (distance < -radius) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Computes the axis-aligned bounding box of a box after it's transformed by a matrix.
+   * @param matrix The array that contains the transform (4x4, column-major).
+   * @param offset Offset of the transform in the array.
+   * @param min Minimum corner of the box.
+   * @param max Maximum corner of the box.
+   * @param outMin Receives the minimum corner of the transformed box.
+   * @param outMax Receives the maximum corner of the transformed box.
+   */
+  public static void transformAabb(float[] matrix, int offset, float[] min, float[] max,
+      float[] outMin, float[] outMax) {
+    // For each output axis, start from the translation and add the smallest and largest
+    // contribution of each input axis.
+    for (int row = 0; row < 3; row++) {
+      float lo = matrix[offset + 12 + row];
+      float hi = lo;
+      for (int col = 0; col < 3; col++) {
+        float e = matrix[offset + 4 * col + row];
+        float a = e * min[col];
+        float b = e * max[col];
+        lo += Math.min(a, b);
+        hi += Math.max(a, b);
+      }
+      outMin[row] = lo;
+      outMax[row] = hi;
+    }
+  }
+
+  // Sets a plane, normalizing it.
+  private void setPlane(int index, float a, float b, float c, float d) {
+    float length = (float) Math.sqrt(a * a + b * b + c * c);
+    if (length > 0) {
+      a /= length;
+      b /= length;
+      c /= length;
+      d /= length;
+    }
+    planes[4 * index] = a;
+    planes[4 * index + 1] = b;
+    planes[4 * index + 2] = c;
+    planes[4 * index + 3] = d;
+  }
+}
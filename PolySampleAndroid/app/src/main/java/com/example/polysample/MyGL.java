@@ -0,0 +1,116 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES calls used by the renderer.
+ *
+ * All our GL code calls GL through this interface rather than through the static GLES20 and
+ * GLES30 methods, so the backend can be swapped: {@link MyGLES} forwards to the real GL, and
+ * {@link MyRecordingGL} records the calls and counts them (draws, binds, uploaded bytes,
+ * redundant state changes) without a GPU, e.g. to measure the cost of a frame in a test on the
+ * JVM.
+ *
+ * The methods have the same names, parameters and semantics as their GLES20 / GLES30
+ * counterparts. Constants still come from GLES20 and GLES30. The ES 3 methods may only be called
+ * when {@link #hasEs3Bindings} returns true and the context is ES 3.
+ */
+public interface MyGL {
+  /** Returns whether the OpenGL ES 3.0 methods can be called on this system. */
+  boolean hasEs3Bindings();
+
+  // State.
+  void glClearColor(float red, float green, float blue, float alpha);
+  void glClear(int mask);
+  void glEnable(int cap);
+  void glDisable(int cap);
+  void glViewport(int x, int y, int width, int height);
+  int glGetError();
+  String glGetString(int name);
+  void glGetIntegerv(int pname, int[] params, int offset);
+
+  // Shaders and programs.
+  int glCreateShader(int type);
+  void glShaderSource(int shader, String string);
+  void glCompileShader(int shader);
+  void glGetShaderiv(int shader, int pname, int[] params, int offset);
+  String glGetShaderInfoLog(int shader);
+  void glDeleteShader(int shader);
+  int glCreateProgram();
+  void glAttachShader(int program, int shader);
+  void glBindAttribLocation(int program, int index, String name);
+  void glLinkProgram(int program);
+  void glGetProgramiv(int program, int pname, int[] params, int offset);
+  String glGetProgramInfoLog(int program);
+  void glDeleteProgram(int program);
+  void glUseProgram(int program);
+  int glGetUniformLocation(int program, String name);
+  void glUniform1i(int location, int x);
+  void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+  void glProgramParameteri(int program, int pname, int value);
+  void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+      int[] binaryFormat, int binaryFormatOffset, Buffer binary);
+  void glProgramBinary(int program, int binaryFormat, Buffer binary, int length);
+
+  // Buffers and vertex arrays.
+  void glGenBuffers(int n, int[] buffers, int offset);
+  void glDeleteBuffers(int n, int[] buffers, int offset);
+  void glBindBuffer(int target, int buffer);
+  void glBufferData(int target, int size, Buffer data, int usage);
+  void glBufferSubData(int target, int offset, int size, Buffer data);
+  void glGenVertexArrays(int n, int[] arrays, int offset);
+  void glDeleteVertexArrays(int n, int[] arrays, int offset);
+  void glBindVertexArray(int array);
+  void glEnableVertexAttribArray(int index);
+  void glDisableVertexAttribArray(int index);
+  void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+      int offset);
+  void glVertexAttrib4fv(int index, float[] values, int offset);
+  void glVertexAttribDivisor(int index, int divisor);
+
+  // Drawing.
+  void glDrawArrays(int mode, int first, int count);
+  void glDrawElements(int mode, int count, int type, int offset);
+  void glDrawElementsInstanced(int mode, int count, int type, int indicesOffset, int instanceCount);
+
+  // Textures, framebuffers and renderbuffers.
+  void glGenTextures(int n, int[] textures, int offset);
+  void glDeleteTextures(int n, int[] textures, int offset);
+  void glActiveTexture(int texture);
+  void glBindTexture(int target, int texture);
+  void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+      int format, int type, Buffer pixels);
+  void glTexParameteri(int target, int pname, int param);
+  void glGenFramebuffers(int n, int[] framebuffers, int offset);
+  void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+  void glBindFramebuffer(int target, int framebuffer);
+  void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+  void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+      int renderbuffer);
+  int glCheckFramebufferStatus(int target);
+  void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+  void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+  void glBindRenderbuffer(int target, int renderbuffer);
+  void glRenderbufferStorage(int target, int internalformat, int width, int height);
+
+  // Queries.
+  void glGenQueries(int n, int[] ids, int offset);
+  void glDeleteQueries(int n, int[] ids, int offset);
+  void glBeginQuery(int target, int id);
+  void glEndQuery(int target);
+  void glGetQueryObjectuiv(int id, int pname, int[] params, int offset);
+}
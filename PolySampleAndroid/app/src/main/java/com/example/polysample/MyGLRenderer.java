@@ -18,9 +18,10 @@ import javax.microedition.khronos.opengles.GL10;
 
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
  * Renderer responsible for rendering the contents of our GLSurfaceView.
  */
@@ -36,6 +37,23 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
   // Far clipping plane.
   private static final float FAR_CLIP = 1000f;
 
+  // Maximum number of copies of the object that can be drawn with instancing.
+  private static final int MAX_INSTANCES = 1024;
+
+  // Default GPU memory budget for meshes and other GL resources, in bytes.
+  private static final long DEFAULT_GPU_BUDGET_BYTES = 64 * 1024 * 1024;
+
+  // How far (in pixels) the drawn surface of the object may be from the full detail one when a
+  // simplified level of detail is drawn.
+  private static final float MAX_LOD_ERROR_PIXELS = 1.0f;
+
+  // Longest time step of the animation, in seconds. If a frame takes longer than this (e.g. a
+  // long hitch), the animation slows down rather than jumping.
+  private static final float MAX_FRAME_DELTA_SECONDS = 0.25f;
+
+  // Name of the spin animation, for the frame scheduler.
+  private static final String SPIN_ANIMATION = "spin";
+
   // Model spin speed in degrees per second.
   private static final float MODEL_ROTATION_SPEED_DPS = 45.0f;
 
@@ -53,38 +71,138 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
   // Model matrix. Transforms object space into world space.
   private final float[] modelMatrix = new float[16];
 
-  // View matrix. Transforms world space into eye space.
+  // View matrix. Transforms world space into eye space. The camera doesn't move, so this is
+  // computed once.
   private final float[] viewMatrix = new float[16];
 
   // Projection matrix. Transforms eye space into clip space.
   private final float[] projMatrix = new float[16];
 
+  // View Projection matrix (product of projection and view matrices). Only changes with the
+  // projection, in onSurfaceChanged.
+  private final float[] viewProjMatrix = new float[16];
+
   // Model View Projection matrix (product of projection, view and model matrices).
   private final float[] mvpMatrix = new float[16];
 
   // Temporary matrix for calculations.
   private final float[] tmpMatrix = new float[16];
 
+  // World transforms (model matrices) of the copies of the object, 16 floats each.
+  private final float[] instanceWorldMatrices =
+      new float[MAX_INSTANCES * MyInstanceBuffer.FLOATS_PER_INSTANCE];
+
+  // View frustum, used to skip objects that are off-screen.
+  private final MyFrustum frustum = new MyFrustum();
+
+  // Temporary bounding box for calculations.
+  private final float[] tmpBoundsMin = new float[3];
+  private final float[] tmpBoundsMax = new float[3];
+
+  // Number of objects drawn and culled (skipped because off-screen) in the current frame.
+  // Each static batch and each copy of the object counts as one object.
+  private int drawnObjectCount;
+  private int culledObjectCount;
+
+  // Same, for the last complete frame. Written by the GL thread, can be read by any thread.
+  private volatile int lastFrameDrawnObjectCount;
+  private volatile int lastFrameCulledObjectCount;
+
+  // Number of clusters of the object (see MeshClusters) drawn and culled (off-screen or facing
+  // away) in the current frame, and the same for the last complete frame.
+  private int drawnClusterCount;
+  private int culledClusterCount;
+  private volatile int lastFrameDrawnClusterCount;
+  private volatile int lastFrameCulledClusterCount;
+
+  // The visible clusters of the object, as ranges of its index buffer. Refilled every frame.
+  private final IndexRanges clusterRanges = new IndexRanges();
+
+  // Camera position, and camera position in the object's space (x, y, z, w).
+  private final float[] eyePosition = new float[] { EYE_X, EYE_Y, EYE_Z, 1 };
+  private final float[] eyeInObjectSpace = new float[4];
+
+  // Size in pixels of one world space unit seen at a distance of 1. Computed from the projection
+  // and the viewport in onSurfaceChanged, used to project the error of the levels of detail.
+  private float pixelsPerUnit;
+
+  // The level of detail of the object selected in the last frame (before applying the bias).
+  private int currentLodLevel;
+  private volatile int lastFrameLodLevel;
+
+  // Number of frames in which each level of detail of the object was drawn.
+  private final int[] lodDrawCounts = new int[MeshLods.DEFAULT_MAX_LEVELS];
+
+  // Whether back faces should be culled. Set by any thread, applied at the start of each frame.
+  private volatile boolean backFaceCullingRequested;
+
+  // Whether back faces are culled in the GL state (GL_CULL_FACE).
+  private boolean backFaceCullingEnabled;
+
+  // The GL backend through which all GL calls go.
+  private final MyGL gl;
+
+  // Cache of the GL binding state, used to skip redundant state changes.
+  private final MyGLStateCache stateCache;
+
+  // Keeps track of our GL resources, uploads meshes on demand and evicts them when over budget.
+  private final MyGLResourceManager resourceManager;
+
+  // Creates the shader programs, from binaries cached on disk when possible.
+  private final MyProgramCache programCache;
+
+  // Whether a frame was drawn since the GL context was created. Programs that aren't needed yet
+  // are only prepared after the first frame, so they don't delay it.
+  private boolean drewFirstFrame;
+
   // The shader we use to draw the object.
   private MyShader myShader;
 
-  // If true, we are ready to render the object. If false, the object isn't available yet.
-  private boolean readyToRender = false;
+  // The shader we use to draw many copies of the object. Created when first needed.
+  private MyInstancedShader instancedShader;
+
+  // Per-instance model matrices, refilled and uploaded once per frame when drawing copies.
+  private MyInstanceBuffer instanceBuffer;
+
+  // The mesh of the object, or null if the object isn't available yet.
+  private MyGLResourceManager.ManagedMesh objectMesh;
 
-  // Handle of the VBO that stores the vertex positions of the object.
-  private int positionsVbo;
+  // Decides when frames are rendered. We tell it when something changes.
+  private final FrameScheduler frameScheduler;
 
-  // Handle of the VBO that stores the color information for the object.
-  private int colorsVbo;
+  // Whether the object should spin. Set by any thread.
+  private volatile boolean spinEnabled = true;
 
-  // Handle of the IBO that stores the sequence of indices we use to draw the object.
-  private int ibo;
+  // Whether the spin animation was running in the last frame.
+  private boolean wasSpinning;
 
-  // Number of indices present in the IBO.
-  private int indexCount;
+  // Paces frames on vsync and gives us their timestamps.
+  private final FramePacer framePacer;
 
-  // Time (as given by System.currentTimeMillis) when the last frame was rendered.
-  private long lastFrameTime;
+  // Lowers the render resolution and the level of detail when frames take too long or the
+  // device is hot.
+  private final QualityGovernor qualityGovernor;
+
+  // Measures the CPU time of the frames' phases and their GPU time, and counts draw calls.
+  private final FrameProfiler frameProfiler = new FrameProfiler();
+
+  // Measures the GPU time of frames, if the device supports it. Recreated with each GL context.
+  private MyGpuTimer gpuTimer;
+
+  // Offscreen target we render to when rendering below the screen's resolution. Created when
+  // first needed.
+  private MyRenderTarget renderTarget;
+
+  // Size of the screen (the default framebuffer), in pixels.
+  private int screenWidth;
+  private int screenHeight;
+
+  // Level of detail bias and render scale used in the current frame.
+  private int lodBias;
+  private float renderScale = 1;
+
+  // Vsync timestamp (in the System.nanoTime time base) of the last frame rendered.
+  private long lastFrameTimeNanos;
 
   // The current model rotation angle, in degrees. This angle is increased each frame to create
   // the spinning animation.
@@ -94,67 +212,465 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
   // and is consumed by the GL thread. Once set, this is never modified.
   private volatile RawObject objectToRender;
 
+  // Static batches (props already transformed to world space) to draw along with the object.
+  // Set by any thread, consumed by the GL thread.
+  private volatile StaticBatcher.Result staticBatches;
+
+  // The static batches whose meshes have been created, and their meshes.
+  private StaticBatcher.Result uploadedStaticBatches;
+  private final ArrayList<MyGLResourceManager.ManagedMesh> staticBatchMeshes = new ArrayList<>();
+
+  // Transforms (model matrices) of the copies of the object to draw, 16 floats each, or null
+  // to draw the object just once. Set by any thread, consumed by the GL thread.
+  private volatile float[] instanceTransforms;
+
+  /**
+   * Creates the renderer.
+   * @param gl The GL backend: {@link MyGLES} on a device, or {@link MyRecordingGL} to measure
+   *     the render path without a GPU.
+   * @param frameScheduler The scheduler that decides when frames are rendered.
+   * @param framePacer The pacer that lets frames through on vsync, at the target frame rate.
+   * @param qualityGovernor The governor that picks the render scale and level of detail bias.
+   * @param programCache The cache that creates the shader programs.
+   */
+  public MyGLRenderer(MyGL gl, FrameScheduler frameScheduler, FramePacer framePacer,
+      QualityGovernor qualityGovernor, MyProgramCache programCache) {
+    this.gl = gl;
+    stateCache = new MyGLStateCache(gl);
+    resourceManager = new MyGLResourceManager(stateCache, DEFAULT_GPU_BUDGET_BYTES);
+    this.frameScheduler = frameScheduler;
+    this.framePacer = framePacer;
+    this.qualityGovernor = qualityGovernor;
+    this.programCache = programCache;
+    resourceManager.setProfiler(frameProfiler);
+
+    // Set the camera position (View matrix)
+    MatrixMath.setLookAt(viewMatrix, 0,
+        // Camera position.
+        EYE_X, EYE_Y, EYE_Z,
+        // Point that the camera is looking at.
+        TARGET_X, TARGET_Y, TARGET_Z,
+        // The vector that defines which way is up.
+        UP_X, UP_Y, UP_Z);
+  }
+
   @Override
   public void onSurfaceCreated(GL10 unused, EGLConfig config) {
-    GLES20.glClearColor(0.0f, 0.15f, 0.15f, 1.0f);
-    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-    lastFrameTime = System.currentTimeMillis();
-    myShader = new MyShader();
+    gl.glClearColor(0.0f, 0.15f, 0.15f, 1.0f);
+    gl.glEnable(GLES20.GL_DEPTH_TEST);
+    // A new context starts with GL_CULL_FACE disabled.
+    backFaceCullingEnabled = false;
+    lastFrameTimeNanos = System.nanoTime();
+    // If this is not the first context, everything we had in the old one is gone. Meshes will be
+    // uploaded again from their CPU copies as they are drawn.
+    stateCache.invalidate();
+    resourceManager.onContextCreated();
+    programCache.onContextCreated(stateCache);
+    myShader = new MyShader(stateCache, programCache);
+    resourceManager.trackProgram(myShader.getProgram());
+    instanceBuffer = new MyInstanceBuffer(MAX_INSTANCES);
+    // The instanced shader and the render target are only needed for some content and quality
+    // levels. Create them when needed, but have their programs ready by then.
+    instancedShader = null;
+    renderTarget = null;
+    programCache.precompileLater(MyInstancedShader.PROGRAM_SOURCE, MyRenderTarget.PROGRAM_SOURCE);
+    drewFirstFrame = false;
+    // The queries of the old context (if any) are gone with it.
+    gpuTimer = new MyGpuTimer(stateCache);
+    frameProfiler.setGpuTimingSupported(gpuTimer.isSupported());
   }
 
   @Override
   public void onDrawFrame(GL10 unused) {
-    // Update the spin animation.
-    long now = System.currentTimeMillis();
-    float deltaT = Math.min((now - lastFrameTime) * 0.001f, 0.1f);
-    lastFrameTime = now;
-    angleDegrees += deltaT * MODEL_ROTATION_SPEED_DPS;
+    frameProfiler.beginFrame();
+    frameScheduler.onFrameStarted();
+    qualityGovernor.onFrameStarted();
+    // Collect the GPU times of previous frames, and start timing this one.
+    gpuTimer.collectResults(frameProfiler);
+    gpuTimer.beginFrame();
+
+    // Update the spin animation, using the vsync timestamps of the frames: they are evenly
+    // spaced, so the motion is smooth, and include the time of any skipped frames. If the
+    // animation just started, the time since the last frame may include a long period without
+    // frames, so we only start moving on the next frame.
+    long frameTimeNanos = framePacer.getFrameTimeNanos();
+    float deltaT = Math.min((frameTimeNanos - lastFrameTimeNanos) * 1e-9f,
+        MAX_FRAME_DELTA_SECONDS);
+    lastFrameTimeNanos = frameTimeNanos;
+    boolean spinning = frameScheduler.isAnimating(SPIN_ANIMATION);
+    if (spinning && wasSpinning) angleDegrees += deltaT * MODEL_ROTATION_SPEED_DPS;
+    wasSpinning = spinning;
+
+    resourceManager.beginFrame();
+    drawnObjectCount = 0;
+    culledObjectCount = 0;
+    drawnClusterCount = 0;
+    culledClusterCount = 0;
+
+    if (backFaceCullingRequested != backFaceCullingEnabled) {
+      backFaceCullingEnabled = backFaceCullingRequested;
+      if (backFaceCullingEnabled) {
+        gl.glEnable(GLES20.GL_CULL_FACE);
+      } else {
+        gl.glDisable(GLES20.GL_CULL_FACE);
+      }
+    }
+
+    // Render at the resolution the governor asks for: below 1, we render to an offscreen target
+    // and upscale it to the screen at the end of the frame.
+    renderScale = qualityGovernor.getRenderScale();
+    lodBias = qualityGovernor.getLodBias();
+    if (renderScale < 1) {
+      int targetWidth = Math.max(1, Math.round(screenWidth * renderScale));
+      int targetHeight = Math.max(1, Math.round(screenHeight * renderScale));
+      frameProfiler.beginPhase(FrameProfiler.PHASE_UPLOAD);
+      if (renderTarget == null) renderTarget = new MyRenderTarget(stateCache, programCache);
+      int oldTexture = renderTarget.getColorTexture();
+      if (renderTarget.resize(targetWidth, targetHeight)) {
+        if (oldTexture != 0) resourceManager.untrack(MyGLResourceManager.TYPE_TEXTURE, oldTexture);
+        resourceManager.track(MyGLResourceManager.TYPE_TEXTURE, renderTarget.getColorTexture(),
+            renderTarget.getSizeBytes());
+      }
+      frameProfiler.beginPhase(FrameProfiler.PHASE_SETUP);
+      renderTarget.bind();
+    } else if (renderTarget != null) {
+      // Back to full resolution: free the offscreen target. It's created again if the scale
+      // drops.
+      int texture = renderTarget.getColorTexture();
+      if (texture != 0) resourceManager.untrack(MyGLResourceManager.TYPE_TEXTURE, texture);
+      renderTarget.release();
+      renderTarget = null;
+    }
 
     // Draw background color.
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
     // Make a model matrix that rotates the model about the Y axis so it appears to spin.
-    Matrix.setRotateM(modelMatrix, 0, angleDegrees, 0, 1, 0);
-
-    // Set the camera position (View matrix)
-    Matrix.setLookAtM(viewMatrix, 0,
-        // Camera position.
-        EYE_X, EYE_Y, EYE_Z,
-        // Point that the camera is looking at.
-        TARGET_X, TARGET_Y, TARGET_Z,
-        // The vector that defines which way is up.
-        UP_X, UP_Y, UP_Z);
+    MatrixMath.setRotate(modelMatrix, 0, angleDegrees, 0, 1, 0);
 
     // Calculate the MVP matrix (model-view-projection) by multiplying the model, view, and
-    // projection matrices together.
-    Matrix.multiplyMM(tmpMatrix, 0, viewMatrix, 0, modelMatrix, 0);  // V * M
-    Matrix.multiplyMM(mvpMatrix, 0, projMatrix, 0, tmpMatrix, 0);  // P * V * M
+    // projection matrices together. P * V is computed when the projection changes.
+    MatrixMath.multiplyMM(mvpMatrix, 0, viewProjMatrix, 0, modelMatrix, 0);  // P * V * M
+
+    // World-space frustum, for the static batches and the copies of the object.
+    frustum.setFromMatrix(viewProjMatrix);
+
+    // From here on, the time goes to culling and drawing (except for uploads, which the
+    // resource manager attributes to the upload phase).
+    frameProfiler.beginPhase(FrameProfiler.PHASE_DRAW);
+    renderStaticBatches();
 
     // objectToRender is volatile, so we capture it in a local variable.
     RawObject obj = objectToRender;
 
-    if (readyToRender) {
-      // We're ready to render, so just render using our existing VBOs and IBO.
-      myShader.render(mvpMatrix, indexCount, ibo, positionsVbo, colorsVbo);
-    } else if (obj != null) {
-      // The object is ready, but we haven't consumed it yet. We need to create the VBOs and IBO
-      // to render the object.
-      indexCount = obj.indexCount;
-      ibo = MyGLUtils.createIbo(obj.indices);
-      positionsVbo = MyGLUtils.createVbo(obj.positions);
-      colorsVbo = MyGLUtils.createVbo(obj.colors);
-      // Now we're ready to render the object.
-      readyToRender = true;
-      Log.d(TAG, "VBOs/IBO created. Now ready to render object.");
+    if (objectMesh == null && obj != null) {
+      // The object is ready, but we haven't consumed it yet. The GPU copy (VBOs, IBO and VAO)
+      // is created by the resource manager when we first draw it.
+      objectMesh = resourceManager.createMesh(obj);
+      Log.d(TAG, "Object received. Now ready to render object.");
+    }
+
+    if (objectMesh != null) {
+      float[] transforms = instanceTransforms;
+      if (transforms != null) {
+        renderInstances(transforms);
+      } else if (isObjectVisible(objectMesh.getRawObject())) {
+        renderObject(objectMesh.getRawObject());
+      }
     }
+
+    if (renderScale < 1) {
+      renderTarget.drawToScreen(screenWidth, screenHeight);
+      // The upscale is one quad: two triangles.
+      frameProfiler.countDraws(1, 2);
+    }
+    gpuTimer.endFrame();
+
+    resourceManager.endFrame();
+    lastFrameDrawnObjectCount = drawnObjectCount;
+    lastFrameCulledObjectCount = culledObjectCount;
+    lastFrameDrawnClusterCount = drawnClusterCount;
+    lastFrameCulledClusterCount = culledClusterCount;
+    qualityGovernor.onFrameFinished();
+    frameScheduler.onFrameFinished();
+    frameProfiler.endFrame();
+
+    // Prepare one of the programs we don't need yet, if any.
+    if (drewFirstFrame) programCache.precompileNext();
+    drewFirstFrame = true;
   }
 
   @Override
   public void onSurfaceChanged(GL10 unused, int width, int height) {
-    GLES20.glViewport(0, 0, width, height);
+    gl.glViewport(0, 0, width, height);
+    screenWidth = width;
+    screenHeight = height;
     float aspectRatio = (float) width / height;
     // Recompute the projection matrix, because it depends on the aspect ration of the display.
-    Matrix.perspectiveM(projMatrix, 0, FOV_Y, aspectRatio, NEAR_CLIP, FAR_CLIP);
+    MatrixMath.perspective(projMatrix, 0, FOV_Y, aspectRatio, NEAR_CLIP, FAR_CLIP);
+    MatrixMath.multiplyMM(viewProjMatrix, 0, projMatrix, 0, viewMatrix, 0);  // P * V
+    // projMatrix[5] is 1 / tan(FOV_Y / 2), and the viewport is 2 units high in clip space.
+    pixelsPerUnit = projMatrix[5] * height / 2;
+  }
+
+  // Draws the static batches, creating their meshes first if they are new.
+  private void renderStaticBatches() {
+    // staticBatches is volatile, so we capture it in a local variable.
+    StaticBatcher.Result batches = staticBatches;
+    if (batches == null) return;
+    if (batches != uploadedStaticBatches) {
+      for (MyGLResourceManager.ManagedMesh oldMesh : staticBatchMeshes) {
+        oldMesh.release();
+      }
+      staticBatchMeshes.clear();
+      // Close the holes left by the old batches before allocating the new ones.
+      resourceManager.defragment();
+      for (int i = 0; i < batches.getBatchCount(); i++) {
+        staticBatchMeshes.add(resourceManager.createMesh(batches.getBatch(i).getRawObject()));
+      }
+      uploadedStaticBatches = batches;
+      Log.d(TAG, "Created meshes for " + batches.getBatchCount() + " static batches.");
+    }
+    for (int i = 0; i < staticBatchMeshes.size(); i++) {
+      RawObject batchObject = batches.getBatch(i).getRawObject();
+      if (!frustum.intersectsAabb(batchObject.boundsMin, batchObject.boundsMax)) {
+        ++culledObjectCount;
+        continue;
+      }
+      ++drawnObjectCount;
+      // Batches are already in world space, so they only need the view and projection.
+      renderRanges(viewProjMatrix, resourceManager.getMeshForDrawing(staticBatchMeshes.get(i)),
+          batches.getBatch(i).getDrawRanges());
+    }
+  }
+
+  // Returns whether the object (drawn with mvpMatrix) is on screen, and counts it as drawn or
+  // culled accordingly.
+  private boolean isObjectVisible(RawObject obj) {
+    // Planes extracted from the MVP matrix are in object space, so we can test the object's
+    // bounds without transforming them.
+    frustum.setFromMatrix(mvpMatrix);
+    boolean visible = frustum.intersectsAabb(obj.boundsMin, obj.boundsMax);
+    if (visible) {
+      ++drawnObjectCount;
+    } else {
+      ++culledObjectCount;
+    }
+    return visible;
+  }
+
+  // Draws the object with mvpMatrix, at the level of detail that suits its size on screen (if it
+  // has levels of detail). If the full detail level is drawn and the object was partitioned into
+  // clusters, only the clusters that are on screen (and not facing away, when back faces are
+  // culled) are drawn.
+  // Must be called after isObjectVisible, which leaves the object-space frustum in 'frustum'.
+  private void renderObject(RawObject obj) {
+    MyMesh mesh = resourceManager.getMeshForDrawing(objectMesh);
+    // The levels of detail and the clusters' normal cones are in object space, so bring the
+    // camera there too.
+    MatrixMath.invert(tmpMatrix, 0, modelMatrix, 0);
+    MatrixMath.multiplyMV(eyeInObjectSpace, 0, tmpMatrix, 0, eyePosition, 0);
+
+    int lodLevel = 0;
+    if (obj.lods != null) {
+      // When rendering below the screen's resolution, there are fewer pixels per unit.
+      int selectedLevel = obj.lods.selectLevel(eyeInObjectSpace, pixelsPerUnit * renderScale,
+          MAX_LOD_ERROR_PIXELS, currentLodLevel);
+      if (selectedLevel != currentLodLevel) {
+        Log.d(TAG, "Switching object from LOD " + currentLodLevel + " to LOD " + selectedLevel);
+        currentLodLevel = selectedLevel;
+      }
+      // The governor may ask for coarser levels than needed, when the device can't keep up.
+      lodLevel = Math.min(selectedLevel + lodBias, obj.lods.getLevelCount() - 1);
+    }
+    ++lodDrawCounts[lodLevel];
+    lastFrameLodLevel = lodLevel;
+
+    if (lodLevel > 0) {
+      // Simplified levels are small, so we just draw them whole.
+      clusterRanges.clear();
+      clusterRanges.add(obj.lods.getFirstIndex(lodLevel), obj.lods.getIndexCount(lodLevel));
+      renderRanges(mvpMatrix, mesh, clusterRanges);
+      return;
+    }
+    if (obj.clusters == null) {
+      clusterRanges.clear();
+      clusterRanges.add(0, obj.getFullDetailIndexCount());
+      renderRanges(mvpMatrix, mesh, clusterRanges);
+      return;
+    }
+    float[] eye = backFaceCullingEnabled ? eyeInObjectSpace : null;
+    clusterRanges.clear();
+    int visibleClusters = obj.clusters.cull(frustum, eye, clusterRanges);
+    drawnClusterCount += visibleClusters;
+    culledClusterCount += obj.clusters.getClusterCount() - visibleClusters;
+    renderRanges(mvpMatrix, mesh, clusterRanges);
+  }
+
+  // Draws the given ranges of the mesh with myShader, and counts the draw calls and triangles.
+  private void renderRanges(float[] matrix, MyMesh mesh, IndexRanges ranges) {
+    int drawCalls = myShader.render(matrix, mesh, ranges);
+    frameProfiler.countDraws(drawCalls, ranges.getTotalCount() / 3);
+  }
+
+  // Draws a copy of the object with each of the given transforms, in a single instanced draw.
+  // Copies that are off-screen are left out of the instance buffer.
+  private void renderInstances(float[] transforms) {
+    RawObject obj = objectMesh.getRawObject();
+    int count = Math.min(transforms.length / MyInstanceBuffer.FLOATS_PER_INSTANCE, MAX_INSTANCES);
+    // Each copy spins in place: apply the spin first, then the copy's transform. All the
+    // copies are transformed in one go.
+    MatrixMath.multiplyMMBatch(instanceWorldMatrices, 0, transforms, 0, modelMatrix, 0, count);
+    instanceBuffer.clear();
+    for (int i = 0; i < count; i++) {
+      int offset = i * MyInstanceBuffer.FLOATS_PER_INSTANCE;
+      MyFrustum.transformAabb(instanceWorldMatrices, offset, obj.boundsMin, obj.boundsMax,
+          tmpBoundsMin, tmpBoundsMax);
+      if (!frustum.intersectsAabb(tmpBoundsMin, tmpBoundsMax)) {
+        ++culledObjectCount;
+        continue;
+      }
+      ++drawnObjectCount;
+      instanceBuffer.add(instanceWorldMatrices, offset);
+    }
+    if (instanceBuffer.getInstanceCount() == 0) return;
+    // Without instancing, the shader sets each copy's matrix with glVertexAttrib and never reads
+    // the VBO: don't upload it.
+    if (stateCache.isInstancingSupported()) {
+      int previousPhase = frameProfiler.beginPhase(FrameProfiler.PHASE_UPLOAD);
+      instanceBuffer.upload(stateCache);
+      resourceManager.track(MyGLResourceManager.TYPE_BUFFER, instanceBuffer.getVbo(),
+          instanceBuffer.getInstanceCount() * MyInstanceBuffer.FLOATS_PER_INSTANCE *
+          MyGLUtils.FLOAT_SIZE);
+      frameProfiler.beginPhase(previousPhase);
+    }
+    if (instancedShader == null) {
+      instancedShader = new MyInstancedShader(stateCache, programCache);
+      resourceManager.trackProgram(instancedShader.getProgram());
+    }
+    // The copies are always drawn at full detail.
+    int drawCalls = instancedShader.render(viewProjMatrix,
+        resourceManager.getMeshForDrawing(objectMesh), 0, obj.getFullDetailIndexCount(),
+        instanceBuffer);
+    frameProfiler.countDraws(drawCalls,
+        (long) instanceBuffer.getInstanceCount() * (obj.getFullDetailIndexCount() / 3));
+  }
+
+  /**
+   * Sets the transforms of the copies of the object to draw. Can be called on any thread.
+   * @param transforms The model matrices of the copies (16 floats each, column-major), or null
+   *     to draw just one copy of the object. At most {@link #MAX_INSTANCES} copies are drawn.
+   *     The array must not be modified after this call.
+   */
+  public void setInstanceTransforms(float[] transforms) {
+    instanceTransforms = transforms;
+    frameScheduler.requestFrame();
+  }
+
+  /**
+   * Makes transforms (for {@link #setInstanceTransforms}) that lay out copies of the object
+   * in a grid on the XZ plane, centered on the origin.
+   */
+  public static float[] makeGridTransforms(int columns, int rows, float spacing, float scale) {
+    float[] transforms = new float[columns * rows * MyInstanceBuffer.FLOATS_PER_INSTANCE];
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < columns; col++) {
+        int offset = (row * columns + col) * MyInstanceBuffer.FLOATS_PER_INSTANCE;
+        MatrixMath.setIdentity(transforms, offset);
+        MatrixMath.translate(transforms, offset, (col - (columns - 1) / 2f) * spacing, 0,
+            (row - (rows - 1) / 2f) * spacing);
+        MatrixMath.scale(transforms, offset, scale, scale, scale);
+      }
+    }
+    return transforms;
+  }
+
+  /** Returns the number of objects drawn in the last frame. Can be called on any thread. */
+  public int getLastFrameDrawnObjectCount() {
+    return lastFrameDrawnObjectCount;
+  }
+
+  /**
+   * Returns the number of objects skipped in the last frame because they were off-screen.
+   * Can be called on any thread.
+   */
+  public int getLastFrameCulledObjectCount() {
+    return lastFrameCulledObjectCount;
+  }
+
+  /** Returns the number of clusters of the object drawn in the last frame. Any thread. */
+  public int getLastFrameDrawnClusterCount() {
+    return lastFrameDrawnClusterCount;
+  }
+
+  /**
+   * Returns the number of clusters of the object skipped in the last frame because they were
+   * off-screen or facing away. Can be called on any thread.
+   */
+  public int getLastFrameCulledClusterCount() {
+    return lastFrameCulledClusterCount;
+  }
+
+  /**
+   * Returns the level of detail of the object drawn in the last frame in which it was drawn
+   * (0 is full detail). Can be called on any thread.
+   */
+  public int getLastFrameLodLevel() {
+    return lastFrameLodLevel;
+  }
+
+  /**
+   * Returns the number of frames in which the given level of detail of the object was drawn.
+   * Can be called on any thread, but the count may then be slightly out of date.
+   */
+  public int getLodDrawCount(int level) {
+    return lodDrawCounts[level];
+  }
+
+  /**
+   * Sets whether back faces (triangles seen from behind) are culled. Off by default, since
+   * some assets have inconsistent winding. When on, clusters of the object that face away from
+   * the camera are skipped altogether. Can be called on any thread.
+   */
+  public void setBackFaceCullingEnabled(boolean enabled) {
+    backFaceCullingRequested = enabled;
+    frameScheduler.requestFrame();
+  }
+
+  /**
+   * Sets whether the object spins. While it doesn't (and nothing else changes), no frames are
+   * rendered. Can be called on any thread.
+   */
+  public void setSpinEnabled(boolean enabled) {
+    spinEnabled = enabled;
+    if (enabled && objectToRender != null) {
+      frameScheduler.startAnimation(SPIN_ANIMATION);
+    } else {
+      frameScheduler.stopAnimation(SPIN_ANIMATION);
+    }
+  }
+
+  /**
+   * Returns the frame profiler, for CPU and GPU frame times and draw call counts. Its summaries
+   * can be read on any thread.
+   */
+  public FrameProfiler getFrameProfiler() {
+    return frameProfiler;
+  }
+
+  /** Returns the resource manager, for GPU memory statistics. Use on the GL thread only. */
+  public MyGLResourceManager getResourceManager() {
+    return resourceManager;
+  }
+
+  /**
+   * Sets the static batches to draw (see {@link StaticBatcher}). Can be called on any thread.
+   * Sub-objects can be hidden at any time through {@link StaticBatcher.Result} (followed by
+   * {@link FrameScheduler#requestFrame}, so the change gets drawn).
+   */
+  public void setStaticBatchesToRender(StaticBatcher.Result batches) {
+    staticBatches = batches;
+    frameScheduler.requestFrame();
   }
 
   // Can be called on any thread.
@@ -164,5 +680,8 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     // the GL thread will notice it on the next frame.
     objectToRender = rawObject;
     Log.d(TAG, "Received raw object to render.");
+    // Draw the object as soon as possible, and keep drawing while it spins.
+    frameScheduler.requestFrame();
+    if (spinEnabled) frameScheduler.startAnimation(SPIN_ANIMATION);
   }
 }
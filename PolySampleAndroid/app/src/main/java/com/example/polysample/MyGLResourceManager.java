@@ -0,0 +1,363 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the GPU resources used by the renderer and how much memory they take.
+ *
+ * There are two kinds of resources:
+ *
+ * - Meshes ({@link ManagedMesh}), which are reference counted and always have a CPU copy (the
+ *   {@link RawObject}). Their GPU copy is created when they are first drawn, and may be evicted
+ *   (least recently drawn first) when the memory budget is exceeded; it is then re-uploaded from
+ *   the CPU copy the next time the mesh is drawn. Meshes are allocated in a {@link MyBufferArena}.
+ *   The budget counts the arena's pages, used or not, since that is what takes GPU memory; so
+ *   meshes are evicted a whole page at a time (a page is only freed once it's empty).
+ *
+ * - Other GL objects (buffers, textures, programs), which are just tracked with their size with
+ *   {@link #track} so they count towards the total, and deleted by {@link #deleteAll}.
+ *
+ * When the GL context is lost, every handle becomes stale: {@link #onContextCreated} forgets all
+ * of them (without deleting anything, since they're already gone) and meshes are re-uploaded from
+ * their CPU copies as they are drawn again.
+ *
+ * Must be used on the GL thread.
+ */
+public class MyGLResourceManager {
+  private static final String TAG = "PolySample";
+
+  /** Resource types, for {@link #track}. */
+  public static final int TYPE_BUFFER = 0;
+  public static final int TYPE_TEXTURE = 1;
+  public static final int TYPE_PROGRAM = 2;
+
+  // Size of the pages of the buffer arena, in vertices and indices.
+  private static final int ARENA_VERTICES_PER_PAGE = MyBufferArena.MAX_VERTICES_PER_PAGE;
+  private static final int ARENA_INDICES_PER_PAGE = 3 * MyBufferArena.MAX_VERTICES_PER_PAGE;
+
+  // The GL state cache, and the GL backend.
+  private final MyGLStateCache stateCache;
+  private final MyGL gl;
+
+  // Memory budget for meshes and tracked resources, in bytes.
+  private long budgetBytes;
+
+  // Arena in which we allocate the meshes. Recreated with each GL context.
+  private MyBufferArena arena;
+
+  // All the meshes (resident or not) that haven't been released.
+  private final ArrayList<ManagedMesh> meshes = new ArrayList<>();
+
+  // Other tracked GL objects: type -> (handle -> size in bytes).
+  private final ArrayList<HashMap<Integer, Long>> trackedResources = new ArrayList<>();
+
+  // Bytes taken by the meshes that are currently on the GPU.
+  private long residentMeshBytes;
+
+  // Bytes taken by the other tracked GL objects.
+  private long trackedBytes;
+
+  // Current frame number, used to know when each mesh was last drawn.
+  private long frameNumber;
+
+  // Profiler to which the time spent uploading meshes is attributed, or null.
+  private FrameProfiler profiler;
+
+  // Statistics.
+  private int uploadCount;
+  private int evictionCount;
+
+  /**
+   * Creates a resource manager.
+   * @param stateCache The GL state cache.
+   * @param budgetBytes Memory budget, in bytes. When exceeded, meshes are evicted.
+   */
+  public MyGLResourceManager(MyGLStateCache stateCache, long budgetBytes) {
+    this.stateCache = stateCache;
+    gl = stateCache.getGl();
+    this.budgetBytes = budgetBytes;
+    for (int type = TYPE_BUFFER; type <= TYPE_PROGRAM; type++) {
+      trackedResources.add(new HashMap<Integer, Long>());
+    }
+  }
+
+  /** Sets the profiler to attribute the time spent uploading meshes to (or null for none). */
+  public void setProfiler(FrameProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /** Sets the memory budget, in bytes. Takes effect at the end of the next frame. */
+  public void setBudgetBytes(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Must be called whenever a GL context is created (in onSurfaceCreated), after the state
+   * cache was invalidated. All the handles of the previous context (if any) are forgotten.
+   */
+  public void onContextCreated() {
+    if (arena != null) {
+      Log.d(TAG, "GL context recreated. Forgetting " + arena.getMeshCount() + " meshes and " +
+          trackedBytes + " bytes of other resources.");
+    }
+    arena = new MyBufferArena(stateCache, ARENA_VERTICES_PER_PAGE, ARENA_INDICES_PER_PAGE);
+    for (ManagedMesh mesh : meshes) {
+      // The GPU copy is gone with the old context. It will be uploaded again when drawn.
+      mesh.mesh = null;
+    }
+    for (HashMap<Integer, Long> resources : trackedResources) {
+      resources.clear();
+    }
+    residentMeshBytes = 0;
+    trackedBytes = 0;
+  }
+
+  /**
+   * Creates a managed mesh for the given raw object, with a reference count of 1. The GPU copy
+   * is created when the mesh is first drawn.
+   */
+  public ManagedMesh createMesh(RawObject rawObject) {
+    ManagedMesh mesh = new ManagedMesh(rawObject);
+    meshes.add(mesh);
+    return mesh;
+  }
+
+  /** Must be called at the start of each frame. */
+  public void beginFrame() {
+    ++frameNumber;
+  }
+
+  /**
+   * Returns the GPU copy of the given mesh, ready to be drawn, uploading it if needed.
+   * Also records that the mesh was drawn this frame, so it won't be evicted this frame.
+   */
+  public MyMesh getMeshForDrawing(ManagedMesh mesh) {
+    if (mesh.refCount <= 0) throw new IllegalStateException("Mesh was released.");
+    if (mesh.mesh == null) {
+      int previousPhase = profiler != null ? profiler.beginPhase(FrameProfiler.PHASE_UPLOAD) : 0;
+      mesh.mesh = arena.allocate(mesh.rawObject);
+      if (profiler != null) profiler.beginPhase(previousPhase);
+      residentMeshBytes += mesh.sizeBytes;
+      ++uploadCount;
+    }
+    mesh.lastDrawnFrame = frameNumber;
+    return mesh.mesh;
+  }
+
+  /**
+   * Must be called at the end of each frame. If the budget is exceeded, evicts the meshes of the
+   * arena page (or the mesh with its own buffers) that was drawn least recently, until the
+   * budget is met. Pages with a mesh drawn this frame are never evicted.
+   */
+  public void endFrame() {
+    while (getTotalBytes() > budgetBytes) {
+      // Evicting only some of the meshes of a page wouldn't give any memory back, so find the
+      // buffers whose meshes were all drawn the longest ago.
+      HashMap<MyVertexBuffers, Long> lastDrawnFrames = new HashMap<>();
+      for (ManagedMesh mesh : meshes) {
+        if (mesh.mesh == null) continue;
+        Long lastDrawnFrame = lastDrawnFrames.get(mesh.mesh.getBuffers());
+        if (lastDrawnFrame == null || mesh.lastDrawnFrame > lastDrawnFrame) {
+          lastDrawnFrames.put(mesh.mesh.getBuffers(), mesh.lastDrawnFrame);
+        }
+      }
+      MyVertexBuffers leastRecentlyDrawn = null;
+      long leastRecentFrame = frameNumber;
+      for (Map.Entry<MyVertexBuffers, Long> entry : lastDrawnFrames.entrySet()) {
+        if (entry.getValue() < leastRecentFrame) {
+          leastRecentlyDrawn = entry.getKey();
+          leastRecentFrame = entry.getValue();
+        }
+      }
+      // Nothing left that we can evict.
+      if (leastRecentlyDrawn == null) break;
+      for (ManagedMesh mesh : meshes) {
+        if (mesh.mesh == null || mesh.mesh.getBuffers() != leastRecentlyDrawn) continue;
+        evict(mesh);
+        ++evictionCount;
+      }
+    }
+  }
+
+  /** Packs the arena's pages after meshes were released (see {@link MyBufferArena#defragment}). */
+  public void defragment() {
+    int previousPhase = profiler != null ? profiler.beginPhase(FrameProfiler.PHASE_UPLOAD) : 0;
+    arena.defragment();
+    if (profiler != null) profiler.beginPhase(previousPhase);
+  }
+
+  /**
+   * Starts tracking a GL object (other than a mesh) that was created by someone else.
+   * @param type The type of resource: {@link #TYPE_BUFFER}, {@link #TYPE_TEXTURE} or
+   *     {@link #TYPE_PROGRAM}.
+   * @param handle The GL handle.
+   * @param sizeBytes The memory it takes, in bytes.
+   */
+  public void track(int type, int handle, long sizeBytes) {
+    Long previous = trackedResources.get(type).put(handle, sizeBytes);
+    if (previous != null) trackedBytes -= previous;
+    trackedBytes += sizeBytes;
+  }
+
+  /**
+   * Stops tracking a GL object that was deleted by whoever created it.
+   * @param type The type of resource, as given to {@link #track}.
+   * @param handle The GL handle.
+   */
+  public void untrack(int type, int handle) {
+    Long previous = trackedResources.get(type).remove(handle);
+    if (previous != null) trackedBytes -= previous;
+  }
+
+  /** Starts tracking the given program, with its size as reported by the driver (if possible). */
+  public void trackProgram(int program) {
+    long sizeBytes = 0;
+    if (stateCache.isVaoSupported()) {
+      // On ES 3 the size of the program binary is a good estimate of the memory it takes.
+      int[] length = new int[1];
+      gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+      sizeBytes = length[0];
+    }
+    track(TYPE_PROGRAM, program, sizeBytes);
+  }
+
+  /** Deletes every mesh's GPU copy and every tracked GL object. */
+  public void deleteAll() {
+    for (ManagedMesh mesh : meshes) {
+      if (mesh.mesh != null) evict(mesh);
+    }
+    arena.release();
+    for (int type = TYPE_BUFFER; type <= TYPE_PROGRAM; type++) {
+      for (int handle : trackedResources.get(type).keySet()) {
+        deleteGlObject(type, handle);
+      }
+      trackedResources.get(type).clear();
+    }
+    trackedBytes = 0;
+  }
+
+  /**
+   * Returns the GPU memory taken by the buffer arena (its pages, used or not, and the meshes
+   * with their own buffers) and the tracked GL objects, in bytes.
+   */
+  public long getTotalBytes() {
+    return arena.getTotalBytes() + trackedBytes;
+  }
+
+  /** Returns the memory taken by resident meshes, in bytes. */
+  public long getResidentMeshBytes() {
+    return residentMeshBytes;
+  }
+
+  /**
+   * Returns the memory taken by the buffer arena's pages (used or not) and the meshes with their
+   * own buffers, in bytes.
+   */
+  public long getArenaBytes() {
+    return arena.getTotalBytes();
+  }
+
+  /** Returns how many times a mesh was uploaded to the GPU (including re-uploads). */
+  public int getUploadCount() {
+    return uploadCount;
+  }
+
+  /** Returns how many times a mesh was evicted from the GPU because of the budget. */
+  public int getEvictionCount() {
+    return evictionCount;
+  }
+
+  // Deletes the GPU copy of the given mesh. The CPU copy stays, so it can be uploaded again.
+  private void evict(ManagedMesh mesh) {
+    arena.free(mesh.mesh);
+    mesh.mesh = null;
+    residentMeshBytes -= mesh.sizeBytes;
+  }
+
+  // Called when a mesh's reference count drops to 0.
+  private void destroy(ManagedMesh mesh) {
+    if (mesh.mesh != null) evict(mesh);
+    meshes.remove(mesh);
+  }
+
+  // Deletes a GL object of the given type.
+  private void deleteGlObject(int type, int handle) {
+    int[] handles = new int[] { handle };
+    switch (type) {
+      case TYPE_BUFFER:
+        stateCache.notifyBufferDeleted(handle);
+        gl.glDeleteBuffers(1, handles, 0);
+        break;
+      case TYPE_TEXTURE:
+        gl.glDeleteTextures(1, handles, 0);
+        break;
+      case TYPE_PROGRAM:
+        gl.glDeleteProgram(handle);
+        break;
+    }
+  }
+
+  /**
+   * A reference-counted mesh whose GPU copy is managed by the resource manager. Use
+   * {@link #getMeshForDrawing} to get the GPU copy when drawing.
+   */
+  public class ManagedMesh {
+    // The CPU copy, used to (re-)upload the mesh.
+    private final RawObject rawObject;
+    // Size of the GPU copy, in bytes.
+    private final long sizeBytes;
+    // The GPU copy, or null if not resident.
+    private MyMesh mesh;
+    // Number of references.
+    private int refCount = 1;
+    // Frame in which the mesh was last drawn.
+    private long lastDrawnFrame;
+
+    private ManagedMesh(RawObject rawObject) {
+      this.rawObject = rawObject;
+      this.sizeBytes = MyVertexBuffers.computeSizeBytes(rawObject.vertexCount,
+          rawObject.indexCount);
+    }
+
+    /** Adds a reference. */
+    public void acquire() {
+      if (refCount <= 0) throw new IllegalStateException("Mesh was already released.");
+      ++refCount;
+    }
+
+    /** Removes a reference. When there are none left, the mesh is deleted. */
+    public void release() {
+      if (refCount <= 0) throw new IllegalStateException("Mesh was already released.");
+      if (--refCount == 0) destroy(this);
+    }
+
+    /** Returns the CPU copy of the mesh. */
+    public RawObject getRawObject() {
+      return rawObject;
+    }
+
+    /** Returns whether the mesh is currently on the GPU. */
+    public boolean isResident() {
+      return mesh != null;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Cache of the GL binding state.
+ *
+ * The driver does not skip redundant state changes for us: binding a program or a buffer that is
+ * already bound still costs a call into the driver. This class remembers what is currently bound
+ * and only forwards the calls that actually change something.
+ *
+ * All code on the GL thread that binds programs, buffers or vertex array objects must go through
+ * this class, otherwise the cache will be out of sync with the real GL state.
+ */
+public class MyGLStateCache {
+  private static final String TAG = "PolySample";
+
+  // Value used to indicate that we don't know what is bound (forces the next bind to go through).
+  private static final int UNKNOWN = -1;
+
+  // Maximum number of vertex attributes whose enabled state we track.
+  private static final int MAX_TRACKED_ATTRIBS = 16;
+
+  // The GL backend, through which all our GL calls go.
+  private final MyGL gl;
+
+  // Whether or not the current context is OpenGL ES 3.0 or above.
+  private boolean es3;
+
+  // Currently bound program, GL_ARRAY_BUFFER, GL_ELEMENT_ARRAY_BUFFER and vertex array object.
+  private int currentProgram = UNKNOWN;
+  private int currentArrayBuffer = UNKNOWN;
+  private int currentElementArrayBuffer = UNKNOWN;
+  private int currentVertexArray = UNKNOWN;
+  // Texture bound to GL_TEXTURE_2D on texture unit 0, the only one we use.
+  private int currentTexture2D = UNKNOWN;
+
+  // Enabled state of each vertex attribute array, and whether we know that state at all.
+  // This state lives in the bound VAO, so binding a different VAO makes it unknown.
+  private final boolean[] attribKnown = new boolean[MAX_TRACKED_ATTRIBS];
+  private final boolean[] attribEnabled = new boolean[MAX_TRACKED_ATTRIBS];
+
+  // The mesh whose attribute pointers are currently set up. Only used when VAOs are not
+  // supported, because in that case the vertex layout has to be re-specified on each switch.
+  private Object currentVertexLayout;
+
+  // Number of binds that were actually sent to GL, and number of binds that were skipped
+  // because they were redundant.
+  private int issuedBindCount;
+  private int skippedBindCount;
+
+  /** Creates a state cache for the given GL backend. */
+  public MyGLStateCache(MyGL gl) {
+    this.gl = gl;
+  }
+
+  /** Returns the GL backend. Code that uses this cache makes its other GL calls through it. */
+  public MyGL getGl() {
+    return gl;
+  }
+
+  /**
+   * Resets the cache. This must be called on the GL thread whenever the GL context is created
+   * (in onSurfaceCreated), because a new context starts with nothing bound.
+   */
+  public void invalidate() {
+    currentProgram = UNKNOWN;
+    currentArrayBuffer = UNKNOWN;
+    currentElementArrayBuffer = UNKNOWN;
+    currentVertexArray = UNKNOWN;
+    currentTexture2D = UNKNOWN;
+    currentVertexLayout = null;
+    for (int i = 0; i < attribEnabled.length; i++) {
+      // The context starts with all attribute arrays disabled.
+      attribKnown[i] = true;
+      attribEnabled[i] = false;
+    }
+    es3 = detectEs3();
+    Log.d(TAG, "GL state cache reset. ES 3 (VAOs, instancing): " + es3);
+  }
+
+  /** Returns whether vertex array objects can be used in the current context. */
+  public boolean isVaoSupported() {
+    return es3;
+  }
+
+  /** Returns whether instanced drawing (glDrawElementsInstanced) can be used. */
+  public boolean isInstancingSupported() {
+    return es3;
+  }
+
+  /** Returns whether the current context is OpenGL ES 3 or later. */
+  public boolean isEs3() {
+    return es3;
+  }
+
+  /** Binds the given program (glUseProgram), unless it's already bound. */
+  public void useProgram(int program) {
+    if (currentProgram == program) {
+      ++skippedBindCount;
+      return;
+    }
+    gl.glUseProgram(program);
+    currentProgram = program;
+    ++issuedBindCount;
+  }
+
+  /** Binds the given buffer to GL_ARRAY_BUFFER, unless it's already bound. */
+  public void bindArrayBuffer(int buffer) {
+    if (currentArrayBuffer == buffer) {
+      ++skippedBindCount;
+      return;
+    }
+    gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+    currentArrayBuffer = buffer;
+    ++issuedBindCount;
+  }
+
+  /**
+   * Binds the given buffer to GL_ELEMENT_ARRAY_BUFFER, unless it's already bound.
+   *
+   * Note that the element array buffer binding is part of the VAO state, so if a VAO is bound,
+   * this modifies the VAO. Without VAOs, it is part of the current vertex layout, which then no
+   * longer matches any mesh.
+   */
+  public void bindElementArrayBuffer(int buffer) {
+    if (currentElementArrayBuffer == buffer) {
+      ++skippedBindCount;
+      return;
+    }
+    gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffer);
+    currentElementArrayBuffer = buffer;
+    if (!es3) currentVertexLayout = null;
+    ++issuedBindCount;
+  }
+
+  /** Binds the given vertex array object, unless it's already bound. Requires VAO support. */
+  public void bindVertexArray(int vao) {
+    if (!es3) {
+      throw new IllegalStateException("Vertex array objects are not supported.");
+    }
+    if (currentVertexArray == vao) {
+      ++skippedBindCount;
+      return;
+    }
+    gl.glBindVertexArray(vao);
+    currentVertexArray = vao;
+    // The element array buffer binding and the enabled attribute arrays are part of the VAO,
+    // so we no longer know what they are.
+    currentElementArrayBuffer = UNKNOWN;
+    for (int i = 0; i < attribKnown.length; i++) {
+      attribKnown[i] = false;
+    }
+    ++issuedBindCount;
+  }
+
+  /**
+   * Binds the given texture to GL_TEXTURE_2D, unless it's already bound. We only use texture
+   * unit 0, which is the active unit by default, so we never call glActiveTexture.
+   */
+  public void bindTexture2D(int texture) {
+    if (currentTexture2D == texture) {
+      ++skippedBindCount;
+      return;
+    }
+    gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+    currentTexture2D = texture;
+    ++issuedBindCount;
+  }
+
+  /** Enables or disables the given vertex attribute array, unless it's already in that state. */
+  public void setVertexAttribArrayEnabled(int location, boolean enabled) {
+    if (location < attribEnabled.length && attribKnown[location]
+        && attribEnabled[location] == enabled) {
+      ++skippedBindCount;
+      return;
+    }
+    if (enabled) {
+      gl.glEnableVertexAttribArray(location);
+    } else {
+      gl.glDisableVertexAttribArray(location);
+    }
+    if (location < attribEnabled.length) {
+      attribKnown[location] = true;
+      attribEnabled[location] = enabled;
+    }
+    ++issuedBindCount;
+  }
+
+  /**
+   * Returns true if the attribute pointers of the given mesh are the ones currently set up.
+   * Only meaningful when VAOs are not supported.
+   */
+  public boolean isCurrentVertexLayout(Object mesh) {
+    return currentVertexLayout == mesh;
+  }
+
+  /** Records that the attribute pointers of the given mesh are now the ones set up. */
+  public void setCurrentVertexLayout(Object mesh) {
+    currentVertexLayout = mesh;
+  }
+
+  /**
+   * Must be called after code outside of this class left GL_ARRAY_BUFFER and
+   * GL_ELEMENT_ARRAY_BUFFER unbound (for example, {@link MyGLUtils#createVbo}).
+   */
+  public void notifyBuffersUnbound() {
+    currentArrayBuffer = 0;
+    currentElementArrayBuffer = 0;
+    if (!es3) currentVertexLayout = null;
+  }
+
+  /** Must be called before deleting a buffer, since deleting a bound buffer unbinds it. */
+  public void notifyBufferDeleted(int buffer) {
+    if (currentArrayBuffer == buffer) currentArrayBuffer = UNKNOWN;
+    if (currentElementArrayBuffer == buffer) {
+      currentElementArrayBuffer = UNKNOWN;
+      if (!es3) currentVertexLayout = null;
+    }
+  }
+
+  /** Must be called before deleting a texture, since deleting a bound texture unbinds it. */
+  public void notifyTextureDeleted(int texture) {
+    if (currentTexture2D == texture) currentTexture2D = UNKNOWN;
+  }
+
+  /** Must be called before deleting a VAO, since deleting the bound VAO unbinds it. */
+  public void notifyVertexArrayDeleted(int vao) {
+    if (currentVertexArray == vao) {
+      currentVertexArray = UNKNOWN;
+      currentElementArrayBuffer = UNKNOWN;
+    }
+  }
+
+  /** Returns the number of binds that were sent to GL. */
+  public int getIssuedBindCount() {
+    return issuedBindCount;
+  }
+
+  /** Returns the number of binds that were skipped because they were redundant. */
+  public int getSkippedBindCount() {
+    return skippedBindCount;
+  }
+
+  // Returns whether the context is OpenGL ES 3.0 or above, where VAOs and instancing are core.
+  // The OES_vertex_array_object extension isn't exposed by the Android Java bindings, so on
+  // ES 2.0 we go without VAOs.
+  private boolean detectEs3() {
+    if (!gl.hasEs3Bindings()) return false;
+    String version = gl.glGetString(GLES20.GL_VERSION);
+    return version != null && version.startsWith("OpenGL ES 3");
+  }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 
 package com.example.polysample;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
@@ -24,19 +25,68 @@ public class MyGLSurfaceView extends GLSurfaceView {
   // The renderer responsible for rendering the contents of this view.
   private final MyGLRenderer renderer;
 
+  // Decides when frames need to be rendered.
+  private final FrameScheduler frameScheduler;
+
+  // Paces the frames on vsync, at a target frame rate.
+  private final FramePacer framePacer;
+
+  // Adjusts the rendering quality to the device's performance and thermal status.
+  private final QualityGovernor qualityGovernor;
+
   public MyGLSurfaceView(Context context) {
     this(context, null);
   }
 
   public MyGLSurfaceView(Context context, AttributeSet attributeSet) {
     super(context, attributeSet);
-    // We want OpenGL ES 2.
-    setEGLContextClientVersion(2);
-    renderer = new MyGLRenderer();
+    // We want OpenGL ES 3 if the device supports it (for vertex array objects), otherwise ES 2.
+    // Our shaders are written for ES 2, so they work in both.
+    setEGLContextClientVersion(isEs3Supported(context) ? 3 : 2);
+    // Frames requested by the scheduler go through the pacer, which renders them on vsync at
+    // the target frame rate.
+    framePacer = new FramePacer(new FrameScheduler.RenderRequester() {
+      @Override
+      public void requestRender() {
+        MyGLSurfaceView.this.requestRender();
+      }
+    }, FramePacer.FRAME_RATE_60_HZ);
+    frameScheduler = new FrameScheduler(framePacer);
+    // The frame time budget is the time between frames at the target frame rate.
+    qualityGovernor = new QualityGovernor(QualityGovernor.SYSTEM_CLOCK,
+        new PowerManagerThermalStatusSource(context),
+        1000000000L / framePacer.getTargetFrameRate());
+    // GL calls go straight to GLES. Linked shader programs are cached in the app's cache
+    // directory.
+    renderer = new MyGLRenderer(new MyGLES(), frameScheduler, framePacer, qualityGovernor,
+        new MyProgramCache(context.getCacheDir()));
     setRenderer(renderer);
+    // Only render when something changes (the frame scheduler asks for frames), rather than on
+    // every vsync, to save power when the image doesn't change.
+    setRenderMode(RENDERMODE_WHEN_DIRTY);
   }
 
   public MyGLRenderer getRenderer() {
     return renderer;
   }
+
+  public FrameScheduler getFrameScheduler() {
+    return frameScheduler;
+  }
+
+  public FramePacer getFramePacer() {
+    return framePacer;
+  }
+
+  public QualityGovernor getQualityGovernor() {
+    return qualityGovernor;
+  }
+
+  // Returns whether the device supports OpenGL ES 3.0.
+  private static boolean isEs3Supported(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    return activityManager != null &&
+        activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+  }
 }
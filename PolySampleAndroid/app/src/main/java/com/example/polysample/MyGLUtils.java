@@ -30,51 +30,58 @@ public class MyGLUtils {
   public static final int COORDS_PER_VERTEX = 3;
   public static final int NUM_COLOR_COMPONENTS = 4; // r, g, b, a
 
-  public static int loadShader(int type, String shaderCode) {
+  // Fixed vertex attribute locations. All shaders bind their attributes to these locations
+  // before linking, so that a mesh's vertex layout (and VAO) works with any of them.
+  public static final int ATTRIB_POSITION = 0;
+  public static final int ATTRIB_COLOR = 1;
+  // Per-instance model matrix. A mat4 attribute takes 4 consecutive locations (one per column).
+  public static final int ATTRIB_MODEL_MATRIX = 2;
+
+  public static int loadShader(MyGL gl, int type, String shaderCode) {
     // create a vertex shader type (GLES20.GL_VERTEX_SHADER)
     // or a fragment shader type (GLES20.GL_FRAGMENT_SHADER)
-    int shader = GLES20.glCreateShader(type);
+    int shader = gl.glCreateShader(type);
 
     // add the source code to the shader and compile it
-    GLES20.glShaderSource(shader, shaderCode);
-    GLES20.glCompileShader(shader);
-    MyGLUtils.checkGlError("compile shader");
+    gl.glShaderSource(shader, shaderCode);
+    gl.glCompileShader(shader);
+    checkGlError(gl, "compile shader");
     int[] status = new int[1];
-    GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+    gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
     if (status[0] != GLES20.GL_TRUE) {
       Log.e(TAG, "Shader compile error!");
-      Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
+      Log.e(TAG, gl.glGetShaderInfoLog(shader));
     }
     return shader;
   }
 
-  public static void checkGlError(String glOperation) {
+  public static void checkGlError(MyGL gl, String glOperation) {
     int error;
-    while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+    while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) {
       Log.e(TAG, glOperation + ": glError " + error);
       throw new RuntimeException(glOperation + ": glError " + error);
     }
   }
 
-  public static int createVbo(FloatBuffer data) {
+  public static int createVbo(MyGL gl, FloatBuffer data) {
     int[] vbos = new int[1];
     data.position(0);
-    GLES20.glGenBuffers(1, vbos, 0);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[0]);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * MyGLUtils.FLOAT_SIZE, data,
+    gl.glGenBuffers(1, vbos, 0);
+    gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[0]);
+    gl.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * MyGLUtils.FLOAT_SIZE, data,
         GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     return vbos[0];
   }
 
-  public static int createIbo(ShortBuffer data) {
+  public static int createIbo(MyGL gl, ShortBuffer data) {
     int[] ibos = new int[1];
     data.position(0);
-    GLES20.glGenBuffers(1, ibos, 0);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibos[0]);
-    GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, data.capacity() * MyGLUtils.SHORT_SIZE,
+    gl.glGenBuffers(1, ibos, 0);
+    gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibos[0]);
+    gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, data.capacity() * MyGLUtils.SHORT_SIZE,
         data, GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     return ibos[0];
   }
 }
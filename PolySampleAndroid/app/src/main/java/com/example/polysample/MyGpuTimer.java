@@ -0,0 +1,138 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Measures the GPU time of frames, with timer queries (the EXT_disjoint_timer_query extension).
+ *
+ * The extension needs OpenGL ES 3 (for the query functions) and isn't available on every device;
+ * when it isn't, the timer does nothing and {@link #isSupported} returns false.
+ *
+ * The GPU runs a frame or two behind the CPU, so a query's result isn't available at the end of
+ * the frame it measures. Waiting for it would stall the pipeline, so the queries are kept in a
+ * small ring: each frame uses the next query, and we collect the results of the previous ones
+ * that are ready, without waiting.
+ *
+ * If the GPU was disjoint (e.g. its clock changed, or another app used it) while queries were
+ * in flight, their results are meaningless and are dropped.
+ *
+ * Must be used on the GL thread. The timer belongs to the GL context it was created in.
+ */
+public class MyGpuTimer {
+  private static final String TAG = "PolySample";
+
+  // Name of the extension, and the constants it defines (not in GLES30).
+  private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+  // Number of queries in the ring. The GPU is rarely more than 2-3 frames behind.
+  private static final int QUERY_COUNT = 4;
+
+  // The GL backend.
+  private final MyGL gl;
+
+  // Whether timer queries are supported.
+  private final boolean supported;
+
+  // The queries, and whether each one is waiting for its result.
+  private final int[] queries = new int[QUERY_COUNT];
+  private final boolean[] pending = new boolean[QUERY_COUNT];
+
+  // Next query to use, and oldest query that may be waiting for its result.
+  private int nextQuery;
+  private int oldestQuery;
+
+  // Whether a query is running (between beginFrame and endFrame).
+  private boolean running;
+
+  // Temporary storage for query results.
+  private final int[] tmpResult = new int[1];
+
+  /**
+   * Creates a timer, checking whether the current GL context supports timer queries.
+   * @param stateCache The GL state cache, which knows the context's version.
+   */
+  public MyGpuTimer(MyGLStateCache stateCache) {
+    gl = stateCache.getGl();
+    String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+    supported = stateCache.isEs3() && extensions != null && extensions.contains(EXTENSION);
+    if (supported) {
+      gl.glGenQueries(QUERY_COUNT, queries, 0);
+      MyGLUtils.checkGlError(gl, "create timer queries");
+    }
+    Log.d(TAG, "GPU timer queries " + (supported ? "supported." : "not supported."));
+  }
+
+  /** Returns whether GPU times can be measured. */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /** Starts measuring the GPU time of the commands that follow. */
+  public void beginFrame() {
+    if (!supported || running) return;
+    if (pending[nextQuery]) {
+      // The GPU is so far behind that the ring is full: give up on the oldest result.
+      pending[nextQuery] = false;
+      oldestQuery = (oldestQuery + 1) % QUERY_COUNT;
+    }
+    gl.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[nextQuery]);
+    running = true;
+  }
+
+  /** Stops measuring. The result will be collected by {@link #collectResults} later. */
+  public void endFrame() {
+    if (!running) return;
+    gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+    pending[nextQuery] = true;
+    nextQuery = (nextQuery + 1) % QUERY_COUNT;
+    running = false;
+  }
+
+  /**
+   * Records the GPU times of the frames whose results are ready in the given profiler, oldest
+   * first. Doesn't wait for results that aren't ready.
+   */
+  public void collectResults(FrameProfiler profiler) {
+    if (!supported) return;
+    gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, tmpResult, 0);
+    boolean disjoint = tmpResult[0] != 0;
+    while (pending[oldestQuery]) {
+      int query = queries[oldestQuery];
+      if (!disjoint) {
+        gl.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, tmpResult, 0);
+        // Results become available in order, so the next ones aren't ready either.
+        if (tmpResult[0] == 0) break;
+        gl.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, tmpResult, 0);
+        // The result is an unsigned 32-bit number of nanoseconds.
+        profiler.recordGpuTime(tmpResult[0] & 0xFFFFFFFFL);
+      }
+      pending[oldestQuery] = false;
+      oldestQuery = (oldestQuery + 1) % QUERY_COUNT;
+    }
+  }
+
+  /** Deletes the queries. */
+  public void release() {
+    if (!supported) return;
+    if (running) endFrame();
+    gl.glDeleteQueries(QUERY_COUNT, queries, 0);
+  }
+}
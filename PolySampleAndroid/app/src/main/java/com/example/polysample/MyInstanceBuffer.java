@@ -0,0 +1,121 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Per-instance data for instanced drawing: one model matrix per instance.
+ *
+ * The matrices are filled in on the CPU every frame with {@link #clear()} and {@link #add}, then
+ * uploaded to a single VBO with one {@link #upload} call, no matter how many instances there are.
+ *
+ * Must be used on the GL thread.
+ */
+public class MyInstanceBuffer {
+  /** Number of floats per instance (a 4x4 model matrix). */
+  public static final int FLOATS_PER_INSTANCE = 16;
+
+  // Maximum number of instances.
+  private final int capacity;
+
+  // The model matrices of the instances, in column-major order, one after the other.
+  private final float[] matrices;
+
+  // Direct buffer used to upload the matrices to the VBO.
+  private final FloatBuffer uploadBuffer;
+
+  // Number of instances currently in the buffer.
+  private int instanceCount;
+
+  // Handle of the VBO, or 0 if not created yet.
+  private int vbo;
+
+  /** Creates an instance buffer that can hold up to the given number of instances. */
+  public MyInstanceBuffer(int capacity) {
+    this.capacity = capacity;
+    matrices = new float[capacity * FLOATS_PER_INSTANCE];
+    uploadBuffer = ByteBuffer
+        .allocateDirect(MyGLUtils.FLOAT_SIZE * matrices.length)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+
+  /** Removes all instances. */
+  public void clear() {
+    instanceCount = 0;
+  }
+
+  /**
+   * Adds an instance.
+   * @param modelMatrix The array that contains the instance's model matrix.
+   * @param offset The offset of the model matrix in the array.
+   */
+  public void add(float[] modelMatrix, int offset) {
+    if (instanceCount >= capacity) {
+      throw new IllegalStateException("Instance buffer is full (capacity " + capacity + ").");
+    }
+    System.arraycopy(modelMatrix, offset, matrices, instanceCount * FLOATS_PER_INSTANCE,
+        FLOATS_PER_INSTANCE);
+    ++instanceCount;
+  }
+
+  /** Returns the number of instances. */
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  /** Returns the maximum number of instances. */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the array of model matrices. The model matrix of instance i starts at
+   * i * {@link #FLOATS_PER_INSTANCE}.
+   */
+  public float[] getMatrices() {
+    return matrices;
+  }
+
+  /** Returns the handle of the VBO. Only valid after {@link #upload} was called. */
+  public int getVbo() {
+    return vbo;
+  }
+
+  /** Uploads the instances to the VBO. Should be called once per frame, after adding instances. */
+  public void upload(MyGLStateCache stateCache) {
+    MyGL gl = stateCache.getGl();
+    if (vbo == 0) {
+      int[] vbos = new int[1];
+      gl.glGenBuffers(1, vbos, 0);
+      vbo = vbos[0];
+    }
+    uploadBuffer.position(0);
+    uploadBuffer.put(matrices, 0, instanceCount * FLOATS_PER_INSTANCE);
+    uploadBuffer.position(0);
+    stateCache.bindArrayBuffer(vbo);
+    // Re-specify the whole buffer rather than updating it in place: this lets the driver give us
+    // fresh storage instead of waiting for the previous frame's draws to finish with the old one.
+    gl.glBufferData(GLES20.GL_ARRAY_BUFFER,
+        instanceCount * FLOATS_PER_INSTANCE * MyGLUtils.FLOAT_SIZE, uploadBuffer,
+        GLES20.GL_STREAM_DRAW);
+    MyGLUtils.checkGlError(gl, "upload instances");
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+
+/**
+ * Unlit shader that draws many copies (instances) of the same mesh.
+ *
+ * Same as {@link MyShader}, except that the model matrix comes from a per-instance vertex
+ * attribute. On OpenGL ES 3 all instances are drawn with a single glDrawElementsInstanced call.
+ * On OpenGL ES 2 we fall back to one glDrawElements per instance, setting the model matrix as
+ * a constant attribute value; the program and mesh are still only bound once.
+ */
+public class MyInstancedShader {
+  // Source code for the vertex shader.
+  private static final String VERTEX_SHADER_SOURCE =
+      // View-projection matrix (combined view and projection matrices).
+      "uniform mat4 uViewProjMatrix;\n" +
+      // Position attribute (position of the vertex in object space).
+      "attribute vec4 aPosition;\n" +
+      // Vertex color attribute.
+      "attribute vec4 aColor;\n" +
+      // Model matrix of the instance.
+      "attribute mat4 aModelMatrix;\n" +
+      // Vertex color varying (used to pass the vertex color to the fragment shader).
+      "varying vec4 vColor;\n" +
+      "void main() {\n" +
+      "  vColor = aColor;\n" +
+      "  gl_Position = uViewProjMatrix * aModelMatrix * aPosition;\n" +
+      "}\n";
+
+  private static final String FRAGMENT_SHADER_SOURCE =
+      "precision mediump float;\n" +
+      // Color (received from vertex shader).
+      "varying vec4 vColor;\n" +
+      "void main() {\n" +
+      "  gl_FragColor = vColor;\n" +
+      "}\n";
+
+  /** The program's source, for the {@link MyProgramCache}. */
+  public static final MyProgramCache.ProgramSource PROGRAM_SOURCE =
+      new MyProgramCache.ProgramSource("unlit instanced", VERTEX_SHADER_SOURCE,
+          FRAGMENT_SHADER_SOURCE, new String[] { "aPosition", "aColor", "aModelMatrix" },
+          new int[] {
+              MyGLUtils.ATTRIB_POSITION, MyGLUtils.ATTRIB_COLOR, MyGLUtils.ATTRIB_MODEL_MATRIX });
+
+  // Number of attribute locations taken by the mat4 model matrix attribute (one per column).
+  private static final int MODEL_MATRIX_COLUMNS = 4;
+
+  // The GL state cache, through which we bind the program.
+  private final MyGLStateCache stateCache;
+  // The GL backend.
+  private final MyGL gl;
+  // Handle to the program (vertex shader + fragment shader).
+  private int program;
+  // Handle to the uViewProjMatrix uniform.
+  private int viewProjMatrixHandle;
+
+  /**
+   * Creates the shader. The program comes from the program cache, which loads its binary or
+   * compiles and links it if needed.
+   */
+  public MyInstancedShader(MyGLStateCache stateCache, MyProgramCache programCache) {
+    this.stateCache = stateCache;
+    gl = stateCache.getGl();
+    program = programCache.getProgram(PROGRAM_SOURCE);
+
+    viewProjMatrixHandle = gl.glGetUniformLocation(program, "uViewProjMatrix");
+    MyGLUtils.checkGlError(gl, "get handles");
+  }
+
+  /** Returns the handle of the program. */
+  public int getProgram() {
+    return program;
+  }
+
+  /**
+   * Renders one copy of the mesh for each instance in the instance buffer.
+   * @param viewProjMatrix The view-projection matrix.
+   * @param mesh The mesh to render.
+   * @param firstIndex The first index of the mesh to draw (0 is the mesh's first index).
+   * @param indexCount The number of indices to draw.
+   * @param instances The instances. Must have been uploaded already (this frame), if
+   *     instancing is supported.
+   * @return The number of draw calls issued.
+   */
+  public int render(float[] viewProjMatrix, MyMesh mesh, int firstIndex, int indexCount,
+      MyInstanceBuffer instances) {
+    if (instances.getInstanceCount() == 0) return 0;
+    stateCache.useProgram(program);
+    mesh.bind(stateCache);
+    gl.glUniformMatrix4fv(viewProjMatrixHandle, 1, false, viewProjMatrix, 0);
+
+    if (stateCache.isInstancingSupported()) {
+      // Feed the model matrices from the instance VBO, advancing one matrix per instance.
+      stateCache.bindArrayBuffer(instances.getVbo());
+      int stride = MyInstanceBuffer.FLOATS_PER_INSTANCE * MyGLUtils.FLOAT_SIZE;
+      for (int i = 0; i < MODEL_MATRIX_COLUMNS; i++) {
+        int location = MyGLUtils.ATTRIB_MODEL_MATRIX + i;
+        stateCache.setVertexAttribArrayEnabled(location, true);
+        gl.glVertexAttribPointer(location, 4, GLES20.GL_FLOAT, false, stride,
+            /* offset of column i */ i * 4 * MyGLUtils.FLOAT_SIZE);
+        gl.glVertexAttribDivisor(location, 1);
+      }
+      gl.glDrawElementsInstanced(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT,
+          mesh.getIndexOffsetBytes(firstIndex), instances.getInstanceCount());
+    } else {
+      // No instancing: the model matrix attribute arrays stay disabled, so the attribute takes
+      // the constant value we set with glVertexAttrib4fv, which we change before each draw.
+      for (int i = 0; i < MODEL_MATRIX_COLUMNS; i++) {
+        stateCache.setVertexAttribArrayEnabled(MyGLUtils.ATTRIB_MODEL_MATRIX + i, false);
+      }
+      float[] matrices = instances.getMatrices();
+      for (int instance = 0; instance < instances.getInstanceCount(); instance++) {
+        int offset = instance * MyInstanceBuffer.FLOATS_PER_INSTANCE;
+        for (int i = 0; i < MODEL_MATRIX_COLUMNS; i++) {
+          gl.glVertexAttrib4fv(MyGLUtils.ATTRIB_MODEL_MATRIX + i, matrices, offset + i * 4);
+        }
+        gl.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT,
+            mesh.getIndexOffsetBytes(firstIndex));
+      }
+    }
+    MyGLUtils.checkGlError(gl, "render instanced");
+    return stateCache.isInstancingSupported() ? 1 : instances.getInstanceCount();
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+/**
+ * A mesh that lives in GPU memory (the OpenGL counterpart of a {@link RawObject}).
+ *
+ * The mesh is a range of indices in a set of {@link MyVertexBuffers}. The buffers can be the
+ * mesh's own, or shared with other meshes (see {@link MyBufferArena}); in the latter case,
+ * meshes that share buffers can be drawn one after the other without rebinding anything.
+ *
+ * All methods must be called on the GL thread.
+ */
+public class MyMesh {
+  // The buffers that hold the mesh.
+  private final MyVertexBuffers buffers;
+
+  // Whether the buffers belong to this mesh alone (as opposed to being shared).
+  private final boolean ownsBuffers;
+
+  // Position of the mesh's first index in the IBO.
+  private int firstIndex;
+
+  // Number of indices of the mesh.
+  private final int indexCount;
+
+  /**
+   * Creates the mesh in its own buffers, uploading the data of the given raw object to the GPU.
+   * @param rawObject The raw object to upload.
+   * @param stateCache The GL state cache.
+   */
+  public MyMesh(RawObject rawObject, MyGLStateCache stateCache) {
+    this.buffers = new MyVertexBuffers(rawObject, stateCache);
+    this.ownsBuffers = true;
+    this.firstIndex = 0;
+    this.indexCount = rawObject.indexCount;
+  }
+
+  /**
+   * Creates a mesh that lives in shared buffers. The buffers must already contain the mesh.
+   * @param buffers The shared buffers.
+   * @param firstIndex Position of the mesh's first index in the IBO.
+   * @param indexCount Number of indices of the mesh.
+   */
+  MyMesh(MyVertexBuffers buffers, int firstIndex, int indexCount) {
+    this.buffers = buffers;
+    this.ownsBuffers = false;
+    this.firstIndex = firstIndex;
+    this.indexCount = indexCount;
+  }
+
+  /**
+   * Binds the mesh for drawing: after this call, glDrawElements can be used to draw the mesh
+   * (starting at {@link #getFirstIndex()}).
+   * @param stateCache The GL state cache.
+   */
+  public void bind(MyGLStateCache stateCache) {
+    buffers.bind(stateCache);
+  }
+
+  /** Returns the position of the mesh's first index in the IBO. */
+  public int getFirstIndex() {
+    return firstIndex;
+  }
+
+  /** Returns the byte offset in the IBO of the given index of the mesh (0 is the first index). */
+  public int getIndexOffsetBytes(int index) {
+    return (firstIndex + index) * MyGLUtils.SHORT_SIZE;
+  }
+
+  /** Returns the number of indices in the mesh. */
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  /** Returns the buffers that hold the mesh. */
+  public MyVertexBuffers getBuffers() {
+    return buffers;
+  }
+
+  /** Returns whether the mesh has its own buffers (as opposed to living in shared buffers). */
+  public boolean ownsBuffers() {
+    return ownsBuffers;
+  }
+
+  /**
+   * Deletes the mesh's own buffers. Meshes in shared buffers must be freed through whatever
+   * allocated them instead (see {@link MyBufferArena#free}).
+   */
+  public void release(MyGLStateCache stateCache) {
+    if (!ownsBuffers) {
+      throw new IllegalStateException("Mesh lives in shared buffers, can't release it directly.");
+    }
+    buffers.release(stateCache);
+  }
+
+  // Called when the mesh is moved to a different place in its shared buffers.
+  void relocate(int newFirstIndex) {
+    firstIndex = newFirstIndex;
+  }
+}
@@ -0,0 +1,381 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Creates the shader programs, and caches their linked binaries on disk so that later launches
+ * (and new GL contexts) don't have to compile them again.
+ *
+ * Each program is described by a {@link ProgramSource}. When a program is needed, we look for a
+ * binary of it (from glGetProgramBinary) in the cache directory, keyed by a hash of its source.
+ * The binary is only valid for the driver that produced it, so the file also records the
+ * driver's identity (vendor, renderer and version strings); if it doesn't match, or if the
+ * driver rejects the binary, the program is compiled from source and the binary replaced.
+ * Writing binaries to disk happens on a background thread.
+ *
+ * Programs that aren't needed yet (e.g. variants for features that are off) can be queued with
+ * {@link #precompileLater}; {@link #precompileNext} then prepares them one at a time, between
+ * frames, so they are ready by the time they are needed without slowing down startup.
+ *
+ * Program binaries need OpenGL ES 3 (on ES 2, OES_get_program_binary isn't exposed by the Java
+ * bindings); without it, programs are always compiled from source.
+ *
+ * Must be used on the GL thread. Programs belong to the GL context they were created in: call
+ * {@link #onContextCreated} when a new context is created.
+ */
+public class MyProgramCache {
+  private static final String TAG = "PolySample";
+
+  /** The source of a shader program, and the locations of its attributes. */
+  public static class ProgramSource {
+    private final String name;
+    private final String vertexSource;
+    private final String fragmentSource;
+    private final String[] attributeNames;
+    private final int[] attributeLocations;
+
+    // Hash of all the above, used as the cache key. Computed on first use.
+    private String key;
+
+    /**
+     * Creates a program source.
+     * @param name Name of the program, for logs.
+     * @param vertexSource Source of the vertex shader.
+     * @param fragmentSource Source of the fragment shader.
+     * @param attributeNames Names of the attributes to bind to fixed locations before linking.
+     * @param attributeLocations Their locations (see MyGLUtils.ATTRIB_*).
+     */
+    public ProgramSource(String name, String vertexSource, String fragmentSource,
+        String[] attributeNames, int[] attributeLocations) {
+      if (attributeNames.length != attributeLocations.length) {
+        throw new IllegalArgumentException("Attribute names and locations don't match.");
+      }
+      this.name = name;
+      this.vertexSource = vertexSource;
+      this.fragmentSource = fragmentSource;
+      this.attributeNames = attributeNames;
+      this.attributeLocations = attributeLocations;
+    }
+
+    /** Returns the name of the program. */
+    public String getName() {
+      return name;
+    }
+
+    // Returns a hash of everything that goes into the program, in hex.
+    private synchronized String getKey() {
+      if (key == null) {
+        StringBuilder description = new StringBuilder();
+        description.append(vertexSource).append('\0').append(fragmentSource);
+        for (int i = 0; i < attributeNames.length; i++) {
+          description.append('\0').append(attributeNames[i]).append('=')
+              .append(attributeLocations[i]);
+        }
+        key = sha1Hex(description.toString());
+      }
+      return key;
+    }
+  }
+
+  // Name of the directory (in the cache directory) where the binaries go, and their extension.
+  private static final String DIRECTORY_NAME = "program_binaries";
+  private static final String FILE_EXTENSION = ".bin";
+
+  // Identifies our binary files (and their format version).
+  private static final int FILE_MAGIC = 0x50534231;  // "PSB1"
+
+  // Larger files are certainly not ours.
+  private static final int MAX_BINARY_BYTES = 4 * 1024 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Where the binaries are stored.
+  private final File directory;
+
+  // The GL backend of the current context.
+  private MyGL gl;
+
+  // Programs created in the current context, by cache key.
+  private final HashMap<String, Integer> programs = new HashMap<>();
+
+  // Programs to prepare between frames.
+  private final ArrayDeque<ProgramSource> precompileQueue = new ArrayDeque<>();
+
+  // Whether the current context supports program binaries, and the driver's identity.
+  private boolean binariesSupported;
+  private String driverId = "";
+
+  // Statistics.
+  private int binaryLoadCount;
+  private int compileCount;
+
+  /**
+   * Creates a program cache.
+   * @param cacheDirectory The app's cache directory. Binaries are stored in a subdirectory.
+   */
+  public MyProgramCache(File cacheDirectory) {
+    directory = new File(cacheDirectory, DIRECTORY_NAME);
+  }
+
+  /**
+   * Must be called whenever a GL context is created (in onSurfaceCreated), after the state
+   * cache was invalidated. Forgets the programs of the previous context (if any).
+   */
+  public void onContextCreated(MyGLStateCache stateCache) {
+    gl = stateCache.getGl();
+    programs.clear();
+    precompileQueue.clear();
+    driverId = gl.glGetString(GLES20.GL_VENDOR) + "|" +
+        gl.glGetString(GLES20.GL_RENDERER) + "|" + gl.glGetString(GLES20.GL_VERSION);
+    binariesSupported = false;
+    if (stateCache.isEs3()) {
+      int[] formatCount = new int[1];
+      gl.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+      binariesSupported = formatCount[0] > 0;
+    }
+    Log.d(TAG, "Program binaries " + (binariesSupported ? "supported" : "not supported") +
+        " by " + driverId);
+  }
+
+  /**
+   * Returns the program for the given source, creating it if needed: from the cached binary if
+   * there is a valid one, otherwise by compiling it (and then caching its binary).
+   */
+  public int getProgram(ProgramSource source) {
+    String key = source.getKey();
+    Integer existing = programs.get(key);
+    if (existing != null) return existing;
+
+    long startNanos = System.nanoTime();
+    int program = binariesSupported ? loadBinary(source) : 0;
+    boolean fromBinary = program != 0;
+    if (program == 0) {
+      program = compile(source);
+      if (binariesSupported) saveBinary(source, program);
+    }
+    programs.put(key, program);
+    Log.d(TAG, "Program " + source.getName() + (fromBinary ? " loaded from binary" : " compiled") +
+        " in " + (System.nanoTime() - startNanos) / 1000 + " us.");
+    return program;
+  }
+
+  /** Queues the given programs to be prepared between frames (see {@link #precompileNext}). */
+  public void precompileLater(ProgramSource... sources) {
+    for (ProgramSource source : sources) {
+      precompileQueue.add(source);
+    }
+  }
+
+  /**
+   * Prepares the next queued program, if any (and if it wasn't already created in the meantime).
+   * Call between frames, e.g. at the end of each frame, to spread the work.
+   * @return true if there are more programs to prepare.
+   */
+  public boolean precompileNext() {
+    ProgramSource source = precompileQueue.poll();
+    if (source != null) getProgram(source);
+    return !precompileQueue.isEmpty();
+  }
+
+  /** Returns how many programs were loaded from a binary. */
+  public int getBinaryLoadCount() {
+    return binaryLoadCount;
+  }
+
+  /** Returns how many programs were compiled from source. */
+  public int getCompileCount() {
+    return compileCount;
+  }
+
+  // Compiles and links the program from source.
+  private int compile(ProgramSource source) {
+    int vertexShader = MyGLUtils.loadShader(gl, GLES20.GL_VERTEX_SHADER, source.vertexSource);
+    int fragmentShader = MyGLUtils.loadShader(gl, GLES20.GL_FRAGMENT_SHADER, source.fragmentSource);
+    int program = gl.glCreateProgram();
+    gl.glAttachShader(program, vertexShader);
+    gl.glAttachShader(program, fragmentShader);
+    for (int i = 0; i < source.attributeNames.length; i++) {
+      gl.glBindAttribLocation(program, source.attributeLocations[i],
+          source.attributeNames[i]);
+    }
+    if (binariesSupported) {
+      gl.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+          GLES20.GL_TRUE);
+    }
+    gl.glLinkProgram(program);
+    MyGLUtils.checkGlError(gl, "link program " + source.getName());
+    if (!isLinked(program)) {
+      Log.e(TAG, "Program " + source.getName() + " link error!");
+      Log.e(TAG, gl.glGetProgramInfoLog(program));
+    }
+    // The program keeps what it needs; the shaders go away when it does.
+    gl.glDeleteShader(vertexShader);
+    gl.glDeleteShader(fragmentShader);
+    ++compileCount;
+    return program;
+  }
+
+  // Creates the program from its cached binary. Returns 0 if there is no valid binary.
+  private int loadBinary(ProgramSource source) {
+    File file = getFile(source);
+    if (!file.exists()) return 0;
+    int format;
+    byte[] binary;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new FileInputStream(file));
+      if (input.readInt() != FILE_MAGIC || !driverId.equals(input.readUTF())) {
+        // Another format, or built by another driver (e.g. before a system update).
+        Log.d(TAG, "Stale binary for program " + source.getName() + ". Will recompile.");
+        return 0;
+      }
+      format = input.readInt();
+      int length = input.readInt();
+      if (length <= 0 || length > MAX_BINARY_BYTES) return 0;
+      binary = new byte[length];
+      input.readFully(binary);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read binary for program " + source.getName() + ": " + e);
+      return 0;
+    } finally {
+      closeQuietly(input);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+    buffer.put(binary).position(0);
+    int program = gl.glCreateProgram();
+    gl.glProgramBinary(program, format, buffer, binary.length);
+    // A binary may be rejected (e.g. the driver changed in a way the version doesn't show),
+    // which is reported as a link failure rather than a GL error.
+    boolean linked = gl.glGetError() == GLES20.GL_NO_ERROR && isLinked(program);
+    if (!linked) {
+      Log.w(TAG, "Driver rejected binary for program " + source.getName() + ". Will recompile.");
+      gl.glDeleteProgram(program);
+      return 0;
+    }
+    ++binaryLoadCount;
+    return program;
+  }
+
+  // Gets the binary of the given program, and writes it to disk on a background thread.
+  private void saveBinary(ProgramSource source, int program) {
+    if (!isLinked(program)) return;
+    int[] length = new int[1];
+    gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+    if (length[0] <= 0 || length[0] > MAX_BINARY_BYTES) return;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+    int[] format = new int[1];
+    gl.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+    if (gl.glGetError() != GLES20.GL_NO_ERROR) return;
+    final byte[] binary = new byte[length[0]];
+    buffer.get(binary);
+    final int binaryFormat = format[0];
+    final File file = getFile(source);
+    final String fileDriverId = driverId;
+    final String name = source.getName();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBinaryFile(file, fileDriverId, binaryFormat, binary, name);
+      }
+    }).start();
+  }
+
+  // Writes a binary file. Writes to a temporary file first, so a crash never leaves a partial
+  // file behind. Runs on a background thread.
+  private static void writeBinaryFile(File file, String driverId, int format, byte[] binary,
+      String name) {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Failed to create " + directory);
+      return;
+    }
+    File tmpFile = new File(directory, file.getName() + ".tmp");
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new FileOutputStream(tmpFile));
+      output.writeInt(FILE_MAGIC);
+      output.writeUTF(driverId);
+      output.writeInt(format);
+      output.writeInt(binary.length);
+      output.write(binary);
+      output.close();
+      output = null;
+      if (!tmpFile.renameTo(file)) throw new IOException("Failed to rename " + tmpFile);
+      Log.d(TAG, "Saved binary for program " + name + " (" + binary.length + " bytes).");
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save binary for program " + name + ": " + e);
+      tmpFile.delete();
+    } finally {
+      closeQuietly(output);
+    }
+  }
+
+  // Returns the file in which the binary of the given program is stored.
+  private File getFile(ProgramSource source) {
+    return new File(directory, source.getKey() + FILE_EXTENSION);
+  }
+
+  // Returns whether the given program is linked.
+  private boolean isLinked(int program) {
+    int[] status = new int[1];
+    gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+    return status[0] == GLES20.GL_TRUE;
+  }
+
+  // Closes the given stream (if not null), ignoring errors.
+  private static void closeQuietly(Closeable stream) {
+    if (stream == null) return;
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // Nothing we can do.
+    }
+  }
+
+  // Returns the SHA-1 hash of the given string, in hex.
+  private static String sha1Hex(String text) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b & 0xFF));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has SHA-1.
+      throw new RuntimeException(e);
+    }
+  }
+}
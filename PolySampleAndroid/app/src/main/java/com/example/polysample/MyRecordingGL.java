@@ -0,0 +1,674 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A GL backend that doesn't draw anything: it records the calls made through it and counts what
+ * matters for the CPU cost of a frame, so the render path can be measured without a GPU (e.g. on
+ * the JVM, where only the GLES20 / GLES30 constants are needed, and those are compile-time
+ * constants).
+ *
+ * It counts:
+ * <ul>
+ *   <li>all calls, draw calls and the triangles they draw;</li>
+ *   <li>binds (programs, buffers, vertex arrays, textures, framebuffers and renderbuffers);</li>
+ *   <li>state changes (binds, enable / disable, vertex attribute arrays), and among them the
+ *       redundant ones, which set the state to the value it already had;</li>
+ *   <li>the bytes uploaded with glBufferData, glBufferSubData and glTexImage2D.</li>
+ * </ul>
+ * To do so it tracks the GL state like a driver would, including the state that lives in vertex
+ * array objects (element array buffer and enabled attribute arrays).
+ *
+ * Objects get increasing handles, shaders always compile and programs always link, framebuffers
+ * are always complete and queries complete immediately with a result of 0. The context doesn't
+ * support program binaries nor timer queries. Optionally, every call is logged as a string (see
+ * {@link #setLoggingEnabled}).
+ *
+ * Like a real GL context, this must be used on a single thread.
+ */
+public class MyRecordingGL implements MyGL {
+  // What a vertex array object remembers.
+  private static class VertexArrayState {
+    int elementArrayBuffer;
+    final HashSet<Integer> enabledAttribs = new HashSet<>();
+  }
+
+  // Whether we pretend to be an OpenGL ES 3.0 context.
+  private final boolean es3;
+
+  // Next handle to give out. Handles are unique across object types, which makes logs clearer.
+  private int nextHandle = 1;
+
+  // Tracked state.
+  private int currentProgram;
+  private int currentArrayBuffer;
+  private int currentVertexArray;
+  private int currentFramebuffer;
+  private int currentRenderbuffer;
+  private int activeTexture = GLES20.GL_TEXTURE0;
+  private final HashSet<Integer> enabledCaps = new HashSet<>();
+  private final HashMap<Integer, VertexArrayState> vertexArrays = new HashMap<>();
+  // Bound textures, by texture unit and target ("unit:target").
+  private final HashMap<String, Integer> textureBindings = new HashMap<>();
+
+  // Counters.
+  private long callCount;
+  private long drawCallCount;
+  private long triangleCount;
+  private long bindCount;
+  private long stateChangeCount;
+  private long redundantStateChangeCount;
+  private long uploadedBytes;
+
+  // The log of calls, if enabled.
+  private boolean loggingEnabled;
+  private final ArrayList<String> commands = new ArrayList<>();
+
+  /**
+   * Creates a recording backend.
+   * @param es3 Whether to behave as an OpenGL ES 3.0 context (with ES 3 bindings) rather than
+   *     an OpenGL ES 2.0 one.
+   */
+  public MyRecordingGL(boolean es3) {
+    this.es3 = es3;
+    vertexArrays.put(0, new VertexArrayState());
+  }
+
+  /** Sets whether each call should be logged (see {@link #getCommands}). Off by default. */
+  public void setLoggingEnabled(boolean enabled) {
+    loggingEnabled = enabled;
+  }
+
+  /** Returns the logged calls, oldest first, e.g. "glBindBuffer(34962, 3)". */
+  public List<String> getCommands() {
+    return commands;
+  }
+
+  /** Returns the number of GL calls. */
+  public long getCallCount() {
+    return callCount;
+  }
+
+  /** Returns the number of draw calls. */
+  public long getDrawCallCount() {
+    return drawCallCount;
+  }
+
+  /** Returns the number of triangles drawn (counting every instance). */
+  public long getTriangleCount() {
+    return triangleCount;
+  }
+
+  /** Returns the number of bind calls, redundant or not. */
+  public long getBindCount() {
+    return bindCount;
+  }
+
+  /** Returns the number of calls that set state (binds included), redundant or not. */
+  public long getStateChangeCount() {
+    return stateChangeCount;
+  }
+
+  /** Returns the number of calls that set state to the value it already had. */
+  public long getRedundantStateChangeCount() {
+    return redundantStateChangeCount;
+  }
+
+  /** Returns the number of bytes uploaded to buffers and textures. */
+  public long getUploadedBytes() {
+    return uploadedBytes;
+  }
+
+  /**
+   * Returns the buffer bound to GL_ELEMENT_ARRAY_BUFFER, which is part of the bound vertex array
+   * object (the default one, 0, if none is bound). This is the IBO the next glDrawElements uses.
+   */
+  public int getElementArrayBuffer() {
+    return vertexArrays.get(currentVertexArray).elementArrayBuffer;
+  }
+
+  /**
+   * Resets the counters and the log, e.g. at the start of a frame to measure. The tracked GL
+   * state is kept.
+   */
+  public void reset() {
+    callCount = 0;
+    drawCallCount = 0;
+    triangleCount = 0;
+    bindCount = 0;
+    stateChangeCount = 0;
+    redundantStateChangeCount = 0;
+    uploadedBytes = 0;
+    commands.clear();
+  }
+
+  /** Returns a one-line summary of the counters. */
+  public String getSummary() {
+    return "calls " + callCount + ", draws " + drawCallCount + ", triangles " + triangleCount +
+        ", binds " + bindCount + ", state changes " + stateChangeCount + " (" +
+        redundantStateChangeCount + " redundant), uploaded " + uploadedBytes + " bytes";
+  }
+
+  @Override
+  public boolean hasEs3Bindings() {
+    return es3;
+  }
+
+  // State.
+  @Override
+  public void glClearColor(float red, float green, float blue, float alpha) {
+    record("glClearColor", red, green, blue, alpha);
+  }
+
+  @Override
+  public void glClear(int mask) {
+    record("glClear", mask);
+  }
+
+  @Override
+  public void glEnable(int cap) {
+    record("glEnable", cap);
+    countStateChange(!enabledCaps.add(cap));
+  }
+
+  @Override
+  public void glDisable(int cap) {
+    record("glDisable", cap);
+    countStateChange(!enabledCaps.remove(cap));
+  }
+
+  @Override
+  public void glViewport(int x, int y, int width, int height) {
+    record("glViewport", x, y, width, height);
+  }
+
+  @Override
+  public int glGetError() {
+    record("glGetError");
+    return GLES20.GL_NO_ERROR;
+  }
+
+  @Override
+  public String glGetString(int name) {
+    record("glGetString", name);
+    switch (name) {
+      case GLES20.GL_VENDOR:
+      case GLES20.GL_RENDERER:
+        return "Recording";
+      case GLES20.GL_VERSION:
+        return es3 ? "OpenGL ES 3.0 Recording" : "OpenGL ES 2.0 Recording";
+      case GLES20.GL_EXTENSIONS:
+        return "";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public void glGetIntegerv(int pname, int[] params, int offset) {
+    record("glGetIntegerv", pname);
+    // Among others, this reports no program binary formats and no disjoint GPU operation.
+    params[offset] = 0;
+  }
+
+  // Shaders and programs.
+  @Override
+  public int glCreateShader(int type) {
+    record("glCreateShader", type);
+    return nextHandle++;
+  }
+
+  @Override
+  public void glShaderSource(int shader, String string) {
+    record("glShaderSource", shader);
+  }
+
+  @Override
+  public void glCompileShader(int shader) {
+    record("glCompileShader", shader);
+  }
+
+  @Override
+  public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+    record("glGetShaderiv", shader, pname);
+    params[offset] = pname == GLES20.GL_COMPILE_STATUS ? GLES20.GL_TRUE : 0;
+  }
+
+  @Override
+  public String glGetShaderInfoLog(int shader) {
+    record("glGetShaderInfoLog", shader);
+    return "";
+  }
+
+  @Override
+  public void glDeleteShader(int shader) {
+    record("glDeleteShader", shader);
+  }
+
+  @Override
+  public int glCreateProgram() {
+    record("glCreateProgram");
+    return nextHandle++;
+  }
+
+  @Override
+  public void glAttachShader(int program, int shader) {
+    record("glAttachShader", program, shader);
+  }
+
+  @Override
+  public void glBindAttribLocation(int program, int index, String name) {
+    record("glBindAttribLocation", program, index, name);
+  }
+
+  @Override
+  public void glLinkProgram(int program) {
+    record("glLinkProgram", program);
+  }
+
+  @Override
+  public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+    record("glGetProgramiv", program, pname);
+    params[offset] = pname == GLES20.GL_LINK_STATUS ? GLES20.GL_TRUE : 0;
+  }
+
+  @Override
+  public String glGetProgramInfoLog(int program) {
+    record("glGetProgramInfoLog", program);
+    return "";
+  }
+
+  @Override
+  public void glDeleteProgram(int program) {
+    record("glDeleteProgram", program);
+    if (currentProgram == program) currentProgram = 0;
+  }
+
+  @Override
+  public void glUseProgram(int program) {
+    record("glUseProgram", program);
+    countBind(currentProgram == program);
+    currentProgram = program;
+  }
+
+  @Override
+  public int glGetUniformLocation(int program, String name) {
+    record("glGetUniformLocation", program, name);
+    // Any valid location will do, since uniforms aren't stored.
+    return 0;
+  }
+
+  @Override
+  public void glUniform1i(int location, int x) {
+    record("glUniform1i", location, x);
+  }
+
+  @Override
+  public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+      int offset) {
+    record("glUniformMatrix4fv", location, count);
+  }
+
+  @Override
+  public void glProgramParameteri(int program, int pname, int value) {
+    record("glProgramParameteri", program, pname, value);
+  }
+
+  @Override
+  public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+      int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+    record("glGetProgramBinary", program);
+    length[lengthOffset] = 0;
+    binaryFormat[binaryFormatOffset] = 0;
+  }
+
+  @Override
+  public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+    record("glProgramBinary", program, binaryFormat, length);
+  }
+
+  // Buffers and vertex arrays.
+  @Override
+  public void glGenBuffers(int n, int[] buffers, int offset) {
+    record("glGenBuffers", n);
+    generate(n, buffers, offset);
+  }
+
+  @Override
+  public void glDeleteBuffers(int n, int[] buffers, int offset) {
+    record("glDeleteBuffers", n);
+    for (int i = 0; i < n; i++) {
+      int buffer = buffers[offset + i];
+      if (currentArrayBuffer == buffer) currentArrayBuffer = 0;
+      VertexArrayState vertexArray = vertexArrays.get(currentVertexArray);
+      if (vertexArray.elementArrayBuffer == buffer) vertexArray.elementArrayBuffer = 0;
+    }
+  }
+
+  @Override
+  public void glBindBuffer(int target, int buffer) {
+    record("glBindBuffer", target, buffer);
+    if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+      // The element array buffer binding is part of the vertex array object.
+      VertexArrayState vertexArray = vertexArrays.get(currentVertexArray);
+      countBind(vertexArray.elementArrayBuffer == buffer);
+      vertexArray.elementArrayBuffer = buffer;
+    } else {
+      countBind(currentArrayBuffer == buffer);
+      currentArrayBuffer = buffer;
+    }
+  }
+
+  @Override
+  public void glBufferData(int target, int size, Buffer data, int usage) {
+    record("glBufferData", target, size, usage);
+    if (data != null) uploadedBytes += size;
+  }
+
+  @Override
+  public void glBufferSubData(int target, int offset, int size, Buffer data) {
+    record("glBufferSubData", target, offset, size);
+    uploadedBytes += size;
+  }
+
+  @Override
+  public void glGenVertexArrays(int n, int[] arrays, int offset) {
+    record("glGenVertexArrays", n);
+    generate(n, arrays, offset);
+    for (int i = 0; i < n; i++) {
+      vertexArrays.put(arrays[offset + i], new VertexArrayState());
+    }
+  }
+
+  @Override
+  public void glDeleteVertexArrays(int n, int[] arrays, int offset) {
+    record("glDeleteVertexArrays", n);
+    for (int i = 0; i < n; i++) {
+      int array = arrays[offset + i];
+      if (array == 0) continue;
+      if (currentVertexArray == array) currentVertexArray = 0;
+      vertexArrays.remove(array);
+    }
+  }
+
+  @Override
+  public void glBindVertexArray(int array) {
+    record("glBindVertexArray", array);
+    countBind(currentVertexArray == array);
+    if (!vertexArrays.containsKey(array)) {
+      throw new IllegalStateException("Binding unknown vertex array " + array);
+    }
+    currentVertexArray = array;
+  }
+
+  @Override
+  public void glEnableVertexAttribArray(int index) {
+    record("glEnableVertexAttribArray", index);
+    countStateChange(!vertexArrays.get(currentVertexArray).enabledAttribs.add(index));
+  }
+
+  @Override
+  public void glDisableVertexAttribArray(int index) {
+    record("glDisableVertexAttribArray", index);
+    countStateChange(!vertexArrays.get(currentVertexArray).enabledAttribs.remove(index));
+  }
+
+  @Override
+  public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+      int stride, int offset) {
+    record("glVertexAttribPointer", index, size, type, normalized, stride, offset);
+  }
+
+  @Override
+  public void glVertexAttrib4fv(int index, float[] values, int offset) {
+    record("glVertexAttrib4fv", index);
+  }
+
+  @Override
+  public void glVertexAttribDivisor(int index, int divisor) {
+    record("glVertexAttribDivisor", index, divisor);
+  }
+
+  // Drawing.
+  @Override
+  public void glDrawArrays(int mode, int first, int count) {
+    record("glDrawArrays", mode, first, count);
+    countDraw(mode, count, 1);
+  }
+
+  @Override
+  public void glDrawElements(int mode, int count, int type, int offset) {
+    record("glDrawElements", mode, count, type, offset);
+    countDraw(mode, count, 1);
+  }
+
+  @Override
+  public void glDrawElementsInstanced(int mode, int count, int type, int indicesOffset,
+      int instanceCount) {
+    record("glDrawElementsInstanced", mode, count, type, indicesOffset, instanceCount);
+    countDraw(mode, count, instanceCount);
+  }
+
+  // Textures, framebuffers and renderbuffers.
+  @Override
+  public void glGenTextures(int n, int[] textures, int offset) {
+    record("glGenTextures", n);
+    generate(n, textures, offset);
+  }
+
+  @Override
+  public void glDeleteTextures(int n, int[] textures, int offset) {
+    record("glDeleteTextures", n);
+    for (int i = 0; i < n; i++) {
+      textureBindings.values().remove(textures[offset + i]);
+    }
+  }
+
+  @Override
+  public void glActiveTexture(int texture) {
+    record("glActiveTexture", texture);
+    countStateChange(activeTexture == texture);
+    activeTexture = texture;
+  }
+
+  @Override
+  public void glBindTexture(int target, int texture) {
+    record("glBindTexture", target, texture);
+    Integer previous = textureBindings.put(activeTexture + ":" + target, texture);
+    countBind(previous == null ? texture == 0 : previous == texture);
+  }
+
+  @Override
+  public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+      int border, int format, int type, Buffer pixels) {
+    record("glTexImage2D", target, level, internalformat, width, height, format, type);
+    if (pixels != null) uploadedBytes += (long) width * height * getBytesPerPixel(format, type);
+  }
+
+  @Override
+  public void glTexParameteri(int target, int pname, int param) {
+    record("glTexParameteri", target, pname, param);
+  }
+
+  @Override
+  public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+    record("glGenFramebuffers", n);
+    generate(n, framebuffers, offset);
+  }
+
+  @Override
+  public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+    record("glDeleteFramebuffers", n);
+    for (int i = 0; i < n; i++) {
+      if (currentFramebuffer == framebuffers[offset + i]) currentFramebuffer = 0;
+    }
+  }
+
+  @Override
+  public void glBindFramebuffer(int target, int framebuffer) {
+    record("glBindFramebuffer", target, framebuffer);
+    countBind(currentFramebuffer == framebuffer);
+    currentFramebuffer = framebuffer;
+  }
+
+  @Override
+  public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+      int level) {
+    record("glFramebufferTexture2D", target, attachment, textarget, texture, level);
+  }
+
+  @Override
+  public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+      int renderbuffer) {
+    record("glFramebufferRenderbuffer", target, attachment, renderbuffertarget, renderbuffer);
+  }
+
+  @Override
+  public int glCheckFramebufferStatus(int target) {
+    record("glCheckFramebufferStatus", target);
+    return GLES20.GL_FRAMEBUFFER_COMPLETE;
+  }
+
+  @Override
+  public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+    record("glGenRenderbuffers", n);
+    generate(n, renderbuffers, offset);
+  }
+
+  @Override
+  public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+    record("glDeleteRenderbuffers", n);
+    for (int i = 0; i < n; i++) {
+      if (currentRenderbuffer == renderbuffers[offset + i]) currentRenderbuffer = 0;
+    }
+  }
+
+  @Override
+  public void glBindRenderbuffer(int target, int renderbuffer) {
+    record("glBindRenderbuffer", target, renderbuffer);
+    countBind(currentRenderbuffer == renderbuffer);
+    currentRenderbuffer = renderbuffer;
+  }
+
+  @Override
+  public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+    record("glRenderbufferStorage", target, internalformat, width, height);
+  }
+
+  // Queries.
+  @Override
+  public void glGenQueries(int n, int[] ids, int offset) {
+    record("glGenQueries", n);
+    generate(n, ids, offset);
+  }
+
+  @Override
+  public void glDeleteQueries(int n, int[] ids, int offset) {
+    record("glDeleteQueries", n);
+  }
+
+  @Override
+  public void glBeginQuery(int target, int id) {
+    record("glBeginQuery", target, id);
+  }
+
+  @Override
+  public void glEndQuery(int target) {
+    record("glEndQuery", target);
+  }
+
+  @Override
+  public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+    record("glGetQueryObjectuiv", id, pname);
+    params[offset] = pname == GLES30.GL_QUERY_RESULT_AVAILABLE ? GLES20.GL_TRUE : 0;
+  }
+
+  // Counts a call, and logs it if enabled. The arguments are only formatted when logging.
+  private void record(String name, Object... args) {
+    ++callCount;
+    if (!loggingEnabled) return;
+    StringBuilder command = new StringBuilder(name).append('(');
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) command.append(", ");
+      command.append(args[i]);
+    }
+    commands.add(command.append(')').toString());
+  }
+
+  // Counts a bind, which is also a state change.
+  private void countBind(boolean redundant) {
+    ++bindCount;
+    countStateChange(redundant);
+  }
+
+  // Counts a state change.
+  private void countStateChange(boolean redundant) {
+    ++stateChangeCount;
+    if (redundant) ++redundantStateChangeCount;
+  }
+
+  // Counts a draw call of the given number of vertices (or indices) and instances.
+  private void countDraw(int mode, int count, int instanceCount) {
+    ++drawCallCount;
+    long triangles;
+    switch (mode) {
+      case GLES20.GL_TRIANGLES:
+        triangles = count / 3;
+        break;
+      case GLES20.GL_TRIANGLE_STRIP:
+      case GLES20.GL_TRIANGLE_FAN:
+        triangles = Math.max(0, count - 2);
+        break;
+      default:
+        triangles = 0;
+    }
+    triangleCount += triangles * instanceCount;
+  }
+
+  // Fills the given array with new handles.
+  private void generate(int n, int[] handles, int offset) {
+    for (int i = 0; i < n; i++) {
+      handles[offset + i] = nextHandle++;
+    }
+  }
+
+  // Returns the size of a pixel of the given format and type, in bytes.
+  private static int getBytesPerPixel(int format, int type) {
+    if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4 ||
+        type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1) {
+      return 2;
+    }
+    int bytesPerComponent = type == GLES20.GL_FLOAT ? 4 : 1;
+    switch (format) {
+      case GLES20.GL_RGBA:
+        return 4 * bytesPerComponent;
+      case GLES20.GL_RGB:
+        return 3 * bytesPerComponent;
+      case GLES20.GL_LUMINANCE_ALPHA:
+        return 2 * bytesPerComponent;
+      default:
+        return bytesPerComponent;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * An offscreen render target (framebuffer object), used to render at a lower resolution than
+ * the screen's and then upscale the result to the screen.
+ *
+ * The target has a color texture and a depth renderbuffer. After rendering into it, {@link
+ * #drawToScreen} draws the color texture over the whole screen with bilinear filtering.
+ *
+ * Must be used on the GL thread. The target belongs to the GL context it was created in.
+ */
+public class MyRenderTarget {
+  private static final String TAG = "PolySample";
+
+  // Shader that draws the color texture over the whole viewport. The quad's positions are in
+  // clip space, and the texture coordinates are derived from them.
+  private static final String VERTEX_SHADER_SOURCE =
+      "attribute vec4 aPosition;\n" +
+      "varying vec2 vTexCoord;\n" +
+      "void main() {\n" +
+      "  vTexCoord = aPosition.xy * 0.5 + 0.5;\n" +
+      "  gl_Position = aPosition;\n" +
+      "}\n";
+
+  private static final String FRAGMENT_SHADER_SOURCE =
+      "precision mediump float;\n" +
+      "uniform sampler2D uTexture;\n" +
+      "varying vec2 vTexCoord;\n" +
+      "void main() {\n" +
+      "  gl_FragColor = texture2D(uTexture, vTexCoord);\n" +
+      "}\n";
+
+  /** The upscale program's source, for the {@link MyProgramCache}. */
+  public static final MyProgramCache.ProgramSource PROGRAM_SOURCE =
+      new MyProgramCache.ProgramSource("upscale", VERTEX_SHADER_SOURCE, FRAGMENT_SHADER_SOURCE,
+          new String[] { "aPosition" }, new int[] { MyGLUtils.ATTRIB_POSITION });
+
+  // Corners of the full screen quad (x, y), as a triangle strip.
+  private static final float[] QUAD_POSITIONS = { -1, -1, 1, -1, -1, 1, 1, 1 };
+  private static final int QUAD_COORDS_PER_VERTEX = 2;
+
+  // Bytes per pixel of the color texture (RGBA8) and of the depth renderbuffer (16 bits).
+  private static final int COLOR_BYTES_PER_PIXEL = 4;
+  private static final int DEPTH_BYTES_PER_PIXEL = 2;
+
+  // The GL state cache.
+  private final MyGLStateCache stateCache;
+  // The GL backend.
+  private final MyGL gl;
+
+  // Handles of the framebuffer, its color texture and its depth renderbuffer (0 if not created).
+  private int framebuffer;
+  private int colorTexture;
+  private int depthRenderbuffer;
+
+  // Size of the target, in pixels.
+  private int width;
+  private int height;
+
+  // The program that draws the texture to the screen (owned by the program cache), and the VBO
+  // of the quad.
+  private final int program;
+  private final int quadVbo;
+
+  // The VAO that captures the quad's vertex layout, or 0 if VAOs are not supported.
+  private int quadVao;
+
+  /** Creates the render target. It has no size (and no GL framebuffer) until resized. */
+  public MyRenderTarget(MyGLStateCache stateCache, MyProgramCache programCache) {
+    this.stateCache = stateCache;
+    gl = stateCache.getGl();
+
+    program = programCache.getProgram(PROGRAM_SOURCE);
+    int textureHandle = gl.glGetUniformLocation(program, "uTexture");
+    stateCache.useProgram(program);
+    gl.glUniform1i(textureHandle, 0);
+
+    FloatBuffer positions = ByteBuffer
+        .allocateDirect(QUAD_POSITIONS.length * MyGLUtils.FLOAT_SIZE)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    positions.put(QUAD_POSITIONS);
+    quadVbo = MyGLUtils.createVbo(gl, positions);
+    stateCache.notifyBuffersUnbound();
+
+    // With VAOs, the quad's layout is set up once, in its own VAO, so that neither the default
+    // VAO nor a mesh's VAO needs changing for each frame.
+    if (stateCache.isVaoSupported()) {
+      int[] vaos = new int[1];
+      gl.glGenVertexArrays(1, vaos, 0);
+      quadVao = vaos[0];
+      stateCache.bindVertexArray(quadVao);
+      setUpQuadLayout();
+      stateCache.bindVertexArray(0);
+    }
+  }
+
+  /**
+   * Sets the size of the target, recreating the framebuffer if the size changed.
+   * @return true if the framebuffer was recreated.
+   */
+  public boolean resize(int newWidth, int newHeight) {
+    if (framebuffer != 0 && newWidth == width && newHeight == height) return false;
+    releaseFramebuffer();
+    width = newWidth;
+    height = newHeight;
+
+    int[] handles = new int[1];
+    gl.glGenTextures(1, handles, 0);
+    colorTexture = handles[0];
+    stateCache.bindTexture2D(colorTexture);
+    gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+    // Bilinear filtering does the upscaling.
+    gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+        GLES20.GL_CLAMP_TO_EDGE);
+    gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+        GLES20.GL_CLAMP_TO_EDGE);
+
+    gl.glGenRenderbuffers(1, handles, 0);
+    depthRenderbuffer = handles[0];
+    gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+    gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width,
+        height);
+
+    gl.glGenFramebuffers(1, handles, 0);
+    framebuffer = handles[0];
+    gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+    gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+        GLES20.GL_TEXTURE_2D, colorTexture, 0);
+    gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+        GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+    int status = gl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+    if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+      throw new RuntimeException("Render target framebuffer incomplete: " + status);
+    }
+    gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    MyGLUtils.checkGlError(gl, "create render target");
+    Log.d(TAG, "Render target resized to " + width + "x" + height);
+    return true;
+  }
+
+  /** Returns the handle of the color texture (0 if there is no framebuffer yet). */
+  public int getColorTexture() {
+    return colorTexture;
+  }
+
+  /** Returns the GPU memory taken by the target, in bytes. */
+  public long getSizeBytes() {
+    return framebuffer == 0 ? 0 :
+        (long) width * height * (COLOR_BYTES_PER_PIXEL + DEPTH_BYTES_PER_PIXEL);
+  }
+
+  /** Makes the target the destination of the next draws, and sets the viewport to its size. */
+  public void bind() {
+    gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+    gl.glViewport(0, 0, width, height);
+  }
+
+  /**
+   * Draws the target's contents over the whole screen (the default framebuffer), scaling it to
+   * the given screen size.
+   */
+  public void drawToScreen(int screenWidth, int screenHeight) {
+    gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    gl.glViewport(0, 0, screenWidth, screenHeight);
+    // The quad covers the screen, so no need to clear or test depth.
+    gl.glDisable(GLES20.GL_DEPTH_TEST);
+
+    stateCache.useProgram(program);
+    if (quadVao != 0) {
+      stateCache.bindVertexArray(quadVao);
+    } else if (!stateCache.isCurrentVertexLayout(this)) {
+      setUpQuadLayout();
+      // Meshes have to set up their layout again.
+      stateCache.setCurrentVertexLayout(this);
+    }
+
+    stateCache.bindTexture2D(colorTexture);
+    gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0,
+        QUAD_POSITIONS.length / QUAD_COORDS_PER_VERTEX);
+    gl.glEnable(GLES20.GL_DEPTH_TEST);
+    MyGLUtils.checkGlError(gl, "draw render target");
+  }
+
+  /** Deletes the target's GL objects (but not the program, which belongs to the cache). */
+  public void release() {
+    releaseFramebuffer();
+    if (quadVao != 0) {
+      stateCache.notifyVertexArrayDeleted(quadVao);
+      gl.glDeleteVertexArrays(1, new int[] { quadVao }, 0);
+      quadVao = 0;
+    }
+    if (stateCache.isCurrentVertexLayout(this)) stateCache.setCurrentVertexLayout(null);
+    stateCache.notifyBufferDeleted(quadVbo);
+    gl.glDeleteBuffers(1, new int[] { quadVbo }, 0);
+  }
+
+  // Sets up the attribute pointer of the quad (in the bound VAO, if any).
+  private void setUpQuadLayout() {
+    stateCache.bindArrayBuffer(quadVbo);
+    stateCache.setVertexAttribArrayEnabled(MyGLUtils.ATTRIB_POSITION, true);
+    // Meshes enable it. A new VAO starts with it disabled, but the cache doesn't know that.
+    stateCache.setVertexAttribArrayEnabled(MyGLUtils.ATTRIB_COLOR, false);
+    gl.glVertexAttribPointer(MyGLUtils.ATTRIB_POSITION, QUAD_COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT, false, 0, 0);
+  }
+
+  // Deletes the framebuffer and its attachments, if any.
+  private void releaseFramebuffer() {
+    if (framebuffer == 0) return;
+    gl.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+    gl.glDeleteRenderbuffers(1, new int[] { depthRenderbuffer }, 0);
+    stateCache.notifyTextureDeleted(colorTexture);
+    gl.glDeleteTextures(1, new int[] { colorTexture }, 0);
+    framebuffer = colorTexture = depthRenderbuffer = 0;
+  }
+}
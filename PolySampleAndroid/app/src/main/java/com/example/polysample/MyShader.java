@@ -52,64 +52,78 @@ public class MyShader {
       "  gl_FragColor = vColor;\n" +
       "}\n";
 
+  /** The program's source, for the {@link MyProgramCache}. */
+  public static final MyProgramCache.ProgramSource PROGRAM_SOURCE =
+      new MyProgramCache.ProgramSource("unlit", VERTEX_SHADER_SOURCE, FRAGMENT_SHADER_SOURCE,
+          // Use the fixed attribute locations, so that any mesh's vertex layout works with this
+          // shader.
+          new String[] { "aPosition", "aColor" },
+          new int[] { MyGLUtils.ATTRIB_POSITION, MyGLUtils.ATTRIB_COLOR });
+
+  // The GL state cache, through which we bind the program.
+  private final MyGLStateCache stateCache;
+  // The GL backend.
+  private final MyGL gl;
   // Handle to the program (vertex shader + fragment shader).
   private int program;
   // Handle to the uMVPMatrix uniform, which we use to feed the MVP matrix into the shader.
   private int mvpMatrixHandle;
-  // Handle to the aPosition attribute, which we use to feed positions into the shader.
-  private int positionHandle;
-  // Handle to the aColor attribute, which we use to feed vertex colors into the shader.
-  private int colorHandle;
 
-  /** Creates the shader. This will compile and link the shader. */
-  public MyShader() {
-    // Compile and link the shader program.
-    int vertexShader = MyGLUtils.loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_SOURCE);
-    int fragmentShader = MyGLUtils.loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_SOURCE);
-    program = GLES20.glCreateProgram();
-    GLES20.glAttachShader(program, vertexShader);
-    GLES20.glAttachShader(program, fragmentShader);
-    GLES20.glLinkProgram(program);
-    MyGLUtils.checkGlError("link program");
+  /**
+   * Creates the shader. The program comes from the program cache, which loads its binary or
+   * compiles and links it if needed.
+   */
+  public MyShader(MyGLStateCache stateCache, MyProgramCache programCache) {
+    this.stateCache = stateCache;
+    gl = stateCache.getGl();
+    program = programCache.getProgram(PROGRAM_SOURCE);
 
     // Get the handles to our shader parameters.
-    GLES20.glUseProgram(program);
-    positionHandle = GLES20.glGetAttribLocation(program, "aPosition");
-    colorHandle = GLES20.glGetAttribLocation(program, "aColor");
-    mvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-    GLES20.glUseProgram(0);
-    MyGLUtils.checkGlError("get handles");
+    mvpMatrixHandle = gl.glGetUniformLocation(program, "uMVPMatrix");
+    MyGLUtils.checkGlError(gl, "get handles");
   }
 
-  public void render(float[] mvpMatrix, int numIndices, int ibo, int positionVbo, int colorsVbo) {
-    GLES20.glUseProgram(program);
-
-    // Set up to feed positions to shader from positions VBO.
-    GLES20.glEnableVertexAttribArray(positionHandle);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, positionVbo);
-    GLES20.glVertexAttribPointer(positionHandle, MyGLUtils.COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-        /* stride */ 0, /* offset in positionVbo */ 0);
+  /** Returns the handle of the program. */
+  public int getProgram() {
+    return program;
+  }
 
-    // Set up to feed colors to shader from color VBO.
-    GLES20.glEnableVertexAttribArray(colorHandle);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, colorsVbo);
-    GLES20.glVertexAttribPointer(colorHandle, MyGLUtils.NUM_COLOR_COMPONENTS, GLES20.GL_FLOAT, false,
-        /* stride */ 0, /* offset in colorVbo */ 0);
+  /**
+   * Renders the given mesh.
+   *
+   * This doesn't restore the GL state afterwards: the program and the mesh are left bound, so
+   * that drawing more meshes with this shader only costs the state changes that are really needed.
+   * @return The number of draw calls issued.
+   */
+  public int render(float[] mvpMatrix, MyMesh mesh) {
+    stateCache.useProgram(program);
+    mesh.bind(stateCache);
 
     // Feed MVP matrix uniform to shader.
-    GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+    gl.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
 
-    // Bind IBO and render the triangles.
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibo);
-    GLES20.glDrawElements(GLES20.GL_TRIANGLES, numIndices, GLES20.GL_UNSIGNED_SHORT,
-        /* offset in ibo */ 0);
-    MyGLUtils.checkGlError("render");
+    // Render the triangles.
+    gl.glDrawElements(GLES20.GL_TRIANGLES, mesh.getIndexCount(), GLES20.GL_UNSIGNED_SHORT,
+        mesh.getIndexOffsetBytes(0));
+    MyGLUtils.checkGlError(gl, "render");
+    return 1;
+  }
 
-    // Clean up.
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-    GLES20.glDisableVertexAttribArray(positionHandle);
-    GLES20.glDisableVertexAttribArray(colorHandle);
-    GLES20.glUseProgram(0);
+  /**
+   * Renders the given ranges of the mesh's index buffer (one draw call per range).
+   * Like {@link #render(float[], MyMesh)}, this doesn't restore the GL state afterwards.
+   * @return The number of draw calls issued.
+   */
+  public int render(float[] mvpMatrix, MyMesh mesh, IndexRanges ranges) {
+    if (ranges.getRangeCount() == 0) return 0;
+    stateCache.useProgram(program);
+    mesh.bind(stateCache);
+    gl.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+    for (int i = 0; i < ranges.getRangeCount(); i++) {
+      gl.glDrawElements(GLES20.GL_TRIANGLES, ranges.getCount(i), GLES20.GL_UNSIGNED_SHORT,
+          mesh.getIndexOffsetBytes(ranges.getFirst(i)));
+    }
+    MyGLUtils.checkGlError(gl, "render ranges");
+    return ranges.getRangeCount();
   }
 }
@@ -0,0 +1,174 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.opengl.GLES20;
+
+/**
+ * A set of GPU buffers holding vertex and index data: the VBOs, the IBO and, if supported, a
+ * vertex array object (VAO) that captures the whole vertex layout so that binding the buffers
+ * for drawing is a single call.
+ *
+ * The buffers can hold a single mesh (see {@link MyMesh}) or many meshes side by side (see
+ * {@link MyBufferArena}). The vertex layout uses the fixed attribute locations defined in
+ * {@link MyGLUtils}, so the buffers (and VAO) can be drawn with any shader that follows that
+ * convention.
+ *
+ * All methods must be called on the GL thread.
+ */
+public class MyVertexBuffers {
+  // The GL backend.
+  private final MyGL gl;
+
+  // Handle of the VBO that stores the vertex positions.
+  private int positionsVbo;
+
+  // Handle of the VBO that stores the vertex colors.
+  private int colorsVbo;
+
+  // Handle of the IBO that stores the sequence of indices we use to draw.
+  private int ibo;
+
+  // Handle of the VAO that captures the vertex layout, or 0 if VAOs are not supported.
+  private int vao;
+
+  /**
+   * Creates the buffers, uploading the data of the given raw object to the GPU.
+   * @param rawObject The raw object to upload.
+   * @param stateCache The GL state cache.
+   */
+  public MyVertexBuffers(RawObject rawObject, MyGLStateCache stateCache) {
+    gl = stateCache.getGl();
+    // Make sure no VAO is bound, otherwise creating the IBO below would modify it.
+    if (stateCache.isVaoSupported()) stateCache.bindVertexArray(0);
+
+    ibo = MyGLUtils.createIbo(gl, rawObject.indices);
+    positionsVbo = MyGLUtils.createVbo(gl, rawObject.positions);
+    colorsVbo = MyGLUtils.createVbo(gl, rawObject.colors);
+    stateCache.notifyBuffersUnbound();
+    createVao(stateCache);
+  }
+
+  /**
+   * Creates empty buffers with room for the given number of vertices and indices. The contents
+   * are filled in later with glBufferSubData.
+   * @param vertexCapacity Number of vertices the VBOs can hold.
+   * @param indexCapacity Number of indices the IBO can hold.
+   * @param stateCache The GL state cache.
+   */
+  public MyVertexBuffers(int vertexCapacity, int indexCapacity, MyGLStateCache stateCache) {
+    gl = stateCache.getGl();
+    if (stateCache.isVaoSupported()) stateCache.bindVertexArray(0);
+
+    int[] buffers = new int[3];
+    gl.glGenBuffers(3, buffers, 0);
+    positionsVbo = buffers[0];
+    colorsVbo = buffers[1];
+    ibo = buffers[2];
+    stateCache.bindArrayBuffer(positionsVbo);
+    gl.glBufferData(GLES20.GL_ARRAY_BUFFER,
+        vertexCapacity * MyGLUtils.COORDS_PER_VERTEX * MyGLUtils.FLOAT_SIZE, null,
+        GLES20.GL_DYNAMIC_DRAW);
+    stateCache.bindArrayBuffer(colorsVbo);
+    gl.glBufferData(GLES20.GL_ARRAY_BUFFER,
+        vertexCapacity * MyGLUtils.NUM_COLOR_COMPONENTS * MyGLUtils.FLOAT_SIZE, null,
+        GLES20.GL_DYNAMIC_DRAW);
+    stateCache.bindElementArrayBuffer(ibo);
+    gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexCapacity * MyGLUtils.SHORT_SIZE,
+        null, GLES20.GL_DYNAMIC_DRAW);
+    MyGLUtils.checkGlError(gl, "allocate buffers");
+    createVao(stateCache);
+  }
+
+  /** Returns the GPU memory taken by buffers with the given number of vertices and indices. */
+  public static long computeSizeBytes(int vertexCount, int indexCount) {
+    return (long) vertexCount *
+        (MyGLUtils.COORDS_PER_VERTEX + MyGLUtils.NUM_COLOR_COMPONENTS) * MyGLUtils.FLOAT_SIZE +
+        (long) indexCount * MyGLUtils.SHORT_SIZE;
+  }
+
+  /** Returns the handle of the VBO that stores the vertex positions. */
+  public int getPositionsVbo() {
+    return positionsVbo;
+  }
+
+  /** Returns the handle of the VBO that stores the vertex colors. */
+  public int getColorsVbo() {
+    return colorsVbo;
+  }
+
+  /** Returns the handle of the IBO. */
+  public int getIbo() {
+    return ibo;
+  }
+
+  /**
+   * Binds the buffers for drawing: after this call, glDrawElements can be used to draw.
+   * @param stateCache The GL state cache.
+   */
+  public void bind(MyGLStateCache stateCache) {
+    if (vao != 0) {
+      stateCache.bindVertexArray(vao);
+    } else if (!stateCache.isCurrentVertexLayout(this)) {
+      // No VAO, so we have to specify the vertex layout again (but only if it changed).
+      setUpVertexLayout(stateCache);
+      stateCache.setCurrentVertexLayout(this);
+    }
+  }
+
+  /** Deletes the buffers (and VAO). They can't be used after this. */
+  public void release(MyGLStateCache stateCache) {
+    if (vao != 0) {
+      stateCache.notifyVertexArrayDeleted(vao);
+      gl.glDeleteVertexArrays(1, new int[] { vao }, 0);
+      vao = 0;
+    }
+    stateCache.notifyBufferDeleted(positionsVbo);
+    stateCache.notifyBufferDeleted(colorsVbo);
+    stateCache.notifyBufferDeleted(ibo);
+    if (stateCache.isCurrentVertexLayout(this)) stateCache.setCurrentVertexLayout(null);
+    gl.glDeleteBuffers(3, new int[] { positionsVbo, colorsVbo, ibo }, 0);
+    positionsVbo = colorsVbo = ibo = 0;
+  }
+
+  // Records the vertex layout in a VAO, once. From then on, binding the VAO is all it takes.
+  private void createVao(MyGLStateCache stateCache) {
+    if (!stateCache.isVaoSupported()) return;
+    int[] vaos = new int[1];
+    gl.glGenVertexArrays(1, vaos, 0);
+    vao = vaos[0];
+    stateCache.bindVertexArray(vao);
+    setUpVertexLayout(stateCache);
+    stateCache.bindVertexArray(0);
+    MyGLUtils.checkGlError(gl, "create VAO");
+  }
+
+  // Sets up the attribute pointers and the element array buffer.
+  private void setUpVertexLayout(MyGLStateCache stateCache) {
+    // Set up to feed positions to shader from positions VBO.
+    stateCache.setVertexAttribArrayEnabled(MyGLUtils.ATTRIB_POSITION, true);
+    stateCache.bindArrayBuffer(positionsVbo);
+    gl.glVertexAttribPointer(MyGLUtils.ATTRIB_POSITION, MyGLUtils.COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT, false, /* stride */ 0, /* offset in positionsVbo */ 0);
+
+    // Set up to feed colors to shader from color VBO.
+    stateCache.setVertexAttribArrayEnabled(MyGLUtils.ATTRIB_COLOR, true);
+    stateCache.bindArrayBuffer(colorsVbo);
+    gl.glVertexAttribPointer(MyGLUtils.ATTRIB_COLOR, MyGLUtils.NUM_COLOR_COMPONENTS,
+        GLES20.GL_FLOAT, false, /* stride */ 0, /* offset in colorsVbo */ 0);
+
+    stateCache.bindElementArrayBuffer(ibo);
+  }
+}
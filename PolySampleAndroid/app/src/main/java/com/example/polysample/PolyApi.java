@@ -30,6 +30,39 @@ public class PolyApi {
   // The API host.
   private static String HOST = "poly.googleapis.com";
 
+  // The host the asset data files are downloaded from, as given by the data file URLs in the
+  // asset: SetDataFileUrl() records the host of the last one seen. Until an asset arrived, a
+  // guess: Google's host for user content. The API may as well put the files on HOST (under
+  // /downloads/), in which case there is nothing to pre-connect.
+  private static volatile String storageHost = "poly.googleusercontent.com";
+
+  /**
+   * Starts opening a connection to the data file host, so that the file downloads don't have to
+   * wait for the DNS lookup and the handshakes. Returns immediately. Call as early as possible,
+   * before requesting the asset: the files are only requested once the asset arrives, by which
+   * time the connection is ready.
+   *
+   * The API host isn't pre-connected: the asset request follows right away, and would either
+   * open its own connection in parallel (gaining nothing) or wait for the pre-connect's round
+   * trip (losing time). Neither is the data file host when it is the API host: the asset
+   * request's connection is reused for the files.
+   */
+  public static void Preconnect() {
+    String host = storageHost;
+    if (host.equals(HOST)) return;
+    HttpPreconnector.preconnect("https://" + host + "/");
+  }
+
+  /**
+   * Records the host of a data file URL from an asset, for the next call to Preconnect(), e.g.
+   * when the activity is recreated.
+   * @param url The URL of a data file.
+   */
+  public static void SetDataFileUrl(String url) {
+    String host = Uri.parse(url).getHost();
+    if (host != null) storageHost = host;
+  }
+
   /**
    * Gets the asset with the given ID.
    * @param assetId The ID of the asset to get.
@@ -59,8 +92,8 @@ public class PolyApi {
         .appendQueryParameter("key", API_KEY)
         .build().toString();
 
-    // Send an asynchronous request.
-    AsyncHttpRequest request = new AsyncHttpRequest(url, handler, completionListener);
+    // Send an asynchronous request, retried if it fails with a transient error.
+    RetryingHttpRequest request = new RetryingHttpRequest(url, handler, completionListener);
     request.send();
   }
 }
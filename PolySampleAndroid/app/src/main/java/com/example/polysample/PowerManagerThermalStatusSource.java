@@ -0,0 +1,66 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Thermal status source for the {@link QualityGovernor} that asks the PowerManager.
+ *
+ * PowerManager.getCurrentThermalStatus() was added in API level 29, which is newer than the SDK
+ * we compile against, so it's called through reflection. On older devices the status is always
+ * "none".
+ */
+public class PowerManagerThermalStatusSource implements QualityGovernor.ThermalStatusSource {
+  private static final String TAG = "PolySample";
+
+  // API level that added PowerManager.getCurrentThermalStatus().
+  private static final int THERMAL_STATUS_API_LEVEL = 29;
+
+  // The power manager, or null if not available.
+  private final PowerManager powerManager;
+
+  // PowerManager.getCurrentThermalStatus(), or null if not available.
+  private final Method getCurrentThermalStatus;
+
+  public PowerManagerThermalStatusSource(Context context) {
+    powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    Method method = null;
+    if (powerManager != null && Build.VERSION.SDK_INT >= THERMAL_STATUS_API_LEVEL) {
+      try {
+        method = PowerManager.class.getMethod("getCurrentThermalStatus");
+      } catch (NoSuchMethodException e) {
+        Log.w(TAG, "PowerManager.getCurrentThermalStatus() not found.");
+      }
+    }
+    getCurrentThermalStatus = method;
+  }
+
+  @Override
+  public int getThermalStatus() {
+    if (getCurrentThermalStatus == null) return QualityGovernor.THERMAL_STATUS_NONE;
+    try {
+      return (Integer) getCurrentThermalStatus.invoke(powerManager);
+    } catch (Exception e) {
+      Log.w(TAG, "Failed to get thermal status: " + e);
+      return QualityGovernor.THERMAL_STATUS_NONE;
+    }
+  }
+}
@@ -0,0 +1,314 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.util.Arrays;
+
+/**
+ * Lowers the rendering quality when the device can't keep up, and raises it again when it can.
+ *
+ * The governor watches the frame times over a rolling window, and the device's thermal status.
+ * It picks one of a few quality levels, each of which is a render scale (the fraction of the
+ * screen resolution we render at, before upscaling) and a level of detail bias (how many levels
+ * coarser than needed the meshes are drawn).
+ *
+ * Two frame times are tracked: the interval between frames, which includes everything (the GPU
+ * too, since a busy GPU delays the next frame), and the work time of each frame on the GL thread.
+ * Frames are paced, so the interval never goes much below the budget and can't tell us whether
+ * there is room to spare; the work time does.
+ *
+ * To avoid oscillating between levels, there is hysteresis: the quality drops as soon as frame
+ * intervals are over budget, but only goes back up after the work time has been well under
+ * budget for a while. If raising the quality turns out to be too much, the next raise waits
+ * longer. The thermal status caps the quality: the hotter the device, the lower the best level
+ * allowed.
+ *
+ * The clock and the thermal status are provided through interfaces, so the governor doesn't
+ * depend on Android and can be exercised with fake inputs.
+ *
+ * All methods can be called on any thread.
+ */
+public class QualityGovernor {
+  /** Source of time. */
+  public interface Clock {
+    /** Returns the current time, in nanoseconds (like System.nanoTime). */
+    long nanoTime();
+  }
+
+  /** Source of the device's thermal status. */
+  public interface ThermalStatusSource {
+    /**
+     * Returns the thermal status, one of the THERMAL_STATUS_* constants (which have the same
+     * values as PowerManager's).
+     */
+    int getThermalStatus();
+  }
+
+  /** Thermal statuses, with the same values as android.os.PowerManager's. */
+  public static final int THERMAL_STATUS_NONE = 0;
+  public static final int THERMAL_STATUS_LIGHT = 1;
+  public static final int THERMAL_STATUS_MODERATE = 2;
+  public static final int THERMAL_STATUS_SEVERE = 3;
+
+  /** Clock based on System.nanoTime. */
+  public static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  // Render scale and level of detail bias of each quality level, from best to worst.
+  private static final float[] RENDER_SCALES = { 1.0f, 0.85f, 0.7f, 0.5f };
+  private static final int[] LOD_BIASES = { 0, 0, 1, 2 };
+
+  // Number of frames in the rolling windows.
+  private static final int WINDOW_SIZE = 30;
+
+  // Percentile of the frame times in the window that we compare to the budget. Using a high
+  // percentile rather than the average makes us react to stutter, not just to slow frames.
+  private static final float WINDOW_PERCENTILE = 0.9f;
+
+  // Lower the quality when the frame interval goes over this fraction of the budget...
+  private static final float DOWNGRADE_THRESHOLD = 1.1f;
+
+  // ...and raise it when the work time stays under this fraction of the budget...
+  private static final float UPGRADE_THRESHOLD = 0.6f;
+
+  // ...for at least this long (doubled each time a raise is soon followed by a drop, up to the
+  // maximum).
+  private static final long UPGRADE_DELAY_NANOS = 3000000000L;
+  private static final long MAX_UPGRADE_DELAY_NANOS = 60000000000L;
+
+  // A drop that comes this soon after a raise means the raise was too much.
+  private static final long FAILED_UPGRADE_NANOS = 5000000000L;
+
+  // After changing the level, wait this long before changing it again, so the windows fill with
+  // frames rendered at the new level.
+  private static final long COOLDOWN_NANOS = 1000000000L;
+
+  // An interval between frames longer than this is a pause in rendering (e.g. nothing to draw),
+  // not a slow frame, and is ignored.
+  private static final long MAX_FRAME_INTERVAL_NANOS = 250000000L;
+
+  // Check the thermal status at most this often (it can be slow to query).
+  private static final long THERMAL_POLL_INTERVAL_NANOS = 1000000000L;
+
+  private final Clock clock;
+  private final ThermalStatusSource thermalStatusSource;
+
+  // Frame time budget, in nanoseconds.
+  private long frameBudgetNanos;
+
+  // Rolling windows of frame intervals and work times, and a sorted copy to compute percentiles.
+  private final long[] intervalWindow = new long[WINDOW_SIZE];
+  private final long[] workWindow = new long[WINDOW_SIZE];
+  private final long[] sortedWindow = new long[WINDOW_SIZE];
+  private int intervalCount;
+  private int intervalNext;
+  private int workCount;
+  private int workNext;
+
+  // Time when the last frame started (0 if none).
+  private long lastFrameStartNanos;
+
+  // Current quality level (index in RENDER_SCALES), and the best level allowed by the thermal
+  // status.
+  private int level;
+  private int thermalCap;
+
+  // Last thermal status, and when it was read.
+  private int thermalStatus = THERMAL_STATUS_NONE;
+  private long lastThermalPollNanos;
+
+  // When the level last changed, when it was last raised (0 if never), and since when the work
+  // time has been under the upgrade threshold (0 if it's not).
+  private long lastChangeNanos;
+  private long lastUpgradeNanos;
+  private long underBudgetSinceNanos;
+
+  // Current delay before raising the quality.
+  private long upgradeDelayNanos = UPGRADE_DELAY_NANOS;
+
+  // Last computed percentile frame interval and work time.
+  private long percentileFrameNanos;
+  private long percentileWorkNanos;
+
+  // Number of times the quality was lowered and raised.
+  private int downgradeCount;
+  private int upgradeCount;
+
+  // Why the level last changed, for debugging.
+  private String lastDecision = "none";
+
+  /**
+   * Creates a governor.
+   * @param clock The clock.
+   * @param thermalStatusSource The thermal status source, or null if not available.
+   * @param frameBudgetNanos The frame time budget (e.g. 1 / target frame rate), in nanoseconds.
+   */
+  public QualityGovernor(Clock clock, ThermalStatusSource thermalStatusSource,
+      long frameBudgetNanos) {
+    this.clock = clock;
+    this.thermalStatusSource = thermalStatusSource;
+    this.frameBudgetNanos = frameBudgetNanos;
+  }
+
+  /** Sets the frame time budget, in nanoseconds. */
+  public synchronized void setFrameBudgetNanos(long frameBudgetNanos) {
+    this.frameBudgetNanos = frameBudgetNanos;
+  }
+
+  /** Must be called at the start of each frame. Re-evaluates the quality level. */
+  public synchronized void onFrameStarted() {
+    long now = clock.nanoTime();
+    if (lastFrameStartNanos != 0) {
+      long interval = now - lastFrameStartNanos;
+      if (interval <= MAX_FRAME_INTERVAL_NANOS) {
+        intervalWindow[intervalNext] = interval;
+        intervalNext = (intervalNext + 1) % WINDOW_SIZE;
+        if (intervalCount < WINDOW_SIZE) ++intervalCount;
+      }
+    }
+    lastFrameStartNanos = now;
+    pollThermalStatus(now);
+    evaluate(now);
+  }
+
+  /** Must be called at the end of each frame. */
+  public synchronized void onFrameFinished() {
+    if (lastFrameStartNanos == 0) return;
+    workWindow[workNext] = clock.nanoTime() - lastFrameStartNanos;
+    workNext = (workNext + 1) % WINDOW_SIZE;
+    if (workCount < WINDOW_SIZE) ++workCount;
+  }
+
+  /** Returns the fraction of the screen resolution to render at (1 is full resolution). */
+  public synchronized float getRenderScale() {
+    return RENDER_SCALES[level];
+  }
+
+  /** Returns how many levels of detail coarser than needed the meshes should be drawn. */
+  public synchronized int getLodBias() {
+    return LOD_BIASES[level];
+  }
+
+  /** Returns the current quality level (0 is the best). */
+  public synchronized int getQualityLevel() {
+    return level;
+  }
+
+  /** Returns the last thermal status read. */
+  public synchronized int getThermalStatus() {
+    return thermalStatus;
+  }
+
+  /** Returns the frame interval (at the percentile the governor uses) over the window, in ns. */
+  public synchronized long getPercentileFrameNanos() {
+    return percentileFrameNanos;
+  }
+
+  /** Returns the frame work time (at the percentile the governor uses) over the window, in ns. */
+  public synchronized long getPercentileWorkNanos() {
+    return percentileWorkNanos;
+  }
+
+  /** Returns the number of times the quality was lowered. */
+  public synchronized int getDowngradeCount() {
+    return downgradeCount;
+  }
+
+  /** Returns the number of times the quality was raised. */
+  public synchronized int getUpgradeCount() {
+    return upgradeCount;
+  }
+
+  /** Returns a description of the last decision, for debugging. */
+  public synchronized String getLastDecision() {
+    return lastDecision;
+  }
+
+  // Reads the thermal status (if it's time to), and updates the cap it puts on the quality.
+  private void pollThermalStatus(long now) {
+    if (thermalStatusSource == null) return;
+    if (lastThermalPollNanos != 0 && now - lastThermalPollNanos < THERMAL_POLL_INTERVAL_NANOS) {
+      return;
+    }
+    lastThermalPollNanos = now;
+    thermalStatus = thermalStatusSource.getThermalStatus();
+    // Each step of thermal status takes away one quality level.
+    thermalCap = Math.min(RENDER_SCALES.length - 1, Math.max(0, thermalStatus));
+  }
+
+  // Changes the level if needed.
+  private void evaluate(long now) {
+    if (level < thermalCap) {
+      // Too hot for the current level: the thermal status overrides everything else.
+      setLevel(thermalCap, now, "thermal status " + thermalStatus);
+      return;
+    }
+    // Wait until the windows are full of frames rendered at the current level.
+    if (intervalCount < WINDOW_SIZE || workCount < WINDOW_SIZE ||
+        now - lastChangeNanos < COOLDOWN_NANOS) {
+      return;
+    }
+    percentileFrameNanos = percentile(intervalWindow);
+    percentileWorkNanos = percentile(workWindow);
+
+    if (percentileFrameNanos > frameBudgetNanos * DOWNGRADE_THRESHOLD) {
+      underBudgetSinceNanos = 0;
+      if (level == RENDER_SCALES.length - 1) return;
+      if (lastUpgradeNanos != 0 && now - lastUpgradeNanos < FAILED_UPGRADE_NANOS) {
+        // We just raised the quality and it was too much. Wait longer next time.
+        upgradeDelayNanos = Math.min(upgradeDelayNanos * 2, MAX_UPGRADE_DELAY_NANOS);
+      }
+      setLevel(level + 1, now,
+          "frame interval " + percentileFrameNanos / 1000 + " us, over budget");
+    } else if (percentileWorkNanos < frameBudgetNanos * UPGRADE_THRESHOLD) {
+      if (underBudgetSinceNanos == 0) underBudgetSinceNanos = now;
+      if (level > thermalCap && now - underBudgetSinceNanos >= upgradeDelayNanos) {
+        lastUpgradeNanos = now;
+        setLevel(level - 1, now,
+            "frame work time " + percentileWorkNanos / 1000 + " us, well under budget");
+      }
+    } else {
+      underBudgetSinceNanos = 0;
+    }
+  }
+
+  // Returns the frame time at WINDOW_PERCENTILE in the given (full) window.
+  private long percentile(long[] window) {
+    System.arraycopy(window, 0, sortedWindow, 0, WINDOW_SIZE);
+    Arrays.sort(sortedWindow);
+    return sortedWindow[(int) (WINDOW_PERCENTILE * (WINDOW_SIZE - 1))];
+  }
+
+  // Sets the quality level and starts new windows.
+  private void setLevel(int newLevel, long now, String reason) {
+    if (newLevel > level) {
+      ++downgradeCount;
+    } else if (newLevel < level) {
+      ++upgradeCount;
+    }
+    lastDecision = "level " + level + " -> " + newLevel + ": " + reason;
+    level = newLevel;
+    lastChangeNanos = now;
+    underBudgetSinceNanos = 0;
+    intervalCount = 0;
+    intervalNext = 0;
+    workCount = 0;
+    workNext = 0;
+  }
+}
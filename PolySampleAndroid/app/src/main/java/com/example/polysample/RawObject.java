@@ -42,6 +42,16 @@ public class RawObject {
   public int vertexCount;
   // Number of indices in the index buffer.
   public int indexCount;
+  // Minimum and maximum coordinates of the axis-aligned bounding box of the vertex positions
+  // (3 floats each: x, y, z). Used by the renderer to skip objects that are off-screen.
+  public float[] boundsMin;
+  public float[] boundsMax;
+  // The clusters the triangles are grouped in, for culling parts of the object separately, or
+  // null if the object wasn't partitioned (see MeshClusters).
+  public MeshClusters clusters;
+  // The levels of detail of the object, or null if it has none (see MeshLods). When present,
+  // the index buffer holds all levels one after the other, starting with the full detail one.
+  public MeshLods lods;
 
   /**
    * Converts an OBJ + MTL combination to raw format.
@@ -91,6 +101,7 @@ public class RawObject {
     result.indices.position(0);
 
     // Now comes the fun part: converting the object.
+    result.resetBounds();
     short currentVertexIndex = 0;
     for (int i = 0; i < geometry.getFaceCount(); i++) {
       ObjGeometry.Face face = geometry.getFace(i);
@@ -111,6 +122,7 @@ public class RawObject {
         }
         translateAndScale(pos, translation, scaleFactor);
         result.positions.put(pos.x).put(pos.y).put(pos.z);
+        result.encapsulateInBounds(pos.x, pos.y, pos.z);
         result.normals.put(normal.x).put(normal.y).put(normal.z);
         result.colors.put(faceColor[0]).put(faceColor[1]).put(faceColor[2]).put(faceColor[3]);
         ++currentVertexIndex;
@@ -133,6 +145,30 @@ public class RawObject {
     return result;
   }
 
+  /**
+   * Returns the number of indices of the full detail version of the object, which are the first
+   * ones in the index buffer (the rest, if any, are the simplified levels of detail).
+   */
+  public int getFullDetailIndexCount() {
+    return lods != null ? lods.getIndexCount(0) : indexCount;
+  }
+
+  /** Makes the bounding box empty, so points can be added with {@link #encapsulateInBounds}. */
+  public void resetBounds() {
+    boundsMin = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+    boundsMax = new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+  }
+
+  /** Grows the bounding box to include the given point. */
+  public void encapsulateInBounds(float x, float y, float z) {
+    boundsMin[0] = Math.min(boundsMin[0], x);
+    boundsMin[1] = Math.min(boundsMin[1], y);
+    boundsMin[2] = Math.min(boundsMin[2], z);
+    boundsMax[0] = Math.max(boundsMax[0], x);
+    boundsMax[1] = Math.max(boundsMax[1], y);
+    boundsMax[2] = Math.max(boundsMax[2], z);
+  }
+
   // Translates and scales the given point by the given translation and scale.
   // Translation is applied BEFORE scale.
   private static void translateAndScale(ObjGeometry.Vec3 pointToTransform,
@@ -0,0 +1,285 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * When and how {@link RetryingHttpRequest} retries requests, and the statistics that drive it.
+ *
+ * A failed attempt is retried if it failed with a retryable status code (by default 408, 429,
+ * 500, 502, 503 and 504) or with an I/O error, up to a maximum number of attempts. Retries are
+ * delayed with exponential backoff and full jitter: the n-th retry waits a random time between 0
+ * and base * 2^(n-1), capped, so that clients that failed together don't retry together.
+ *
+ * Retries are limited by a budget shared by all requests, so that an outage doesn't multiply
+ * the load on the server: each request adds a fraction of a token to the budget (up to a
+ * maximum), and each retry or hedge spends a whole token. With the default ratio of 0.2, retries
+ * add at most about 20% to the number of requests, once the initial tokens are spent.
+ *
+ * Optionally, requests are hedged: when an attempt waits for the first byte of its response
+ * longer than the 95th percentile of the attempts so far to the same host, a duplicate is sent,
+ * and whichever answers first wins. That cuts the tail latency caused by the occasional slow
+ * server or connection, for about 5% more requests. All the requests we send are GETs, which are
+ * safe to repeat. Hedging only looks at the time to the first byte, which doesn't depend on the
+ * size of the response, and never duplicates an attempt whose response is already arriving: a
+ * large download is slow because it is large, and a hedge would only download it again from the
+ * start. Each host gets its own statistics, as the API server and the file storage have very
+ * different response times.
+ *
+ * The latency of every attempt that went to the network is recorded in a histogram, and its time
+ * to the first byte in its host's histogram. All methods can be called on any thread.
+ */
+public class RetryPolicy {
+  /** Default maximum number of attempts per request (the first one included). */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /** Default delay before the first retry (before jitter), in milliseconds. */
+  public static final long DEFAULT_BASE_BACKOFF_MILLIS = 250;
+
+  /** Default maximum delay before a retry (before jitter), in milliseconds. */
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 8000;
+
+  /** Default fraction of a retry token that each request adds to the budget. */
+  public static final double DEFAULT_RETRY_RATIO = 0.2;
+
+  // Maximum number of tokens in the budget, and the number it starts with.
+  private static final double MAX_RETRY_TOKENS = 10;
+
+  // Fraction of the times to the first byte below which an attempt isn't hedged.
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  // Number of samples from a host needed before hedging requests to it: until then, the
+  // percentile means nothing.
+  private static final int MIN_HEDGE_SAMPLES = 20;
+
+  // Shortest delay before hedging, in milliseconds, so that a burst of fast cache revalidations
+  // doesn't make every slower request look like an outlier.
+  private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+
+  // The policy shared by the whole app. Created when first needed.
+  private static RetryPolicy defaultPolicy;
+
+  // Configuration.
+  private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private volatile long baseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+  private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+  private volatile double retryRatio = DEFAULT_RETRY_RATIO;
+  private volatile boolean hedgingEnabled;
+  private final HashSet<Integer> retryableStatusCodes = new HashSet<>();
+
+  // Tokens available for retries and hedges.
+  private double retryTokens = MAX_RETRY_TOKENS;
+
+  // Latency of the attempts that went to the network.
+  private final LatencyHistogram attemptHistogram = new LatencyHistogram();
+
+  // Time to the first byte of the response (connection setup included) of the attempts that went
+  // to the network, by host.
+  private final HashMap<String, LatencyHistogram> firstByteHistograms = new HashMap<>();
+
+  // Source of the jitter.
+  private final Random random = new Random();
+
+  // Statistics.
+  private long requestCount;
+  private long retryCount;
+  private long hedgeCount;
+  private long hedgeWinCount;
+  private long budgetExhaustedCount;
+
+  /** Returns the policy shared by the whole app. */
+  public static synchronized RetryPolicy getDefault() {
+    if (defaultPolicy == null) {
+      defaultPolicy = new RetryPolicy();
+    }
+    return defaultPolicy;
+  }
+
+  /** Creates a policy with the default settings, and no hedging. */
+  public RetryPolicy() {
+    retryableStatusCodes.add(408);  // Request Timeout.
+    retryableStatusCodes.add(429);  // Too Many Requests.
+    retryableStatusCodes.add(500);  // Internal Server Error.
+    retryableStatusCodes.add(502);  // Bad Gateway.
+    retryableStatusCodes.add(503);  // Service Unavailable.
+    retryableStatusCodes.add(504);  // Gateway Timeout.
+  }
+
+  /** Sets the maximum number of attempts per request, the first one included. */
+  public void setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) throw new IllegalArgumentException("Need at least one attempt.");
+    this.maxAttempts = maxAttempts;
+  }
+
+  /** Returns the maximum number of attempts per request, the first one included. */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Sets the backoff between attempts.
+   * @param baseBackoffMillis The delay before the first retry, before jitter, in milliseconds.
+   *     It doubles with each retry.
+   * @param maxBackoffMillis The maximum delay before a retry, before jitter, in milliseconds.
+   */
+  public void setBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /** Sets whether the given HTTP status code is worth retrying. */
+  public synchronized void setRetryable(int statusCode, boolean retryable) {
+    if (retryable) {
+      retryableStatusCodes.add(statusCode);
+    } else {
+      retryableStatusCodes.remove(statusCode);
+    }
+  }
+
+  /**
+   * Sets the fraction of a retry token each request adds to the budget. 0 allows no retries
+   * beyond the initial tokens; 1 allows as many retries as requests.
+   */
+  public void setRetryRatio(double retryRatio) {
+    this.retryRatio = retryRatio;
+  }
+
+  /** Sets whether slow attempts are hedged with a duplicate request. Off by default. */
+  public void setHedgingEnabled(boolean hedgingEnabled) {
+    this.hedgingEnabled = hedgingEnabled;
+  }
+
+  /** Returns whether slow attempts are hedged with a duplicate request. */
+  public boolean isHedgingEnabled() {
+    return hedgingEnabled;
+  }
+
+  /** Returns the histogram of the latency of the attempts that went to the network. */
+  public LatencyHistogram getAttemptHistogram() {
+    return attemptHistogram;
+  }
+
+  /**
+   * Returns the histogram of the time to the first byte of the response of the attempts that went
+   * to the given host, or null if there were none.
+   */
+  public synchronized LatencyHistogram getFirstByteHistogram(String host) {
+    return firstByteHistograms.get(host);
+  }
+
+  /** Returns the number of requests sent (not counting retries and hedges). */
+  public synchronized long getRequestCount() {
+    return requestCount;
+  }
+
+  /** Returns the number of retries sent. */
+  public synchronized long getRetryCount() {
+    return retryCount;
+  }
+
+  /** Returns the number of hedges sent. */
+  public synchronized long getHedgeCount() {
+    return hedgeCount;
+  }
+
+  /** Returns a one-line summary of the statistics. */
+  public synchronized String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("requests ").append(requestCount).append(", retries ").append(retryCount)
+        .append(", hedges ").append(hedgeCount).append(" (").append(hedgeWinCount)
+        .append(" won), budget exhausted ").append(budgetExhaustedCount).append(" times, ")
+        .append("attempt latency ").append(attemptHistogram.toSummaryString());
+    for (Map.Entry<String, LatencyHistogram> entry : firstByteHistograms.entrySet()) {
+      sb.append(", first byte from ").append(entry.getKey()).append(" ")
+          .append(entry.getValue().toSummaryString());
+    }
+    return sb.toString();
+  }
+
+  // Called when a request is sent. Adds to the retry budget.
+  synchronized void onRequest() {
+    ++requestCount;
+    retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryRatio);
+  }
+
+  // Returns whether a failed attempt is worth retrying: it failed with a retryable status code,
+  // or with an I/O error (not because the URL was invalid, or the response made no sense).
+  synchronized boolean isRetryable(int statusCode, Exception exception) {
+    if (statusCode != 0) return retryableStatusCodes.contains(statusCode);
+    return exception instanceof IOException && !(exception instanceof MalformedURLException);
+  }
+
+  // Returns the delay before the given retry (1 for the first one), in milliseconds.
+  synchronized long getBackoffMillis(int retry) {
+    long ceiling = baseBackoffMillis << Math.min(retry - 1, 20);
+    return (long) (random.nextDouble() * Math.min(ceiling, maxBackoffMillis));
+  }
+
+  // Returns how long an attempt to the given host can wait for the first byte of its response
+  // before it should be hedged, in milliseconds, or -1 if it shouldn't (hedging is off, or there
+  // aren't enough samples from the host yet).
+  long getHedgeDelayMillis(String host) {
+    if (!hedgingEnabled) return -1;
+    LatencyHistogram histogram = getFirstByteHistogram(host);
+    if (histogram == null || histogram.getCount() < MIN_HEDGE_SAMPLES) return -1;
+    return Math.max(MIN_HEDGE_DELAY_MILLIS,
+        histogram.getPercentileNanos(HEDGE_PERCENTILE) / 1000000);
+  }
+
+  // Spends a token for a retry (or a hedge, if hedge is true). Returns false if the budget is
+  // exhausted, in which case the retry or hedge shouldn't be sent.
+  synchronized boolean trySpendToken(boolean hedge) {
+    if (retryTokens < 1) {
+      ++budgetExhaustedCount;
+      return false;
+    }
+    retryTokens -= 1;
+    if (hedge) {
+      ++hedgeCount;
+    } else {
+      ++retryCount;
+    }
+    return true;
+  }
+
+  // Called when a hedge answered before the attempt it duplicates.
+  synchronized void onHedgeWon() {
+    ++hedgeWinCount;
+  }
+
+  // Records the latency of an attempt that went to the network.
+  void recordAttempt(long nanos) {
+    attemptHistogram.record(nanos);
+  }
+
+  // Records the time to the first byte of the response of an attempt to the given host.
+  void recordFirstByte(String host, long nanos) {
+    LatencyHistogram histogram;
+    synchronized (this) {
+      histogram = firstByteHistograms.get(host);
+      if (histogram == null) {
+        histogram = new LatencyHistogram();
+        firstByteHistograms.put(host, histogram);
+      }
+    }
+    histogram.record(nanos);
+  }
+}
@@ -0,0 +1,291 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+
+/**
+ * HTTP request that is retried, and optionally hedged, according to a {@link RetryPolicy}.
+ *
+ * Each attempt is an {@link AsyncHttpRequest}. When an attempt fails with a retryable error, the
+ * next one is sent after a backoff delay, until one succeeds, the error isn't retryable, or the
+ * policy runs out of attempts or budget; then the listener is told, once. When hedging is on and
+ * an attempt waits for its response longer than usual for its host, a duplicate is sent: the
+ * first success wins, and the other attempt is canceled. An attempt whose response is already
+ * arriving is never hedged, however long the download takes.
+ *
+ * The listener, and the timers for the backoff and hedging delays, run on the given handler.
+ * {@link #cancel} can be called on any thread.
+ */
+public class RetryingHttpRequest {
+  private static final String TAG = "PolySample";
+
+  // The URL of the request, and its host (empty if the URL is invalid).
+  private final String url;
+  private final String host;
+
+  // The handler on which the listener is called.
+  private final Handler handler;
+
+  // The listener to call when the request completes.
+  private final AsyncHttpRequest.CompletionListener listener;
+
+  // The policy.
+  private final RetryPolicy policy;
+
+  // Attempts in flight.
+  private final ArrayList<Attempt> inFlight = new ArrayList<>();
+
+  // Number of attempts sent, and how many of them were retries.
+  private int attemptCount;
+  private int retryCount;
+
+  // How long the last attempt can wait for the first byte of its response before it is hedged,
+  // in milliseconds (-1 if it isn't).
+  private long hedgeDelayMillis = -1;
+
+  // If true, the request was started; if true, the listener was told (or the request canceled).
+  private boolean started;
+  private boolean finished;
+
+  // Sends the next attempt, after the backoff delay.
+  private final Runnable retryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (RetryingHttpRequest.this) {
+        if (finished) return;
+        sendAttempt(false);
+      }
+    }
+  };
+
+  // Hedges the attempt in flight, if it has waited for the first byte of its response for the
+  // hedging delay. The delay counts from when the attempt was sent to the network: the time it
+  // waited in the dispatcher's queue doesn't count, as a hedge would wait just the same.
+  private final Runnable hedgeRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (RetryingHttpRequest.this) {
+        if (finished || inFlight.size() != 1 || attemptCount >= policy.getMaxAttempts()) return;
+        AsyncHttpRequest request = inFlight.get(0).request;
+        // The response is arriving: a hedge would only download it again, from the start.
+        if (request.getResponseNanos() >= 0) return;
+        long sentNanos = request.getSentNanos();
+        long waitedMillis = sentNanos < 0 ? 0 : (System.nanoTime() - sentNanos) / 1000000;
+        if (waitedMillis < hedgeDelayMillis) {
+          handler.postDelayed(hedgeRunnable, hedgeDelayMillis - waitedMillis);
+          return;
+        }
+        if (!policy.trySpendToken(true)) return;
+        Log.d(TAG, "Hedging request to " + url);
+        sendAttempt(true);
+      }
+    }
+  };
+
+  /**
+   * Creates a request that follows the app's default policy.
+   * @param url The URL of the request.
+   * @param handler The handler on which the listener should be called.
+   * @param listener The listener to call when the request completes.
+   */
+  public RetryingHttpRequest(String url, Handler handler,
+      AsyncHttpRequest.CompletionListener listener) {
+    this(url, handler, listener, RetryPolicy.getDefault());
+  }
+
+  /**
+   * Creates a request.
+   * @param url The URL of the request.
+   * @param handler The handler on which the listener should be called.
+   * @param listener The listener to call when the request completes.
+   * @param policy The policy that decides when to retry and hedge.
+   */
+  public RetryingHttpRequest(String url, Handler handler,
+      AsyncHttpRequest.CompletionListener listener, RetryPolicy policy) {
+    this.url = url;
+    this.handler = handler;
+    this.listener = listener;
+    this.policy = policy;
+    host = getHost(url);
+  }
+
+  /**
+   * Sends the request. The listener is called once, when an attempt succeeds or when the
+   * request is given up. This method does not block, it returns immediately.
+   */
+  public synchronized void send() {
+    if (started) {
+      throw new IllegalStateException("RetryingHttpRequest can only be sent once.");
+    }
+    started = true;
+    policy.onRequest();
+    sendAttempt(false);
+  }
+
+  /**
+   * Cancels the request: cancels the attempts in flight, and doesn't send any more. The listener
+   * won't be called (except by callbacks already running). Can be called on any thread.
+   */
+  public void cancel() {
+    ArrayList<Attempt> attempts;
+    synchronized (this) {
+      if (finished) return;
+      finished = true;
+      attempts = finish();
+    }
+    cancelAttempts(attempts);
+  }
+
+  /** Returns the number of attempts sent so far. */
+  public synchronized int getAttemptCount() {
+    return attemptCount;
+  }
+
+  // Sends an attempt (a hedge of the one in flight, if hedge is true). Must be called with the
+  // lock held.
+  private void sendAttempt(boolean hedge) {
+    final Attempt attempt = new Attempt(hedge);
+    ++attemptCount;
+    inFlight.add(attempt);
+    attempt.request = new AsyncHttpRequest(url, handler,
+        new AsyncHttpRequest.CompletionListener() {
+      @Override
+      public void onHttpRequestSuccess(byte[] responseBody) {
+        onAttemptSuccess(attempt, responseBody);
+      }
+      @Override
+      public void onHttpRequestFailure(final int statusCode, final String message,
+          final Exception exception) {
+        if (attempt.request == null) {
+          // An invalid URL fails the attempt right away, from the constructor: on the caller's
+          // thread, with our lock held. Report it from the handler, like any other failure.
+          attempt.invalidUrl = true;
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              onAttemptFailure(attempt, statusCode, message, exception);
+            }
+          });
+          return;
+        }
+        onAttemptFailure(attempt, statusCode, message, exception);
+      }
+    });
+    if (attempt.invalidUrl) return;
+    // A hedge must go to the network, not wait for the attempt it duplicates.
+    if (hedge) attempt.request.setCoalescingEnabled(false);
+    attempt.request.send();
+    if (!hedge && attemptCount < policy.getMaxAttempts()) {
+      hedgeDelayMillis = policy.getHedgeDelayMillis(host);
+      if (hedgeDelayMillis >= 0) handler.postDelayed(hedgeRunnable, hedgeDelayMillis);
+    }
+  }
+
+  // Called (on the handler) when an attempt succeeded.
+  private void onAttemptSuccess(Attempt attempt, byte[] responseBody) {
+    recordLatency(attempt);
+    ArrayList<Attempt> others;
+    synchronized (this) {
+      inFlight.remove(attempt);
+      if (finished) return;
+      finished = true;
+      // A hedge won if the attempt it duplicated was still in flight.
+      if (attempt.hedge && !inFlight.isEmpty()) policy.onHedgeWon();
+      others = finish();
+    }
+    cancelAttempts(others);
+    listener.onHttpRequestSuccess(responseBody);
+  }
+
+  // Called (on the handler) when an attempt failed. Retries, unless another attempt is still in
+  // flight, or the failure isn't worth retrying, or the policy says no more.
+  private void onAttemptFailure(Attempt attempt, int statusCode, String message,
+      Exception exception) {
+    recordLatency(attempt);
+    synchronized (this) {
+      inFlight.remove(attempt);
+      if (finished || !inFlight.isEmpty()) return;
+      handler.removeCallbacks(hedgeRunnable);
+      if (attemptCount < policy.getMaxAttempts() && policy.isRetryable(statusCode, exception) &&
+          policy.trySpendToken(false)) {
+        long delayMillis = policy.getBackoffMillis(++retryCount);
+        Log.w(TAG, "Request to " + url + " failed (status " + statusCode + "). Retrying in " +
+            delayMillis + " ms.");
+        handler.postDelayed(retryRunnable, delayMillis);
+        return;
+      }
+      finished = true;
+    }
+    listener.onHttpRequestFailure(statusCode, message, exception);
+  }
+
+  // Stops the timers, and returns the attempts in flight, to cancel. Must be called with the lock
+  // held.
+  private ArrayList<Attempt> finish() {
+    handler.removeCallbacks(retryRunnable);
+    handler.removeCallbacks(hedgeRunnable);
+    ArrayList<Attempt> attempts = new ArrayList<>(inFlight);
+    inFlight.clear();
+    return attempts;
+  }
+
+  // Records the latency of the given attempt, unless it was answered by the cache (or failed
+  // right away, from its constructor), and its time to the first byte, if it got a response.
+  private void recordLatency(Attempt attempt) {
+    if (attempt.invalidUrl || attempt.request.getWireBytes() == 0) return;
+    policy.recordAttempt(System.nanoTime() - attempt.startNanos);
+    long connectNanos = attempt.request.getConnectNanos();
+    long responseNanos = attempt.request.getResponseNanos();
+    if (connectNanos >= 0 && responseNanos >= 0) {
+      policy.recordFirstByte(host, connectNanos + responseNanos);
+    }
+  }
+
+  // Returns the host of the given URL, or an empty string if the URL is invalid.
+  private static String getHost(String url) {
+    try {
+      return new URL(url).getHost();
+    } catch (MalformedURLException e) {
+      return "";
+    }
+  }
+
+  // Cancels the given attempts.
+  private static void cancelAttempts(ArrayList<Attempt> attempts) {
+    for (Attempt attempt : attempts) {
+      attempt.request.cancel();
+    }
+  }
+
+  // An attempt: one AsyncHttpRequest.
+  private static class Attempt {
+    final boolean hedge;
+    final long startNanos;
+    AsyncHttpRequest request;
+    // If true, the URL was invalid: the request was never sent.
+    boolean invalidUrl;
+
+    Attempt(boolean hedge) {
+      this.hedge = hedge;
+      startNanos = System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,301 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Merges many small static meshes into a few big ones (static batching).
+ *
+ * Each mesh is pre-transformed by its world transform and appended to a combined vertex/index
+ * buffer, so the whole set can be drawn with one IBO, one set of VBOs and (usually) one draw call
+ * instead of one of each per mesh. All {@link RawObject}s share the same vertex format, so any
+ * of them can be batched together. Since indices are unsigned shorts, a batch holds at most 65536
+ * vertices; if the meshes don't fit in one batch, several batches are made.
+ *
+ * The result keeps track of where each original mesh (sub-object) ended up, so sub-objects can
+ * still be hidden individually: hiding one just removes its range of indices from the ranges
+ * that are drawn.
+ *
+ * Building is CPU work proportional to the size of the meshes, so {@link #build()} should be
+ * called on a background thread.
+ */
+public class StaticBatcher {
+  private static final String TAG = "PolySample";
+
+  // Maximum number of vertices in a batch (the indices are unsigned shorts).
+  private static final int MAX_VERTICES_PER_BATCH = 65536;
+
+  // The meshes to batch, and their world transforms.
+  private final ArrayList<RawObject> meshes = new ArrayList<>();
+  private final ArrayList<float[]> worldMatrices = new ArrayList<>();
+
+  /** Creates a static batcher, initially with no meshes. */
+  public StaticBatcher() {}
+
+  /**
+   * Adds a mesh to batch.
+   * @param mesh The mesh.
+   * @param worldMatrix The mesh's world transform (4x4, column-major). Normals are transformed
+   *     by its inverse transpose, so any affine transform can be used.
+   * @return The ID of the sub-object, for use with {@link Result#setSubObjectVisible}.
+   */
+  public int add(RawObject mesh, float[] worldMatrix) {
+    if (mesh.vertexCount > MAX_VERTICES_PER_BATCH) {
+      throw new IllegalArgumentException("Mesh has too many vertices to batch: " +
+          mesh.vertexCount);
+    }
+    meshes.add(mesh);
+    worldMatrices.add(worldMatrix.clone());
+    return meshes.size() - 1;
+  }
+
+  /**
+   * Builds the batches. This can take a while for big meshes, so call it on a background thread.
+   * @return The batches, with the table that maps each sub-object to its batch and index range.
+   */
+  public Result build() {
+    Result result = new Result(meshes.size());
+    int start = 0;
+    while (start < meshes.size()) {
+      // Take as many meshes as fit in a batch.
+      int end = start;
+      int vertexCount = 0;
+      int indexCount = 0;
+      while (end < meshes.size() &&
+          vertexCount + meshes.get(end).vertexCount <= MAX_VERTICES_PER_BATCH) {
+        vertexCount += meshes.get(end).vertexCount;
+        indexCount += meshes.get(end).getFullDetailIndexCount();
+        ++end;
+      }
+      result.batches.add(buildBatch(result, result.batches.size(), start, end, vertexCount,
+          indexCount));
+      start = end;
+    }
+    Log.d(TAG, "Batched " + meshes.size() + " meshes into " + result.batches.size() + " batches.");
+    return result;
+  }
+
+  // Builds one batch out of meshes [start, end).
+  private Batch buildBatch(Result result, int batchIndex, int start, int end, int vertexCount,
+      int indexCount) {
+    RawObject combined = new RawObject();
+    combined.vertexCount = vertexCount;
+    combined.indexCount = indexCount;
+    combined.positions = ByteBuffer
+        .allocateDirect(MyGLUtils.FLOAT_SIZE * MyGLUtils.COORDS_PER_VERTEX * vertexCount)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    combined.colors = ByteBuffer
+        .allocateDirect(MyGLUtils.FLOAT_SIZE * MyGLUtils.NUM_COLOR_COMPONENTS * vertexCount)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    combined.normals = ByteBuffer
+        .allocateDirect(MyGLUtils.FLOAT_SIZE * MyGLUtils.COORDS_PER_VERTEX * vertexCount)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    combined.indices = ByteBuffer
+        .allocateDirect(MyGLUtils.SHORT_SIZE * indexCount)
+        .order(ByteOrder.nativeOrder())
+        .asShortBuffer();
+
+    combined.resetBounds();
+    Batch batch = new Batch(combined, end - start);
+    float[] normalMatrix = new float[9];
+    int baseVertex = 0;
+    int firstIndex = 0;
+    for (int i = start; i < end; i++) {
+      RawObject mesh = meshes.get(i);
+      float[] m = worldMatrices.get(i);
+      computeNormalMatrix(m, normalMatrix);
+
+      for (int v = 0; v < mesh.vertexCount; v++) {
+        int p = v * MyGLUtils.COORDS_PER_VERTEX;
+        float x = mesh.positions.get(p);
+        float y = mesh.positions.get(p + 1);
+        float z = mesh.positions.get(p + 2);
+        float wx = m[0] * x + m[4] * y + m[8] * z + m[12];
+        float wy = m[1] * x + m[5] * y + m[9] * z + m[13];
+        float wz = m[2] * x + m[6] * y + m[10] * z + m[14];
+        combined.positions.put(wx).put(wy).put(wz);
+        combined.encapsulateInBounds(wx, wy, wz);
+
+        float nx = mesh.normals.get(p);
+        float ny = mesh.normals.get(p + 1);
+        float nz = mesh.normals.get(p + 2);
+        float tx = normalMatrix[0] * nx + normalMatrix[3] * ny + normalMatrix[6] * nz;
+        float ty = normalMatrix[1] * nx + normalMatrix[4] * ny + normalMatrix[7] * nz;
+        float tz = normalMatrix[2] * nx + normalMatrix[5] * ny + normalMatrix[8] * nz;
+        float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+        if (length > 0) {
+          tx /= length;
+          ty /= length;
+          tz /= length;
+        }
+        combined.normals.put(tx).put(ty).put(tz);
+
+        int c = v * MyGLUtils.NUM_COLOR_COMPONENTS;
+        combined.colors.put(mesh.colors.get(c)).put(mesh.colors.get(c + 1))
+            .put(mesh.colors.get(c + 2)).put(mesh.colors.get(c + 3));
+      }
+
+      // Rebase the mesh's indices to where its vertices are in the combined buffer.
+      for (int j = 0; j < mesh.getFullDetailIndexCount(); j++) {
+        int index = (mesh.indices.get(j) & 0xffff) + baseVertex;
+        combined.indices.put((short) index);
+      }
+
+      SubObject subObject = new SubObject(i, batchIndex, firstIndex,
+          mesh.getFullDetailIndexCount());
+      batch.subObjects[i - start] = subObject;
+      result.subObjects[i] = subObject;
+      baseVertex += mesh.vertexCount;
+      firstIndex += mesh.getFullDetailIndexCount();
+    }
+    combined.positions.position(0);
+    combined.colors.position(0);
+    combined.normals.position(0);
+    combined.indices.position(0);
+    batch.updateDrawRanges();
+    return batch;
+  }
+
+  // Computes the matrix that transforms normals for the given (column-major, 4x4) world matrix:
+  // the inverse transpose of its upper 3x3 part. We use the cofactor matrix, which is the inverse
+  // transpose times the determinant; the scale doesn't matter because we normalize afterwards.
+  private static void computeNormalMatrix(float[] m, float[] out) {
+    // Upper 3x3, column-major: column 0 is (m[0], m[1], m[2]), etc.
+    float a = m[0], b = m[4], c = m[8];
+    float d = m[1], e = m[5], f = m[9];
+    float g = m[2], h = m[6], i = m[10];
+    // Cofactor matrix, stored column-major.
+    out[0] = e * i - f * h;
+    out[1] = -(b * i - c * h);
+    out[2] = b * f - c * e;
+    out[3] = -(d * i - f * g);
+    out[4] = a * i - c * g;
+    out[5] = -(a * f - c * d);
+    out[6] = d * h - e * g;
+    out[7] = -(a * h - b * g);
+    out[8] = a * e - b * d;
+    // A mirroring transform has a negative determinant, which would flip the normals.
+    float determinant = a * out[0] + b * out[3] + c * out[6];
+    if (determinant < 0) {
+      for (int j = 0; j < 9; j++) out[j] = -out[j];
+    }
+  }
+
+  /** Where a sub-object (one of the original meshes) ended up in the batches. */
+  public static class SubObject {
+    /** ID of the sub-object (as returned by {@link StaticBatcher#add}). */
+    public final int id;
+    /** Index of the batch that contains the sub-object. */
+    public final int batchIndex;
+    /** First index of the sub-object in the batch's index buffer. */
+    public final int firstIndex;
+    /** Number of indices of the sub-object. */
+    public final int indexCount;
+    // Whether the sub-object is drawn. Guarded by the batch's lock.
+    private boolean visible = true;
+
+    private SubObject(int id, int batchIndex, int firstIndex, int indexCount) {
+      this.id = id;
+      this.batchIndex = batchIndex;
+      this.firstIndex = firstIndex;
+      this.indexCount = indexCount;
+    }
+  }
+
+  /** A batch: a combined mesh, made of several sub-objects. */
+  public static class Batch {
+    // The combined mesh.
+    private final RawObject rawObject;
+    // The sub-objects in the batch, in the order they appear in the index buffer.
+    private final SubObject[] subObjects;
+    // The ranges of the index buffer to draw (the visible sub-objects). Replaced (never modified)
+    // when visibility changes, so the GL thread can read it without locking.
+    private volatile IndexRanges drawRanges;
+
+    private Batch(RawObject rawObject, int subObjectCount) {
+      this.rawObject = rawObject;
+      this.subObjects = new SubObject[subObjectCount];
+    }
+
+    /** Returns the combined mesh, in world space. */
+    public RawObject getRawObject() {
+      return rawObject;
+    }
+
+    /**
+     * Returns the ranges of the index buffer that should be drawn. Adjacent visible sub-objects
+     * are merged, so if all of them are visible this is a single range. Don't modify it.
+     */
+    public IndexRanges getDrawRanges() {
+      return drawRanges;
+    }
+
+    // Recomputes the ranges to draw from the visibility of the sub-objects.
+    private synchronized void updateDrawRanges() {
+      IndexRanges ranges = new IndexRanges();
+      for (SubObject subObject : subObjects) {
+        if (subObject.visible) ranges.add(subObject.firstIndex, subObject.indexCount);
+      }
+      drawRanges = ranges;
+    }
+
+    private synchronized void setVisible(SubObject subObject, boolean visible) {
+      if (subObject.visible == visible) return;
+      subObject.visible = visible;
+      updateDrawRanges();
+    }
+  }
+
+  /** Result of batching: the batches, and the table of where each sub-object ended up. */
+  public static class Result {
+    // The batches.
+    private final ArrayList<Batch> batches = new ArrayList<>();
+    // Remapping table: sub-object ID to its location in the batches.
+    private final SubObject[] subObjects;
+
+    private Result(int subObjectCount) {
+      subObjects = new SubObject[subObjectCount];
+    }
+
+    /** Returns the number of batches. */
+    public int getBatchCount() {
+      return batches.size();
+    }
+
+    /** Returns the given batch. */
+    public Batch getBatch(int index) {
+      return batches.get(index);
+    }
+
+    /** Returns where the given sub-object ended up. */
+    public SubObject getSubObject(int id) {
+      return subObjects[id];
+    }
+
+    /** Shows or hides the given sub-object. Can be called on any thread. */
+    public void setSubObjectVisible(int id, boolean visible) {
+      SubObject subObject = subObjects[id];
+      batches.get(subObject.batchIndex).setVisible(subObject, visible);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link AsyncFileDownloader} starts its files by priority, then largest first,
+ * keeps at most the given number of them in flight, and stops everything as soon as one fails.
+ *
+ * Runs under Robolectric, against a local MockWebServer that records the order the requests
+ * arrive in and how many it is answering at once. The completion listener is called on the main
+ * looper, which the test runs until it was.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AsyncFileDownloaderTest {
+  // How long to wait for the downloads to finish.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  // How long the server takes to answer each request, so that requests overlap.
+  private static final long ANSWER_DELAY_MILLIS = 100;
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  private RecordingDispatcher dispatcher;
+  private RecordingListener listener;
+
+  @Before
+  public void setUp() {
+    dispatcher = new RecordingDispatcher();
+    server.setDispatcher(dispatcher);
+    listener = new RecordingListener();
+  }
+
+  @Test
+  public void start_byPriorityThenLargestFirst() throws Exception {
+    AsyncFileDownloader downloader = new AsyncFileDownloader();
+    add(downloader, "/texture", AsyncFileDownloader.PRIORITY_LOW, 100000);
+    add(downloader, "/small.mtl", AsyncFileDownloader.PRIORITY_NORMAL, 100);
+    add(downloader, "/model.obj", AsyncFileDownloader.PRIORITY_HIGH, 50);
+    add(downloader, "/unknown.mtl", AsyncFileDownloader.PRIORITY_NORMAL, -1);
+    add(downloader, "/large.mtl", AsyncFileDownloader.PRIORITY_NORMAL, 500);
+    downloader.setMaxParallelDownloads(1);
+
+    downloader.start(new Handler(Looper.getMainLooper()), listener);
+    await(listener);
+
+    assertFalse(downloader.isError());
+    assertEquals(Arrays.asList("/model.obj", "/large.mtl", "/small.mtl", "/unknown.mtl",
+        "/texture"), dispatcher.getPaths());
+    // The files are listed in the order they were added, each with its contents.
+    for (int i = 0; i < downloader.getEntryCount(); i++) {
+      AsyncFileDownloader.Entry entry = downloader.getEntry(i);
+      assertArrayEquals(entry.fileName.getBytes(Charset.forName("UTF-8")), entry.contents);
+    }
+  }
+
+  @Test
+  public void start_capsParallelDownloads() throws Exception {
+    AsyncFileDownloader downloader = new AsyncFileDownloader();
+    for (int i = 0; i < 7; i++) {
+      downloader.add("/file" + i, server.url("/file" + i).toString());
+    }
+    downloader.setMaxParallelDownloads(3);
+
+    downloader.start(new Handler(Looper.getMainLooper()), listener);
+    await(listener);
+
+    assertFalse(downloader.isError());
+    assertEquals(7, server.getRequestCount());
+    assertEquals(3, dispatcher.getMaxInFlight());
+  }
+
+  @Test
+  public void failure_cancelsOthers() throws Exception {
+    AsyncFileDownloader downloader = new AsyncFileDownloader();
+    add(downloader, "/missing.obj", AsyncFileDownloader.PRIORITY_HIGH, -1);
+    add(downloader, "/slow1.mtl", AsyncFileDownloader.PRIORITY_NORMAL, -1);
+    add(downloader, "/slow2.mtl", AsyncFileDownloader.PRIORITY_NORMAL, -1);
+    add(downloader, "/slow3.png", AsyncFileDownloader.PRIORITY_LOW, -1);
+    add(downloader, "/slow4.png", AsyncFileDownloader.PRIORITY_LOW, -1);
+    downloader.setMaxParallelDownloads(3);
+    long completedBefore = HttpDispatcher.getDefault().getCompletedCount();
+
+    downloader.start(new Handler(Looper.getMainLooper()), listener);
+    await(listener);
+
+    assertTrue(downloader.isError());
+    // The slow downloads in flight are disconnected long before their bodies could arrive.
+    long deadline = System.currentTimeMillis() + 2000;
+    while (HttpDispatcher.getDefault().getCompletedCount() < completedBefore + 3) {
+      if (System.currentTimeMillis() > deadline) fail("Downloads still in flight");
+      Thread.sleep(10);
+    }
+    runMainLooperFor(500);
+    // The files that weren't started never will be, and nobody is told anything more.
+    assertEquals(3, server.getRequestCount());
+    assertEquals(1, listener.callCount);
+    for (int i = 0; i < downloader.getEntryCount(); i++) {
+      assertNull(downloader.getEntry(i).contents);
+    }
+  }
+
+  // Adds the file at the given path of the server, named after the path.
+  private void add(AsyncFileDownloader downloader, String path, int priority, long size) {
+    downloader.add(path, server.url(path).toString(), priority, size);
+  }
+
+  // Runs the main looper until the listener was called.
+  private static void await(RecordingListener listener) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (listener.callCount == 0) {
+      if (System.currentTimeMillis() > deadline) fail("Timed out waiting for the downloads");
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+  }
+
+  private static void runMainLooperFor(long millis) throws InterruptedException {
+    long end = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < end) {
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+  }
+
+  // Answers each request after a delay, with its path as the body, except for "/missing..." (not
+  // found) and "/slow..." (a body that takes seconds to arrive). Records the paths in the order
+  // they were requested, and the most requests it answered at once.
+  private static class RecordingDispatcher extends Dispatcher {
+    private final List<String> paths = new ArrayList<>();
+    private int inFlight;
+    private int maxInFlight;
+
+    synchronized List<String> getPaths() {
+      return new ArrayList<>(paths);
+    }
+
+    synchronized int getMaxInFlight() {
+      return maxInFlight;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+      String path = request.getPath();
+      synchronized (this) {
+        paths.add(path);
+        maxInFlight = Math.max(maxInFlight, ++inFlight);
+      }
+      try {
+        Thread.sleep(ANSWER_DELAY_MILLIS);
+      } finally {
+        synchronized (this) {
+          --inFlight;
+        }
+      }
+      if (path.startsWith("/missing")) return new MockResponse().setResponseCode(404);
+      if (path.startsWith("/slow")) {
+        return new MockResponse()
+            .setBody(new Buffer().write(new byte[64 * 1024]))
+            .throttleBody(1024, 100, TimeUnit.MILLISECONDS);
+      }
+      return new MockResponse().setBody(path);
+    }
+  }
+
+  // Listener that counts its calls.
+  private static class RecordingListener implements AsyncFileDownloader.CompletionListener {
+    volatile int callCount;
+
+    @Override
+    public void onPolyDownloadFinished(AsyncFileDownloader downloader) {
+      ++callCount;
+    }
+  }
+}
@@ -0,0 +1,254 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that concurrent {@link AsyncHttpRequest}s for the same URL share one fetch, that each
+ * listener is called on its own handler, and that canceling a request only stops the fetch once
+ * nobody is waiting for it anymore.
+ *
+ * Runs under Robolectric, against a local MockWebServer that holds the response back long enough
+ * for the second request to join the first. The listeners are called on the main looper, which
+ * the test runs until they were.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AsyncHttpRequestCoalescingTest {
+  // How long to wait for a request to complete.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  // How long the server holds the response body back.
+  private static final long BODY_DELAY_MILLIS = 300;
+
+  private static final byte[] BODY = randomBytes(64 * 1024);
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  @Test
+  public void sameUrl_fetchedOnce() throws Exception {
+    server.enqueue(newDelayedResponse());
+
+    RecordingListener first = new RecordingListener(new RecordingHandler());
+    RecordingListener second = new RecordingListener(new RecordingHandler());
+    AsyncHttpRequest firstRequest = send("/shared", first);
+    AsyncHttpRequest secondRequest = send("/shared", second);
+    await(first);
+    await(second);
+
+    assertEquals(1, server.getRequestCount());
+    assertArrayEquals(BODY, first.responseBody);
+    assertSame(first.responseBody, second.responseBody);
+    assertTrue(first.calledOnOwnHandler);
+    assertTrue(second.calledOnOwnHandler);
+    assertEquals(BODY.length, firstRequest.getWireBytes());
+    assertEquals(0, secondRequest.getWireBytes());
+  }
+
+  @Test
+  public void coalescingDisabled_fetchesAgain() throws Exception {
+    server.enqueue(newDelayedResponse());
+    server.enqueue(newDelayedResponse());
+
+    RecordingListener first = new RecordingListener(new RecordingHandler());
+    RecordingListener second = new RecordingListener(new RecordingHandler());
+    send("/shared", first);
+    AsyncHttpRequest secondRequest = new AsyncHttpRequest(server.url("/shared").toString(),
+        second.handler, second);
+    secondRequest.setCoalescingEnabled(false);
+    secondRequest.send();
+    await(first);
+    await(second);
+
+    assertEquals(2, server.getRequestCount());
+    assertArrayEquals(BODY, second.responseBody);
+  }
+
+  @Test
+  public void canceledLeader_keepsFetchingForFollower() throws Exception {
+    server.enqueue(newDelayedResponse());
+
+    RecordingListener leader = new RecordingListener(new RecordingHandler());
+    RecordingListener follower = new RecordingListener(new RecordingHandler());
+    AsyncHttpRequest leaderRequest = send("/shared", leader);
+    send("/shared", follower);
+    leaderRequest.cancel();
+    await(follower);
+    // Give the leader's listener the chance to be called, which it shouldn't be.
+    runMainLooperFor(200);
+
+    assertEquals(1, server.getRequestCount());
+    assertArrayEquals(BODY, follower.responseBody);
+    assertTrue(follower.calledOnOwnHandler);
+    assertFalse(leader.done);
+  }
+
+  @Test
+  public void lastFollowerCanceled_disconnectsLeader() throws Exception {
+    // Would take seconds to arrive.
+    server.enqueue(new MockResponse()
+        .setBody(new Buffer().write(BODY))
+        .throttleBody(1024, 100, TimeUnit.MILLISECONDS));
+    long completedBefore = HttpDispatcher.getDefault().getCompletedCount();
+
+    RecordingListener leader = new RecordingListener(new RecordingHandler());
+    RecordingListener follower = new RecordingListener(new RecordingHandler());
+    AsyncHttpRequest leaderRequest = send("/shared", leader);
+    AsyncHttpRequest followerRequest = send("/shared", follower);
+    server.takeRequest();
+    leaderRequest.cancel();
+    followerRequest.cancel();
+
+    // The fetch stops long before the body could have arrived.
+    long deadline = System.currentTimeMillis() + 2000;
+    while (HttpDispatcher.getDefault().getCompletedCount() == completedBefore) {
+      if (System.currentTimeMillis() > deadline) fail("The leader is still fetching");
+      Thread.sleep(10);
+    }
+    runMainLooperFor(200);
+
+    assertEquals(1, server.getRequestCount());
+    assertFalse(leader.done);
+    assertFalse(follower.done);
+    assertEquals(-1, leaderRequest.getWireBytes());
+  }
+
+  @Test
+  public void afterFlight_fetchesAgain() throws Exception {
+    server.enqueue(newDelayedResponse());
+    server.enqueue(newDelayedResponse());
+
+    RecordingListener first = new RecordingListener(new RecordingHandler());
+    send("/shared", first);
+    await(first);
+    RecordingListener second = new RecordingListener(new RecordingHandler());
+    send("/shared", second);
+    await(second);
+
+    assertEquals(2, server.getRequestCount());
+    assertNull(first.message);
+    assertNull(second.message);
+  }
+
+  private static MockResponse newDelayedResponse() {
+    return new MockResponse()
+        .setBody(new Buffer().write(BODY))
+        .setBodyDelay(BODY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  // Sends a request for the given path to the server, whose listener is called on its handler.
+  private AsyncHttpRequest send(String path, RecordingListener listener) {
+    AsyncHttpRequest request = new AsyncHttpRequest(server.url(path).toString(),
+        listener.handler, listener);
+    request.send();
+    return request;
+  }
+
+  // Runs the main looper until the listener was called.
+  private static void await(RecordingListener listener) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!listener.done) {
+      if (System.currentTimeMillis() > deadline) fail("Timed out waiting for the listener");
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+  }
+
+  private static void runMainLooperFor(long millis) throws InterruptedException {
+    long end = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < end) {
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(1).nextBytes(bytes);
+    return bytes;
+  }
+
+  // Handler on the main looper that knows when it is running one of its messages.
+  private static class RecordingHandler extends Handler {
+    boolean dispatching;
+
+    RecordingHandler() {
+      super(Looper.getMainLooper());
+    }
+
+    @Override
+    public void dispatchMessage(Message message) {
+      dispatching = true;
+      try {
+        super.dispatchMessage(message);
+      } finally {
+        dispatching = false;
+      }
+    }
+  }
+
+  // Listener that records the result of the request, and whether it was called on its handler.
+  private static class RecordingListener implements AsyncHttpRequest.CompletionListener {
+    final RecordingHandler handler;
+    volatile boolean done;
+    byte[] responseBody;
+    String message;
+    boolean calledOnOwnHandler;
+
+    RecordingListener(RecordingHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void onHttpRequestSuccess(byte[] responseBody) {
+      this.responseBody = responseBody;
+      calledOnOwnHandler = handler.dispatching;
+      done = true;
+    }
+
+    @Override
+    public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
+      this.message = message;
+      calledOnOwnHandler = handler.dispatching;
+      done = true;
+    }
+  }
+}
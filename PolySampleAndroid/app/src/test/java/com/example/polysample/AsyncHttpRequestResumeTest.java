@@ -0,0 +1,298 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that {@link AsyncHttpRequest} resumes an interrupted download of a large body with a
+ * Range request validated by If-Range, whether the body is compressed or not, and starts over
+ * when the body changed.
+ *
+ * Runs under Robolectric, against a local MockWebServer that cuts the connection halfway
+ * through the first response, and answers Range requests itself.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AsyncHttpRequestResumeTest {
+  // How long to wait for a request to complete.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  // Random, so it doesn't compress: big enough to be kept as it downloads, even gzipped.
+  private static final byte[] BODY = randomBytes(400 * 1024, 1);
+  private static final byte[] CHANGED_BODY = randomBytes(400 * 1024, 2);
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpDiskCache cache;
+  private ResumableDispatcher dispatcher;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = HttpDiskCache.install(folder.newFolder("cache"), 16 * 1024 * 1024);
+    dispatcher = new ResumableDispatcher();
+    server.setDispatcher(dispatcher);
+  }
+
+  @After
+  public void tearDown() {
+    HttpDiskCache.uninstall();
+  }
+
+  @Test
+  public void identity_resumesWithRange() throws Exception {
+    dispatcher.setBody(BODY, "\"v1\"", null, false);
+    long resumedBefore = AsyncHttpRequest.getTotalResumedBytes();
+
+    long partialLength = sendCutOff("/identity.obj");
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/identity.obj", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    RecordedRequest resumed = takeLastRequest();
+    assertEquals("bytes=" + partialLength + "-", resumed.getHeader("Range"));
+    assertEquals("\"v1\"", resumed.getHeader("If-Range"));
+    assertEquals("identity", resumed.getHeader("Accept-Encoding"));
+    assertEquals(BODY.length - partialLength, request.getWireBytes());
+    assertEquals(partialLength, AsyncHttpRequest.getTotalResumedBytes() - resumedBefore);
+  }
+
+  @Test
+  public void gzip_resumesEncodedBody() throws Exception {
+    byte[] encoded = gzip(BODY);
+    dispatcher.setBody(encoded, "\"v1\"", "gzip", false);
+
+    long partialLength = sendCutOff("/gzip.obj");
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/gzip.obj", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    RecordedRequest resumed = takeLastRequest();
+    assertEquals("bytes=" + partialLength + "-", resumed.getHeader("Range"));
+    assertEquals("\"v1\"", resumed.getHeader("If-Range"));
+    // The rest must be encoded like the start.
+    assertEquals("gzip", resumed.getHeader("Accept-Encoding"));
+    assertEquals(encoded.length - partialLength, request.getWireBytes());
+    assertEquals(BODY.length, request.getDecodedBytes());
+  }
+
+  @Test
+  public void chunkedGzip_resumesEncodedBody() throws Exception {
+    byte[] encoded = gzip(BODY);
+    dispatcher.setBody(encoded, "\"v1\"", "gzip", true);
+
+    long partialLength = sendCutOff("/chunked.obj");
+    RecordingListener listener = new RecordingListener();
+    send("/chunked.obj", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals("bytes=" + partialLength + "-", takeLastRequest().getHeader("Range"));
+  }
+
+  @Test
+  public void changedEtag_startsOver() throws Exception {
+    dispatcher.setBody(gzip(BODY), "\"v1\"", "gzip", false);
+    sendCutOff("/changed.obj");
+    byte[] encoded = gzip(CHANGED_BODY);
+    dispatcher.setBody(encoded, "\"v2\"", "gzip", false);
+    long resumedBefore = AsyncHttpRequest.getTotalResumedBytes();
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/changed.obj", listener);
+
+    // The server ignored the range, since If-Range didn't match: the whole new body came.
+    assertArrayEquals(CHANGED_BODY, listener.responseBody);
+    assertEquals("\"v1\"", takeLastRequest().getHeader("If-Range"));
+    assertEquals(encoded.length, request.getWireBytes());
+    assertEquals(0, AsyncHttpRequest.getTotalResumedBytes() - resumedBefore);
+    // Nothing left to resume.
+    assertNull(cache.getPartial(server.url("/changed.obj").toString()));
+  }
+
+  @Test
+  public void weakEtag_encodedBodyNotKept() throws Exception {
+    dispatcher.setBody(gzip(BODY), "W/\"v1\"", "gzip", false);
+    dispatcher.cutNextResponse();
+    RecordingListener cutListener = new RecordingListener();
+    send("/weak.obj", cutListener);
+    assertNotNull(cutListener.exception);
+
+    RecordingListener listener = new RecordingListener();
+    send("/weak.obj", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertNull(takeLastRequest().getHeader("Range"));
+  }
+
+  // Sends a request for the given path that the server cuts off halfway through the body, and
+  // returns the length of the partial download it left.
+  private long sendCutOff(String path) throws Exception {
+    dispatcher.cutNextResponse();
+    RecordingListener listener = new RecordingListener();
+    send(path, listener);
+    assertNotNull(listener.exception);
+    // The partial download is given back to the cache just after the listener is called.
+    String url = server.url(path).toString();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    HttpDiskCache.Partial partial;
+    while ((partial = cache.getPartial(url)) == null) {
+      if (System.currentTimeMillis() > deadline) fail("No partial download for " + path);
+      Thread.sleep(10);
+    }
+    cache.releasePartial(partial);
+    assertTrue(partial.length > 0);
+    return partial.length;
+  }
+
+  // Sends a request for the given path to the server, and runs the main looper until the
+  // listener was called.
+  private AsyncHttpRequest send(String path, RecordingListener listener) throws Exception {
+    AsyncHttpRequest request = new AsyncHttpRequest(server.url(path).toString(),
+        new Handler(Looper.getMainLooper()), listener);
+    request.send();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!listener.done) {
+      if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + path);
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+    return request;
+  }
+
+  // Returns the last request the server received.
+  private RecordedRequest takeLastRequest() throws InterruptedException {
+    RecordedRequest last = null;
+    for (int i = server.getRequestCount(); i > 0; i--) {
+      last = server.takeRequest();
+    }
+    return last;
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    OutputStream outputStream = new GZIPOutputStream(encoded);
+    outputStream.write(data);
+    outputStream.close();
+    return encoded.toByteArray();
+  }
+
+  // Serves one body, as a server with range support does: a "Range: bytes=<first>-" request
+  // whose If-Range matches the ETag gets the rest of the body, any other request all of it.
+  private static class ResumableDispatcher extends Dispatcher {
+    private byte[] body;
+    private String etag;
+    private String encoding;
+    private boolean chunked;
+    private boolean cutNextResponse;
+
+    synchronized void setBody(byte[] body, String etag, String encoding, boolean chunked) {
+      this.body = body;
+      this.etag = etag;
+      this.encoding = encoding;
+      this.chunked = chunked;
+    }
+
+    // Makes the server cut the connection halfway through the body of the next response.
+    synchronized void cutNextResponse() {
+      cutNextResponse = true;
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+      String range = request.getHeader("Range");
+      int first = 0;
+      MockResponse response = new MockResponse().setHeader("ETag", etag);
+      if (range != null && etag.equals(request.getHeader("If-Range"))) {
+        first = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        response.setResponseCode(206).setHeader("Content-Range",
+            "bytes " + first + "-" + (body.length - 1) + "/" + body.length);
+      }
+      if (encoding != null) response.setHeader("Content-Encoding", encoding);
+      Buffer buffer = new Buffer().write(body, first, body.length - first);
+      if (chunked) {
+        response.setChunkedBody(buffer, 8192);
+      } else {
+        response.setBody(buffer);
+      }
+      if (cutNextResponse) {
+        response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+        cutNextResponse = false;
+      }
+      return response;
+    }
+  }
+
+  // Listener that records the result of the request.
+  private static class RecordingListener implements AsyncHttpRequest.CompletionListener {
+    volatile boolean done;
+    byte[] responseBody;
+    int statusCode;
+    Exception exception;
+
+    @Override
+    public void onHttpRequestSuccess(byte[] responseBody) {
+      this.responseBody = responseBody;
+      done = true;
+    }
+
+    @Override
+    public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
+      this.statusCode = statusCode;
+      this.exception = exception;
+      done = true;
+    }
+  }
+}
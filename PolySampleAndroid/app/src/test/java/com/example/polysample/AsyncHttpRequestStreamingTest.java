@@ -0,0 +1,262 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that {@link AsyncHttpRequest} streams a response to a {@link
+ * AsyncHttpRequest.StreamingListener}: the chunks in order, the length when it is known, the
+ * pooled buffer given back whatever happens, and nothing after the request is canceled.
+ *
+ * Runs under Robolectric, against a local MockWebServer. The listener is called on the HTTP
+ * thread, so the test just waits for it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AsyncHttpRequestStreamingTest {
+  // How long to wait for a request to complete.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  // Several pool buffers long.
+  private static final byte[] BODY = randomBytes(100 * 1024);
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  // Buffers of the default pool that were out before the test.
+  private long buffersOutBefore;
+
+  @Before
+  public void setUp() {
+    buffersOutBefore = getBuffersOut();
+  }
+
+  @Test
+  public void identity_streamsChunksInOrder() throws Exception {
+    server.enqueue(new MockResponse().setBody(new Buffer().write(BODY)));
+
+    RecordingListener listener = new RecordingListener();
+    send("/identity", listener);
+
+    assertCompleted(listener);
+    assertEquals(BODY.length, listener.contentLength);
+    assertTrue(listener.events.toString(), listener.getChunkCount() > 1);
+    awaitBuffersReturned();
+  }
+
+  @Test
+  public void gzip_reportsUnknownLength() throws Exception {
+    // The Content-Length is that of the compressed body: not what the listener gets.
+    server.enqueue(new MockResponse()
+        .setHeader("Content-Encoding", "gzip")
+        .setBody(new Buffer().write(gzip(BODY))));
+
+    RecordingListener listener = new RecordingListener();
+    send("/gzip", listener);
+
+    assertCompleted(listener);
+    assertEquals(-1, listener.contentLength);
+    awaitBuffersReturned();
+  }
+
+  @Test
+  public void chunked_reportsUnknownLength() throws Exception {
+    server.enqueue(new MockResponse().setChunkedBody(new Buffer().write(BODY), 4096));
+
+    RecordingListener listener = new RecordingListener();
+    send("/chunked", listener);
+
+    assertCompleted(listener);
+    assertEquals(-1, listener.contentLength);
+    awaitBuffersReturned();
+  }
+
+  @Test
+  public void errorStatus_failsWithoutStarting() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404).setBody("Not found"));
+
+    RecordingListener listener = new RecordingListener();
+    send("/missing", listener);
+
+    assertEquals("[failure]", listener.events.toString());
+    assertEquals(404, listener.statusCode);
+    awaitBuffersReturned();
+  }
+
+  @Test
+  public void cutOffBody_failsAndReturnsBuffer() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody(new Buffer().write(BODY))
+        .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+
+    RecordingListener listener = new RecordingListener();
+    send("/cut", listener);
+
+    List<String> events = listener.getEvents();
+    assertEquals("started", events.get(0));
+    assertEquals("failure", events.get(events.size() - 1));
+    assertNotNull(listener.exception);
+    assertTrue(listener.body.size() < BODY.length);
+    awaitBuffersReturned();
+  }
+
+  @Test
+  public void cancel_deliversNothingMore() throws Exception {
+    // Slow enough that the rest of the body is still on its way when the first chunk arrives.
+    server.enqueue(new MockResponse()
+        .setBody(new Buffer().write(BODY))
+        .throttleBody(16 * 1024, 100, TimeUnit.MILLISECONDS));
+
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = new AsyncHttpRequest(server.url("/cancel").toString(), listener);
+    listener.requestToCancel = request;
+    request.send();
+
+    awaitBuffersReturned();
+    // Give a late callback the time to show up.
+    Thread.sleep(500);
+    assertEquals("[started, chunk]", listener.events.toString());
+    assertTrue(request.isCanceled());
+  }
+
+  // Sends a streamed request for the given path to the server, and waits until the listener was
+  // told it completed or failed.
+  private void send(String path, RecordingListener listener) throws Exception {
+    new AsyncHttpRequest(server.url(path).toString(), listener).send();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!listener.done) {
+      if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + path);
+      Thread.sleep(10);
+    }
+  }
+
+  // Checks that the listener got the response started, the whole body in chunks, and completed.
+  private void assertCompleted(RecordingListener listener) {
+    List<String> events = listener.getEvents();
+    assertEquals("started", events.get(0));
+    assertEquals("complete", events.get(events.size() - 1));
+    assertEquals(events.size() - 2, listener.getChunkCount());
+    assertArrayEquals(BODY, listener.body.toByteArray());
+  }
+
+  // Waits until the buffers taken from the default pool during the test were given back. They
+  // are given back after the last callback, so this may take a moment.
+  private void awaitBuffersReturned() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (getBuffersOut() != buffersOutBefore) {
+      if (System.currentTimeMillis() > deadline) {
+        fail((getBuffersOut() - buffersOutBefore) + " buffers not given back");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static long getBuffersOut() {
+    BufferPool bufferPool = BufferPool.getDefault();
+    return bufferPool.getAcquireCount() - bufferPool.getReleaseCount();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(1).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    OutputStream outputStream = new GZIPOutputStream(encoded);
+    outputStream.write(data);
+    outputStream.close();
+    return encoded.toByteArray();
+  }
+
+  // Listener that records what it is told, in order, and the body. Cancels the given request,
+  // if any, on the first chunk.
+  private static class RecordingListener implements AsyncHttpRequest.StreamingListener {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    volatile AsyncHttpRequest requestToCancel;
+    volatile boolean done;
+    volatile long contentLength;
+    volatile int statusCode;
+    volatile Exception exception;
+
+    List<String> getEvents() {
+      synchronized (events) {
+        return new ArrayList<>(events);
+      }
+    }
+
+    int getChunkCount() {
+      return Collections.frequency(getEvents(), "chunk");
+    }
+
+    @Override
+    public void onHttpResponseStarted(long contentLength) {
+      this.contentLength = contentLength;
+      events.add("started");
+    }
+
+    @Override
+    public void onHttpResponseChunk(byte[] buffer, int offset, int length) {
+      events.add("chunk");
+      synchronized (body) {
+        body.write(buffer, offset, length);
+      }
+      if (requestToCancel != null) requestToCancel.cancel();
+    }
+
+    @Override
+    public void onHttpResponseComplete() {
+      events.add("complete");
+      done = true;
+    }
+
+    @Override
+    public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
+      this.statusCode = statusCode;
+      this.exception = exception;
+      events.add("failure");
+      done = true;
+    }
+  }
+}
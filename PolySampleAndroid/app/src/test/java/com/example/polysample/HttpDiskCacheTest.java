@@ -0,0 +1,295 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Checks that {@link HttpDiskCache} serves fresh responses without asking the server,
+ * revalidates stale ones, stores only what it may, evicts the least recently used entries, and
+ * finds its entries again after a restart, even one that followed a crash.
+ *
+ * Runs under Robolectric, with the cache installed for {@link AsyncHttpRequest} in a temporary
+ * folder, against a local MockWebServer.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class HttpDiskCacheTest {
+  // How long to wait for a request to complete.
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private static final byte[] BODY = randomBytes(1000, 1);
+  private static final byte[] OTHER_BODY = randomBytes(1000, 2);
+
+  // Room for two entries of BODY's size, not three.
+  private static final long TWO_ENTRIES_BYTES = 2500;
+
+  @Rule
+  public final MockWebServer server = new MockWebServer();
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private HttpDiskCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = folder.newFolder("cache");
+    cache = HttpDiskCache.install(directory, 1024 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    HttpDiskCache.uninstall();
+  }
+
+  @Test
+  public void freshEntry_servedWithoutRequest() throws Exception {
+    server.enqueue(newResponse(BODY).setHeader("Cache-Control", "max-age=60"));
+
+    send("/fresh");
+    RecordingListener listener = new RecordingListener();
+    AsyncHttpRequest request = send("/fresh", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(0, request.getWireBytes());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void staleEntry_revalidatedAndRefreshed() throws Exception {
+    server.enqueue(newResponse(BODY)
+        .setHeader("Cache-Control", "no-cache")
+        .setHeader("ETag", "\"v1\""));
+    server.enqueue(new MockResponse()
+        .setResponseCode(304)
+        .setHeader("Cache-Control", "max-age=60"));
+
+    send("/stale");
+    assertNull(server.takeRequest().getHeader("If-None-Match"));
+    RecordingListener listener = new RecordingListener();
+    send("/stale", listener);
+
+    assertArrayEquals(BODY, listener.responseBody);
+    RecordedRequest revalidation = server.takeRequest();
+    assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+    assertEquals(1, cache.getRevalidationCount());
+    assertEquals(1, cache.getNotModifiedCount());
+
+    // The 304 made the entry fresh: the next request doesn't go to the server.
+    listener = new RecordingListener();
+    send("/stale", listener);
+    assertArrayEquals(BODY, listener.responseBody);
+    assertEquals(2, server.getRequestCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void noStore_notStored() throws Exception {
+    server.enqueue(newResponse(BODY).setHeader("Cache-Control", "no-store, max-age=60"));
+    server.enqueue(newResponse(BODY).setHeader("Cache-Control", "no-store, max-age=60"));
+
+    send("/private");
+    send("/private");
+
+    assertEquals(2, server.getRequestCount());
+    assertEquals(0, cache.getSizeBytes());
+    assertNull(cache.get(server.url("/private").toString()));
+    assertEquals(0, countEntryFiles());
+  }
+
+  @Test
+  public void full_evictsLeastRecentlyUsed() throws Exception {
+    HttpDiskCache.uninstall();
+    cache = HttpDiskCache.install(directory, TWO_ENTRIES_BYTES);
+    enqueueFresh(BODY, 3);
+
+    send("/a");
+    send("/b");
+    // Served from the cache: /a is now used more recently than /b.
+    send("/a");
+    send("/c");
+
+    assertEquals(3, server.getRequestCount());
+    assertNull(cache.get(server.url("/b").toString()));
+    assertNotNull(cache.get(server.url("/a").toString()));
+    assertNotNull(cache.get(server.url("/c").toString()));
+    assertTrue(cache.getSizeBytes() <= TWO_ENTRIES_BYTES);
+    assertEquals(2, countEntryFiles());
+  }
+
+  @Test
+  public void reopen_replaysJournal() throws Exception {
+    HttpDiskCache.uninstall();
+    cache = HttpDiskCache.install(directory, TWO_ENTRIES_BYTES);
+    server.enqueue(newResponse(BODY).setHeader("Cache-Control", "max-age=60"));
+    server.enqueue(newResponse(OTHER_BODY).setHeader("Cache-Control", "max-age=60"));
+    send("/a");
+    send("/b");
+    send("/a");
+    long sizeBytes = cache.getSizeBytes();
+
+    // Crash: the last journal line is cut short, and an entry is left in its temporary file.
+    String keyA = getKey(server.url("/a").toString());
+    Writer journal = new FileWriter(new File(directory, "journal"), true);
+    journal.write("CLEAN " + keyA.substring(0, 20));
+    journal.close();
+    File tmpFile = new File(directory, getKey(server.url("/c").toString()) + ".12.tmp");
+    FileOutputStream tmpOutput = new FileOutputStream(tmpFile);
+    tmpOutput.write(BODY);
+    tmpOutput.close();
+
+    HttpDiskCache.uninstall();
+    cache = HttpDiskCache.install(directory, TWO_ENTRIES_BYTES);
+    HttpDiskCache.Entry entryA = cache.get(server.url("/a").toString());
+    HttpDiskCache.Entry entryB = cache.get(server.url("/b").toString());
+
+    assertNotNull(entryA);
+    assertArrayEquals(BODY, entryA.body);
+    assertNotNull(entryB);
+    assertArrayEquals(OTHER_BODY, entryB.body);
+    assertEquals(sizeBytes, cache.getSizeBytes());
+    assertFalse(tmpFile.exists());
+    assertEquals(2, countEntryFiles());
+  }
+
+  @Test
+  public void reopen_keepsUsageOrder() throws Exception {
+    HttpDiskCache.uninstall();
+    cache = HttpDiskCache.install(directory, TWO_ENTRIES_BYTES);
+    enqueueFresh(BODY, 3);
+    send("/a");
+    send("/b");
+    send("/a");
+
+    // The journal says /b is the least recently used: it goes first.
+    HttpDiskCache.uninstall();
+    cache = HttpDiskCache.install(directory, TWO_ENTRIES_BYTES);
+    send("/c");
+
+    assertNull(cache.get(server.url("/b").toString()));
+    assertNotNull(cache.get(server.url("/a").toString()));
+    assertNotNull(cache.get(server.url("/c").toString()));
+  }
+
+  private static MockResponse newResponse(byte[] body) {
+    return new MockResponse().setBody(new Buffer().write(body));
+  }
+
+  // Enqueues the given number of responses with the given body, fresh for a minute.
+  private void enqueueFresh(byte[] body, int count) {
+    for (int i = 0; i < count; i++) {
+      server.enqueue(newResponse(body).setHeader("Cache-Control", "max-age=60"));
+    }
+  }
+
+  private AsyncHttpRequest send(String path) throws Exception {
+    return send(path, new RecordingListener());
+  }
+
+  // Sends a request for the given path to the server, and runs the main looper until the
+  // listener was called. Fails if the request failed.
+  private AsyncHttpRequest send(String path, RecordingListener listener) throws Exception {
+    AsyncHttpRequest request = new AsyncHttpRequest(server.url(path).toString(),
+        new Handler(Looper.getMainLooper()), listener);
+    request.send();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!listener.done) {
+      if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + path);
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.sleep(10);
+    }
+    if (listener.responseBody == null) fail("Request to " + path + " failed: " + listener.message);
+    return request;
+  }
+
+  private int countEntryFiles() {
+    int count = 0;
+    for (File file : directory.listFiles()) {
+      if (file.getName().endsWith(".entry")) ++count;
+    }
+    return count;
+  }
+
+  // Returns the name the cache gives the files of the given URL: its SHA-1 hash, in hex.
+  private static String getKey(String url) throws Exception {
+    byte[] digest =
+        MessageDigest.getInstance("SHA-1").digest(url.getBytes(Charset.forName("UTF-8")));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest) {
+      hex.append(String.format("%02x", b & 0xFF));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  // Listener that records the result of the request.
+  private static class RecordingListener implements AsyncHttpRequest.CompletionListener {
+    volatile boolean done;
+    byte[] responseBody;
+    String message;
+
+    @Override
+    public void onHttpRequestSuccess(byte[] responseBody) {
+      this.responseBody = responseBody;
+      done = true;
+    }
+
+    @Override
+    public void onHttpRequestFailure(int statusCode, String message, Exception exception) {
+      this.message = message + (exception != null ? ": " + exception : "");
+      done = true;
+    }
+  }
+}
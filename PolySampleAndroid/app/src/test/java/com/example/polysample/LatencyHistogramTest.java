@@ -0,0 +1,88 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/**
+ * Checks that {@link LatencyHistogram} reports each percentile as the top of its bucket, so that
+ * it is never below the samples it stands for, and formats its summary the same in every locale.
+ *
+ * The histogram doesn't depend on Android, so this is a plain JUnit test.
+ */
+public class LatencyHistogramTest {
+  @Test
+  public void percentile_subMicrosecond_notZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(300);
+    histogram.record(800);
+
+    // Both in the first bucket, whose top is capped by the maximum.
+    assertEquals(800, histogram.getPercentileNanos(0.5));
+  }
+
+  @Test
+  public void percentile_linearBucket_topOfBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(5500);
+    histogram.record(9000);
+
+    assertEquals(5999, histogram.getPercentileNanos(0.5));
+  }
+
+  @Test
+  public void percentile_exponentialBucket_topOfBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 103.5 us: in the bucket from 100 to 104 us.
+    histogram.record(103500);
+    histogram.record(200000);
+
+    assertEquals(103999, histogram.getPercentileNanos(0.5));
+  }
+
+  @Test
+  public void percentile_neverBelowSample() {
+    for (long nanos = 1; nanos < 10000000000L; nanos = nanos * 3 + 7) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(nanos);
+      // Far above, so that the maximum doesn't cap the percentile.
+      histogram.record(nanos * 100);
+
+      long percentile = histogram.getPercentileNanos(0.5);
+      assertTrue(nanos + " reported as " + percentile, percentile >= nanos);
+      // About 6% above at most, or within the microsecond below 32 us.
+      assertTrue(nanos + " reported as " + percentile, percentile < nanos * 1.07 + 1000);
+    }
+  }
+
+  @Test
+  public void toSummaryString_sameInAnyLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(1500000);
+
+      assertEquals("1.5 / 1.5 / 1.5 / 1.5 ms (1)", histogram.toSummaryString());
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.Matrix;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link MatrixMath} computes the same results as android.opengl.Matrix.
+ *
+ * Runs under Robolectric, which provides the real android.opengl.Matrix. The matrices are stored
+ * at non-zero offsets, to check that the offsets are honored.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class MatrixMathTest {
+  // Offset at which the matrices are stored in the test arrays.
+  private static final int OFFSET = 3;
+
+  // Tolerance, relative to the magnitude of the expected value (and absolute below 1).
+  private static final float TOLERANCE = 1e-5f;
+
+  private final Random random = new Random(42);
+
+  @Test
+  public void setRotate_matchesSetRotateM() {
+    float[][] axes = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 }, { 1, 2, 3 }, { -0.5f, 4, 0.1f } };
+    float[] angles = { 0, 30, 90, -45, 180, 275.5f };
+    for (float[] axis : axes) {
+      for (float angle : angles) {
+        float[] expected = newMatrix();
+        float[] actual = newMatrix();
+        Matrix.setRotateM(expected, OFFSET, angle, axis[0], axis[1], axis[2]);
+        MatrixMath.setRotate(actual, OFFSET, angle, axis[0], axis[1], axis[2]);
+        assertMatrixEquals("setRotate " + angle, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void setLookAt_matchesSetLookAtM() {
+    for (int i = 0; i < 20; i++) {
+      float[] expected = newMatrix();
+      float[] actual = newMatrix();
+      float eyeX = randomFloat(10);
+      float eyeY = randomFloat(10);
+      float eyeZ = randomFloat(10) + 20;
+      float centerX = randomFloat(5);
+      float centerY = randomFloat(5);
+      float centerZ = randomFloat(5);
+      Matrix.setLookAtM(expected, OFFSET, eyeX, eyeY, eyeZ, centerX, centerY, centerZ, 0, 1, 0);
+      MatrixMath.setLookAt(actual, OFFSET, eyeX, eyeY, eyeZ, centerX, centerY, centerZ, 0, 1, 0);
+      assertMatrixEquals("setLookAt #" + i, expected, actual);
+    }
+  }
+
+  @Test
+  public void perspective_matchesPerspectiveM() {
+    float[] fovs = { 30, 45, 60, 90 };
+    float[] aspects = { 0.5f, 1, 16 / 9f };
+    for (float fov : fovs) {
+      for (float aspect : aspects) {
+        float[] expected = newMatrix();
+        float[] actual = newMatrix();
+        Matrix.perspectiveM(expected, OFFSET, fov, aspect, 0.1f, 100);
+        MatrixMath.perspective(actual, OFFSET, fov, aspect, 0.1f, 100);
+        assertMatrixEquals("perspective " + fov + " " + aspect, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void multiplyMM_matchesMultiplyMM() {
+    for (int i = 0; i < 20; i++) {
+      float[] lhs = randomMatrix();
+      float[] rhs = randomMatrix();
+      float[] expected = newMatrix();
+      float[] actual = newMatrix();
+      Matrix.multiplyMM(expected, OFFSET, lhs, OFFSET, rhs, OFFSET);
+      MatrixMath.multiplyMM(actual, OFFSET, lhs, OFFSET, rhs, OFFSET);
+      assertMatrixEquals("multiplyMM #" + i, expected, actual);
+
+      // The result may be one of the operands.
+      MatrixMath.multiplyMM(lhs, OFFSET, lhs, OFFSET, rhs, OFFSET);
+      assertMatrixEquals("multiplyMM in place #" + i, expected, lhs);
+    }
+  }
+
+  @Test
+  public void multiplyMMBatch_matchesMultiplyMM() {
+    int count = 7;
+    float[] lhs = new float[OFFSET + count * MatrixMath.MATRIX_SIZE];
+    for (int i = OFFSET; i < lhs.length; i++) {
+      lhs[i] = randomFloat(10);
+    }
+    float[] rhs = randomMatrix();
+    float[] expected = new float[lhs.length];
+    for (int i = 0; i < count; i++) {
+      int offset = OFFSET + i * MatrixMath.MATRIX_SIZE;
+      Matrix.multiplyMM(expected, offset, lhs, offset, rhs, OFFSET);
+    }
+    float[] actual = new float[lhs.length];
+    MatrixMath.multiplyMMBatch(actual, OFFSET, lhs, OFFSET, rhs, OFFSET, count);
+    assertMatrixEquals("multiplyMMBatch", expected, actual);
+
+    // The result may be the same as lhs.
+    MatrixMath.multiplyMMBatch(lhs, OFFSET, lhs, OFFSET, rhs, OFFSET, count);
+    assertMatrixEquals("multiplyMMBatch in place", expected, lhs);
+  }
+
+  @Test
+  public void multiplyMV_matchesMultiplyMV() {
+    for (int i = 0; i < 20; i++) {
+      float[] lhs = randomMatrix();
+      float[] vector = { 0, 0, 0, randomFloat(10), randomFloat(10), randomFloat(10), 1 };
+      float[] expected = new float[OFFSET + 4];
+      float[] actual = new float[OFFSET + 4];
+      Matrix.multiplyMV(expected, OFFSET, lhs, OFFSET, vector, OFFSET);
+      MatrixMath.multiplyMV(actual, OFFSET, lhs, OFFSET, vector, OFFSET);
+      assertMatrixEquals("multiplyMV #" + i, expected, actual);
+    }
+  }
+
+  @Test
+  public void invert_matchesInvertM() {
+    for (int i = 0; i < 20; i++) {
+      // A typical model-view matrix: a rotation, a translation and a scale.
+      float[] m = newMatrix();
+      Matrix.setRotateM(m, OFFSET, randomFloat(180), randomFloat(1), randomFloat(1), 1);
+      Matrix.translateM(m, OFFSET, randomFloat(10), randomFloat(10), randomFloat(10));
+      Matrix.scaleM(m, OFFSET, 0.5f, 2, 3);
+      float[] expected = newMatrix();
+      float[] actual = newMatrix();
+      assertTrue(Matrix.invertM(expected, OFFSET, m, OFFSET));
+      assertTrue(MatrixMath.invert(actual, OFFSET, m, OFFSET));
+      assertMatrixEquals("invert #" + i, expected, actual);
+    }
+  }
+
+  @Test
+  public void invert_singularMatrix_returnsFalseAndLeavesResult() {
+    float[] m = newMatrix();
+    Matrix.setIdentityM(m, OFFSET);
+    Matrix.scaleM(m, OFFSET, 1, 0, 1);
+    float[] inv = randomMatrix();
+    float[] before = inv.clone();
+    assertFalse(Matrix.invertM(newMatrix(), OFFSET, m, OFFSET));
+    assertFalse(MatrixMath.invert(inv, OFFSET, m, OFFSET));
+    assertMatrixEquals("invert singular", before, inv);
+  }
+
+  @Test
+  public void translateAndScale_matchTranslateMAndScaleM() {
+    float[] expected = randomMatrix();
+    float[] actual = expected.clone();
+    Matrix.translateM(expected, OFFSET, 1.5f, -2, 3);
+    Matrix.scaleM(expected, OFFSET, 2, 0.5f, -1);
+    MatrixMath.translate(actual, OFFSET, 1.5f, -2, 3);
+    MatrixMath.scale(actual, OFFSET, 2, 0.5f, -1);
+    assertMatrixEquals("translate and scale", expected, actual);
+  }
+
+  // Returns a zeroed array with room for a matrix at OFFSET.
+  private static float[] newMatrix() {
+    return new float[OFFSET + MatrixMath.MATRIX_SIZE];
+  }
+
+  // Returns an array with a random matrix at OFFSET.
+  private float[] randomMatrix() {
+    float[] m = newMatrix();
+    for (int i = 0; i < MatrixMath.MATRIX_SIZE; i++) {
+      m[OFFSET + i] = randomFloat(10);
+    }
+    return m;
+  }
+
+  // Returns a random float in [-range, range).
+  private float randomFloat(float range) {
+    return (random.nextFloat() * 2 - 1) * range;
+  }
+
+  // Asserts that the arrays are equal, within the tolerance.
+  private static void assertMatrixEquals(String message, float[] expected, float[] actual) {
+    assertEquals(message + ": length", expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      float tolerance = TOLERANCE * Math.max(1, Math.abs(expected[i]));
+      assertEquals(message + ": element " + i, expected[i], actual[i], tolerance);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks that meshes allocated in a {@link MyBufferArena} draw from their own page.
+ *
+ * On OpenGL ES 2 there are no VAOs: the state cache remembers which mesh's vertex layout is set
+ * up, and the IBO binding is part of it. Uploading to another page binds that page's IBO, so the
+ * next draw of the mesh whose layout was set up must bind its IBO again.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class MyBufferArenaTest {
+  @Test
+  public void es2_drawAfterNewPage_bindsOwnIbo() {
+    MyRecordingGL gl = new MyRecordingGL(false);
+    MyGLStateCache stateCache = newStateCache(gl);
+    // Pages hold a single quad.
+    MyBufferArena arena = new MyBufferArena(stateCache, 4, 6);
+
+    MyMesh first = arena.allocate(TestObjects.newQuads(1));
+    assertEquals(first.getBuffers().getIbo(), draw(first, stateCache, gl));
+    // Creating the second page, and uploading to it, binds its IBO.
+    MyMesh second = arena.allocate(TestObjects.newQuads(1));
+    assertEquals(2, arena.getPageCount());
+    assertNotEquals(first.getBuffers().getIbo(), second.getBuffers().getIbo());
+
+    assertEquals(first.getBuffers().getIbo(), draw(first, stateCache, gl));
+    assertEquals(second.getBuffers().getIbo(), draw(second, stateCache, gl));
+  }
+
+  @Test
+  public void es2_drawAfterUploadToOtherPage_bindsOwnIbo() {
+    MyRecordingGL gl = new MyRecordingGL(false);
+    MyGLStateCache stateCache = newStateCache(gl);
+    MyBufferArena arena = new MyBufferArena(stateCache, 8, 12);
+    MyMesh first = arena.allocate(TestObjects.newQuads(2));
+    MyMesh second = arena.allocate(TestObjects.newQuads(1));
+    draw(second, stateCache, gl);
+
+    // Fills the second page, binding its IBO while the first mesh's layout is set up.
+    draw(first, stateCache, gl);
+    arena.allocate(TestObjects.newQuads(1));
+
+    assertEquals(first.getBuffers().getIbo(), draw(first, stateCache, gl));
+  }
+
+  @Test
+  public void es2_drawAfterDefragment_bindsOwnIbo() {
+    MyRecordingGL gl = new MyRecordingGL(false);
+    MyGLStateCache stateCache = newStateCache(gl);
+    // The first page gets three quads (and room for a fourth), the second page the bigger mesh.
+    MyBufferArena arena = new MyBufferArena(stateCache, 16, 24);
+    arena.allocate(TestObjects.newQuads(1));
+    MyMesh middle = arena.allocate(TestObjects.newQuads(1));
+    MyMesh last = arena.allocate(TestObjects.newQuads(1));
+    MyMesh big = arena.allocate(TestObjects.newQuads(3));
+    assertEquals(2, arena.getPageCount());
+    // Leave a hole in the first page.
+    arena.free(middle);
+
+    draw(big, stateCache, gl);
+    // Moves the last quad down, uploading it to the first page again.
+    arena.defragment();
+    assertEquals(6, last.getFirstIndex());
+
+    assertEquals(big.getBuffers().getIbo(), draw(big, stateCache, gl));
+    assertEquals(last.getBuffers().getIbo(), draw(last, stateCache, gl));
+  }
+
+  @Test
+  public void es2_drawSameMeshTwice_skipsLayout() {
+    MyRecordingGL gl = new MyRecordingGL(false);
+    MyGLStateCache stateCache = newStateCache(gl);
+    MyBufferArena arena = new MyBufferArena(stateCache, 4, 6);
+    MyMesh mesh = arena.allocate(TestObjects.newQuads(1));
+    draw(mesh, stateCache, gl);
+
+    gl.reset();
+    draw(mesh, stateCache, gl);
+
+    // Nothing to bind: only the draw call.
+    assertEquals(0, gl.getBindCount());
+    assertEquals(1, gl.getCallCount());
+  }
+
+  private static MyGLStateCache newStateCache(MyGL gl) {
+    MyGLStateCache stateCache = new MyGLStateCache(gl);
+    stateCache.invalidate();
+    return stateCache;
+  }
+
+  // Binds and draws the mesh, and returns the IBO the draw used.
+  private static int draw(MyMesh mesh, MyGLStateCache stateCache, MyRecordingGL gl) {
+    mesh.bind(stateCache);
+    gl.glDrawElements(GLES20.GL_TRIANGLES, mesh.getIndexCount(), GLES20.GL_UNSIGNED_SHORT,
+        mesh.getIndexOffsetBytes(0));
+    return gl.getElementArrayBuffer();
+  }
+}
@@ -0,0 +1,348 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.opengl.GLES20;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Measures the GL work of {@link MyGLRenderer}'s frames through {@link MyRecordingGL}, on
+ * OpenGL ES 2 and 3, and checks it stays within bounds: draw calls, binds, and redundant state
+ * changes (which the state cache is there to avoid). Also checks how copies of the object are
+ * drawn (instanced on ES 3, one by one on ES 2), and that static batches draw only the ranges of
+ * their visible meshes.
+ *
+ * Runs under Robolectric, for the frame pacer's Choreographer. The render scale comes from a
+ * governor the test controls.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class MyGLRendererTest {
+  // Frames to draw before the steady state: the renderer prepares the programs it doesn't need
+  // yet after its first frames.
+  private static final int WARM_UP_FRAMES = 3;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private MyRecordingGL gl;
+  private FixedQualityGovernor governor;
+  private MyGLRenderer renderer;
+
+  @Test
+  public void es2_firstFrame_uploadsAndDraws() throws Exception {
+    checkFirstFrame(false);
+  }
+
+  @Test
+  public void es3_firstFrame_uploadsAndDraws() throws Exception {
+    checkFirstFrame(true);
+  }
+
+  @Test
+  public void es2_steadyFrames_onlyDraw() throws Exception {
+    checkSteadyFrames(false);
+  }
+
+  @Test
+  public void es3_steadyFrames_onlyDraw() throws Exception {
+    checkSteadyFrames(true);
+  }
+
+  @Test
+  public void es2_scaledFrames_noRedundantState() throws Exception {
+    // Without VAOs, the object's and the quad's layouts are set up in turn: 7 binds.
+    checkScaledFrames(false, 7);
+  }
+
+  @Test
+  public void es3_scaledFrames_noRedundantState() throws Exception {
+    // Program, VAO and framebuffer for each draw, and the texture.
+    checkScaledFrames(true, 6);
+  }
+
+  @Test
+  public void es2_fullScaleAgain_releasesRenderTarget() throws Exception {
+    checkRenderTargetReleased(false);
+  }
+
+  @Test
+  public void es3_fullScaleAgain_releasesRenderTarget() throws Exception {
+    checkRenderTargetReleased(true);
+  }
+
+  @Test
+  public void es2_instances_oneDrawPerCopy() throws Exception {
+    checkInstances(false);
+  }
+
+  @Test
+  public void es3_instances_oneInstancedDraw() throws Exception {
+    checkInstances(true);
+  }
+
+  @Test
+  public void es2_instances_offScreenCopiesCulled() throws Exception {
+    checkOffScreenInstances(false);
+  }
+
+  @Test
+  public void es3_instances_offScreenCopiesCulled() throws Exception {
+    checkOffScreenInstances(true);
+  }
+
+  @Test
+  public void es2_staticBatches_drawVisibleRanges() throws Exception {
+    checkStaticBatches(false);
+  }
+
+  @Test
+  public void es3_staticBatches_drawVisibleRanges() throws Exception {
+    checkStaticBatches(true);
+  }
+
+  @Test
+  public void makeGridTransforms_centersGrid() {
+    float[] transforms = MyGLRenderer.makeGridTransforms(3, 2, 2, 0.5f);
+
+    assertEquals(6 * 16, transforms.length);
+    // Column-major: the translation is in the last column, the scale on the diagonal.
+    assertEquals(-2, transforms[12], 0);
+    assertEquals(-1, transforms[14], 0);
+    assertEquals(0.5f, transforms[0], 0);
+    int last = 5 * 16;
+    assertEquals(2, transforms[last + 12], 0);
+    assertEquals(0, transforms[last + 13], 0);
+    assertEquals(1, transforms[last + 14], 0);
+  }
+
+  private void checkFirstFrame(boolean es3) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+
+    drawFrame();
+
+    assertEquals(1, gl.getDrawCallCount());
+    assertEquals(8, gl.getTriangleCount());
+    assertTrue(gl.getUploadedBytes() > 0);
+    // The cache doesn't know what a new VAO starts with, so setting one up may repeat a bit.
+    assertAtMost("redundant state changes", 2, gl.getRedundantStateChangeCount());
+  }
+
+  private void checkSteadyFrames(boolean es3) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+    drawFrames(WARM_UP_FRAMES);
+
+    for (int i = 0; i < 5; i++) {
+      drawFrame();
+      // Clear, set the matrix, draw, check for errors: nothing is bound again.
+      assertEquals(1, gl.getDrawCallCount());
+      assertEquals(0, gl.getBindCount());
+      assertEquals(0, gl.getRedundantStateChangeCount());
+      assertEquals(0, gl.getUploadedBytes());
+      assertAtMost("calls", 4, gl.getCallCount());
+    }
+  }
+
+  private void checkScaledFrames(boolean es3, int maxBinds) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+    governor.renderScale = 0.5f;
+    drawFrames(WARM_UP_FRAMES);
+
+    for (int i = 0; i < 5; i++) {
+      drawFrame();
+      // The object, then the upscale to the screen.
+      assertEquals(2, gl.getDrawCallCount());
+      assertAtMost("binds", maxBinds, gl.getBindCount());
+      assertEquals(0, gl.getRedundantStateChangeCount());
+      assertEquals(0, gl.getUploadedBytes());
+    }
+  }
+
+  private void checkRenderTargetReleased(boolean es3) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+    drawFrames(WARM_UP_FRAMES);
+    long fullScaleBytes = renderer.getResourceManager().getTotalBytes();
+    governor.renderScale = 0.5f;
+    drawFrame();
+    assertTrue(renderer.getResourceManager().getTotalBytes() > fullScaleBytes);
+
+    governor.renderScale = 1;
+    gl.setLoggingEnabled(true);
+    drawFrame();
+
+    assertEquals(fullScaleBytes, renderer.getResourceManager().getTotalBytes());
+    assertTrue(gl.getCommands().toString(), gl.getCommands().contains("glDeleteTextures(1)"));
+    assertEquals(1, gl.getDrawCallCount());
+    assertEquals(0, gl.getRedundantStateChangeCount());
+  }
+
+  private void checkInstances(boolean es3) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+    renderer.setInstanceTransforms(MyGLRenderer.makeGridTransforms(3, 3, 1.5f, 0.3f));
+    drawFrames(WARM_UP_FRAMES);
+
+    gl.setLoggingEnabled(true);
+    drawFrame();
+
+    assertEquals(9, renderer.getLastFrameDrawnObjectCount());
+    assertEquals(9 * 8, gl.getTriangleCount());
+    if (es3) {
+      // All the copies in one call, their matrices in one upload.
+      assertEquals(1, gl.getDrawCallCount());
+      assertEquals(1, countCommands("glDrawElementsInstanced("));
+      assertTrue(gl.getCommands().toString(),
+          gl.getCommands().contains("glDrawElementsInstanced(4, 24, 5123, 0, 9)"));
+      assertEquals(9 * 16 * 4, gl.getUploadedBytes());
+    } else {
+      // One call per copy, with its matrix set as a constant attribute: nothing to upload.
+      assertEquals(9, gl.getDrawCallCount());
+      assertEquals(0, countCommands("glDrawElementsInstanced("));
+      assertEquals(0, gl.getUploadedBytes());
+    }
+    assertEquals(0, gl.getRedundantStateChangeCount());
+  }
+
+  private void checkOffScreenInstances(boolean es3) throws Exception {
+    startRenderer(es3, TestObjects.newQuads(4));
+    // Only the middle copy is in front of the camera.
+    renderer.setInstanceTransforms(MyGLRenderer.makeGridTransforms(3, 1, 100, 0.3f));
+    drawFrames(WARM_UP_FRAMES);
+
+    drawFrame();
+
+    assertEquals(1, renderer.getLastFrameDrawnObjectCount());
+    assertEquals(1, gl.getDrawCallCount());
+    assertEquals(8, gl.getTriangleCount());
+    assertEquals(es3 ? 16 * 4 : 0, gl.getUploadedBytes());
+  }
+
+  private void checkStaticBatches(boolean es3) throws Exception {
+    startRenderer(es3, null);
+    // Meshes of 2, 1 and 3 quads, side by side: 12, 6 and 18 indices.
+    StaticBatcher batcher = new StaticBatcher();
+    batcher.add(TestObjects.newQuads(2), newTranslation(-3));
+    int hiddenId = batcher.add(TestObjects.newQuads(1), newTranslation(-1));
+    batcher.add(TestObjects.newQuads(3), newTranslation(0));
+    StaticBatcher.Result batches = batcher.build();
+    renderer.setStaticBatchesToRender(batches);
+    drawFrames(WARM_UP_FRAMES);
+
+    gl.setLoggingEnabled(true);
+    drawFrame();
+    assertEquals(1, gl.getDrawCallCount());
+    assertEquals(12, gl.getTriangleCount());
+    int batchOffset = getDrawOffset(36);
+
+    batches.setSubObjectVisible(hiddenId, false);
+    drawFrame();
+
+    // What's before and after the hidden mesh, and nothing else: no upload either.
+    assertEquals(2, gl.getDrawCallCount());
+    assertEquals(10, gl.getTriangleCount());
+    assertEquals(batchOffset, getDrawOffset(12));
+    assertEquals(batchOffset + 18 * MyGLUtils.SHORT_SIZE, getDrawOffset(18));
+    assertEquals(0, gl.getUploadedBytes());
+  }
+
+  // Returns the offset, in bytes, of the logged glDrawElements call with the given index count.
+  private int getDrawOffset(int indexCount) {
+    String prefix = "glDrawElements(" + GLES20.GL_TRIANGLES + ", " + indexCount + ", " +
+        GLES20.GL_UNSIGNED_SHORT + ", ";
+    for (String command : gl.getCommands()) {
+      if (command.startsWith(prefix)) {
+        return Integer.parseInt(command.substring(prefix.length(), command.length() - 1));
+      }
+    }
+    fail("No draw of " + indexCount + " indices: " + gl.getCommands());
+    return -1;
+  }
+
+  private static float[] newTranslation(float x) {
+    float[] matrix = new float[16];
+    MatrixMath.setIdentity(matrix, 0);
+    MatrixMath.translate(matrix, 0, x, 0, 0);
+    return matrix;
+  }
+
+  // Creates a renderer on a new recording context, with a 1080x1920 surface, and gives it the
+  // object to draw (if any).
+  private void startRenderer(boolean es3, RawObject object) throws Exception {
+    gl = new MyRecordingGL(es3);
+    FrameScheduler.RenderRequester requester = new FrameScheduler.RenderRequester() {
+      @Override
+      public void requestRender() {}
+    };
+    governor = new FixedQualityGovernor();
+    renderer = new MyGLRenderer(gl, new FrameScheduler(requester), new FramePacer(requester, 60),
+        governor, new MyProgramCache(folder.newFolder()));
+    renderer.onSurfaceCreated(null, null);
+    renderer.onSurfaceChanged(null, 1080, 1920);
+    if (object != null) renderer.setRawObjectToRender(object);
+  }
+
+  // Draws a frame, with the counters reset just before.
+  private void drawFrame() {
+    gl.reset();
+    renderer.onDrawFrame(null);
+  }
+
+  private void drawFrames(int count) {
+    for (int i = 0; i < count; i++) {
+      drawFrame();
+    }
+  }
+
+  // Returns the number of logged commands that start with the given prefix.
+  private int countCommands(String prefix) {
+    int count = 0;
+    for (String command : gl.getCommands()) {
+      if (command.startsWith(prefix)) ++count;
+    }
+    return count;
+  }
+
+  private void assertAtMost(String what, long max, long actual) {
+    assertTrue(what + ": " + actual + " > " + max + " (" + gl.getSummary() + ")", actual <= max);
+  }
+
+  // Governor whose render scale is set by the test. Its own decisions are ignored.
+  private static class FixedQualityGovernor extends QualityGovernor {
+    float renderScale = 1;
+
+    FixedQualityGovernor() {
+      super(SYSTEM_CLOCK, null, 16666667L);
+    }
+
+    @Override
+    public synchronized float getRenderScale() {
+      return renderScale;
+    }
+
+    @Override
+    public synchronized int getLodBias() {
+      return 0;
+    }
+  }
+}
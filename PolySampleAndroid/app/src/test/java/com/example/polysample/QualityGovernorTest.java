@@ -0,0 +1,209 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how {@link QualityGovernor} moves between quality levels, driven by a fake clock and a
+ * fake thermal status.
+ *
+ * The governor doesn't depend on Android, so this is a plain JUnit test. Frames are simulated by
+ * calling onFrameStarted and onFrameFinished, advancing the clock by the frame's work time in
+ * between and by the rest of the frame interval after.
+ */
+public class QualityGovernorTest {
+  private static final long MS = 1000000L;
+
+  // 60 frames per second.
+  private static final long BUDGET_NANOS = 16666667L;
+
+  // Frames over budget: the interval is over the downgrade threshold (110% of the budget).
+  private static final long SLOW_INTERVAL_NANOS = 25 * MS;
+  private static final long SLOW_WORK_NANOS = 20 * MS;
+
+  // Frames well under budget: paced at the budget, with work under the upgrade threshold (60%).
+  private static final long FAST_WORK_NANOS = 5 * MS;
+
+  private FakeClock clock;
+  private FakeThermalStatusSource thermalStatusSource;
+  private QualityGovernor governor;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock();
+    thermalStatusSource = new FakeThermalStatusSource();
+    governor = new QualityGovernor(clock, thermalStatusSource, BUDGET_NANOS);
+  }
+
+  @Test
+  public void overBudget_downgradesOnceWindowIsFull() {
+    // The window holds 30 frame intervals: not enough frames to judge yet.
+    runFrames(20, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+    assertEquals(0, governor.getQualityLevel());
+
+    runFrames(12, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+
+    assertEquals(1, governor.getQualityLevel());
+    assertEquals(0.85f, governor.getRenderScale(), 0);
+    assertEquals(1, governor.getDowngradeCount());
+    assertEquals(0, governor.getUpgradeCount());
+  }
+
+  @Test
+  public void overBudget_keepsDowngradingAfterCooldown() {
+    downgrade();
+
+    // The windows start over at each level, and the level holds for a second.
+    runFor(900 * MS, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+    assertEquals(1, governor.getQualityLevel());
+    runFor(200 * MS, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+    assertEquals(2, governor.getQualityLevel());
+    assertEquals(1, governor.getLodBias());
+  }
+
+  @Test
+  public void underBudget_upgradesAfterDelay() {
+    downgrade();
+
+    // A second of cooldown, then three seconds under budget.
+    runFor(3500 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(1, governor.getQualityLevel());
+    runFor(1000 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+
+    assertEquals(0, governor.getQualityLevel());
+    assertEquals(1.0f, governor.getRenderScale(), 0);
+    assertEquals(1, governor.getUpgradeCount());
+  }
+
+  @Test
+  public void withinBudget_keepsLevel() {
+    downgrade();
+
+    // Paced at the budget, but the work takes most of it: no room to raise the quality.
+    runFor(20000 * MS, BUDGET_NANOS, 14 * MS);
+
+    assertEquals(1, governor.getQualityLevel());
+    assertEquals(1, governor.getDowngradeCount());
+    assertEquals(0, governor.getUpgradeCount());
+  }
+
+  @Test
+  public void failedUpgrade_doublesUpgradeDelay() {
+    downgrade();
+    runFor(4500 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(0, governor.getQualityLevel());
+
+    // Over budget again right after the raise: the raise was too much.
+    runUntilLevel(1, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+
+    // Now the quality only goes up after a second of cooldown and six seconds under budget.
+    runFor(6500 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(1, governor.getQualityLevel());
+    runFor(1000 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+
+    assertEquals(0, governor.getQualityLevel());
+    assertEquals(2, governor.getDowngradeCount());
+    assertEquals(2, governor.getUpgradeCount());
+  }
+
+  @Test
+  public void thermalStatus_capsQuality() {
+    thermalStatusSource.status = QualityGovernor.THERMAL_STATUS_SEVERE;
+
+    // The thermal status overrides the frame times, at once.
+    runFrames(1, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(3, governor.getQualityLevel());
+    assertEquals(0.5f, governor.getRenderScale(), 0);
+    assertEquals(QualityGovernor.THERMAL_STATUS_SEVERE, governor.getThermalStatus());
+
+    // Cooler, but still warm: the quality goes up one level, no further.
+    thermalStatusSource.status = QualityGovernor.THERMAL_STATUS_MODERATE;
+    runFor(20000 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(2, governor.getQualityLevel());
+
+    // Cool again: back to the best quality, one level at a time.
+    thermalStatusSource.status = QualityGovernor.THERMAL_STATUS_NONE;
+    runFor(20000 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(0, governor.getQualityLevel());
+    assertEquals(3, governor.getUpgradeCount());
+  }
+
+  @Test
+  public void thermalStatus_lowersQualityWhileUnderBudget() {
+    runFor(2000 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+    assertEquals(0, governor.getQualityLevel());
+
+    thermalStatusSource.status = QualityGovernor.THERMAL_STATUS_LIGHT;
+    // The status is polled at most once a second.
+    runFor(1100 * MS, BUDGET_NANOS, FAST_WORK_NANOS);
+
+    assertEquals(1, governor.getQualityLevel());
+    assertEquals(1, governor.getDowngradeCount());
+  }
+
+  // Lowers the quality from the best level to the next one, with frames over budget.
+  private void downgrade() {
+    runFrames(32, SLOW_INTERVAL_NANOS, SLOW_WORK_NANOS);
+    assertEquals(1, governor.getQualityLevel());
+  }
+
+  // Simulates frames until the quality gets to the given level, for at most ten seconds.
+  private void runUntilLevel(int level, long intervalNanos, long workNanos) {
+    for (long elapsed = 0; governor.getQualityLevel() != level; elapsed += intervalNanos) {
+      if (elapsed > 10000 * MS) fail("Quality still at level " + governor.getQualityLevel());
+      runFrames(1, intervalNanos, workNanos);
+    }
+  }
+
+  // Simulates frames for the given time.
+  private void runFor(long durationNanos, long intervalNanos, long workNanos) {
+    runFrames((int) (durationNanos / intervalNanos), intervalNanos, workNanos);
+  }
+
+  // Simulates the given number of frames, starting at the given interval, each doing the given
+  // amount of work.
+  private void runFrames(int count, long intervalNanos, long workNanos) {
+    for (int i = 0; i < count; i++) {
+      governor.onFrameStarted();
+      clock.nanos += workNanos;
+      governor.onFrameFinished();
+      clock.nanos += intervalNanos - workNanos;
+    }
+  }
+
+  // Clock that only moves when told to. Starts well after 0, which the governor treats as unset.
+  private static class FakeClock implements QualityGovernor.Clock {
+    long nanos = 1000 * MS;
+
+    @Override
+    public long nanoTime() {
+      return nanos;
+    }
+  }
+
+  private static class FakeThermalStatusSource implements QualityGovernor.ThermalStatusSource {
+    int status = QualityGovernor.THERMAL_STATUS_NONE;
+
+    @Override
+    public int getThermalStatus() {
+      return status;
+    }
+  }
+}
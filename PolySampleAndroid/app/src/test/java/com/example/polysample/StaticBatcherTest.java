@@ -0,0 +1,135 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks where {@link StaticBatcher} puts each mesh: its vertices transformed to world space,
+ * its indices rebased, and its index range recorded so that hiding it removes exactly that
+ * range from what is drawn.
+ *
+ * Runs under Robolectric, for android.util.Log.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class StaticBatcherTest {
+  // Three meshes of 2, 1 and 3 quads: 12, 6 and 18 indices.
+  private static final int[] QUAD_COUNTS = { 2, 1, 3 };
+
+  @Test
+  public void build_remapsIndexRanges() {
+    StaticBatcher.Result result = buildBatches();
+
+    assertEquals(1, result.getBatchCount());
+    assertSubObject(result.getSubObject(0), 0, 0, 12);
+    assertSubObject(result.getSubObject(1), 0, 12, 6);
+    assertSubObject(result.getSubObject(2), 0, 18, 18);
+    RawObject combined = result.getBatch(0).getRawObject();
+    assertEquals(4 * 6, combined.vertexCount);
+    assertEquals(36, combined.indexCount);
+    // The second mesh's vertices come after the first mesh's 8.
+    int[] expectedIndices = { 8, 9, 10, 8, 10, 11 };
+    for (int i = 0; i < expectedIndices.length; i++) {
+      assertEquals(expectedIndices[i], combined.indices.get(12 + i));
+    }
+    // And they are moved by the second mesh's transform: x + 10.
+    assertEquals(10, combined.positions.get(8 * MyGLUtils.COORDS_PER_VERTEX), 0);
+    // The bounds are in world space too: the third mesh ends at x = 20 + 3.
+    assertEquals(0, combined.boundsMin[0], 0);
+    assertEquals(23, combined.boundsMax[0], 0);
+    // All visible: one range.
+    assertRanges(result.getBatch(0).getDrawRanges(), 0, 36);
+  }
+
+  @Test
+  public void setSubObjectVisible_removesOnlyItsRange() {
+    StaticBatcher.Result result = buildBatches();
+    StaticBatcher.Batch batch = result.getBatch(0);
+
+    result.setSubObjectVisible(1, false);
+    assertRanges(batch.getDrawRanges(), 0, 12, 18, 18);
+
+    result.setSubObjectVisible(0, false);
+    assertRanges(batch.getDrawRanges(), 18, 18);
+
+    result.setSubObjectVisible(1, true);
+    assertRanges(batch.getDrawRanges(), 12, 24);
+
+    result.setSubObjectVisible(2, false);
+    assertRanges(batch.getDrawRanges(), 12, 6);
+
+    result.setSubObjectVisible(0, true);
+    result.setSubObjectVisible(2, true);
+    assertRanges(batch.getDrawRanges(), 0, 36);
+  }
+
+  @Test
+  public void build_splitsBatchesAtIndexLimit() {
+    StaticBatcher batcher = new StaticBatcher();
+    // 65536 vertices: a batch by itself.
+    int bigId = batcher.add(TestObjects.newQuads(16384), newTranslation(0));
+    int smallId = batcher.add(TestObjects.newQuads(1), newTranslation(0));
+
+    StaticBatcher.Result result = batcher.build();
+
+    assertEquals(2, result.getBatchCount());
+    assertSubObject(result.getSubObject(bigId), 0, 0, 16384 * 6);
+    assertSubObject(result.getSubObject(smallId), 1, 0, 6);
+    // The small mesh's indices start over at 0 in its own batch.
+    assertEquals(0, result.getBatch(1).getRawObject().indices.get(0));
+
+    result.setSubObjectVisible(smallId, false);
+    assertEquals(0, result.getBatch(1).getDrawRanges().getRangeCount());
+    assertRanges(result.getBatch(0).getDrawRanges(), 0, 16384 * 6);
+  }
+
+  // Batches the meshes of QUAD_COUNTS, each moved 10 units further along x.
+  private static StaticBatcher.Result buildBatches() {
+    StaticBatcher batcher = new StaticBatcher();
+    for (int i = 0; i < QUAD_COUNTS.length; i++) {
+      assertEquals(i, batcher.add(TestObjects.newQuads(QUAD_COUNTS[i]), newTranslation(10 * i)));
+    }
+    return batcher.build();
+  }
+
+  private static float[] newTranslation(float x) {
+    float[] matrix = new float[16];
+    MatrixMath.setIdentity(matrix, 0);
+    MatrixMath.translate(matrix, 0, x, 0, 0);
+    return matrix;
+  }
+
+  private static void assertSubObject(StaticBatcher.SubObject subObject, int batchIndex,
+      int firstIndex, int indexCount) {
+    assertEquals(batchIndex, subObject.batchIndex);
+    assertEquals(firstIndex, subObject.firstIndex);
+    assertEquals(indexCount, subObject.indexCount);
+  }
+
+  // Checks the ranges, given as (first, count) pairs.
+  private static void assertRanges(IndexRanges ranges, int... firstsAndCounts) {
+    assertEquals(firstsAndCounts.length / 2, ranges.getRangeCount());
+    for (int i = 0; i < ranges.getRangeCount(); i++) {
+      assertEquals(firstsAndCounts[2 * i], ranges.getFirst(i));
+      assertEquals(firstsAndCounts[2 * i + 1], ranges.getCount(i));
+    }
+  }
+}
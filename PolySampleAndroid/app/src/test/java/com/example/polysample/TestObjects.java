@@ -0,0 +1,69 @@
+// Copyright 2017 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.polysample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Builds small raw objects for the tests, without going through OBJ parsing.
+ */
+final class TestObjects {
+  private TestObjects() {}
+
+  /**
+   * Returns an object made of the given number of unit quads (two triangles each) in the z = 0
+   * plane, side by side along x, starting at the origin.
+   */
+  static RawObject newQuads(int quadCount) {
+    RawObject rawObject = new RawObject();
+    rawObject.vertexCount = quadCount * 4;
+    rawObject.indexCount = quadCount * 6;
+    rawObject.positions = newFloatBuffer(rawObject.vertexCount * MyGLUtils.COORDS_PER_VERTEX);
+    rawObject.colors = newFloatBuffer(rawObject.vertexCount * MyGLUtils.NUM_COLOR_COMPONENTS);
+    rawObject.normals = newFloatBuffer(rawObject.vertexCount * 3);
+    rawObject.indices = ByteBuffer.allocateDirect(rawObject.indexCount * MyGLUtils.SHORT_SIZE)
+        .order(ByteOrder.nativeOrder()).asShortBuffer();
+    rawObject.resetBounds();
+    for (int quad = 0; quad < quadCount; quad++) {
+      float[][] corners = { { quad, 0 }, { quad + 1, 0 }, { quad + 1, 1 }, { quad, 1 } };
+      for (float[] corner : corners) {
+        rawObject.positions.put(corner[0]).put(corner[1]).put(0);
+        rawObject.colors.put(1).put(1).put(1).put(1);
+        rawObject.normals.put(0).put(0).put(1);
+        rawObject.encapsulateInBounds(corner[0], corner[1], 0);
+      }
+      int first = quad * 4;
+      putTriangle(rawObject.indices, first, first + 1, first + 2);
+      putTriangle(rawObject.indices, first, first + 2, first + 3);
+    }
+    rawObject.positions.position(0);
+    rawObject.colors.position(0);
+    rawObject.normals.position(0);
+    rawObject.indices.position(0);
+    return rawObject;
+  }
+
+  private static FloatBuffer newFloatBuffer(int floatCount) {
+    return ByteBuffer.allocateDirect(floatCount * MyGLUtils.FLOAT_SIZE)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+
+  private static void putTriangle(ShortBuffer indices, int a, int b, int c) {
+    indices.put((short) a).put((short) b).put((short) c);
+  }
+}